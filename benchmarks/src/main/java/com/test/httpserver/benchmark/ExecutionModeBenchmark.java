@@ -0,0 +1,114 @@
+package com.test.httpserver.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.test.httpserver.examples.MyEchoServer;
+import com.test.httpserver.network.BufferPool;
+import com.test.httpserver.server.ServerExecutors;
+
+/**
+ * Compares echo server throughput with a platform thread pool, a custom (cached) pool and
+ * virtual threads, at 1k and 10k concurrent keep-alive connections over loopback.
+ * <p>
+ * Usage: <code>java -cp benchmarks/target/benchmarks.jar com.test.httpserver.benchmark.ExecutionModeBenchmark
+ * [seconds] [connections...]</code>
+ * <p>
+ * Client and server run in this JVM, so the open file limit (<code>ulimit -n</code>) must be
+ * above twice the largest connection count.
+ */
+public class ExecutionModeBenchmark
+{
+    private static final String[] MODES = { "platform", "cached", "virtual" };
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int[] connectionCounts = { 1000, 10000 };
+        if (args.length > 1)
+        {
+            connectionCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+            {
+                connectionCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // the server logs every request; keep that out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }));
+
+        console.printf("%-10s %12s %12s %12s%n", "mode", "connections", "requests/s", "errors");
+        for (int connections : connectionCounts)
+        {
+            for (String mode : MODES)
+            {
+                ExecutorService executor = createExecutor(mode);
+                if (executor == null)
+                {
+                    console.printf("%-10s %12d %12s %12s%n", mode, connections, "n/a", "-");
+                    continue;
+                }
+                int port = freePort();
+                MyEchoServer server = new MyEchoServer(port);
+                server.setExecutor(executor);
+                server.start();
+                try
+                {
+                    LoopbackClient client = new LoopbackClient(new InetSocketAddress("127.0.0.1", port),
+                            LoopbackClient.post("/echo", "hello".getBytes()));
+                    long completed = client.run(connections, seconds * 1000L);
+                    console.printf("%-10s %12d %12d %12d%n", mode, connections, completed / seconds, client.getErrors());
+                }
+                finally
+                {
+                    server.stop();
+                    executor.shutdownNow();
+                }
+            }
+        }
+        console.println(BufferPool.HEADER_BUFFERS);
+        console.println(BufferPool.IO_BUFFERS);
+        System.setOut(console);
+    }
+
+    /**
+     * @return the executor for the mode, or null if this JVM does not support it
+     */
+    private static ExecutorService createExecutor(String mode)
+    {
+        if ("platform".equals(mode))
+        {
+            return ServerExecutors.platformPool(10);
+        }
+        if ("cached".equals(mode))
+        {
+            return Executors.newCachedThreadPool();
+        }
+        return ServerExecutors.isVirtualThreadsSupported() ? ServerExecutors.virtualThreadPerTask() : null;
+    }
+
+    private static int freePort() throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        try
+        {
+            return socket.getLocalPort();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.test.httpserver.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Closed-loop HTTP client driving many keep-alive connections from a single selector thread.
+ * Every connection sends one request, waits for the complete response and sends the next one;
+ * connections closed by the server are reopened.
+ */
+public class LoopbackClient
+{
+    private final InetSocketAddress address;
+    private final byte[] request;
+    private long completed;
+    private long errors;
+
+    public LoopbackClient(InetSocketAddress address, byte[] request)
+    {
+        this.address = address;
+        this.request = request;
+    }
+
+    /**
+     * Builds a keep-alive POST request with the given body.
+     */
+    public static byte[] post(String uri, byte[] body)
+    {
+        String head = "POST " + uri + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: "
+                + body.length + "\r\n\r\n";
+        byte[] bytes = new byte[head.length() + body.length];
+        System.arraycopy(head.getBytes(), 0, bytes, 0, head.length());
+        System.arraycopy(body, 0, bytes, head.length(), body.length);
+        return bytes;
+    }
+
+    /**
+     * Runs the given number of connections for the given time.
+     *
+     * @return number of complete responses received
+     */
+    public long run(int connections, long durationMillis) throws IOException
+    {
+        Selector selector = Selector.open();
+        try
+        {
+            for (int i = 0; i < connections; i++)
+            {
+                open(selector);
+            }
+            long end = System.currentTimeMillis() + durationMillis;
+            while (System.currentTimeMillis() < end)
+            {
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!process(key))
+                    {
+                        key.cancel();
+                        key.channel().close();
+                        open(selector);
+                    }
+                }
+            }
+            return completed;
+        }
+        finally
+        {
+            for (SelectionKey key : selector.keys())
+            {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    public long getCompleted()
+    {
+        return completed;
+    }
+
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    private void open(Selector selector) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        channel.register(selector, SelectionKey.OP_CONNECT, new Exchange());
+    }
+
+    /**
+     * @return false if the connection has to be reopened
+     */
+    private boolean process(SelectionKey key)
+    {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Exchange exchange = (Exchange) key.attachment();
+        try
+        {
+            if (key.isConnectable())
+            {
+                channel.finishConnect();
+                exchange.start();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isWritable())
+            {
+                channel.write(exchange.out);
+                if (!exchange.out.hasRemaining())
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            else if (key.isReadable())
+            {
+                if (channel.read(exchange.in) < 0)
+                {
+                    return false;
+                }
+                int status = exchange.responseComplete();
+                if (status > 0)
+                {
+                    if (status == 200)
+                    {
+                        completed++;
+                    }
+                    else
+                    {
+                        errors++;
+                    }
+                    if (exchange.closing)
+                    {
+                        return false;
+                    }
+                    exchange.start();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            errors++;
+            return false;
+        }
+    }
+
+    /**
+     * Request/response state of one connection.
+     */
+    private final class Exchange
+    {
+        private final ByteBuffer out = ByteBuffer.wrap(request);
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private boolean closing;
+
+        void start()
+        {
+            out.rewind();
+            in.clear();
+        }
+
+        /**
+         * @return the status code once the whole response is buffered, 0 before that
+         */
+        int responseComplete()
+        {
+            byte[] buf = in.array();
+            int len = in.position();
+            int headerEnd = -1;
+            for (int i = 0; i + 3 < len; i++)
+            {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n')
+                {
+                    headerEnd = i + 4;
+                    break;
+                }
+            }
+            if (headerEnd < 0)
+            {
+                return 0;
+            }
+            String head = new String(buf, 0, headerEnd).toLowerCase();
+            int contentLength = 0;
+            int p = head.indexOf("content-length:");
+            if (p >= 0)
+            {
+                contentLength = Integer.parseInt(head.substring(p + 15, head.indexOf('\r', p)).trim());
+            }
+            if (len < headerEnd + contentLength)
+            {
+                if (in.capacity() < headerEnd + contentLength)
+                {
+                    ByteBuffer larger = ByteBuffer.allocate(headerEnd + contentLength);
+                    in.flip();
+                    larger.put(in);
+                    in = larger;
+                }
+                return 0;
+            }
+            closing = head.contains("connection: close");
+            return Integer.parseInt(head.substring(9, 12));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.test.httpserver.benchmark.jmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.test.httpserver.benchmark.LoopbackClient;
+import com.test.httpserver.examples.MyEchoServer;
+
+/**
+ * New connections per second against a {@link MyEchoServer} started in the benchmark JVM, the
+ * load of clients reconnecting all at once. Every operation connects, sends one small request
+ * with "Connection: close" and reads the response until the server closes the connection, so
+ * accepting dominates. <code>acceptors</code> is the number of accept threads (blocking mode) or
+ * event loops (nio); with <code>reusePort</code> each of them has its own SO_REUSEPORT listener.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ConnectionRateBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Server
+    {
+        @Param({ "blocking", "nio" })
+        public String mode;
+
+        @Param({ "1", "4" })
+        public int acceptors;
+
+        @Param({ "false", "true" })
+        public boolean reusePort;
+
+        MyEchoServer server;
+        InetSocketAddress address;
+        byte[] request;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException
+        {
+            int port;
+            ServerSocket probe = new ServerSocket(0);
+            try
+            {
+                port = probe.getLocalPort();
+            }
+            finally
+            {
+                probe.close();
+            }
+            server = new MyEchoServer(port);
+            server.setNonBlocking("nio".equals(mode));
+            server.setAcceptorCount(acceptors);
+            server.setEventLoopCount(acceptors);
+            server.setReusePort(reusePort);
+            server.start();
+            address = new InetSocketAddress("127.0.0.1", port);
+            String post = new String(LoopbackClient.post("/echo", "x".getBytes()), "US-ASCII");
+            request = post.replace("\r\n\r\n", "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+        }
+
+        @TearDown(Level.Trial)
+        public void stop()
+        {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer
+    {
+        final byte[] buf = new byte[4096];
+    }
+
+    /**
+     * @return the number of response bytes
+     */
+    @Benchmark
+    public int connect(Server server, Buffer buffer) throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.connect(server.address);
+            socket.getOutputStream().write(server.request);
+            InputStream in = socket.getInputStream();
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer.buf)) >= 0)
+            {
+                total += read;
+            }
+            return total;
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+}
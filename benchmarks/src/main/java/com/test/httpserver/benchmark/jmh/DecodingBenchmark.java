@@ -0,0 +1,58 @@
+package com.test.httpserver.benchmark.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.util.Method;
+
+/**
+ * {@link Method#lookup(String)} and {@link HTTPRequest#decodePercent(String)}, the small per request
+ * decoders.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodingBenchmark
+{
+    @State(Scope.Thread)
+    public static class MethodName
+    {
+        /**
+         * The first and last enum constant, lower case and an unknown method
+         */
+        @Param({ "GET", "OPTIONS", "post", "PATCH" })
+        public String method;
+    }
+
+    @State(Scope.Thread)
+    public static class EncodedPath
+    {
+        @Param({ "/index.html", "/search?q=caf%C3%A9+au+lait&lang=fr", "/files/annual%20report%202023%E2%82%AC.pdf" })
+        public String path;
+    }
+
+    @Benchmark
+    public Method lookup(MethodName state)
+    {
+        return Method.lookup(state.method);
+    }
+
+    @Benchmark
+    public String decodePercent(EncodedPath state)
+    {
+        return HTTPRequest.decodePercent(state.path);
+    }
+}
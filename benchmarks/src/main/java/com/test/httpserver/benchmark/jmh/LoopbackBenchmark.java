@@ -0,0 +1,201 @@
+package com.test.httpserver.benchmark.jmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.test.httpserver.benchmark.LoopbackClient;
+import com.test.httpserver.examples.MyEchoServer;
+
+/**
+ * End-to-end requests per second against a {@link MyEchoServer} started in the benchmark JVM.
+ * Every benchmark thread keeps one connection open and posts a body that is echoed back, reading
+ * the whole response before sending the next request. Run it with <code>-prof gc</code> for the
+ * allocation rate; client and server share the JVM, so that rate covers both.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Server
+    {
+        @Param({ "blocking", "nio" })
+        public String mode;
+
+        @Param({ "128", "16384" })
+        public int bodySize;
+
+        MyEchoServer server;
+        InetSocketAddress address;
+        byte[] request;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException
+        {
+            int port;
+            ServerSocket probe = new ServerSocket(0);
+            try
+            {
+                port = probe.getLocalPort();
+            }
+            finally
+            {
+                probe.close();
+            }
+            server = new MyEchoServer(port);
+            server.setNonBlocking("nio".equals(mode));
+            // every benchmark thread holds its connection for the whole run
+            server.setMaxRequestsPerConnection(Integer.MAX_VALUE);
+            server.start();
+            address = new InetSocketAddress("127.0.0.1", port);
+            byte[] body = new byte[bodySize];
+            Arrays.fill(body, (byte) 'x');
+            request = LoopbackClient.post("/echo", body);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop()
+        {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection
+    {
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private static final byte[] CONTENT_LENGTH = "\ncontent-length:".getBytes();
+
+        private final byte[] buf = new byte[32 * 1024];
+
+        @Setup(Level.Trial)
+        public void open(Server server) throws IOException
+        {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(server.address);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+
+        /**
+         * Sends the request and reads the response head and its Content-Length body.
+         *
+         * @return the number of response bytes
+         */
+        int exchange(byte[] request) throws IOException
+        {
+            out.write(request);
+            out.flush();
+            int length = 0;
+            int headEnd = -1;
+            while (headEnd < 0)
+            {
+                int read = in.read(buf, length, buf.length - length);
+                if (read < 0)
+                {
+                    throw new IOException("Connection closed by server");
+                }
+                length += read;
+                headEnd = indexOfHeadEnd(length);
+            }
+            long total = headEnd + contentLength(headEnd);
+            long remaining = total - length;
+            while (remaining > 0)
+            {
+                int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (read < 0)
+                {
+                    throw new IOException("Connection closed by server");
+                }
+                remaining -= read;
+            }
+            return (int) total;
+        }
+
+        private int indexOfHeadEnd(int length)
+        {
+            for (int i = 3; i < length; i++)
+            {
+                if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r')
+                {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads the Content-Length value straight from the buffer, so that the client adds no
+         * garbage of its own to the allocation rate.
+         */
+        private long contentLength(int headEnd) throws IOException
+        {
+            int start = -1;
+            for (int i = 0; i + CONTENT_LENGTH.length <= headEnd && start < 0; i++)
+            {
+                int j = 0;
+                while (j < CONTENT_LENGTH.length && Character.toLowerCase((char) buf[i + j]) == CONTENT_LENGTH[j])
+                {
+                    j++;
+                }
+                if (j == CONTENT_LENGTH.length)
+                {
+                    start = i + j;
+                }
+            }
+            if (start < 0)
+            {
+                throw new IOException("Response without Content-Length");
+            }
+            long value = 0;
+            for (int i = start; i < headEnd && buf[i] != '\r'; i++)
+            {
+                if (buf[i] >= '0' && buf[i] <= '9')
+                {
+                    value = value * 10 + buf[i] - '0';
+                }
+            }
+            return value;
+        }
+    }
+
+    @Benchmark
+    public int echo(Server server, Connection connection) throws IOException
+    {
+        return connection.exchange(server.request);
+    }
+}
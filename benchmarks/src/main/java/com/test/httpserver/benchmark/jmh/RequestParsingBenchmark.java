@@ -0,0 +1,128 @@
+package com.test.httpserver.benchmark.jmh;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.test.httpserver.network.ConnectionInputStream;
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.RequestParser;
+
+/**
+ * Request parsing over the {@link Corpus}: the {@link RequestParser} alone, a whole
+ * {@link HTTPRequest#execute()} as a keep-alive connection runs it, and the BufferedReader based
+ * {@link HTTPRequest#decodeHeader} for comparison. Every variant reads the values the server itself
+ * needs: the URI and Content-Length, Content-Type and Connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark
+{
+    @Param({ Corpus.CURL, Corpus.API, Corpus.BROWSER })
+    public String request;
+
+    private byte[] bytes;
+    private int headerEnd;
+    private String query;
+    private RequestParser parser;
+    private ByteArrayInputStream connection;
+    private HTTPRequest httpRequest;
+
+    @Setup
+    public void setUp()
+    {
+        bytes = Corpus.request(request);
+        headerEnd = HTTPRequest.findHeaderEnd(bytes, bytes.length);
+        String head = new String(bytes, 0, headerEnd);
+        String target = head.substring(head.indexOf(' ') + 1, head.indexOf(" HTTP/"));
+        query = target.indexOf('?') >= 0 ? target.substring(target.indexOf('?') + 1) : "";
+        parser = new RequestParser();
+        connection = new ByteArrayInputStream(bytes);
+        httpRequest = new HTTPRequest(new ConnectionInputStream(connection), null);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        httpRequest.release();
+    }
+
+    @Benchmark
+    public void requestParser(Blackhole bh) throws Exception
+    {
+        parser.reset();
+        parser.parse(bytes, bytes.length);
+        bh.consume(parser.getHeader("content-length"));
+        bh.consume(parser.getHeader("content-type"));
+        bh.consume(parser.getHeader("connection"));
+        bh.consume(HTTPRequest.decodePercent(parser.getTarget()));
+    }
+
+    /**
+     * One request of a keep-alive connection: parse, read the parameters and skip the body.
+     */
+    @Benchmark
+    public void execute(Blackhole bh) throws Exception
+    {
+        connection.reset();
+        httpRequest.reset();
+        httpRequest.execute();
+        Map<String, String> headers = httpRequest.getHeaders();
+        bh.consume(headers.get("content-length"));
+        bh.consume(headers.get("content-type"));
+        bh.consume(headers.get("connection"));
+        bh.consume(httpRequest.getUri());
+        bh.consume(httpRequest.getParms());
+        bh.consume(httpRequest.discardBody(Long.MAX_VALUE));
+    }
+
+    @Benchmark
+    public void decodeHeader(Blackhole bh) throws Exception
+    {
+        Map<String, String> pre = new HashMap<String, String>();
+        Map<String, String> parms = new HashMap<String, String>();
+        Map<String, String> headers = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes, 0, headerEnd),
+                "ISO-8859-1"));
+        HTTPRequest.decodeHeader(in, pre, parms, headers);
+        bh.consume(headers.get("content-length"));
+        bh.consume(headers.get("content-type"));
+        bh.consume(headers.get("connection"));
+        bh.consume(pre.get("uri"));
+    }
+
+    @Benchmark
+    public int findHeaderEnd()
+    {
+        return HTTPRequest.findHeaderEnd(bytes, bytes.length);
+    }
+
+    @Benchmark
+    public Map<String, String> decodeParms()
+    {
+        Map<String, String> parms = new HashMap<String, String>();
+        HTTPRequest.decodeParms(query, parms);
+        return parms;
+    }
+}
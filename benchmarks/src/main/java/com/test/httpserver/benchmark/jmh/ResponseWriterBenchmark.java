@@ -0,0 +1,110 @@
+package com.test.httpserver.benchmark.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.network.HeadEncoder;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * Response serialization into a stream that discards the bytes: {@link HTTPResponse#send} with a
+ * fixed length and a chunked body of several sizes, and the {@link HeadEncoder} alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseWriterBenchmark
+{
+    @Param({ "0", "1024", "65536" })
+    public int bodySize;
+
+    @Param({ "fixed", "chunked" })
+    public String transfer;
+
+    private byte[] body;
+    private byte[] headBuffer;
+    private DiscardingOutputStream out;
+
+    @Setup
+    public void setUp(Blackhole bh)
+    {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        headBuffer = new byte[8192];
+        out = new DiscardingOutputStream(bh);
+    }
+
+    @Benchmark
+    public long send()
+    {
+        HTTPResponse response = new HTTPResponse(HTTPStatus.OK, "application/json", new ByteArrayInputStream(body),
+                body.length);
+        response.setRequestMethod(Method.GET);
+        response.setKeepAlive(true);
+        response.setChunkedTransfer("chunked".equals(transfer));
+        response.send(out, false);
+        return response.getBytesSent();
+    }
+
+    @Benchmark
+    public int encodeHead()
+    {
+        HeadEncoder head = new HeadEncoder(headBuffer);
+        head.status(HTTPStatus.OK).header("Content-Type", "application/json").date();
+        if ("chunked".equals(transfer))
+        {
+            head.header("Transfer-Encoding", "chunked");
+        }
+        else
+        {
+            head.header("Content-Length", bodySize);
+        }
+        return head.header("Connection", "keep-alive").end().size();
+    }
+
+    /**
+     * Hands every write to the black hole, so that nothing is copied but nothing is elided either.
+     */
+    private static final class DiscardingOutputStream extends OutputStream
+    {
+        private final Blackhole bh;
+
+        DiscardingOutputStream(Blackhole bh)
+        {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            bh.consume(b);
+            bh.consume(len);
+        }
+    }
+}
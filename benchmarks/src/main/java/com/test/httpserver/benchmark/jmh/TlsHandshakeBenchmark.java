@@ -0,0 +1,201 @@
+package com.test.httpserver.benchmark.jmh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.test.httpserver.benchmark.LoopbackClient;
+import com.test.httpserver.examples.MyEchoServer;
+import com.test.httpserver.network.TlsContext;
+
+/**
+ * TLS connections per second against a {@link MyEchoServer} started in the benchmark JVM with a
+ * self-signed certificate, which keytool generates for the trial. Every operation connects,
+ * handshakes, sends one small request with "Connection: close" and reads the response until the
+ * server closes the connection, so the handshake dominates. With <code>resume</code> the client
+ * offers the session of an earlier connection and the server resumes it; without, the client
+ * forgets every session and each handshake is a full one. The server's handshake counts are
+ * printed at the end of a trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TlsHandshakeBenchmark
+{
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    @State(Scope.Benchmark)
+    public static class Server
+    {
+        @Param({ "blocking", "nio" })
+        public String mode;
+
+        @Param({ "TLSv1.3", "TLSv1.2" })
+        public String protocol;
+
+        @Param({ "false", "true" })
+        public boolean resume;
+
+        File keyStore;
+        MyEchoServer server;
+        TlsContext tlsContext;
+        InetSocketAddress address;
+        byte[] request;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception
+        {
+            keyStore = File.createTempFile("benchmark", ".p12");
+            keyStore.delete();
+            generateKeyStore(keyStore);
+            int port;
+            ServerSocket probe = new ServerSocket(0);
+            try
+            {
+                port = probe.getLocalPort();
+            }
+            finally
+            {
+                probe.close();
+            }
+            tlsContext = new TlsContext(keyStore, PASSWORD);
+            tlsContext.setProtocols(protocol);
+            server = new MyEchoServer(port);
+            server.setNonBlocking("nio".equals(mode));
+            server.setTlsContext(tlsContext);
+            server.start();
+            address = new InetSocketAddress("127.0.0.1", port);
+            String post = new String(LoopbackClient.post("/echo", "x".getBytes()), "US-ASCII");
+            request = post.replace("\r\n\r\n", "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+        }
+
+        @TearDown(Level.Trial)
+        public void stop()
+        {
+            server.stop();
+            System.out.println();
+            System.out.println("Server " + tlsContext.getMetrics());
+            keyStore.delete();
+        }
+    }
+
+    /**
+     * A client context per thread, so that no thread resumes a session another one is about to
+     * forget.
+     */
+    @State(Scope.Thread)
+    public static class Client
+    {
+        final byte[] buf = new byte[4096];
+        SSLSocketFactory factory;
+
+        @Setup(Level.Trial)
+        public void start(Server server) throws Exception
+        {
+            factory = trusting(server.keyStore).getSocketFactory();
+        }
+    }
+
+    /**
+     * @return the number of response bytes
+     */
+    @Benchmark
+    public int connect(Server server, Client client) throws IOException
+    {
+        SSLSocket socket = (SSLSocket) client.factory.createSocket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.connect(server.address);
+            socket.startHandshake();
+            socket.getOutputStream().write(server.request);
+            InputStream in = socket.getInputStream();
+            int total = 0;
+            int read;
+            while ((read = in.read(client.buf)) >= 0)
+            {
+                total += read;
+            }
+            if (!server.resume)
+            {
+                // neither cached nor offered again, with its ticket
+                socket.getSession().invalidate();
+            }
+            return total;
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private static void generateKeyStore(File keyStore) throws IOException, InterruptedException
+    {
+        File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+        String password = new String(PASSWORD);
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-keysize", "256", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true).start();
+        InputStream out = process.getInputStream();
+        byte[] discard = new byte[1024];
+        while (out.read(discard) >= 0)
+        {
+            // keytool's report
+        }
+        if (process.waitFor() != 0)
+        {
+            throw new IOException("keytool failed with exit code " + process.exitValue());
+        }
+    }
+
+    /**
+     * @return a client context trusting the certificate in <code>keyStore</code>
+     */
+    private static SSLContext trusting(File keyStore) throws Exception
+    {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(keyStore);
+        try
+        {
+            store.load(in, PASSWORD);
+        }
+        finally
+        {
+            in.close();
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(store);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+}
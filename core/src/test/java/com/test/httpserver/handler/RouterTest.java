@@ -0,0 +1,204 @@
+package com.test.httpserver.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+public class RouterTest
+{
+    @Test
+    public void matchesStaticParameterAndWildcardRoutes() throws IOException
+    {
+        Router router = new Router();
+        router.get("/", answer("root"));
+        router.get("/users", answer("users"));
+        router.get("/users/{id}", answer("user"));
+        router.get("/users/{id}/posts/{post}", answer("post"));
+        router.get("/static/*", answer("static"));
+
+        assertEquals("root", body(router.route(request(Method.GET, "/"))));
+        assertEquals("users", body(router.route(request(Method.GET, "/users"))));
+
+        HTTPRequest user = request(Method.GET, "/users/42");
+        assertEquals("user", body(router.route(user)));
+        assertEquals("42", user.getPathParam("id"));
+        assertEquals("/users/{id}", user.getRoute());
+
+        HTTPRequest post = request(Method.GET, "/users/42/posts/7?draft=1");
+        assertEquals("post", body(router.route(post)));
+        assertEquals("42", post.getPathParam("id"));
+        assertEquals("7", post.getPathParam("post"));
+        assertNull(post.getPathParam("draft"));
+
+        HTTPRequest file = request(Method.GET, "/static/css/a%20b.css");
+        assertEquals("static", body(router.route(file)));
+        assertEquals("css/a b.css", file.getPathParam("*"));
+
+        HTTPRequest empty = request(Method.GET, "/static/");
+        assertEquals("static", body(router.route(empty)));
+        assertEquals("", empty.getPathParam("*"));
+    }
+
+    @Test
+    public void prefersStaticOverParameterOverWildcard() throws IOException
+    {
+        Router router = new Router();
+        router.get("/users/me", answer("me"));
+        router.get("/users/{id}", answer("user"));
+        router.get("/users/*", answer("any"));
+
+        assertEquals("me", body(router.route(request(Method.GET, "/users/me"))));
+        assertEquals("user", body(router.route(request(Method.GET, "/users/mee"))));
+        assertEquals("user", body(router.route(request(Method.GET, "/users/m"))));
+        assertEquals("any", body(router.route(request(Method.GET, "/users/me/settings"))));
+        // a parameter matches a non empty segment only
+        assertEquals("any", body(router.route(request(Method.GET, "/users/"))));
+    }
+
+    @Test
+    public void splitsSharedPrefixes() throws IOException
+    {
+        Router router = new Router();
+        router.get("/search", answer("search"));
+        router.get("/sea", answer("sea"));
+        router.get("/seat", answer("seat"));
+        router.get("/se/{x}", answer("se"));
+
+        assertEquals("search", body(router.route(request(Method.GET, "/search"))));
+        assertEquals("sea", body(router.route(request(Method.GET, "/sea"))));
+        assertEquals("seat", body(router.route(request(Method.GET, "/seat"))));
+        assertEquals("se", body(router.route(request(Method.GET, "/se/a"))));
+        assertEquals(HTTPStatus.NOT_FOUND, router.route(request(Method.GET, "/se")).getStatus());
+        assertEquals(HTTPStatus.NOT_FOUND, router.route(request(Method.GET, "/searches")).getStatus());
+    }
+
+    @Test
+    public void answersUnroutedRequests() throws IOException
+    {
+        Router router = new Router();
+        router.get("/items/{id}", answer("get"));
+        router.delete("/items/{id}", answer("delete"));
+
+        assertEquals(HTTPStatus.NOT_FOUND, router.route(request(Method.GET, "/other")).getStatus());
+
+        HTTPResponse post = router.route(request(Method.POST, "/items/1"));
+        assertEquals(HTTPStatus.METHOD_NOT_ALLOWED, post.getStatus());
+        assertEquals("GET, DELETE, HEAD, OPTIONS", post.getHeader("Allow"));
+
+        HTTPResponse options = router.route(request(Method.OPTIONS, "/items/1"));
+        assertEquals(HTTPStatus.NO_CONTENT, options.getStatus());
+        assertEquals("GET, DELETE, HEAD, OPTIONS", options.getHeader("Allow"));
+
+        // HEAD falls back to GET
+        HTTPRequest head = request(Method.HEAD, "/items/1");
+        assertEquals("get", body(router.route(head)));
+        assertEquals("1", head.getPathParam("id"));
+    }
+
+    @Test
+    public void completesAsyncRoutesLater() throws IOException
+    {
+        final CompletableFuture<HTTPResponse> pending = new CompletableFuture<HTTPResponse>();
+        Router router = new Router();
+        router.addAsync(Method.GET, "/slow", new Router.AsyncHandler()
+        {
+            @Override
+            public CompletableFuture<HTTPResponse> handle(HTTPRequest request)
+            {
+                return pending;
+            }
+        });
+        router.get("/fast", answer("fast"));
+
+        CompletableFuture<HTTPResponse> slow = router.routeAsync(request(Method.GET, "/slow"));
+        assertFalse(slow.isDone());
+        pending.complete(new HTTPResponse(HTTPStatus.OK, HTTPResponse.MIME_PLAINTEXT, "slow"));
+        assertEquals("slow", body(slow.join()));
+        assertEquals("fast", body(router.routeAsync(request(Method.GET, "/fast")).join()));
+    }
+
+    @Test
+    public void rejectsMalformedAndDuplicateRoutes()
+    {
+        expectRejected("users");
+        expectRejected("/users/{}");
+        expectRejected("/users/{id");
+        expectRejected("/users/x{id}");
+        expectRejected("/users/{id}x");
+        expectRejected("/files/*/more");
+        expectRejected("/files*");
+        Router router = new Router();
+        router.get("/users/{id}", answer("user"));
+        try
+        {
+            router.get("/users/{name}", answer("again"));
+            fail("Routed twice");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // the same route, whatever the parameter is called
+        }
+        router.post("/users/{name}", answer("post"));
+    }
+
+    private static void expectRejected(String pattern)
+    {
+        try
+        {
+            new Router().get(pattern, answer("x"));
+            fail("Accepted " + pattern);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // malformed
+        }
+    }
+
+    private static Router.Handler answer(final String text)
+    {
+        return new Router.Handler()
+        {
+            @Override
+            public HTTPResponse handle(HTTPRequest request)
+            {
+                return new HTTPResponse(HTTPStatus.OK, HTTPResponse.MIME_PLAINTEXT, text);
+            }
+        };
+    }
+
+    private static HTTPRequest request(Method method, String target)
+    {
+        HTTPRequest request = new HTTPRequest(new ByteArrayInputStream(new byte[0]), null);
+        request.setHead(method, target, new HashMap<String, String>(), 0);
+        return request;
+    }
+
+    private static String body(HTTPResponse response) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream data = response.getData();
+        byte[] buff = new byte[256];
+        int read;
+        while ((read = data.read(buff)) > 0)
+        {
+            out.write(buff, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,262 @@
+package com.test.httpserver.network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * HPACK against the examples of RFC 7541, Appendix C, and the decoding errors of section 5 and 6.
+ * The decoder's table is never smaller than 4096 bytes; the examples with a 256 byte table still
+ * decode to the same fields, since they only refer to entries that are not evicted.
+ */
+public class HpackTest
+{
+    private static final String DATE_21 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_22 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String LOCATION = "https://www.example.com";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    private static final List<String> REQUEST_1 = Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+            ":authority", "www.example.com");
+    private static final List<String> REQUEST_2 = Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+            ":authority", "www.example.com", "cache-control", "no-cache");
+    private static final List<String> REQUEST_3 = Arrays.asList(":method", "GET", ":scheme", "https", ":path",
+            "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    private static final List<String> RESPONSE_1 = Arrays.asList(":status", "302", "cache-control", "private",
+            "date", DATE_21, "location", LOCATION);
+    private static final List<String> RESPONSE_2 = Arrays.asList(":status", "307", "cache-control", "private",
+            "date", DATE_21, "location", LOCATION);
+    private static final List<String> RESPONSE_3 = Arrays.asList(":status", "200", "cache-control", "private",
+            "date", DATE_22, "location", LOCATION, "content-encoding", "gzip", "set-cookie", COOKIE);
+
+    @Test
+    public void decodesLiteralWithIndexing() throws IOException
+    {
+        // C.2.1, the field is added to the table
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(Arrays.asList("custom-key", "custom-header"),
+                decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    public void decodesLiteralsWithoutIndexing() throws IOException
+    {
+        // C.2.2 and C.2.3, nothing is added to the table
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(Arrays.asList(":path", "/sample/path"), decode(decoder, "040c 2f73 616d 706c 652f 7061 7468"));
+        assertEquals(Arrays.asList("password", "secret"), decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+        expectError(decoder, "be");
+    }
+
+    @Test
+    public void decodesIndexedField() throws IOException
+    {
+        // C.2.4
+        assertEquals(Arrays.asList(":method", "GET"), decode(new HpackDecoder(16384), "82"));
+    }
+
+    @Test
+    public void decodesRequestsWithoutHuffman() throws IOException
+    {
+        // C.3
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(REQUEST_1, decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(REQUEST_2, decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(REQUEST_3, decode(decoder,
+                "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+    }
+
+    @Test
+    public void decodesRequestsWithHuffman() throws IOException
+    {
+        // C.4
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(REQUEST_1, decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(REQUEST_2, decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(REQUEST_3, decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    @Test
+    public void decodesResponsesWithoutHuffman() throws IOException
+    {
+        // C.5
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(RESPONSE_1, decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120"
+                + "4f63 7420 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861"
+                + "6d70 6c65 2e63 6f6d"));
+        assertEquals(RESPONSE_2, decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(RESPONSE_3, decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a"
+                + "3133 3a32 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f"
+                + "5049 5541 5851 5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+    }
+
+    @Test
+    public void decodesResponsesWithHuffman() throws IOException
+    {
+        // C.6
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(RESPONSE_1, decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005"
+                + "9504 0b81 66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"));
+        assertEquals(RESPONSE_2, decode(decoder, "4883 640e ffc1 c0bf"));
+        assertEquals(RESPONSE_3, decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d"
+                + "1bff c05a 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5"
+                + "291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"));
+    }
+
+    @Test
+    public void encodesRequestsLikeTheExamples()
+    {
+        // C.4: indexed where possible, other fields added to the table, strings Huffman coded
+        HpackEncoder encoder = new HpackEncoder();
+        assertArrayEquals(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"), encode(encoder, REQUEST_1));
+        assertArrayEquals(hex("8286 84be 5886 a8eb 1064 9cbf"), encode(encoder, REQUEST_2));
+        assertArrayEquals(hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+                encode(encoder, REQUEST_3));
+    }
+
+    @Test
+    public void encodedResponsesDecodeAgain() throws IOException
+    {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(16384);
+        for (List<String> fields : Arrays.asList(RESPONSE_1, RESPONSE_2, RESPONSE_3, RESPONSE_3))
+        {
+            byte[] block = encode(encoder, fields);
+            assertEquals(fields, decode(decoder, block));
+        }
+    }
+
+    @Test
+    public void announcesSmallerTable() throws IOException
+    {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(16384);
+        assertEquals(RESPONSE_1, decode(decoder, encode(encoder, RESPONSE_1)));
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(256);
+        byte[] block = encode(encoder, RESPONSE_3);
+        // shrunk to 0 and grown to 256, both announced before the first field
+        assertEquals(0x20, block[0] & 0xff);
+        assertEquals(0x3f, block[1] & 0xff);
+        assertEquals(RESPONSE_3, decode(decoder, block));
+        assertEquals(RESPONSE_2, decode(decoder, encode(encoder, RESPONSE_2)));
+    }
+
+    @Test
+    public void encodesHuffmanExamples() throws IOException
+    {
+        assertHuffman("www.example.com", "f1e3 c2e5 f23a 6ba0 ab90 f4ff");
+        assertHuffman("no-cache", "a8eb 1064 9cbf");
+        assertHuffman("custom-key", "25a8 49e9 5ba9 7d7f");
+        assertHuffman("302", "6402");
+        assertHuffman(LOCATION, "9d29 ad17 1863 c78f 0b97 c8e9 ae82 ae43 d3");
+    }
+
+    @Test
+    public void rejectsInvalidHuffman()
+    {
+        // the EOS symbol
+        expectError(new HpackDecoder(16384), "0084 ffff ffff 0161");
+        // padding of more than 7 bits, 'a' is 00011
+        expectError(new HpackDecoder(16384), "0082 1fff 0161");
+        // padding that is not the most significant bits of EOS
+        expectError(new HpackDecoder(16384), "0081 1801 61");
+    }
+
+    @Test
+    public void rejectsMalformedBlocks()
+    {
+        // index 0
+        expectError(new HpackDecoder(16384), "80");
+        // index beyond the static and the empty dynamic table
+        expectError(new HpackDecoder(16384), "be");
+        // table size above the settings
+        expectError(new HpackDecoder(16384), "3fe2 1f");
+        // table size update after a field
+        expectError(new HpackDecoder(16384), "8220");
+        // integer without its last byte
+        expectError(new HpackDecoder(16384), "ff80");
+        // integer above 2^28
+        expectError(new HpackDecoder(16384), "ff80 8080 8001");
+        // string longer than the block
+        expectError(new HpackDecoder(16384), "4005 6375 7374");
+        // name without a value
+        expectError(new HpackDecoder(16384), "4001 61");
+    }
+
+    @Test
+    public void dropsFieldsOverTheListLimit() throws IOException
+    {
+        HpackDecoder decoder = new HpackDecoder(64);
+        List<String> fields = new ArrayList<String>();
+        byte[] block = hex("400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572 be");
+        // 10 + 13 + 32 fits, the second field does not
+        assertFalse(decoder.decode(block, 0, block.length, fields));
+        assertTrue(fields.isEmpty());
+        // the table was updated all the same
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decode(decoder, "be"));
+    }
+
+    private static void assertHuffman(String s, String encoded) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Huffman.encode(s, out);
+        assertArrayEquals(hex(encoded), out.toByteArray());
+        assertEquals(out.size(), Huffman.encodedLength(s));
+        assertEquals(s, Huffman.decode(out.toByteArray(), 0, out.size()));
+    }
+
+    private static void expectError(HpackDecoder decoder, String block)
+    {
+        try
+        {
+            List<String> fields = decode(decoder, block);
+            fail("Decoded " + fields);
+        }
+        catch (IOException e)
+        {
+            // a COMPRESSION_ERROR
+        }
+    }
+
+    private static List<String> decode(HpackDecoder decoder, String block) throws IOException
+    {
+        return decode(decoder, hex(block));
+    }
+
+    private static List<String> decode(HpackDecoder decoder, byte[] block) throws IOException
+    {
+        List<String> fields = new ArrayList<String>();
+        assertTrue(decoder.decode(block, 0, block.length, fields));
+        return fields;
+    }
+
+    private static byte[] encode(HpackEncoder encoder, List<String> fields)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(fields, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] hex(String s)
+    {
+        String digits = s.replace(" ", "");
+        byte[] b = new byte[digits.length() / 2];
+        for (int i = 0; i < b.length; i++)
+        {
+            b[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,185 @@
+package com.test.httpserver.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+public class RequestParserTest
+{
+    @Test
+    public void parsesRequestLineAndHeaders() throws ResponseException
+    {
+        String head = "POST /a%20b?x=1 HTTP/1.1\r\nHost: example.com\r\nContent-Length:  5 \r\nX-Empty:\r\n\r\n";
+        RequestParser parser = new RequestParser();
+        byte[] buf = bytes(head + "hello");
+        assertEquals(head.length(), parser.parse(buf, buf.length));
+        assertTrue(parser.isComplete());
+        assertEquals(Method.POST, parser.getMethod());
+        assertEquals("/a%20b?x=1", parser.getTarget());
+        assertEquals("HTTP/1.1", parser.getVersion());
+        assertEquals(3, parser.getHeaderCount());
+        assertEquals("example.com", parser.getHeader("host"));
+        assertEquals("5", parser.getHeader("content-length"));
+        assertEquals("", parser.getHeader("x-empty"));
+        assertNull(parser.getHeader("accept"));
+        assertEquals("example.com", parser.getHeaders().get("host"));
+        assertFalse(parser.getHeaders().containsKey("accept"));
+    }
+
+    @Test
+    public void parsesHeadArrivingInPieces() throws ResponseException
+    {
+        byte[] buf = bytes("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n");
+        RequestParser parser = new RequestParser();
+        for (int rlen = 1; rlen < buf.length; rlen++)
+        {
+            assertEquals(-1, parser.parse(buf, rlen));
+            assertFalse(parser.isComplete());
+        }
+        assertEquals(buf.length, parser.parse(buf, buf.length));
+        assertEquals("example.com", parser.getHeader("host"));
+    }
+
+    @Test
+    public void parsesAgainAfterReset() throws ResponseException
+    {
+        RequestParser parser = new RequestParser();
+        byte[] first = bytes("GET /first HTTP/1.1\r\nHost: a\r\nAccept: */*\r\n\r\n");
+        parser.parse(first, first.length);
+        parser.reset();
+        byte[] second = bytes("DELETE /second HTTP/1.0\r\n\r\n");
+        assertEquals(second.length, parser.parse(second, second.length));
+        assertEquals(Method.DELETE, parser.getMethod());
+        assertEquals("/second", parser.getTarget());
+        assertEquals("HTTP/1.0", parser.getVersion());
+        assertEquals(0, parser.getHeaderCount());
+    }
+
+    @Test
+    public void skipsEmptyLineBeforeRequestLine() throws ResponseException
+    {
+        byte[] buf = bytes("\r\nGET / HTTP/1.1\r\nHost: a\r\n\r\n");
+        RequestParser parser = new RequestParser();
+        assertEquals(buf.length, parser.parse(buf, buf.length));
+        assertEquals(Method.GET, parser.getMethod());
+    }
+
+    @Test
+    public void lastRepeatedHeaderWins() throws ResponseException
+    {
+        RequestParser parser = parse("GET / HTTP/1.1\r\nHost: a\r\nAccept: text/html\r\nACCEPT: text/plain\r\n\r\n");
+        assertEquals("text/plain", parser.getHeader("accept"));
+    }
+
+    @Test
+    public void rejectsMalformedRequestLines()
+    {
+        expectBadRequest("GET / HTTP/1.1\nHost: a\r\n\r\n");
+        expectBadRequest("GET /\r\n\r\n");
+        expectBadRequest("GET  / HTTP/1.1\r\nHost: a\r\n\r\n");
+        expectBadRequest("FETCH / HTTP/1.1\r\nHost: a\r\n\r\n");
+        expectBadRequest("GET / HTTP/11\r\nHost: a\r\n\r\n");
+        expectBadRequest("GET / http/1.1\r\nHost: a\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsMalformedPercentEncoding()
+    {
+        expectBadRequest("GET /%zz HTTP/1.1\r\nHost: a\r\n\r\n");
+        expectBadRequest("GET /%4 HTTP/1.1\r\nHost: a\r\n\r\n");
+        expectBadRequest("GET /?x=%g1 HTTP/1.1\r\nHost: a\r\n\r\n");
+        assertTrue(RequestParser.isPercentEncoded("/a%2Fb?x=%41"));
+        assertFalse(RequestParser.isPercentEncoded("/a%2"));
+        assertFalse(RequestParser.isPercentEncoded("/%x1"));
+    }
+
+    @Test
+    public void rejectsMalformedHeaders()
+    {
+        expectBadRequest("GET / HTTP/1.1\r\nHost: a\r\n folded\r\n\r\n");
+        expectBadRequest("GET / HTTP/1.1\r\nHost: a\r\nNo colon\r\n\r\n");
+        expectBadRequest("GET / HTTP/1.1\r\nHost: a\r\n: empty name\r\n\r\n");
+        expectBadRequest("GET / HTTP/1.1\r\nHost: a\r\nX-Bad: a\u0001b\r\n\r\n");
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\nHost: a\r\n");
+        for (int i = 0; i < RequestParser.MAX_HEADERS; i++)
+        {
+            head.append("X-").append(i).append(": x\r\n");
+        }
+        expectBadRequest(head.append("\r\n").toString());
+    }
+
+    @Test
+    public void acceptsRepeatedIdenticalContentLength() throws ResponseException
+    {
+        RequestParser parser = parse("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: 3\r\nContent-Length: 3\r\n\r\n");
+        assertEquals("3", parser.getHeader("content-length"));
+    }
+
+    @Test
+    public void rejectsAmbiguousContentLength()
+    {
+        expectBadRequest("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: 3\r\nContent-Length: 4\r\n\r\n");
+        expectBadRequest("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: +3\r\n\r\n");
+        expectBadRequest("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: -3\r\n\r\n");
+        expectBadRequest("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: 3, 3\r\n\r\n");
+        expectBadRequest("POST / HTTP/1.1\r\nHost: a\r\nContent-Length: 0x10\r\n\r\n");
+    }
+
+    @Test
+    public void requiresOneHostForHttp11() throws ResponseException
+    {
+        expectBadRequest("GET / HTTP/1.1\r\n\r\n");
+        expectBadRequest("GET / HTTP/1.1\r\nHost: a\r\nHost: b\r\n\r\n");
+        assertEquals("HTTP/1.0", parse("GET / HTTP/1.0\r\n\r\n").getVersion());
+    }
+
+    @Test
+    public void parsesContentLength()
+    {
+        assertEquals(0, RequestParser.parseContentLength("0"));
+        assertEquals(1234, RequestParser.parseContentLength("1234"));
+        assertEquals(999999999999999999L, RequestParser.parseContentLength("999999999999999999"));
+        assertEquals(-1, RequestParser.parseContentLength("1000000000000000000"));
+        assertEquals(-1, RequestParser.parseContentLength(""));
+        assertEquals(-1, RequestParser.parseContentLength("+1"));
+        assertEquals(-1, RequestParser.parseContentLength("-1"));
+        assertEquals(-1, RequestParser.parseContentLength("1 "));
+        assertEquals(-1, RequestParser.parseContentLength("1,1"));
+    }
+
+    private static RequestParser parse(String head) throws ResponseException
+    {
+        byte[] buf = bytes(head);
+        RequestParser parser = new RequestParser();
+        assertEquals(buf.length, parser.parse(buf, buf.length));
+        return parser;
+    }
+
+    private static void expectBadRequest(String head)
+    {
+        try
+        {
+            parse(head);
+            fail("Parsed " + head);
+        }
+        catch (ResponseException e)
+        {
+            assertEquals(HTTPStatus.BAD_REQUEST, e.getStatus());
+        }
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,207 @@
+package com.test.httpserver.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+public class ResponseCacheTest
+{
+    @Test
+    public void answersRepeatedRequests() throws IOException
+    {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        assertNull(cache.get(request(Method.GET, "/a")));
+        cache.put(request(Method.GET, "/a"), response("a", "max-age=60"));
+        HTTPResponse cached = cache.get(request(Method.GET, "/a"));
+        assertNotNull(cached);
+        assertTrue(cached.isCached());
+        assertEquals(HTTPStatus.OK, cached.getStatus());
+        assertNotNull(cache.get(request(Method.HEAD, "/a")));
+        assertNull(cache.get(request(Method.GET, "/b")));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getStores());
+        assertEquals(1, cache.getEntryCount());
+        assertTrue(cache.getSize() > 0);
+    }
+
+    @Test
+    public void storesOnlyWhatMayBeStored() throws IOException
+    {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        cache.put(request(Method.GET, "/none"), response("x", null));
+        cache.put(request(Method.GET, "/private"), response("x", "private, max-age=60"));
+        cache.put(request(Method.GET, "/zero"), response("x", "max-age=0"));
+        cache.put(request(Method.POST, "/post"), response("x", "max-age=60"));
+        HTTPRequest authorized = request(Method.GET, "/auth");
+        authorized.getHeaders().put("authorization", "Basic eDp5");
+        cache.put(authorized, response("x", "max-age=60"));
+        assertEquals(0, cache.getEntryCount());
+
+        cache.put(request(Method.GET, "/a"), response("a", "max-age=60"));
+        HTTPRequest noCache = request(Method.GET, "/a");
+        noCache.getHeaders().put("cache-control", "no-cache");
+        assertNull(cache.get(noCache));
+    }
+
+    @Test
+    public void keysVariantsByVaryHeaders() throws IOException
+    {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        HTTPResponse gzip = response("gzip", "max-age=60");
+        gzip.addHeader("Vary", "Accept-Encoding");
+        cache.put(request(Method.GET, "/v", "accept-encoding", "gzip"), gzip);
+        assertNotNull(cache.get(request(Method.GET, "/v", "accept-encoding", "gzip")));
+        assertNull(cache.get(request(Method.GET, "/v", "accept-encoding", "br")));
+        assertNull(cache.get(request(Method.GET, "/v")));
+    }
+
+    @Test
+    public void dropsExpiredEntries() throws IOException, InterruptedException
+    {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        cache.put(request(Method.GET, "/a"), response("a", "max-age=1"));
+        assertNotNull(cache.get(request(Method.GET, "/a")));
+        Thread.sleep(1100);
+        assertNull(cache.get(request(Method.GET, "/a")));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void keepsFrequentEntriesOverOneOffs() throws IOException
+    {
+        HTTPResponse probe = response(body(100), "max-age=60");
+        ResponseCache sizing = new ResponseCache(1024 * 1024);
+        sizing.put(request(Method.GET, "/hot0"), probe);
+        long entrySize = sizing.getSize();
+        // room for ten entries
+        ResponseCache cache = new ResponseCache(10 * entrySize + entrySize / 2);
+        for (int i = 0; i < 8; i++)
+        {
+            cache.put(request(Method.GET, "/hot" + i), response(body(100), "max-age=60"));
+        }
+        for (int round = 0; round < 20; round++)
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                cache.get(request(Method.GET, "/hot" + i));
+            }
+        }
+        for (int i = 0; i < 100; i++)
+        {
+            String target = String.format("/cold%03d", i);
+            cache.get(request(Method.GET, target));
+            cache.put(request(Method.GET, target), response(body(100), "max-age=60"));
+        }
+        int hot = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            if (cache.get(request(Method.GET, "/hot" + i)) != null)
+            {
+                hot++;
+            }
+        }
+        assertEquals(8, hot);
+        assertTrue(cache.getSize() <= 10 * entrySize + entrySize / 2);
+        assertTrue(cache.getRejections() > 0);
+    }
+
+    @Test
+    public void servesConcurrentReadsAndWrites() throws Exception
+    {
+        final ResponseCache cache = new ResponseCache(64 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < 20000; i++)
+                        {
+                            String target = "/" + ((i * 31 + seed) % 200);
+                            if (cache.get(request(Method.GET, target)) == null)
+                            {
+                                cache.put(request(Method.GET, target), response(body(500), "max-age=60"));
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(cache.getSize() <= 64 * 1024);
+        assertEquals(8 * 20000, cache.getHits() + cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+        // the queues still add up after the concurrent replays of the read buffers
+        cache.put(request(Method.GET, "/last"), response("last", "max-age=60"));
+        assertNotNull(cache.get(request(Method.GET, "/last")));
+    }
+
+    private static HTTPRequest request(Method method, String target, String... headers)
+    {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2)
+        {
+            map.put(headers[i], headers[i + 1]);
+        }
+        HTTPRequest request = new HTTPRequest(new ByteArrayInputStream(new byte[0]), null);
+        request.setHead(method, target, map, 0);
+        return request;
+    }
+
+    private static HTTPResponse response(String text, String cacheControl)
+    {
+        HTTPResponse response = new HTTPResponse(HTTPStatus.OK, HTTPResponse.MIME_PLAINTEXT, text);
+        if (cacheControl != null)
+        {
+            response.addHeader("Cache-Control", cacheControl);
+        }
+        return response;
+    }
+
+    private static String body(int length)
+    {
+        StringBuilder body = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+        {
+            body.append((char) ('a' + i % 26));
+        }
+        return body.toString();
+    }
+}
@@ -0,0 +1,361 @@
+package com.test.httpserver.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.test.httpserver.examples.MyEchoServer;
+import com.test.httpserver.network.HpackDecoder;
+import com.test.httpserver.network.HpackEncoder;
+
+/**
+ * Frame validation of {@link Http2Connection}: frames that break RFC 7540 end the connection with
+ * a GOAWAY carrying the right error code. The client speaks cleartext HTTP/2 with prior
+ * knowledge to an echo server.
+ */
+public class Http2ConnectionTest
+{
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static MyHTTPServer server;
+
+    @BeforeAll
+    public static void startServer() throws IOException
+    {
+        server = new MyEchoServer(0);
+        server.setHttp2(true);
+        server.start();
+    }
+
+    @AfterAll
+    public static void stopServer()
+    {
+        server.stop(0);
+    }
+
+    @Test
+    public void answersRequests() throws IOException
+    {
+        Client client = new Client();
+        try
+        {
+            client.send(HEADERS, END_HEADERS, 1, client.block(":method", "POST", ":scheme", "http", ":path", "/echo",
+                    ":authority", "localhost", "content-length", "5"));
+            client.send(DATA, END_STREAM, 1, "hello".getBytes(StandardCharsets.US_ASCII));
+            Frame headers = client.read(HEADERS);
+            assertEquals(1, headers.streamId);
+            List<String> fields = new ArrayList<String>();
+            assertTrue(new HpackDecoder(16384).decode(headers.payload, 0, headers.payload.length, fields));
+            assertEquals(Arrays.asList(":status", "200"), fields.subList(0, 2));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            Frame data;
+            do
+            {
+                data = client.read(DATA);
+                body.write(data.payload);
+            }
+            while ((data.flags & END_STREAM) == 0);
+            assertEquals("hello", new String(body.toByteArray(), StandardCharsets.US_ASCII));
+
+            client.send(PING, 0, 0, new byte[8]);
+            assertEquals(ACK, client.read(PING).flags);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void rejectsControlFramesOnStreams() throws IOException
+    {
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, PING, 0, 1, new byte[8]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, SETTINGS, 0, 1, new byte[0]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, GOAWAY, 0, 1, new byte[8]);
+    }
+
+    @Test
+    public void rejectsStreamFramesOnStreamZero() throws IOException
+    {
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, HEADERS, END_HEADERS, 0, new byte[] { (byte) 0x82 });
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, DATA, 0, 0, new byte[1]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, RST_STREAM, 0, 0, new byte[4]);
+    }
+
+    @Test
+    public void rejectsWrongFrameSizes() throws IOException
+    {
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR, PING, 0, 0, new byte[7]);
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR, SETTINGS, 0, 0, new byte[5]);
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR, SETTINGS, ACK, 0, new byte[6]);
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR, WINDOW_UPDATE, 0, 0, new byte[3]);
+        assertGoAway(Http2Connection.FRAME_SIZE_ERROR, PING, 0, 0, new byte[16385]);
+    }
+
+    @Test
+    public void rejectsInvalidSettings() throws IOException
+    {
+        // SETTINGS_ENABLE_PUSH 2
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, SETTINGS, 0, 0, new byte[] { 0, 2, 0, 0, 0, 2 });
+        // SETTINGS_INITIAL_WINDOW_SIZE 2^31
+        assertGoAway(Http2Connection.FLOW_CONTROL_ERROR, SETTINGS, 0, 0,
+                new byte[] { 0, 4, (byte) 0x80, 0, 0, 0 });
+        // SETTINGS_MAX_FRAME_SIZE below 16384
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, SETTINGS, 0, 0, new byte[] { 0, 5, 0, 0, 0x10, 0 });
+    }
+
+    @Test
+    public void rejectsFramesOutOfSequence() throws IOException
+    {
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, PUSH_PROMISE, END_HEADERS, 1, new byte[4]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, CONTINUATION, END_HEADERS, 1, new byte[0]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, DATA, END_STREAM, 3, new byte[1]);
+        assertGoAway(Http2Connection.PROTOCOL_ERROR, WINDOW_UPDATE, 0, 0, new byte[4]);
+
+        Client client = new Client();
+        try
+        {
+            byte[] block = client.block(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "localhost");
+            // the header block is interrupted by another frame
+            client.send(HEADERS, END_STREAM, 1, block);
+            client.send(PING, 0, 0, new byte[8]);
+            assertEquals(Http2Connection.PROTOCOL_ERROR, client.readGoAway());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void rejectsMalformedHeaderBlock() throws IOException
+    {
+        // index 0
+        assertGoAway(Http2Connection.COMPRESSION_ERROR, HEADERS, END_HEADERS | END_STREAM, 1,
+                new byte[] { (byte) 0x80 });
+    }
+
+    @Test
+    public void rejectsHeadersOnClosedStream() throws IOException, InterruptedException
+    {
+        Client client = new Client();
+        try
+        {
+            byte[] block = client.block(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "localhost");
+            client.send(HEADERS, END_HEADERS | END_STREAM, 1, block);
+            while ((client.read(-1).flags & END_STREAM) == 0)
+            {
+                // until the response ends
+            }
+            // the handler's thread forgets the stream right after the response
+            Thread.sleep(200);
+            client.send(HEADERS, END_HEADERS | END_STREAM, 1, client.block(":method", "GET", ":scheme", "http",
+                    ":path", "/", ":authority", "localhost"));
+            assertEquals(Http2Connection.STREAM_CLOSED, client.readGoAway());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void ignoresHeadersOnStreamItReset() throws IOException
+    {
+        Client client = new Client();
+        try
+        {
+            byte[] block = client.block(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "localhost");
+            // the body never comes, the server answers and resets the stream
+            client.send(HEADERS, END_HEADERS, 1, block);
+            assertEquals(RST_STREAM, client.read(RST_STREAM).type);
+            // trailers sent before the client saw the reset
+            client.send(HEADERS, END_HEADERS | END_STREAM, 1, client.block("x-trailer", "1"));
+            client.send(HEADERS, END_HEADERS | END_STREAM, 3, client.block(":method", "GET", ":scheme", "http",
+                    ":path", "/", ":authority", "localhost"));
+            assertEquals(3, client.read(HEADERS).streamId);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void limitsPingAndSettingsFloods() throws IOException
+    {
+        for (int type : new int[] { PING, SETTINGS })
+        {
+            Client client = new Client();
+            try
+            {
+                byte[] payload = new byte[type == PING ? 8 : 0];
+                for (int i = 0; i < 1000; i++)
+                {
+                    client.send(type, 0, 0, payload);
+                }
+                assertEquals(Http2Connection.ENHANCE_YOUR_CALM, client.readGoAway());
+            }
+            finally
+            {
+                client.close();
+            }
+        }
+    }
+
+    private static void assertGoAway(int errorCode, int type, int flags, int streamId, byte[] payload)
+            throws IOException
+    {
+        Client client = new Client();
+        try
+        {
+            client.send(type, flags, streamId, payload);
+            assertEquals(errorCode, client.readGoAway());
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    private static final class Frame
+    {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+    }
+
+    /**
+     * A connection past the preface and the exchange of settings.
+     */
+    private static final class Client
+    {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final HpackEncoder encoder = new HpackEncoder();
+
+        Client() throws IOException
+        {
+            socket = new Socket("127.0.0.1", server.getListeningPort());
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            out.write(PREFACE);
+            send(SETTINGS, 0, 0, new byte[0]);
+            assertEquals(0, read(SETTINGS).flags);
+            send(SETTINGS, ACK, 0, new byte[0]);
+            assertEquals(ACK, read(SETTINGS).flags);
+        }
+
+        byte[] block(String... fields)
+        {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(Arrays.asList(fields), block);
+            return block.toByteArray();
+        }
+
+        void send(int type, int flags, int streamId, byte[] payload) throws IOException
+        {
+            byte[] frame = new byte[9 + payload.length];
+            frame[0] = (byte) (payload.length >>> 16);
+            frame[1] = (byte) (payload.length >>> 8);
+            frame[2] = (byte) payload.length;
+            frame[3] = (byte) type;
+            frame[4] = (byte) flags;
+            frame[5] = (byte) (streamId >>> 24);
+            frame[6] = (byte) (streamId >>> 16);
+            frame[7] = (byte) (streamId >>> 8);
+            frame[8] = (byte) streamId;
+            System.arraycopy(payload, 0, frame, 9, payload.length);
+            try
+            {
+                out.write(frame);
+            }
+            catch (IOException e)
+            {
+                // closed by the server after its GOAWAY, which is still there to be read
+            }
+        }
+
+        /**
+         * @param type
+         *            -1 for any type but WINDOW_UPDATE
+         * @return the next frame of the type, skipping others; GOAWAY is only skipped if asked for
+         */
+        Frame read(int type) throws IOException
+        {
+            while (true)
+            {
+                Frame frame = new Frame();
+                int length = in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+                frame.type = in.readUnsignedByte();
+                frame.flags = in.readUnsignedByte();
+                frame.streamId = in.readInt() & 0x7fffffff;
+                frame.payload = new byte[length];
+                in.readFully(frame.payload);
+                if (frame.type == type || type < 0 && frame.type != WINDOW_UPDATE)
+                {
+                    return frame;
+                }
+                if (frame.type == GOAWAY)
+                {
+                    fail("GOAWAY with error " + readInt(frame.payload, 4) + " while waiting for frame type " + type);
+                }
+            }
+        }
+
+        /**
+         * @return the error code of the GOAWAY the server sends before it closes the connection
+         */
+        int readGoAway() throws IOException
+        {
+            try
+            {
+                return readInt(read(GOAWAY).payload, 4);
+            }
+            catch (EOFException e)
+            {
+                throw new AssertionError("Connection closed without GOAWAY", e);
+            }
+        }
+
+        void close() throws IOException
+        {
+            socket.close();
+        }
+
+        private static int readInt(byte[] b, int off)
+        {
+            return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+        }
+    }
+}
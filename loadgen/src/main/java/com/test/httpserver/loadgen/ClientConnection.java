@@ -0,0 +1,345 @@
+package com.test.httpserver.loadgen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+
+/**
+ * One client connection sending a request and reading the whole response before it returns.
+ * The socket is opened on demand and reopened after the server closed it, e.g. once a keep-alive
+ * connection idled past the server's read timeout or reached its request limit.
+ */
+class ClientConnection
+{
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final int timeoutMillis;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] buf = new byte[8192];
+    /**
+     * Responses read on the current socket
+     */
+    private int exchanges;
+    private boolean responseStarted;
+    private long connects;
+
+    ClientConnection(InetSocketAddress address, int timeoutMillis)
+    {
+        this.address = address;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sends the request and reads the response.
+     *
+     * @return the response status code
+     * @throws IOException
+     *             if the request failed; the connection is closed and reopened by the next call
+     */
+    int exchange(byte[] request, boolean keepAlive) throws IOException
+    {
+        boolean reused = socket != null;
+        responseStarted = false;
+        try
+        {
+            return send(request, keepAlive);
+        }
+        catch (SocketTimeoutException e)
+        {
+            close();
+            throw e;
+        }
+        catch (IOException e)
+        {
+            close();
+            if (!reused || responseStarted)
+            {
+                throw e;
+            }
+        }
+        // the server closed an idle keep-alive connection before it saw the request
+        try
+        {
+            return send(request, keepAlive);
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    private int send(byte[] request, boolean keepAlive) throws IOException
+    {
+        if (socket == null)
+        {
+            open();
+        }
+        out.write(request);
+        out.flush();
+        int status = readResponse();
+        exchanges++;
+        if (!keepAlive)
+        {
+            close();
+        }
+        return status;
+    }
+
+    private void open() throws IOException
+    {
+        Socket newSocket = new Socket();
+        try
+        {
+            newSocket.setTcpNoDelay(true);
+            newSocket.setSoTimeout(timeoutMillis);
+            newSocket.connect(address, timeoutMillis);
+            in = newSocket.getInputStream();
+            out = newSocket.getOutputStream();
+        }
+        catch (IOException e)
+        {
+            HTTPServerUtils.safeClose(newSocket);
+            throw e;
+        }
+        socket = newSocket;
+        exchanges = 0;
+        connects++;
+    }
+
+    void close()
+    {
+        if (socket != null)
+        {
+            HTTPServerUtils.safeClose(socket);
+            socket = null;
+        }
+    }
+
+    /**
+     * @return how often a socket was opened
+     */
+    long getConnects()
+    {
+        return connects;
+    }
+
+    /**
+     * Reads one response: the head, then a Content-Length or chunked body, or everything up to
+     * the end of the stream when the response has neither.
+     */
+    private int readResponse() throws IOException
+    {
+        int length = 0;
+        int headEnd = -1;
+        while (headEnd < 0)
+        {
+            if (length == buf.length)
+            {
+                if (buf.length >= MAX_HEAD_SIZE)
+                {
+                    throw new IOException("Response head larger than " + MAX_HEAD_SIZE + " bytes");
+                }
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+            int read = in.read(buf, length, buf.length - length);
+            if (read < 0)
+            {
+                throw new EOFException("Connection closed after " + exchanges + " responses");
+            }
+            length += read;
+            responseStarted = true;
+            headEnd = findHeadEnd(length);
+        }
+        String head = new String(buf, 0, headEnd, "ISO-8859-1");
+        int status = parseStatus(head);
+        String lowerCaseHead = head.toLowerCase();
+        String connection = headerValue(lowerCaseHead, "connection");
+        boolean close = connection != null && connection.contains("close");
+        String contentLength = headerValue(lowerCaseHead, "content-length");
+        String transferEncoding = headerValue(lowerCaseHead, "transfer-encoding");
+
+        // whatever followed the head in the buffer already belongs to the body
+        Body body = new Body(length - headEnd, headEnd);
+        if (status == 204 || status == 304 || (status >= 100 && status < 200))
+        {
+            // no body
+        }
+        else if (transferEncoding != null && transferEncoding.contains("chunked"))
+        {
+            skipChunked(body);
+        }
+        else if (contentLength != null)
+        {
+            skip(body, Long.parseLong(contentLength.trim()));
+        }
+        else
+        {
+            skipToEnd(body);
+            close = true;
+        }
+        if (close)
+        {
+            close();
+        }
+        return status;
+    }
+
+    private int findHeadEnd(int length)
+    {
+        for (int i = 3; i < length; i++)
+        {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r')
+            {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseStatus(String head) throws IOException
+    {
+        int space = head.indexOf(' ');
+        if (!head.startsWith("HTTP/") || space < 0 || head.length() < space + 4)
+        {
+            throw new IOException("Malformed status line: " + head.substring(0, Math.min(head.length(), 40)));
+        }
+        try
+        {
+            return Integer.parseInt(head.substring(space + 1, space + 4));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Malformed status line: " + head.substring(0, Math.min(head.length(), 40)));
+        }
+    }
+
+    private static String headerValue(String lowerCaseHead, String name)
+    {
+        int start = lowerCaseHead.indexOf("\r\n" + name + ":");
+        if (start < 0)
+        {
+            return null;
+        }
+        start += name.length() + 3;
+        return lowerCaseHead.substring(start, lowerCaseHead.indexOf('\r', start)).trim();
+    }
+
+    /**
+     * Body bytes left in the buffer after the head
+     */
+    private static final class Body
+    {
+        int buffered;
+        int pos;
+
+        Body(int buffered, int pos)
+        {
+            this.buffered = buffered;
+            this.pos = pos;
+        }
+    }
+
+    private int read(Body body) throws IOException
+    {
+        if (body.buffered == 0)
+        {
+            int read = in.read(buf, 0, buf.length);
+            if (read < 0)
+            {
+                return -1;
+            }
+            body.buffered = read;
+            body.pos = 0;
+        }
+        body.buffered--;
+        return buf[body.pos++] & 0xff;
+    }
+
+    private void skip(Body body, long count) throws IOException
+    {
+        long fromBuffer = Math.min(count, body.buffered);
+        body.buffered -= fromBuffer;
+        body.pos += fromBuffer;
+        long remaining = count - fromBuffer;
+        while (remaining > 0)
+        {
+            int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (read < 0)
+            {
+                throw new EOFException("Connection closed in response body");
+            }
+            remaining -= read;
+        }
+    }
+
+    private void skipChunked(Body body) throws IOException
+    {
+        while (true)
+        {
+            long size = 0;
+            int c;
+            while ((c = read(body)) != '\r')
+            {
+                if (c < 0)
+                {
+                    throw new EOFException("Connection closed in chunk size");
+                }
+                int digit = Character.digit(c, 16);
+                if (digit >= 0)
+                {
+                    size = size * 16 + digit;
+                }
+                else if (c == ';')
+                {
+                    // chunk extension, ignored up to the line end
+                    while ((c = read(body)) != '\r' && c >= 0)
+                    {
+                    }
+                    break;
+                }
+            }
+            read(body);
+            if (size == 0)
+            {
+                // trailers up to the empty line
+                int lineLength = 0;
+                while ((c = read(body)) >= 0)
+                {
+                    if (c == '\n')
+                    {
+                        if (lineLength == 0)
+                        {
+                            return;
+                        }
+                        lineLength = 0;
+                    }
+                    else if (c != '\r')
+                    {
+                        lineLength++;
+                    }
+                }
+                throw new EOFException("Connection closed in chunk trailer");
+            }
+            skip(body, size + 2);
+        }
+    }
+
+    private void skipToEnd(Body body) throws IOException
+    {
+        body.buffered = 0;
+        while (in.read(buf, 0, buf.length) >= 0)
+        {
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.test.httpserver.loadgen;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.test.httpserver.examples.MyEchoServer;
+import com.test.httpserver.metrics.LatencyHistogram;
+import com.test.httpserver.server.ServerExecutors;
+
+/**
+ * HTTP load generator for finding the saturation point of the server.
+ * <p>
+ * In the default closed loop every connection sends its next request as soon as the previous
+ * response arrived, so the offered load drops as soon as the server slows down. With
+ * <code>--rate</code> the load is open loop instead: requests are scheduled at a constant rate,
+ * spread over the connections, and latency is measured from the time a request was due rather
+ * than from when it could actually be sent. A server that falls behind therefore shows its queueing
+ * delay in the numbers instead of hiding it, which is the coordinated-omission correction. For the
+ * closed loop the same correction is applied when the expected time between two requests on a
+ * connection is given with <code>--interval-us</code>. Both the corrected and the uncorrected
+ * latencies are reported, in histograms precise to 1%.
+ * <p>
+ * Usage: <code>java -jar loadgen.jar [options]</code>, see {@link #usage(PrintStream)}.
+ */
+public class LoadGenerator
+{
+    private static final double[] PERCENTILES = { 50, 75, 90, 95, 99, 99.9, 99.99 };
+
+    private String host = "127.0.0.1";
+    private int port = 8080;
+    private int connections = 10;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private double rate;
+    private long expectedIntervalNanos;
+    private boolean keepAlive = true;
+    private int timeoutMillis = 10000;
+    private String mix = "POST /echo 128";
+    private String server;
+    private int serverThreads = 10;
+
+    private RequestMix requestMix;
+    private final LatencyHistogram corrected = new LatencyHistogram(7);
+    private final LatencyHistogram uncorrected = new LatencyHistogram(7);
+    private final AtomicLongArray statuses = new AtomicLongArray(600);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final AtomicReference<String> firstError = new AtomicReference<String>();
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length > 0 && ("--help".equals(args[0]) || "-h".equals(args[0])))
+        {
+            usage(System.out);
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator();
+        try
+        {
+            generator.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            usage(System.err);
+            System.exit(1);
+        }
+        generator.run(System.out);
+    }
+
+    private static void usage(PrintStream out)
+    {
+        out.println("Usage: java -jar loadgen.jar [options]");
+        out.println("  --host HOST              server address (127.0.0.1)");
+        out.println("  --port PORT              server port (8080)");
+        out.println("  --server blocking|nio    start a MyEchoServer in this JVM on a free loopback port");
+        out.println("  --server-threads N       executor threads of that server (10)");
+        out.println("  --connections N          concurrent connections (10)");
+        out.println("  --duration SECONDS       measured time (30)");
+        out.println("  --warmup SECONDS         load before measuring (5)");
+        out.println("  --rate REQUESTS/S        open loop at a constant total rate; closed loop if omitted");
+        out.println("  --interval-us MICROS     closed loop: expected time between requests, for the");
+        out.println("                           coordinated-omission correction");
+        out.println("  --keep-alive true|false  reuse connections (true)");
+        out.println("  --timeout MILLIS         connect and read timeout (10000)");
+        out.println("  --mix MIX                \"METHOD PATH [BODY_SIZE [WEIGHT]], ...\" (POST /echo 128)");
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if an option is unknown or its value is invalid
+     */
+    void parse(String[] args)
+    {
+        for (int i = 0; i < args.length; i += 2)
+        {
+            String name = args[i];
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[i + 1];
+            try
+            {
+                if ("--host".equals(name))
+                {
+                    host = value;
+                }
+                else if ("--port".equals(name))
+                {
+                    port = Integer.parseInt(value);
+                }
+                else if ("--server".equals(name))
+                {
+                    if (!"blocking".equals(value) && !"nio".equals(value))
+                    {
+                        throw new IllegalArgumentException("--server must be blocking or nio: " + value);
+                    }
+                    server = value;
+                }
+                else if ("--server-threads".equals(name))
+                {
+                    serverThreads = positive(name, Integer.parseInt(value));
+                }
+                else if ("--connections".equals(name))
+                {
+                    connections = positive(name, Integer.parseInt(value));
+                }
+                else if ("--duration".equals(name))
+                {
+                    durationSeconds = positive(name, Integer.parseInt(value));
+                }
+                else if ("--warmup".equals(name))
+                {
+                    warmupSeconds = Integer.parseInt(value);
+                }
+                else if ("--rate".equals(name))
+                {
+                    rate = Double.parseDouble(value);
+                    if (rate <= 0)
+                    {
+                        throw new IllegalArgumentException("--rate must be positive: " + value);
+                    }
+                }
+                else if ("--interval-us".equals(name))
+                {
+                    expectedIntervalNanos = TimeUnit.MICROSECONDS.toNanos(positive(name, Integer.parseInt(value)));
+                }
+                else if ("--keep-alive".equals(name))
+                {
+                    keepAlive = Boolean.parseBoolean(value);
+                }
+                else if ("--timeout".equals(name))
+                {
+                    timeoutMillis = positive(name, Integer.parseInt(value));
+                }
+                else if ("--mix".equals(name))
+                {
+                    mix = value;
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Not a number for " + name + ": " + value);
+            }
+        }
+        requestMix = RequestMix.parse(mix, host + ":" + port);
+    }
+
+    private static int positive(String name, int value)
+    {
+        if (value <= 0)
+        {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+        return value;
+    }
+
+    void run(PrintStream out) throws IOException, InterruptedException
+    {
+        MyEchoServer echoServer = null;
+        ExecutorService executor = null;
+        if (server != null)
+        {
+            ServerSocket probe = new ServerSocket(0);
+            port = probe.getLocalPort();
+            probe.close();
+            host = "127.0.0.1";
+            requestMix = RequestMix.parse(mix, host + ":" + port);
+            echoServer = new MyEchoServer(port);
+            echoServer.setNonBlocking("nio".equals(server));
+            executor = ServerExecutors.platformPool(serverThreads);
+            echoServer.setExecutor(executor);
+            echoServer.start();
+        }
+        try
+        {
+            generate();
+        }
+        finally
+        {
+            if (echoServer != null)
+            {
+                echoServer.stop();
+                executor.shutdownNow();
+            }
+        }
+        report(out);
+    }
+
+    private void generate() throws InterruptedException
+    {
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < connections; i++)
+        {
+            final int index = i;
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runConnection(address, index, start, measureStart, end);
+                }
+            }, "loadgen-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+    }
+
+    private void runConnection(InetSocketAddress address, int index, long start, long measureStart, long end)
+    {
+        ClientConnection connection = new ClientConnection(address, timeoutMillis);
+        Random random = new Random(index);
+        // in the open loop every connection sends at the same rate, shifted against the others
+        long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        long due = start + interval * index / connections;
+        try
+        {
+            while (true)
+            {
+                if (interval > 0)
+                {
+                    if (due >= end)
+                    {
+                        break;
+                    }
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                    {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                long sent = System.nanoTime();
+                if (interval == 0)
+                {
+                    if (sent >= end)
+                    {
+                        break;
+                    }
+                    due = sent;
+                }
+                boolean measured = due >= measureStart;
+                try
+                {
+                    int status = connection.exchange(requestMix.next(random, keepAlive), keepAlive);
+                    long received = System.nanoTime();
+                    if (measured)
+                    {
+                        statuses.incrementAndGet(Math.min(Math.max(status, 0), statuses.length() - 1));
+                        uncorrected.record(received - sent);
+                        if (interval > 0)
+                        {
+                            corrected.record(received - due);
+                        }
+                        else
+                        {
+                            corrected.recordCorrected(received - sent, expectedIntervalNanos);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    if (measured)
+                    {
+                        errors.increment();
+                        if (e instanceof SocketTimeoutException)
+                        {
+                            timeouts.increment();
+                        }
+                        firstError.compareAndSet(null, e.toString());
+                    }
+                }
+                due += interval;
+            }
+        }
+        finally
+        {
+            connection.close();
+            connects.add(connection.getConnects());
+        }
+    }
+
+    private void report(PrintStream out)
+    {
+        out.println("============================================================");
+        out.printf("Target:      %s:%d%s%n", host, port, server != null ? " (in-process " + server + " MyEchoServer, "
+                + serverThreads + " threads)" : "");
+        out.printf("Load:        %s, %d connections, %s, %d s after %d s warm-up%n",
+                rate > 0 ? String.format("open loop at %.1f req/s", rate) : "closed loop", connections,
+                keepAlive ? "keep-alive" : "connection per request", durationSeconds, warmupSeconds);
+        out.printf("Mix:         %s%n", requestMix);
+        long completed = uncorrected.getCount();
+        out.printf("Requests:    %d completed, %.1f req/s, %d errors (%d timeouts), %d connects%n", completed,
+                completed / (double) durationSeconds, errors.sum(), timeouts.sum(), connects.sum());
+        StringBuilder byStatus = new StringBuilder();
+        for (int status = 0; status < statuses.length(); status++)
+        {
+            long count = statuses.get(status);
+            if (count > 0)
+            {
+                byStatus.append(byStatus.length() > 0 ? ", " : "").append(status).append('=').append(count);
+            }
+        }
+        out.printf("Statuses:    %s%n", byStatus.length() > 0 ? byStatus : "-");
+        if (firstError.get() != null)
+        {
+            out.printf("First error: %s%n", firstError.get());
+        }
+
+        boolean correcting = rate > 0 || expectedIntervalNanos > 0;
+        out.println();
+        out.printf("%-12s %14s %14s%n", "Latency ms", correcting ? "corrected" : "-", "uncorrected");
+        for (double percentile : PERCENTILES)
+        {
+            out.printf("%-12s %14s %14.3f%n", percentile + "%", correcting ? String.format("%.3f",
+                    millis(corrected.getValueAtPercentile(percentile))) : "-",
+                    millis(uncorrected.getValueAtPercentile(percentile)));
+        }
+        out.printf("%-12s %14s %14.3f%n", "max", correcting ? String.format("%.3f", millis(corrected.getMax())) : "-",
+                millis(uncorrected.getMax()));
+        out.printf("%-12s %14s %14.3f%n", "mean", correcting && corrected.getCount() > 0 ? String.format("%.3f",
+                millis(corrected.getSum() / corrected.getCount())) : "-",
+                completed > 0 ? millis(uncorrected.getSum() / completed) : 0.0);
+        if (!correcting)
+        {
+            out.println("Closed loop without --interval-us: latencies are not corrected for coordinated omission.");
+        }
+        out.println("============================================================");
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / 1e6;
+    }
+}
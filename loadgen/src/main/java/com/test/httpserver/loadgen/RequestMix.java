@@ -0,0 +1,114 @@
+package com.test.httpserver.loadgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.test.httpserver.util.Method;
+
+/**
+ * Weighted set of requests to send. A mix is written as comma separated entries of
+ * <code>METHOD PATH [BODY_SIZE [WEIGHT]]</code>, e.g. <code>"POST /echo 1024 80, GET / 0 20"</code>;
+ * the body size defaults to 0 and the weight to 1. Every request is encoded once up front, with
+ * and without keep-alive.
+ */
+public class RequestMix
+{
+    private final List<String> descriptions = new ArrayList<String>();
+    private final List<byte[]> keepAlive = new ArrayList<byte[]>();
+    private final List<byte[]> close = new ArrayList<byte[]>();
+    private int[] cumulativeWeights = new int[0];
+    private int totalWeight;
+
+    /**
+     * @throws IllegalArgumentException
+     *             if an entry is malformed
+     */
+    public static RequestMix parse(String mix, String host)
+    {
+        RequestMix requestMix = new RequestMix();
+        for (String entry : mix.split(","))
+        {
+            String[] fields = entry.trim().split("\\s+");
+            if (fields.length < 2 || fields.length > 4)
+            {
+                throw new IllegalArgumentException("Mix entry must be METHOD PATH [BODY_SIZE [WEIGHT]]: " + entry);
+            }
+            Method method = Method.lookup(fields[0]);
+            if (method == null || !fields[1].startsWith("/"))
+            {
+                throw new IllegalArgumentException("Bad method or path in mix entry: " + entry);
+            }
+            int bodySize = fields.length > 2 ? Integer.parseInt(fields[2]) : 0;
+            int weight = fields.length > 3 ? Integer.parseInt(fields[3]) : 1;
+            if (bodySize < 0 || weight <= 0)
+            {
+                throw new IllegalArgumentException("Body size and weight must be positive: " + entry);
+            }
+            requestMix.add(method, fields[1], host, bodySize, weight);
+        }
+        return requestMix;
+    }
+
+    private void add(Method method, String path, String host, int bodySize, int weight)
+    {
+        descriptions.add(method + " " + path + (bodySize > 0 ? " " + bodySize + " bytes" : "") + " x" + weight);
+        keepAlive.add(encode(method, path, host, bodySize, true));
+        close.add(encode(method, path, host, bodySize, false));
+        cumulativeWeights = Arrays.copyOf(cumulativeWeights, cumulativeWeights.length + 1);
+        totalWeight += weight;
+        cumulativeWeights[cumulativeWeights.length - 1] = totalWeight;
+    }
+
+    private static byte[] encode(Method method, String path, String host, int bodySize, boolean keepAlive)
+    {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append("\r\n");
+        head.append("User-Agent: myhttpserver-loadgen\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        if (bodySize > 0 || method == Method.POST || method == Method.PUT)
+        {
+            head.append("Content-Type: application/octet-stream\r\n");
+            head.append("Content-Length: ").append(bodySize).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] request = new byte[head.length() + bodySize];
+        for (int i = 0; i < head.length(); i++)
+        {
+            request[i] = (byte) head.charAt(i);
+        }
+        Arrays.fill(request, head.length(), request.length, (byte) 'x');
+        return request;
+    }
+
+    /**
+     * @return the encoded bytes of a request picked by weight
+     */
+    public byte[] next(Random random, boolean keepAliveConnection)
+    {
+        int pick = random.nextInt(totalWeight);
+        int i = 0;
+        while (cumulativeWeights[i] <= pick)
+        {
+            i++;
+        }
+        return keepAliveConnection ? keepAlive.get(i) : close.get(i);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String description : descriptions)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(description);
+        }
+        return sb.toString();
+    }
+}
@@ -3,6 +3,7 @@ package com.test.httpserver.examples;
 import com.test.httpserver.network.HTTPRequest;
 import com.test.httpserver.network.HTTPResponse;
 import com.test.httpserver.server.MyHTTPServer;
+import com.test.httpserver.server.ServerExecutors;
 import com.test.httpserver.util.HTTPStatus;
 
 public class MyEchoServer extends MyHTTPServer
@@ -31,6 +32,14 @@ public class MyEchoServer extends MyHTTPServer
                 System.out.println("You specified invalid port; server will be started on default port  "+port);
             }
             MyEchoServer server = new MyEchoServer(port);
+            if (args.length > 1 && "nio".equalsIgnoreCase(args[1]))
+            {
+                server.setNonBlocking(true);
+            }
+            else if (args.length > 1 && "virtual".equalsIgnoreCase(args[1]))
+            {
+                server.setExecutor(ServerExecutors.virtualThreadPerTask());
+            }
             try
             {
                 server.start();
@@ -48,7 +57,7 @@ public class MyEchoServer extends MyHTTPServer
     {
         System.out.println("Please run Server from commandline as instructed below.");
         System.out.println("============================================================");
-        System.out.println("java -jar /path/to/MyHTTPServer.jar intPortNumber");
+        System.out.println("java -jar /path/to/MyHTTPServer.jar intPortNumber [nio|virtual]");
         System.out.println();
         System.out.println("Note: Make sure you give port > 1024");
         System.out.println("============================================================");
@@ -64,8 +73,13 @@ public class MyEchoServer extends MyHTTPServer
     @Override
     public HTTPResponse doPost(HTTPRequest request)
     {
-        // returns back with same payload and content-type
-        HTTPResponse response = new HTTPResponse(HTTPStatus.OK,request.getHeaders().get("content-type"),new String(request.getPayload()));
+        // returns back with same payload and content-type, streamed so that any body size works
+        HTTPResponse response = new HTTPResponse(HTTPStatus.OK,request.getHeaders().get("content-type"),request.getBodyStream(),request.getContentLength());
+        if (request.getContentLength() < 0)
+        {
+            // chunked upload, its length is not known before it has been echoed
+            response.setChunkedTransfer(true);
+        }
         return response;
     }
 
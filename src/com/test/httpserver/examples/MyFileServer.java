@@ -0,0 +1,111 @@
+package com.test.httpserver.examples;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.test.httpserver.handler.FileCache;
+import com.test.httpserver.handler.StaticFileHandler;
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.server.MyHTTPServer;
+
+/**
+ * Serves the files of a directory using {@link StaticFileHandler}, with "cache" from a preloaded
+ * and watched {@link FileCache}.
+ */
+public class MyFileServer extends MyHTTPServer
+{
+    private static final long DEFAULT_CACHE_CAPACITY = 256L * 1024 * 1024;
+
+    private final StaticFileHandler fileHandler;
+
+    public MyFileServer(int port, File root)
+    {
+        super("127.0.0.1", port);
+        this.fileHandler = new StaticFileHandler(root);
+    }
+
+    /**
+     * Serves the files from a cache of <code>capacity</code> bytes, preloaded with the root
+     * directory and its precompressed variants and updated as files change.
+     */
+    public void enableFileCache(long capacity) throws IOException
+    {
+        FileCache cache = new FileCache(capacity);
+        cache.setPrecompressed(true);
+        cache.preload(fileHandler.getRoot());
+        cache.watch(fileHandler.getRoot());
+        fileHandler.setFileCache(cache);
+        System.out.println("Cached " + cache);
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Please run Server from commandline as instructed below.");
+            System.out.println("============================================================");
+            System.out.println("java -cp /path/to/MyHTTPServer.jar " + MyFileServer.class.getName()
+                    + " intPortNumber /path/to/root [nio] [cache]");
+            System.out.println("============================================================");
+            return;
+        }
+        try
+        {
+            MyFileServer server = new MyFileServer(Integer.valueOf(args[0]), new File(args[1]));
+            for (int i = 2; i < args.length; i++)
+            {
+                if ("nio".equalsIgnoreCase(args[i]))
+                {
+                    server.setNonBlocking(true);
+                }
+                else if ("cache".equalsIgnoreCase(args[i]))
+                {
+                    server.enableFileCache(DEFAULT_CACHE_CAPACITY);
+                }
+            }
+            server.start();
+        }
+        catch (Exception e)
+        {
+            System.out.println("Server start failed with error " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public HTTPResponse doGet(HTTPRequest request)
+    {
+        return fileHandler.doGet(request);
+    }
+
+    @Override
+    public HTTPResponse doPost(HTTPRequest request)
+    {
+        return fileHandler.doPost(request);
+    }
+
+    @Override
+    public HTTPResponse doPut(HTTPRequest request)
+    {
+        return fileHandler.doPut(request);
+    }
+
+    @Override
+    public HTTPResponse doDelete(HTTPRequest request)
+    {
+        return fileHandler.doDelete(request);
+    }
+
+    @Override
+    public HTTPResponse doHead(HTTPRequest request)
+    {
+        return fileHandler.doHead(request);
+    }
+
+    @Override
+    public HTTPResponse doOptions(HTTPRequest request)
+    {
+        return fileHandler.doOptions(request);
+    }
+}
@@ -0,0 +1,542 @@
+package com.test.httpserver.handler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+
+/**
+ * Keeps the content of static files in memory for a {@link StaticFileHandler}, outside the heap:
+ * small files are copied into direct buffers, larger ones mapped read only. Every response gets a
+ * duplicate of the shared buffer, so hits neither open the file nor copy its bytes. Entries are
+ * looked up by path and only used while the file's length and modification time match; the
+ * least recently used ones are dropped beyond the capacity. Their memory is freed by the garbage
+ * collector once no response still sends from them.
+ * <p>
+ * With {@link #setPrecompressed(boolean)} a <code>.gz</code> file next to a cached file, e.g.
+ * <code>app.js.gz</code>, is kept with it and sent to clients accepting gzip.
+ * {@link #preload(Path)} reads a directory ahead of the first request and
+ * {@link #watch(Path)} drops, and for preloaded directories reloads, files as soon as they
+ * change.
+ * <p>
+ * A mapped file must not be truncated while it is cached, replace it by renaming a new file over
+ * it instead; reading a mapping past the end of its file crashes the thread.
+ */
+public class FileCache implements Closeable
+{
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAP_THRESHOLD = 64 * 1024;
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private final long capacity;
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private int mapThreshold = DEFAULT_MAP_THRESHOLD;
+    private boolean precompressed;
+    private final Map<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+    private long cachedBytes;
+    private long mappedBytes;
+    private final List<Path> preloaded = new ArrayList<Path>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private WatchService watchService;
+
+    /**
+     * @param capacity
+     *            bytes of file content to keep, precompressed variants included
+     */
+    public FileCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Files larger than this are not cached but sent from the file; defaults to 64 MB.
+     */
+    public void setMaxFileSize(long maxFileSize)
+    {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Files of at least this size are mapped instead of copied into a direct buffer; defaults to
+     * 64 KB. Mapping costs a system call and page faults that copying a small file does not.
+     */
+    public void setMapThreshold(int mapThreshold)
+    {
+        this.mapThreshold = mapThreshold;
+    }
+
+    public boolean isPrecompressed()
+    {
+        return precompressed;
+    }
+
+    /**
+     * Keeps the <code>.gz</code> file next to a cached file, if it is not older, as its gzip
+     * variant. Off by default.
+     */
+    public void setPrecompressed(boolean precompressed)
+    {
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * Returns the cached content of a file, reading it first on a miss.
+     *
+     * @param length
+     *            the current length of the file
+     * @param lastModified
+     *            its current modification time; an entry of an older version is replaced
+     * @return null if the file is not cached, e.g. because it is too large
+     */
+    Entry get(Path path, long length, long lastModified) throws IOException
+    {
+        Entry entry;
+        synchronized (entries)
+        {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.length == length && entry.lastModified == lastModified)
+        {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        if (length > maxFileSize || length > capacity)
+        {
+            return null;
+        }
+        entry = load(path);
+        // the caller's metadata may be older than the file just read
+        return entry != null && entry.length == length && entry.lastModified == lastModified ? entry : null;
+    }
+
+    /**
+     * Reads the files below <code>directory</code> into the cache, as far as the capacity goes;
+     * with {@link #watch(Path)} they are reloaded when they change.
+     */
+    public void preload(Path directory) throws IOException
+    {
+        final Path dir = directory.toAbsolutePath().normalize();
+        synchronized (preloaded)
+        {
+            if (!preloaded.contains(dir))
+            {
+                preloaded.add(dir);
+            }
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                if (attributes.isRegularFile() && attributes.size() <= maxFileSize && !isVariant(file))
+                {
+                    load(file);
+                }
+                return getCachedBytes() < capacity ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+            }
+        });
+    }
+
+    /**
+     * Watches <code>directory</code> and its subdirectories on a daemon thread: cached files that
+     * change or disappear are dropped, files below a preloaded directory reloaded. Watching is
+     * as prompt as the platform's {@link WatchService}; until an event arrives the file's length
+     * and modification time still guard against stale content.
+     */
+    public void watch(Path directory) throws IOException
+    {
+        final WatchService service;
+        synchronized (this)
+        {
+            if (watchService == null)
+            {
+                final WatchService created = directory.getFileSystem().newWatchService();
+                watchService = created;
+                Thread watcher = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        processEvents(created);
+                    }
+                });
+                watcher.setName("Echo HTTP Server FileCache Watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            service = watchService;
+        }
+        register(service, directory.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drops the cached content of a file.
+     */
+    public void invalidate(Path path)
+    {
+        synchronized (entries)
+        {
+            remove(entries.remove(path));
+        }
+    }
+
+    /**
+     * Drops everything cached.
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+            cachedBytes = 0;
+            mappedBytes = 0;
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            HTTPServerUtils.safeClose(watchService);
+            watchService = null;
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return bytes of file content held, mapped files included
+     */
+    public long getCachedBytes()
+    {
+        synchronized (entries)
+        {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * @return bytes of the files held as mappings
+     */
+    public long getMappedBytes()
+    {
+        synchronized (entries)
+        {
+            return mappedBytes;
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FileCache[files=" + size() + ", cached=" + getCachedBytes() + ", mapped=" + getMappedBytes()
+                + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+
+    /**
+     * Reads a file, with its gzip variant, and adds it to the cache.
+     *
+     * @return the new entry, null if the file is gone or does not fit
+     */
+    private Entry load(Path path) throws IOException
+    {
+        BasicFileAttributes attributes;
+        try
+        {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e)
+        {
+            invalidate(path);
+            return null;
+        }
+        if (!attributes.isRegularFile() || attributes.size() > maxFileSize)
+        {
+            invalidate(path);
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        int threshold = mapThreshold;
+        long mapped = 0;
+        ByteBuffer content = read(path, attributes.size(), threshold);
+        if (attributes.size() >= threshold)
+        {
+            mapped += attributes.size();
+        }
+        ByteBuffer gzip = null;
+        if (precompressed)
+        {
+            Path variant = path.resolveSibling(path.getFileName() + GZIP_SUFFIX);
+            long variantSize = Files.isRegularFile(variant) ? Files.size(variant) : -1;
+            if (variantSize >= 0 && variantSize <= maxFileSize
+                    && Files.getLastModifiedTime(variant).toMillis() >= lastModified)
+            {
+                gzip = read(variant, variantSize, threshold);
+                if (variantSize >= threshold)
+                {
+                    mapped += variantSize;
+                }
+            }
+        }
+        Entry entry = new Entry(content, gzip, attributes.size(), lastModified, mapped);
+        if (entry.size() > capacity)
+        {
+            return null;
+        }
+        synchronized (entries)
+        {
+            remove(entries.put(path, entry));
+            cachedBytes += entry.size();
+            mappedBytes += entry.mappedSize();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (cachedBytes > capacity && eldest.hasNext())
+            {
+                Entry evicted = eldest.next();
+                if (evicted != entry)
+                {
+                    eldest.remove();
+                    remove(evicted);
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Accounts for an entry taken out of the map; call with the lock held.
+     */
+    private void remove(Entry entry)
+    {
+        if (entry != null)
+        {
+            cachedBytes -= entry.size();
+            mappedBytes -= entry.mappedSize();
+        }
+    }
+
+    /**
+     * @return the file content, read only and positioned at 0; mapped from <code>threshold</code>
+     *         bytes on
+     */
+    private static ByteBuffer read(Path path, long size, int threshold) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            if (size >= threshold)
+            {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0)
+                {
+                    throw new IOException("File shrank while being read: " + path);
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private boolean isVariant(Path file)
+    {
+        String name = file.getFileName().toString();
+        return precompressed && name.endsWith(GZIP_SUFFIX)
+                && Files.isRegularFile(file.resolveSibling(name.substring(0, name.length() - GZIP_SUFFIX.length())));
+    }
+
+    private void register(final WatchService service, Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException
+            {
+                dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents(WatchService service)
+    {
+        while (true)
+        {
+            WatchKey key;
+            try
+            {
+                key = service.take();
+            }
+            catch (ClosedWatchServiceException e)
+            {
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                {
+                    // events were lost, anything may have changed
+                    clear();
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                try
+                {
+                    changed(service, path, event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                }
+                catch (IOException e)
+                {
+                    // gone again already; the next request finds out
+                    invalidate(path);
+                }
+            }
+            key.reset();
+        }
+    }
+
+    private void changed(WatchService service, Path path, boolean created) throws IOException
+    {
+        if (created && Files.isDirectory(path))
+        {
+            register(service, path);
+            return;
+        }
+        String name = path.getFileName().toString();
+        if (name.endsWith(GZIP_SUFFIX))
+        {
+            // the variant of a cached file changed
+            path = path.resolveSibling(name.substring(0, name.length() - GZIP_SUFFIX.length()));
+        }
+        boolean cached;
+        synchronized (entries)
+        {
+            cached = entries.containsKey(path);
+        }
+        invalidate(path);
+        if ((cached || isPreloaded(path)) && Files.isRegularFile(path))
+        {
+            load(path);
+        }
+    }
+
+    private boolean isPreloaded(Path path)
+    {
+        synchronized (preloaded)
+        {
+            for (Path dir : preloaded)
+            {
+                if (path.startsWith(dir))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Content of one cached file. The buffers are shared by all responses and never moved;
+     * responses send from duplicates.
+     */
+    static final class Entry
+    {
+        private final ByteBuffer content;
+        private final ByteBuffer gzip;
+        final long length;
+        final long lastModified;
+        private final long mappedSize;
+
+        Entry(ByteBuffer content, ByteBuffer gzip, long length, long lastModified, long mappedSize)
+        {
+            this.content = content;
+            this.gzip = gzip;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.mappedSize = mappedSize;
+        }
+
+        /**
+         * @return a view of the content, for one response
+         */
+        ByteBuffer content()
+        {
+            return content.duplicate();
+        }
+
+        /**
+         * @return a view of the gzip variant, null if there is none
+         */
+        ByteBuffer gzip()
+        {
+            return gzip != null ? gzip.duplicate() : null;
+        }
+
+        boolean hasGzip()
+        {
+            return gzip != null;
+        }
+
+        long size()
+        {
+            return content.capacity() + (gzip != null ? gzip.capacity() : 0);
+        }
+
+        long mappedSize()
+        {
+            return mappedSize;
+        }
+    }
+}
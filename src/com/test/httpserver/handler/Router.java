@@ -0,0 +1,543 @@
+package com.test.httpserver.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.util.AsyncHTTPResponseHandler;
+import com.test.httpserver.util.HTTPResponseHandler;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * Dispatches requests by method and path. Routes are compiled into one radix trie per
+ * {@link Method}, so a lookup walks the path once, without regular expressions and without
+ * allocating.
+ * <p>
+ * A pattern is a path that may contain parameters and end with a wildcard:
+ * <ul>
+ * <li><code>/users/{id}/posts</code> - <code>{id}</code> matches one non empty segment</li>
+ * <li><code>/static/*</code> - <code>*</code> matches the rest of the path, even nothing</li>
+ * </ul>
+ * Both are read with {@link HTTPRequest#getPathParam(String)}, the wildcard under the name "*".
+ * Static text takes precedence over a parameter, a parameter over a wildcard.
+ * <p>
+ * Paths without a route for any method are answered with 404, paths routed only for other
+ * methods with 405 and an Allow header. HEAD falls back to the GET route and OPTIONS without a
+ * route is answered with the Allow header. Routes are added before the server starts; lookups
+ * are thread safe after that.
+ * <p>
+ * Routes added with {@link #addAsync} complete their response later, see
+ * {@link AsyncHTTPResponseHandler}; the server looks them up with {@link #routeAsync}.
+ */
+public class Router
+{
+    /**
+     * Produces the response for a routed request.
+     */
+    public interface Handler
+    {
+        HTTPResponse handle(HTTPRequest request);
+    }
+
+    /**
+     * Produces the response for a routed request asynchronously.
+     */
+    public interface AsyncHandler
+    {
+        CompletableFuture<HTTPResponse> handle(HTTPRequest request);
+    }
+
+    private static final String WILDCARD = "*";
+
+    private final Node[] roots = new Node[Method.values().length];
+    private int maxParams;
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the pattern is malformed or already routed for the method
+     */
+    public Router add(Method method, String pattern, Handler handler)
+    {
+        insert(method, pattern).handler = handler;
+        return this;
+    }
+
+    /**
+     * Adds a route whose handler completes its response later; the server releases the worker
+     * thread meanwhile. {@link #route(HTTPRequest)} waits for the response.
+     *
+     * @throws IllegalArgumentException
+     *             if the pattern is malformed or already routed for the method
+     */
+    public Router addAsync(Method method, String pattern, final AsyncHandler handler)
+    {
+        Node node = insert(method, pattern);
+        node.asyncHandler = handler;
+        node.handler = new Handler()
+        {
+            @Override
+            public HTTPResponse handle(HTTPRequest request)
+            {
+                return handler.handle(request).join();
+            }
+        };
+        return this;
+    }
+
+    /**
+     * @return the node of the new route, its handler not set yet
+     */
+    private Node insert(Method method, String pattern)
+    {
+        if (!pattern.startsWith("/"))
+        {
+            throw new IllegalArgumentException("Route must start with '/': " + pattern);
+        }
+        Node root = roots[method.ordinal()];
+        if (root == null)
+        {
+            root = new Node(Node.STATIC, "");
+            roots[method.ordinal()] = root;
+        }
+        List<String> names = new ArrayList<String>();
+        Node node = root;
+        int pos = 0;
+        while (pos < pattern.length())
+        {
+            char c = pattern.charAt(pos);
+            if (c == '{')
+            {
+                int close = pattern.indexOf('}', pos);
+                if (pattern.charAt(pos - 1) != '/' || close < 0 || close == pos + 1
+                        || (close + 1 < pattern.length() && pattern.charAt(close + 1) != '/'))
+                {
+                    throw new IllegalArgumentException("Parameter must span a whole segment: " + pattern);
+                }
+                names.add(pattern.substring(pos + 1, close));
+                if (node.param == null)
+                {
+                    node.param = new Node(Node.PARAM, null);
+                }
+                node = node.param;
+                pos = close + 1;
+            }
+            else if (c == '*')
+            {
+                if (pattern.charAt(pos - 1) != '/' || pos + 1 != pattern.length())
+                {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                names.add(WILDCARD);
+                if (node.wildcard == null)
+                {
+                    node.wildcard = new Node(Node.WILDCARD, null);
+                }
+                node = node.wildcard;
+                pos++;
+            }
+            else
+            {
+                int end = pos;
+                while (end < pattern.length() && pattern.charAt(end) != '{' && pattern.charAt(end) != '*')
+                {
+                    end++;
+                }
+                node = node.insertStatic(pattern.substring(pos, end));
+                pos = end;
+            }
+        }
+        if (node.handler != null)
+        {
+            throw new IllegalArgumentException("Route already defined: " + method + " " + pattern);
+        }
+        node.pattern = pattern;
+        node.paramNames = names.toArray(new String[names.size()]);
+        maxParams = Math.max(maxParams, names.size());
+        return node;
+    }
+
+    public Router get(String pattern, Handler handler)
+    {
+        return add(Method.GET, pattern, handler);
+    }
+
+    public Router post(String pattern, Handler handler)
+    {
+        return add(Method.POST, pattern, handler);
+    }
+
+    public Router put(String pattern, Handler handler)
+    {
+        return add(Method.PUT, pattern, handler);
+    }
+
+    public Router delete(String pattern, Handler handler)
+    {
+        return add(Method.DELETE, pattern, handler);
+    }
+
+    /**
+     * Routes every method of the pattern to the matching do-method of <code>handler</code>, e.g.
+     * a {@link StaticFileHandler} below <code>/static/*</code>.
+     */
+    public Router mount(String pattern, final HTTPResponseHandler handler)
+    {
+        for (final Method method : Method.values())
+        {
+            add(method, pattern, new Handler()
+            {
+                @Override
+                public HTTPResponse handle(HTTPRequest request)
+                {
+                    return dispatch(handler, method, request);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Routes every method of the pattern to the matching do-method of an async
+     * <code>handler</code>.
+     */
+    public Router mountAsync(String pattern, final AsyncHTTPResponseHandler handler)
+    {
+        for (final Method method : Method.values())
+        {
+            addAsync(method, pattern, new AsyncHandler()
+            {
+                @Override
+                public CompletableFuture<HTTPResponse> handle(HTTPRequest request)
+                {
+                    return dispatchAsync(handler, method, request);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * @return the response of the route matching the request, or the 404/405 answer
+     */
+    public HTTPResponse route(HTTPRequest request)
+    {
+        Node node = find(request);
+        return node != null ? node.handler.handle(request) : notRouted(request);
+    }
+
+    /**
+     * Like {@link #route(HTTPRequest)}, without waiting for the response of an async route.
+     *
+     * @return the response, already complete unless an async route is working on it
+     */
+    public CompletableFuture<HTTPResponse> routeAsync(HTTPRequest request)
+    {
+        Node node = find(request);
+        if (node != null && node.asyncHandler != null)
+        {
+            CompletableFuture<HTTPResponse> response = node.asyncHandler.handle(request);
+            if (response == null)
+            {
+                throw new NullPointerException("Async route returned no future: " + node.pattern);
+            }
+            return response;
+        }
+        return CompletableFuture.completedFuture(node != null ? node.handler.handle(request) : notRouted(request));
+    }
+
+    /**
+     * @return the node routed for the request, with its path parameters set on the request; null
+     *         if there is none
+     */
+    private Node find(HTTPRequest request)
+    {
+        Method method = request.getMethod();
+        String path = request.getUri();
+        int[] offsets = request.getPathParamOffsets(maxParams);
+        Node node = match(roots[method.ordinal()], path, offsets);
+        if (node == null && method == Method.HEAD)
+        {
+            node = match(roots[Method.GET.ordinal()], path, offsets);
+        }
+        if (node != null)
+        {
+            request.setPathParamNames(node.paramNames);
+            request.setRoute(node.pattern);
+        }
+        return node;
+    }
+
+    /**
+     * @return the 404 or 405 answer for a request without a route
+     */
+    private HTTPResponse notRouted(HTTPRequest request)
+    {
+        Method method = request.getMethod();
+        String path = request.getUri();
+        String allow = getAllowedMethods(path);
+        if (allow == null)
+        {
+            return new HTTPResponse(HTTPStatus.NOT_FOUND, HTTPResponse.MIME_PLAINTEXT, "NOT FOUND: " + path);
+        }
+        HTTPResponse response;
+        if (method == Method.OPTIONS)
+        {
+            response = new HTTPResponse(HTTPStatus.NO_CONTENT, null, (String) null);
+        }
+        else
+        {
+            response = new HTTPResponse(HTTPStatus.METHOD_NOT_ALLOWED, HTTPResponse.MIME_PLAINTEXT,
+                    "METHOD NOT ALLOWED: " + method + " " + path);
+        }
+        response.addHeader("Allow", allow);
+        return response;
+    }
+
+    /**
+     * @return the methods routed for the path as an Allow header value, null if there are none
+     */
+    public String getAllowedMethods(String path)
+    {
+        int[] offsets = new int[2 * maxParams];
+        StringBuilder allow = null;
+        for (Method method : Method.values())
+        {
+            boolean routed = match(roots[method.ordinal()], path, offsets) != null;
+            if (!routed && (method == Method.HEAD || method == Method.OPTIONS))
+            {
+                // answered for any path that has a GET route, or any route at all
+                routed = allow != null && (method == Method.OPTIONS || allow.indexOf("GET") >= 0);
+            }
+            if (routed)
+            {
+                allow = allow == null ? new StringBuilder() : allow.append(", ");
+                allow.append(method);
+            }
+        }
+        return allow != null ? allow.toString() : null;
+    }
+
+    /**
+     * Calls the do-method of <code>handler</code> for the request method.
+     */
+    public static HTTPResponse dispatch(HTTPResponseHandler handler, Method method, HTTPRequest request)
+    {
+        switch (method)
+        {
+        case GET:
+            return handler.doGet(request);
+        case POST:
+            return handler.doPost(request);
+        case PUT:
+            return handler.doPut(request);
+        case DELETE:
+            return handler.doDelete(request);
+        case HEAD:
+            return handler.doHead(request);
+        case OPTIONS:
+            return handler.doOptions(request);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Calls the do-method of the async <code>handler</code> for the request method.
+     */
+    public static CompletableFuture<HTTPResponse> dispatchAsync(AsyncHTTPResponseHandler handler, Method method,
+            HTTPRequest request)
+    {
+        switch (method)
+        {
+        case GET:
+            return handler.doGet(request);
+        case POST:
+            return handler.doPost(request);
+        case PUT:
+            return handler.doPut(request);
+        case DELETE:
+            return handler.doDelete(request);
+        case HEAD:
+            return handler.doHead(request);
+        case OPTIONS:
+            return handler.doOptions(request);
+        default:
+            return null;
+        }
+    }
+
+    private static Node match(Node root, String path, int[] offsets)
+    {
+        return root != null ? root.match(path, 0, offsets, 0) : null;
+    }
+
+    private static final class Node
+    {
+        static final int STATIC = 0;
+        static final int PARAM = 1;
+        static final int WILDCARD = 2;
+        static final char[] NO_INDICES = new char[0];
+        static final Node[] NO_CHILDREN = new Node[0];
+
+        final int type;
+        /**
+         * Text matched by a static node
+         */
+        String label;
+        /**
+         * First characters of the static children, in the order of children
+         */
+        char[] indices = NO_INDICES;
+        Node[] children = NO_CHILDREN;
+        Node param;
+        Node wildcard;
+        Handler handler;
+        /**
+         * Set for async routes, whose handler waits for it
+         */
+        AsyncHandler asyncHandler;
+        String pattern;
+        String[] paramNames;
+
+        Node(int type, String label)
+        {
+            this.type = type;
+            this.label = label;
+        }
+
+        /**
+         * Adds static text below this node, splitting labels that only share a prefix with it.
+         *
+         * @return the node ending with the text
+         */
+        Node insertStatic(String text)
+        {
+            Node node = this;
+            while (true)
+            {
+                int i = node.indexOf(text.charAt(0));
+                if (i < 0)
+                {
+                    Node child = new Node(STATIC, text);
+                    node.addChild(child);
+                    return child;
+                }
+                Node child = node.children[i];
+                int common = 0;
+                int max = Math.min(child.label.length(), text.length());
+                while (common < max && child.label.charAt(common) == text.charAt(common))
+                {
+                    common++;
+                }
+                if (common < child.label.length())
+                {
+                    Node split = new Node(STATIC, child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    split.addChild(child);
+                    node.children[i] = split;
+                    child = split;
+                }
+                if (common == text.length())
+                {
+                    return child;
+                }
+                text = text.substring(common);
+                node = child;
+            }
+        }
+
+        private int indexOf(char c)
+        {
+            for (int i = 0; i < indices.length; i++)
+            {
+                if (indices[i] == c)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void addChild(Node child)
+        {
+            int n = children.length;
+            char[] newIndices = new char[n + 1];
+            Node[] newChildren = new Node[n + 1];
+            System.arraycopy(indices, 0, newIndices, 0, n);
+            System.arraycopy(children, 0, newChildren, 0, n);
+            newIndices[n] = child.label.charAt(0);
+            newChildren[n] = child;
+            indices = newIndices;
+            children = newChildren;
+        }
+
+        /**
+         * Matches this node at <code>pos</code> and the rest of the path below it, trying static
+         * children before the parameter and the wildcard.
+         *
+         * @param offsets
+         *            receives start and end of every parameter value
+         * @return the node holding the route, null if none matches
+         */
+        Node match(String path, int pos, int[] offsets, int index)
+        {
+            switch (type)
+            {
+            case STATIC:
+                if (!path.regionMatches(pos, label, 0, label.length()))
+                {
+                    return null;
+                }
+                pos += label.length();
+                break;
+            case PARAM:
+                int end = path.indexOf('/', pos);
+                if (end < 0)
+                {
+                    end = path.length();
+                }
+                if (end == pos)
+                {
+                    return null;
+                }
+                offsets[2 * index] = pos;
+                offsets[2 * index + 1] = end;
+                index++;
+                pos = end;
+                break;
+            default:
+                offsets[2 * index] = pos;
+                offsets[2 * index + 1] = path.length();
+                return handler != null ? this : null;
+            }
+            if (pos == path.length() && handler != null)
+            {
+                return this;
+            }
+            if (pos < path.length())
+            {
+                int i = indexOf(path.charAt(pos));
+                if (i >= 0)
+                {
+                    Node found = children[i].match(path, pos, offsets, index);
+                    if (found != null)
+                    {
+                        return found;
+                    }
+                }
+                if (param != null)
+                {
+                    Node found = param.match(path, pos, offsets, index);
+                    if (found != null)
+                    {
+                        return found;
+                    }
+                }
+            }
+            return wildcard != null ? wildcard.match(path, pos, offsets, index) : null;
+        }
+    }
+}
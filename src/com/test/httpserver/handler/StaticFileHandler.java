@@ -0,0 +1,612 @@
+package com.test.httpserver.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.test.httpserver.network.FileRegion;
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.network.ResponseCompressor;
+import com.test.httpserver.util.HTTPResponseHandler;
+import com.test.httpserver.util.HTTPStatus;
+
+/**
+ * Serves the files below a root directory. Bodies are sent with
+ * {@link FileChannel#transferTo}, single and multiple byte ranges are supported and
+ * If-None-Match/If-Modified-Since are answered with 304 from cached file metadata. With a
+ * {@link FileCache} the content of hot files is sent from memory instead.
+ */
+public class StaticFileHandler implements HTTPResponseHandler
+{
+    /**
+     * Requests asking for more ranges than this get the whole file instead.
+     */
+    private static final int MAX_RANGES = 16;
+    /**
+     * Metadata of more files than this is pruned, expired entries first.
+     */
+    private static final int MAX_METADATA_ENTRIES = 10000;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern(
+            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+
+    static
+    {
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm", "text/html");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("xml", "text/xml");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("pdf", "application/pdf");
+        MIME_TYPES.put("zip", "application/zip");
+        MIME_TYPES.put("gz", "application/gzip");
+        MIME_TYPES.put("mp4", "video/mp4");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("wasm", "application/wasm");
+    }
+
+    private final Path root;
+    /**
+     * Keyed by the normalized path a URI resolves to, so that the many spellings of one URI share
+     * an entry
+     */
+    private final Map<Path, FileInfo> metadata = new ConcurrentHashMap<Path, FileInfo>();
+    private long metadataTtl = 1000;
+    private FileCache fileCache;
+
+    public StaticFileHandler(File root)
+    {
+        this.root = root.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * How long, in milliseconds, file metadata (size, modification time, ETag) is trusted before
+     * the file system is asked again.
+     */
+    public void setMetadataTtl(long metadataTtl)
+    {
+        this.metadataTtl = metadataTtl;
+    }
+
+    public FileCache getFileCache()
+    {
+        return fileCache;
+    }
+
+    /**
+     * Sends whole files and single ranges from the cache; files it does not hold, e.g. too large
+     * ones, are still sent with transferTo. Its gzip variants go to clients accepting gzip.
+     * Preloading and watching, e.g. of this handler's root, are up to the caller.
+     */
+    public void setFileCache(FileCache fileCache)
+    {
+        this.fileCache = fileCache;
+    }
+
+    /**
+     * @return the directory files are served from
+     */
+    public Path getRoot()
+    {
+        return root;
+    }
+
+    @Override
+    public HTTPResponse doGet(HTTPRequest request)
+    {
+        return serve(request, true);
+    }
+
+    @Override
+    public HTTPResponse doHead(HTTPRequest request)
+    {
+        return serve(request, false);
+    }
+
+    @Override
+    public HTTPResponse doPost(HTTPRequest request)
+    {
+        return methodNotAllowed();
+    }
+
+    @Override
+    public HTTPResponse doPut(HTTPRequest request)
+    {
+        return methodNotAllowed();
+    }
+
+    @Override
+    public HTTPResponse doDelete(HTTPRequest request)
+    {
+        return methodNotAllowed();
+    }
+
+    @Override
+    public HTTPResponse doOptions(HTTPRequest request)
+    {
+        HTTPResponse response = new HTTPResponse(HTTPStatus.OK, null, (String) null);
+        response.addHeader("Allow", "GET, HEAD, OPTIONS");
+        return response;
+    }
+
+    private HTTPResponse serve(HTTPRequest request, boolean get)
+    {
+        return serve(request, get, false);
+    }
+
+    /**
+     * @param retry
+     *            whether the metadata was found stale once already while serving this request
+     */
+    private HTTPResponse serve(HTTPRequest request, boolean get, boolean retry)
+    {
+        FileInfo info;
+        try
+        {
+            info = lookup(request.getUri());
+        }
+        catch (IOException e)
+        {
+            return new HTTPResponse(HTTPStatus.INTERNAL_ERROR, HTTPResponse.MIME_PLAINTEXT,
+                    "SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+        }
+        if (info == null)
+        {
+            return new HTTPResponse(HTTPStatus.NOT_FOUND, HTTPResponse.MIME_PLAINTEXT, "NOT FOUND: "
+                    + request.getUri());
+        }
+
+        Map<String, String> headers = request.getHeaders();
+        FileCache.Entry cached = null;
+        if (fileCache != null)
+        {
+            try
+            {
+                cached = fileCache.get(info.path, info.length, info.lastModified);
+            }
+            catch (IOException e)
+            {
+                // sent from the file, which reports the problem if it persists
+            }
+        }
+        boolean gzip = cached != null && cached.hasGzip()
+                && ResponseCompressor.GZIP.equals(ResponseCompressor.negotiate(headers.get("accept-encoding")));
+        if (isNotModified(info, headers))
+        {
+            HTTPResponse response = new HTTPResponse(HTTPStatus.NOT_MODIFIED, null, (String) null);
+            addValidators(response, info, cached, gzip);
+            return response;
+        }
+
+        try
+        {
+            String range = headers.get("range");
+            if (get && range != null && isRangeCurrent(info, headers.get("if-range")))
+            {
+                List<long[]> ranges = parseRanges(range, info.length);
+                if (ranges != null && ranges.isEmpty())
+                {
+                    HTTPResponse response = new HTTPResponse(HTTPStatus.RANGE_NOT_SATISFIABLE,
+                            HTTPResponse.MIME_PLAINTEXT, "RANGE NOT SATISFIABLE: " + range);
+                    response.addHeader("Content-Range", "bytes */" + info.length);
+                    return response;
+                }
+                if (ranges != null && ranges.size() == 1)
+                {
+                    long[] r = ranges.get(0);
+                    List<FileRegion> regions = new ArrayList<FileRegion>();
+                    if (cached != null)
+                    {
+                        ByteBuffer slice = cached.content();
+                        slice.limit((int) r[1] + 1).position((int) r[0]);
+                        regions.add(new FileRegion(null, slice));
+                    }
+                    else
+                    {
+                        regions.add(new FileRegion(null, open(info), r[0], r[1] - r[0] + 1));
+                    }
+                    HTTPResponse response = new HTTPResponse(HTTPStatus.PARTIAL_CONTENT, info.mimeType, regions);
+                    response.addHeader("Content-Range", contentRange(r, info.length));
+                    addValidators(response, info, cached, false);
+                    return response;
+                }
+                if (ranges != null)
+                {
+                    return multipartRanges(info, ranges);
+                }
+            }
+            List<FileRegion> regions = new ArrayList<FileRegion>();
+            if (cached != null)
+            {
+                regions.add(new FileRegion(null, gzip ? cached.gzip() : cached.content()));
+            }
+            else
+            {
+                regions.add(new FileRegion(null, open(info), 0, info.length));
+            }
+            HTTPResponse response = new HTTPResponse(HTTPStatus.OK, info.mimeType, regions);
+            if (gzip)
+            {
+                response.addHeader("Content-Encoding", ResponseCompressor.GZIP);
+            }
+            addValidators(response, info, cached, gzip);
+            return response;
+        }
+        catch (FileChangedException e)
+        {
+            metadata.remove(info.key, info);
+            if (!retry)
+            {
+                return serve(request, get, true);
+            }
+            return new HTTPResponse(HTTPStatus.INTERNAL_ERROR, HTTPResponse.MIME_PLAINTEXT,
+                    "SERVER INTERNAL ERROR: " + request.getUri() + " changes while it is sent.");
+        }
+        catch (IOException e)
+        {
+            metadata.remove(info.key, info);
+            return new HTTPResponse(HTTPStatus.NOT_FOUND, HTTPResponse.MIME_PLAINTEXT, "NOT FOUND: "
+                    + request.getUri());
+        }
+    }
+
+    /**
+     * multipart/byteranges body; every part gets its own channel since each region closes its
+     * channel once sent.
+     */
+    private HTTPResponse multipartRanges(FileInfo info, List<long[]> ranges) throws IOException
+    {
+        String boundary = "MYHTTPSERVER_" + Long.toHexString(System.nanoTime());
+        List<FileRegion> regions = new ArrayList<FileRegion>();
+        try
+        {
+            for (long[] r : ranges)
+            {
+                String partHead = "\r\n--" + boundary + "\r\nContent-Type: " + info.mimeType + "\r\nContent-Range: "
+                        + contentRange(r, info.length) + "\r\n\r\n";
+                regions.add(new FileRegion(partHead.getBytes("US-ASCII"), open(info), r[0], r[1] - r[0] + 1));
+            }
+        }
+        catch (IOException e)
+        {
+            for (FileRegion region : regions)
+            {
+                region.close();
+            }
+            throw e;
+        }
+        regions.add(new FileRegion(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII")));
+        HTTPResponse response = new HTTPResponse(HTTPStatus.PARTIAL_CONTENT, "multipart/byteranges; boundary="
+                + boundary, regions);
+        addValidators(response, info, null, false);
+        return response;
+    }
+
+    /**
+     * Returns the cached metadata of the file for the URI, refreshing it once it is older than
+     * the TTL.
+     *
+     * @return null if there is no such file below the root
+     */
+    private FileInfo lookup(String uri) throws IOException
+    {
+        if (uri == null)
+        {
+            return null;
+        }
+        int start = 0;
+        while (start < uri.length() && uri.charAt(start) == '/')
+        {
+            start++;
+        }
+        Path key;
+        try
+        {
+            key = root.resolve(uri.substring(start)).normalize();
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+        if (!key.startsWith(root))
+        {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        FileInfo info = metadata.get(key);
+        if (info != null && now - info.checkedAt < metadataTtl)
+        {
+            return info;
+        }
+        Path path = key;
+        if (Files.isDirectory(path))
+        {
+            path = path.resolve("index.html");
+        }
+        if (!Files.isRegularFile(path))
+        {
+            metadata.remove(key);
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        info = new FileInfo(key, path, attributes.size(), attributes.lastModifiedTime().toMillis(), now);
+        if (metadata.size() >= MAX_METADATA_ENTRIES)
+        {
+            prune(now);
+        }
+        metadata.put(key, info);
+        return info;
+    }
+
+    /**
+     * Drops the expired metadata, and if that is not enough, whichever entries come first; the
+     * files of a large tree are then looked up again more often, but the map stays bounded.
+     */
+    private void prune(long now)
+    {
+        Iterator<FileInfo> expired = metadata.values().iterator();
+        while (expired.hasNext())
+        {
+            if (now - expired.next().checkedAt >= metadataTtl)
+            {
+                expired.remove();
+            }
+        }
+        Iterator<Path> any = metadata.keySet().iterator();
+        while (metadata.size() >= MAX_METADATA_ENTRIES && any.hasNext())
+        {
+            any.next();
+            any.remove();
+        }
+    }
+
+    private boolean isNotModified(FileInfo info, Map<String, String> headers)
+    {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null)
+        {
+            for (String tag : ifNoneMatch.split(","))
+            {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(info.etag) || tag.equals(info.gzipEtag))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = parseDate(headers.get("if-modified-since"));
+        return since >= 0 && info.lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * If-Range: the range applies only if the client still has the current version.
+     */
+    private boolean isRangeCurrent(FileInfo info, String ifRange)
+    {
+        if (ifRange == null)
+        {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\""))
+        {
+            return ifRange.equals(info.etag);
+        }
+        long date = parseDate(ifRange);
+        return date >= 0 && info.lastModified / 1000 <= date / 1000;
+    }
+
+    /**
+     * Parses a "bytes=" Range header into inclusive [first, last] pairs.
+     *
+     * @return the satisfiable ranges, an empty list if none is satisfiable, or null if the header
+     *         is malformed or asks for too many ranges and has to be ignored
+     */
+    static List<long[]> parseRanges(String header, long length)
+    {
+        if (!header.startsWith("bytes="))
+        {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES)
+        {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (String spec : specs)
+        {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+            {
+                return null;
+            }
+            try
+            {
+                long first;
+                long last;
+                if (dash == 0)
+                {
+                    // suffix range: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0)
+                    {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                }
+                else
+                {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec
+                            .substring(dash + 1)));
+                    if (last < first)
+                    {
+                        if (dash != spec.length() - 1 && Long.parseLong(spec.substring(dash + 1)) < first)
+                        {
+                            return null;
+                        }
+                        continue;
+                    }
+                }
+                if (first < length)
+                {
+                    ranges.add(new long[] { first, last });
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    private static String contentRange(long[] range, long length)
+    {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * @param gzip
+     *            whether the gzip variant of the cached file is sent, which has an ETag of its own
+     */
+    private static void addValidators(HTTPResponse response, FileInfo info, FileCache.Entry cached, boolean gzip)
+    {
+        response.addHeader("ETag", gzip ? info.gzipEtag : info.etag);
+        response.addHeader("Last-Modified", info.lastModifiedHeader);
+        response.addHeader("Accept-Ranges", "bytes");
+        if (cached != null && cached.hasGzip())
+        {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    private static HTTPResponse methodNotAllowed()
+    {
+        HTTPResponse response = new HTTPResponse(HTTPStatus.METHOD_NOT_ALLOWED, HTTPResponse.MIME_PLAINTEXT,
+                "METHOD NOT ALLOWED: static files are read only");
+        response.addHeader("Allow", "GET, HEAD, OPTIONS");
+        return response;
+    }
+
+    /**
+     * Opens the file, checking that the metadata the response head is built from still describes
+     * it: a file that shrank since would leave the body short of its Content-Length.
+     *
+     * @throws FileChangedException
+     *             if the file's length differs from the metadata's
+     */
+    private static FileChannel open(FileInfo info) throws IOException
+    {
+        FileChannel channel = FileChannel.open(info.path, StandardOpenOption.READ);
+        if (channel.size() != info.length)
+        {
+            channel.close();
+            throw new FileChangedException();
+        }
+        return channel;
+    }
+
+    /**
+     * @return the time in milliseconds, or -1 if the value is missing or not an HTTP date
+     */
+    private static long parseDate(String value)
+    {
+        if (value == null)
+        {
+            return -1;
+        }
+        try
+        {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    private static String mimeType(Path path)
+    {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String mimeType = dot >= 0 ? MIME_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.US)) : null;
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    /**
+     * Metadata of one file, with the header values derived from it.
+     */
+    private static final class FileInfo
+    {
+        /**
+         * The path the URI resolved to, a directory for its index file
+         */
+        final Path key;
+        final Path path;
+        final long length;
+        final long lastModified;
+        final long checkedAt;
+        final String etag;
+        final String gzipEtag;
+        final String lastModifiedHeader;
+        final String mimeType;
+
+        FileInfo(Path key, Path path, long length, long lastModified, long checkedAt)
+        {
+            this.key = key;
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+            this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+            this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+            this.lastModifiedHeader = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+            this.mimeType = mimeType(path);
+        }
+    }
+
+    /**
+     * The file changed since its metadata was read, which is then looked up again.
+     */
+    private static final class FileChangedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,161 @@
+package com.test.httpserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with a fixed set of log-linear buckets: every power of
+ * two is split into 2^subBucketBits buckets, by default eight, so a percentile read from it is at
+ * most 12.5% above the true value. Recording is lock free and does not allocate. Durations above
+ * about two minutes land in the last bucket.
+ */
+public final class LatencyHistogram
+{
+    /**
+     * Highest power of two covered, 2^37 ns is about 137 seconds
+     */
+    private static final int MAX_EXPONENT = 37;
+
+    private final int subBucketBits;
+    private final int subBuckets;
+    private final int buckets;
+    private final AtomicLongArray counts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram()
+    {
+        this(3);
+    }
+
+    /**
+     * @param subBucketBits
+     *            buckets per power of two as a power of two, from 1 to 10; 7 keeps percentiles
+     *            within 1% at 4096 counters
+     */
+    public LatencyHistogram(int subBucketBits)
+    {
+        if (subBucketBits < 1 || subBucketBits > 10)
+        {
+            throw new IllegalArgumentException("subBucketBits must be between 1 and 10: " + subBucketBits);
+        }
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+        this.buckets = (MAX_EXPONENT - subBucketBits + 2) << subBucketBits;
+        this.counts = new AtomicLongArray(buckets);
+    }
+
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records a duration measured by a caller that waits for each response before sending the
+     * next request, correcting for coordinated omission: a stall longer than the expected
+     * interval also delayed the requests that would have been sent meanwhile, so those are
+     * recorded too, each one interval shorter than the one before.
+     *
+     * @param expectedIntervalNanos
+     *            time between requests when nothing stalls; 0 records the duration alone
+     */
+    public void recordCorrected(long nanos, long expectedIntervalNanos)
+    {
+        record(nanos);
+        if (expectedIntervalNanos <= 0)
+        {
+            return;
+        }
+        for (long missed = nanos - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos)
+        {
+            record(missed);
+        }
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return total of all recorded durations in nanoseconds
+     */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile
+     *            e.g. 99.9
+     * @return the upper bound of the bucket holding the percentile, in nanoseconds; 0 if nothing
+     *         was recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+        for (int i = 0; i < buckets; i++)
+        {
+            total += counts.get(i);
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(lowerBound(i + 1) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    int bucketOf(long value)
+    {
+        if (value < subBuckets)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+        {
+            return buckets - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return ((exponent - subBucketBits + 1) << subBucketBits) + subBucket;
+    }
+
+    long lowerBound(int bucket)
+    {
+        if (bucket < subBuckets)
+        {
+            return bucket;
+        }
+        int exponent = (bucket >> subBucketBits) + subBucketBits - 1;
+        long subBucket = bucket & (subBuckets - 1);
+        return (subBuckets + subBucket) << (exponent - subBucketBits);
+    }
+}
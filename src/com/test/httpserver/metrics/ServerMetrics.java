@@ -0,0 +1,294 @@
+package com.test.httpserver.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.test.httpserver.network.BufferPool;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * Request metrics of a server: latency histograms per method and per route, each split into the
+ * parse, handle and write phases, responses per status code and bytes received and sent.
+ * Recording takes a few atomic increments and no locks; a route's histograms are created the
+ * first time it is hit and looked up by the route pattern after that.
+ * <p>
+ * {@link #writePrometheus(StringBuilder, Gauges)} renders everything in the Prometheus text
+ * format, latencies as summaries with the 50th, 90th, 99th and 99.9th percentiles since start.
+ */
+public class ServerMetrics
+{
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] PHASES = { "parse", "handle", "write" };
+    private static final int PARSE = 0;
+    private static final int HANDLE = 1;
+    private static final int WRITE = 2;
+
+    /**
+     * Values owned by the server and read when the metrics are rendered.
+     */
+    public interface Gauges
+    {
+        int getQueuedCount();
+
+        int getActiveCount();
+
+        int getOpenConnections();
+
+        long getShedCount();
+    }
+
+    private final PhaseHistograms[] methods = new PhaseHistograms[Method.values().length];
+    private final ConcurrentHashMap<String, PhaseHistograms>[] routes;
+    private final LongAdder[] statuses = new LongAdder[HTTPStatus.values().length];
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ServerMetrics()
+    {
+        routes = new ConcurrentHashMap[Method.values().length];
+        for (int i = 0; i < methods.length; i++)
+        {
+            methods[i] = new PhaseHistograms();
+            routes[i] = new ConcurrentHashMap<String, PhaseHistograms>();
+        }
+        for (int i = 0; i < statuses.length; i++)
+        {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records how long the request took to read and to handle.
+     *
+     * @param route
+     *            the pattern of the route that handled the request, null if none did
+     */
+    public void recordHandled(Method method, String route, long parseNanos, long handleNanos)
+    {
+        if (method == null)
+        {
+            return;
+        }
+        PhaseHistograms total = methods[method.ordinal()];
+        total.phases[PARSE].record(parseNanos);
+        total.phases[HANDLE].record(handleNanos);
+        if (route != null)
+        {
+            PhaseHistograms perRoute = getRoute(method, route);
+            perRoute.phases[PARSE].record(parseNanos);
+            perRoute.phases[HANDLE].record(handleNanos);
+        }
+    }
+
+    /**
+     * Records a response once it has been written.
+     *
+     * @param method
+     *            null if the request could not be parsed
+     */
+    public void recordSent(Method method, String route, HTTPStatus status, long writeNanos, long received, long sent)
+    {
+        if (status != null)
+        {
+            statuses[status.ordinal()].increment();
+        }
+        bytesReceived.add(received);
+        bytesSent.add(sent);
+        if (method == null)
+        {
+            return;
+        }
+        methods[method.ordinal()].phases[WRITE].record(writeNanos);
+        if (route != null)
+        {
+            getRoute(method, route).phases[WRITE].record(writeNanos);
+        }
+    }
+
+    private PhaseHistograms getRoute(Method method, String route)
+    {
+        ConcurrentHashMap<String, PhaseHistograms> byRoute = routes[method.ordinal()];
+        PhaseHistograms histograms = byRoute.get(route);
+        if (histograms == null)
+        {
+            histograms = new PhaseHistograms();
+            PhaseHistograms raced = byRoute.putIfAbsent(route, histograms);
+            if (raced != null)
+            {
+                histograms = raced;
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * @return the histogram of a phase ("parse", "handle" or "write") over all routes of a method
+     */
+    public LatencyHistogram getHistogram(Method method, String phase)
+    {
+        return methods[method.ordinal()].phases[phaseIndex(phase)];
+    }
+
+    /**
+     * @return the histogram of a phase of one route, null if the route was not hit yet
+     */
+    public LatencyHistogram getHistogram(Method method, String route, String phase)
+    {
+        PhaseHistograms histograms = routes[method.ordinal()].get(route);
+        return histograms != null ? histograms.phases[phaseIndex(phase)] : null;
+    }
+
+    private static int phaseIndex(String phase)
+    {
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            if (PHASES[i].equals(phase))
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown phase: " + phase);
+    }
+
+    public long getResponseCount(HTTPStatus status)
+    {
+        return statuses[status.ordinal()].sum();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Appends all metrics in the Prometheus text exposition format, version 0.0.4.
+     */
+    public void writePrometheus(StringBuilder out, Gauges gauges)
+    {
+        out.append("# HELP myhttpserver_request_duration_seconds Time spent per request phase.\n");
+        out.append("# TYPE myhttpserver_request_duration_seconds summary\n");
+        for (Method method : Method.values())
+        {
+            writeSummaries(out, "myhttpserver_request_duration_seconds", "method=\"" + method + "\"",
+                    methods[method.ordinal()]);
+        }
+        out.append("# HELP myhttpserver_route_duration_seconds Time spent per request phase and route.\n");
+        out.append("# TYPE myhttpserver_route_duration_seconds summary\n");
+        for (Method method : Method.values())
+        {
+            for (Map.Entry<String, PhaseHistograms> route : routes[method.ordinal()].entrySet())
+            {
+                writeSummaries(out, "myhttpserver_route_duration_seconds", "method=\"" + method + "\",route=\""
+                        + escape(route.getKey()) + "\"", route.getValue());
+            }
+        }
+
+        out.append("# HELP myhttpserver_responses_total Responses sent per status code.\n");
+        out.append("# TYPE myhttpserver_responses_total counter\n");
+        for (HTTPStatus status : HTTPStatus.values())
+        {
+            long count = statuses[status.ordinal()].sum();
+            if (count > 0)
+            {
+                out.append("myhttpserver_responses_total{code=\"").append(status.getRequestStatus()).append("\"} ")
+                        .append(count).append('\n');
+            }
+        }
+        writeSample(out, "myhttpserver_received_bytes_total", "counter", "Request bytes read, heads and bodies.",
+                bytesReceived.sum());
+        writeSample(out, "myhttpserver_sent_bytes_total", "counter", "Response bytes written, heads and bodies.",
+                bytesSent.sum());
+
+        if (gauges != null)
+        {
+            writeSample(out, "myhttpserver_queued_tasks", "gauge", "Requests waiting for an executor thread.",
+                    gauges.getQueuedCount());
+            writeSample(out, "myhttpserver_active_tasks", "gauge", "Requests being served by executor threads.",
+                    gauges.getActiveCount());
+            writeSample(out, "myhttpserver_open_connections", "gauge", "Open client connections.",
+                    gauges.getOpenConnections());
+            writeSample(out, "myhttpserver_shed_total", "counter", "Requests answered with 503 under overload.",
+                    gauges.getShedCount());
+        }
+
+        out.append("# HELP myhttpserver_buffer_pool_idle Pooled buffers waiting to be reused.\n");
+        out.append("# TYPE myhttpserver_buffer_pool_idle gauge\n");
+        writePool(out, "myhttpserver_buffer_pool_idle", BufferPool.HEADER_BUFFERS.getIdleCount(),
+                BufferPool.IO_BUFFERS.getIdleCount());
+        out.append("# HELP myhttpserver_buffer_pool_misses_total Buffer acquisitions that allocated.\n");
+        out.append("# TYPE myhttpserver_buffer_pool_misses_total counter\n");
+        writePool(out, "myhttpserver_buffer_pool_misses_total", BufferPool.HEADER_BUFFERS.getMisses(),
+                BufferPool.IO_BUFFERS.getMisses());
+    }
+
+    private static void writeSummaries(StringBuilder out, String name, String labels, PhaseHistograms histograms)
+    {
+        for (int phase = 0; phase < PHASES.length; phase++)
+        {
+            LatencyHistogram histogram = histograms.phases[phase];
+            if (histogram.getCount() == 0)
+            {
+                continue;
+            }
+            writeSummary(out, name, labels + ",phase=\"" + PHASES[phase] + "\"", histogram);
+        }
+    }
+
+    /**
+     * Appends the quantiles, sum and count of one histogram, in seconds.
+     */
+    static void writeSummary(StringBuilder out, String name, String labels, LatencyHistogram histogram)
+    {
+        for (double quantile : QUANTILES)
+        {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    static void writeSample(StringBuilder out, String name, String type, String help, long value)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writePool(StringBuilder out, String name, long header, long io)
+    {
+        out.append(name).append("{pool=\"header\"} ").append(header).append('\n');
+        out.append(name).append("{pool=\"io\"} ").append(io).append('\n');
+    }
+
+    private static double seconds(long nanos)
+    {
+        return nanos / 1e9;
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class PhaseHistograms
+    {
+        final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+        PhaseHistograms()
+        {
+            for (int i = 0; i < phases.length; i++)
+            {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
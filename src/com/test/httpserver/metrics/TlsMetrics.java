@@ -0,0 +1,108 @@
+package com.test.httpserver.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handshake metrics of a TLS context: completed handshakes split into full and resumed ones, with
+ * their durations, and handshakes that failed. A resumed handshake skips the key exchange and the
+ * certificate, so the share of resumed ones shows how well the session cache and tickets work.
+ * Durations run from the first bytes of the client hello to the handshake's last message and
+ * include the round trips to the client.
+ */
+public class TlsMetrics
+{
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram fullDuration = new LatencyHistogram();
+    private final LatencyHistogram resumedDuration = new LatencyHistogram();
+
+    public void recordHandshake(boolean resumedSession, long nanos)
+    {
+        if (resumedSession)
+        {
+            resumed.increment();
+            resumedDuration.record(nanos);
+        }
+        else
+        {
+            full.increment();
+            fullDuration.record(nanos);
+        }
+    }
+
+    /**
+     * Records a handshake that ended with an error, e.g. because the client offered no
+     * protocol or cipher suite in common or did not trust the certificate.
+     */
+    public void recordFailure()
+    {
+        failed.increment();
+    }
+
+    public long getFullHandshakeCount()
+    {
+        return full.sum();
+    }
+
+    public long getResumedHandshakeCount()
+    {
+        return resumed.sum();
+    }
+
+    public long getFailedHandshakeCount()
+    {
+        return failed.sum();
+    }
+
+    /**
+     * @return the share of completed handshakes that resumed a session, 0 before the first one
+     */
+    public double getResumptionRate()
+    {
+        long resumedCount = resumed.sum();
+        long total = resumedCount + full.sum();
+        return total > 0 ? (double) resumedCount / total : 0;
+    }
+
+    /**
+     * @return the durations of either the resumed or the full handshakes
+     */
+    public LatencyHistogram getHistogram(boolean resumedSession)
+    {
+        return resumedSession ? resumedDuration : fullDuration;
+    }
+
+    /**
+     * Appends the metrics in the Prometheus text exposition format, like
+     * {@link ServerMetrics#writePrometheus(StringBuilder, ServerMetrics.Gauges)}.
+     */
+    public void writePrometheus(StringBuilder out)
+    {
+        out.append("# HELP myhttpserver_tls_handshakes_total Completed TLS handshakes, full or resumed.\n");
+        out.append("# TYPE myhttpserver_tls_handshakes_total counter\n");
+        out.append("myhttpserver_tls_handshakes_total{type=\"full\"} ").append(full.sum()).append('\n');
+        out.append("myhttpserver_tls_handshakes_total{type=\"resumed\"} ").append(resumed.sum()).append('\n');
+        ServerMetrics.writeSample(out, "myhttpserver_tls_handshake_failures_total", "counter",
+                "TLS handshakes that failed.", failed.sum());
+        out.append("# HELP myhttpserver_tls_handshake_duration_seconds Time from client hello to completed handshake.\n");
+        out.append("# TYPE myhttpserver_tls_handshake_duration_seconds summary\n");
+        if (fullDuration.getCount() > 0)
+        {
+            ServerMetrics.writeSummary(out, "myhttpserver_tls_handshake_duration_seconds", "type=\"full\"",
+                    fullDuration);
+        }
+        if (resumedDuration.getCount() > 0)
+        {
+            ServerMetrics.writeSummary(out, "myhttpserver_tls_handshake_duration_seconds", "type=\"resumed\"",
+                    resumedDuration);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TlsMetrics[full=" + getFullHandshakeCount() + ", resumed=" + getResumedHandshakeCount() + ", failed="
+                + getFailedHandshakeCount() + ", resumptionRate=" + String.format("%.3f", getResumptionRate()) + "]";
+    }
+}
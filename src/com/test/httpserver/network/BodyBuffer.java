@@ -0,0 +1,153 @@
+package com.test.httpserver.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+import com.test.httpserver.server.MyHTTPServer.TempFileManager;
+import com.test.httpserver.server.MyHTTPServer.TempFileManager.TempFile;
+
+/**
+ * Holds a request body. Bodies up to the memory threshold stay in a heap array; the first write
+ * past it moves the bytes to a temp file of the request's {@link TempFileManager}, which deletes
+ * it once the response is sent.
+ */
+public class BodyBuffer
+{
+    private final TempFileManager tmpFileManager;
+    private final int memoryThreshold;
+    private byte[] buf;
+    private long size;
+    private TempFile tempFile;
+    private OutputStream fileStream;
+
+    /**
+     * @param expectedSize
+     *            the announced body size, used to size the heap array; -1 if unknown
+     */
+    public BodyBuffer(TempFileManager tmpFileManager, int memoryThreshold, long expectedSize)
+    {
+        this.tmpFileManager = tmpFileManager;
+        this.memoryThreshold = memoryThreshold;
+        int initial = expectedSize >= 0 ? (int) Math.min(expectedSize, memoryThreshold) : Math.min(512, memoryThreshold);
+        this.buf = new byte[initial];
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (fileStream == null && size + len > memoryThreshold)
+        {
+            spill();
+        }
+        if (fileStream != null)
+        {
+            fileStream.write(b, off, len);
+        }
+        else
+        {
+            if (size + len > buf.length)
+            {
+                byte[] larger = new byte[(int) Math.min(memoryThreshold, Math.max(buf.length * 2, size + len))];
+                System.arraycopy(buf, 0, larger, 0, (int) size);
+                buf = larger;
+            }
+            System.arraycopy(b, off, buf, (int) size, len);
+        }
+        size += len;
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    public boolean isInMemory()
+    {
+        return fileStream == null;
+    }
+
+    /**
+     * @return the temp file holding the body, or null while it is in memory
+     */
+    public String getFileName()
+    {
+        return tempFile != null ? tempFile.getName() : null;
+    }
+
+    /**
+     * Reads the body from the start; every call returns a new stream.
+     */
+    public InputStream openStream() throws IOException
+    {
+        if (isInMemory())
+        {
+            return new ByteArrayInputStream(buf, 0, (int) size);
+        }
+        fileStream.flush();
+        return new FileInputStream(tempFile.getName());
+    }
+
+    /**
+     * The body as a buffer: a view of the heap array, or a read only mapping of the temp file.
+     */
+    public ByteBuffer asByteBuffer() throws IOException
+    {
+        if (isInMemory())
+        {
+            return ByteBuffer.wrap(buf, 0, (int) size).slice();
+        }
+        fileStream.flush();
+        FileChannel channel = FileChannel.open(Paths.get(tempFile.getName()), StandardOpenOption.READ);
+        try
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            HTTPServerUtils.safeClose(channel);
+        }
+    }
+
+    /**
+     * The body as a byte array; copies it if the body spilled to disk.
+     */
+    public byte[] toByteArray() throws IOException
+    {
+        if (isInMemory() && size == buf.length)
+        {
+            return buf;
+        }
+        byte[] bytes = new byte[(int) size];
+        asByteBuffer().get(bytes);
+        return bytes;
+    }
+
+    private void spill() throws IOException
+    {
+        try
+        {
+            tempFile = tmpFileManager.createTempFile();
+            fileStream = tempFile.open();
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to create temp file for request body", e);
+        }
+        fileStream.write(buf, 0, (int) size);
+        buf = null;
+    }
+}
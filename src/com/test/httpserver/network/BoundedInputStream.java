@@ -0,0 +1,101 @@
+package com.test.httpserver.network;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a request body of known length from the connection: never past its end, so the next
+ * request stays intact, and closing it leaves the connection open. A connection that ends before
+ * the announced length raises an {@link EOFException}.
+ */
+public class BoundedInputStream extends FilterInputStream
+{
+    private long remaining;
+
+    public BoundedInputStream(InputStream in, long length)
+    {
+        super(in);
+        this.remaining = length;
+    }
+
+    /**
+     * @return number of body bytes not read yet
+     */
+    public long getRemaining()
+    {
+        return remaining;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (remaining <= 0)
+        {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0)
+        {
+            throw truncated();
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (remaining <= 0)
+        {
+            return -1;
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0)
+        {
+            throw truncated();
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int) Math.min(remaining, in.available());
+    }
+
+    /**
+     * Leaves the connection open; unread body bytes stay unread.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    private EOFException truncated()
+    {
+        long missing = remaining;
+        remaining = 0;
+        return new EOFException("Request body ended " + missing + " bytes early");
+    }
+}
@@ -0,0 +1,109 @@
+package com.test.httpserver.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of equally sized byte buffers shared by all connections. Acquiring and releasing a buffer
+ * does not allocate, so a request served from pooled buffers produces next to no garbage. When
+ * the pool is empty a new buffer is allocated (a miss); buffers released into a full pool are
+ * left to the garbage collector.
+ */
+public final class BufferPool
+{
+    /**
+     * Request header buffers, sized like the header limit.
+     */
+    public static final BufferPool HEADER_BUFFERS = new BufferPool(8192, 1024);
+    /**
+     * Buffers for copying bodies between streams.
+     */
+    public static final BufferPool IO_BUFFERS = new BufferPool(16 * 1024, 256);
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> idle;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public BufferPool(int bufferSize, int maxIdle)
+    {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<byte[]>(maxIdle);
+    }
+
+    /**
+     * @return a buffer of {@link #getBufferSize()} bytes; its content is undefined
+     */
+    public byte[] acquire()
+    {
+        byte[] buf = idle.poll();
+        if (buf != null)
+        {
+            hits.increment();
+            return buf;
+        }
+        misses.increment();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of another size and null are ignored, so callers can
+     * release whatever they ended up holding.
+     */
+    public void release(byte[] buf)
+    {
+        if (buf == null || buf.length != bufferSize)
+        {
+            return;
+        }
+        if (!idle.offer(buf))
+        {
+            dropped.increment();
+        }
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers waiting in the pool
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * @return number of acquisitions served from the pool
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of acquisitions that had to allocate
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of released buffers discarded because the pool was full
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPool[size=" + bufferSize + ", idle=" + getIdleCount() + ", hits=" + getHits() + ", misses="
+                + getMisses() + ", dropped=" + getDropped() + "]";
+    }
+}
@@ -0,0 +1,344 @@
+package com.test.httpserver.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.util.HTTPStatus;
+
+/**
+ * Decodes a request body sent with "Transfer-Encoding: chunked" while it arrives: a read returns
+ * as soon as some chunk data is available. Chunk extensions are ignored, trailer fields are kept
+ * for {@link #getTrailers()}. Bytes read past the end of the body are pushed back into a
+ * {@link ConnectionInputStream} for the next request.
+ * <p>
+ * Malformed framing and exceeded limits raise an IOException whose cause is a
+ * {@link ResponseException} with the status to answer.
+ */
+public class ChunkedInputStream extends InputStream
+{
+    /**
+     * Longest chunk size line, extensions included, and longest trailer line.
+     */
+    public static final int MAX_LINE_LENGTH = 4096;
+    /**
+     * Limit for all trailer fields together.
+     */
+    public static final int MAX_TRAILER_SIZE = 8192;
+
+    private final InputStream in;
+    private final long maxBodySize;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private long chunkRemaining;
+    private boolean chunkEndPending;
+    private long total;
+    private boolean eof;
+    private Map<String, String> trailers = Collections.emptyMap();
+    private final byte[] single = new byte[1];
+    private IOException failure;
+
+    /**
+     * @param maxBodySize
+     *            decoded bytes allowed in total; more are rejected with PAYLOAD_TOO_LARGE
+     */
+    public ChunkedInputStream(InputStream in, long maxBodySize)
+    {
+        this.in = in;
+        this.maxBodySize = maxBodySize;
+        this.buf = BufferPool.HEADER_BUFFERS.acquire();
+    }
+
+    /**
+     * @return trailer fields keyed by lower case name; empty until the body has been read to its
+     *         end
+     */
+    public Map<String, String> getTrailers()
+    {
+        return trailers;
+    }
+
+    /**
+     * @return whether the last chunk and the trailers have been read
+     */
+    public boolean isFinished()
+    {
+        return eof;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (eof)
+        {
+            return -1;
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (failure != null)
+        {
+            // the framing is lost, nothing after the error can be trusted
+            throw failure;
+        }
+        if (chunkRemaining == 0)
+        {
+            try
+            {
+                nextChunk();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+            if (eof)
+            {
+                return -1;
+            }
+        }
+        int n;
+        if (pos < limit)
+        {
+            n = (int) Math.min(Math.min(len, chunkRemaining), limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+        }
+        else
+        {
+            // nothing buffered: read straight into the caller's array, never past the chunk
+            n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0)
+            {
+                throw truncated();
+            }
+        }
+        chunkRemaining -= n;
+        // the CRLF after the chunk data is read with the next chunk size, a handler gets the
+        // data without waiting for it
+        chunkEndPending = chunkRemaining == 0;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        if (eof || chunkRemaining == 0)
+        {
+            return 0;
+        }
+        return (int) Math.min(chunkRemaining, (limit - pos) + (pos < limit ? 0 : in.available()));
+    }
+
+    /**
+     * Leaves the connection open; unread chunks stay unread.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    private void nextChunk() throws IOException
+    {
+        if (chunkEndPending)
+        {
+            int end = readLine();
+            if (end != pos)
+            {
+                throw error(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Chunk data not followed by CRLF.");
+            }
+            pos = end + 2;
+            chunkEndPending = false;
+        }
+        int end = readLine();
+        long size = parseChunkSize(buf, pos, end);
+        if (size < 0)
+        {
+            throw error(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Invalid chunk size.");
+        }
+        pos = end + 2;
+        if (size > maxBodySize - total)
+        {
+            throw error(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request body exceeds " + maxBodySize
+                    + " bytes.");
+        }
+        total += size;
+        chunkRemaining = size;
+        if (size == 0)
+        {
+            readTrailers();
+            finish();
+        }
+    }
+
+    private void readTrailers() throws IOException
+    {
+        Map<String, String> fields = null;
+        int size = 0;
+        while (true)
+        {
+            int end = readLine();
+            size += end + 2 - pos;
+            if (size > MAX_TRAILER_SIZE)
+            {
+                throw error(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Trailer section too large.");
+            }
+            if (end == pos)
+            {
+                pos = end + 2;
+                break;
+            }
+            String line = new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1);
+            pos = end + 2;
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+            {
+                throw error(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Malformed trailer field.");
+            }
+            if (fields == null)
+            {
+                fields = new HashMap<String, String>();
+            }
+            fields.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        if (fields != null)
+        {
+            trailers = Collections.unmodifiableMap(fields);
+        }
+    }
+
+    /**
+     * Hands what was read past the body back to the connection and returns the buffer.
+     */
+    private void finish()
+    {
+        eof = true;
+        if (pos < limit && in instanceof ConnectionInputStream)
+        {
+            ((ConnectionInputStream) in).unread(buf, pos, limit - pos);
+        }
+        BufferPool.HEADER_BUFFERS.release(buf);
+        buf = null;
+        pos = 0;
+        limit = 0;
+    }
+
+    /**
+     * Makes a complete line available from <code>pos</code>.
+     *
+     * @return offset of the CR ending the line
+     */
+    private int readLine() throws IOException
+    {
+        int scan = pos;
+        while (true)
+        {
+            while (scan < limit && buf[scan] != '\n')
+            {
+                scan++;
+            }
+            if (scan < limit)
+            {
+                if (scan == pos || buf[scan - 1] != '\r')
+                {
+                    throw error(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Chunk line not terminated by CRLF.");
+                }
+                return scan - 1;
+            }
+            if (limit - pos >= MAX_LINE_LENGTH)
+            {
+                throw error(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Chunk line too long.");
+            }
+            // compact and read more
+            if (pos > 0)
+            {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                scan -= pos;
+                limit -= pos;
+                pos = 0;
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0)
+            {
+                throw truncated();
+            }
+            limit += read;
+        }
+    }
+
+    /**
+     * Parses the hex size at the start of a chunk size line; extensions after ';' are ignored.
+     *
+     * @return the chunk size, -1 if the line is malformed
+     */
+    public static long parseChunkSize(byte[] line, int start, int end)
+    {
+        long size = 0;
+        int i = start;
+        while (i < end)
+        {
+            int b = line[i];
+            int digit;
+            if (b >= '0' && b <= '9')
+            {
+                digit = b - '0';
+            }
+            else if (b >= 'a' && b <= 'f')
+            {
+                digit = b - 'a' + 10;
+            }
+            else if (b >= 'A' && b <= 'F')
+            {
+                digit = b - 'A' + 10;
+            }
+            else
+            {
+                break;
+            }
+            if (i - start == 15)
+            {
+                // would overflow a long
+                return -1;
+            }
+            size = (size << 4) | digit;
+            i++;
+        }
+        if (i == start)
+        {
+            return -1;
+        }
+        while (i < end && (line[i] == ' ' || line[i] == '\t'))
+        {
+            i++;
+        }
+        if (i < end && line[i] != ';')
+        {
+            return -1;
+        }
+        return size;
+    }
+
+    private static IOException truncated()
+    {
+        return new EOFException("Chunked request body ended before its last chunk");
+    }
+
+    private static IOException error(HTTPStatus status, String message)
+    {
+        return new IOException(message, new ResponseException(status, message));
+    }
+}
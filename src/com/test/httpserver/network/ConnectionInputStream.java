@@ -0,0 +1,89 @@
+package com.test.httpserver.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream of a persistent connection. Bytes read past the end of one request (the start of a
+ * pipelined request) are pushed back with {@link #unread(byte[], int, int)} and handed to the next
+ * request. Unlike {@link java.io.PushbackInputStream} a read never blocks on the socket while
+ * pushed back bytes are available.
+ */
+public class ConnectionInputStream extends FilterInputStream
+{
+    private byte[] pushback = new byte[0];
+    private int pos;
+    private int limit;
+
+    public ConnectionInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    /**
+     * Pushes back the given bytes so that they are read before any remaining pushed back bytes.
+     */
+    public void unread(byte[] b, int off, int len)
+    {
+        int remaining = limit - pos;
+        // the array is kept for the life of the connection and only grows
+        byte[] merged = pushback;
+        if (len + remaining > merged.length)
+        {
+            merged = new byte[Math.max(len + remaining, 2 * merged.length)];
+        }
+        System.arraycopy(pushback, pos, merged, len, remaining);
+        System.arraycopy(b, off, merged, 0, len);
+        pushback = merged;
+        pos = 0;
+        limit = len + remaining;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (pos < limit)
+        {
+            return pushback[pos++] & 0xff;
+        }
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (pos < limit)
+        {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(pushback, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        if (pos < limit)
+        {
+            int skipped = (int) Math.min(n, limit - pos);
+            pos += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package com.test.httpserver.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of {@link Deflater}s of one level and format. A Deflater holds a large native buffer and
+ * its setup costs more than compressing a small body, so they are reset and handed out again
+ * instead of being created per response. Deflaters released into a full pool are ended.
+ */
+public final class DeflaterPool
+{
+    private final int level;
+    private final boolean nowrap;
+    private final ArrayBlockingQueue<Deflater> idle;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param nowrap
+     *            true for raw deflate data as carried by gzip, false for the zlib format of the
+     *            "deflate" content coding
+     */
+    public DeflaterPool(int level, boolean nowrap, int maxIdle)
+    {
+        this.level = level;
+        this.nowrap = nowrap;
+        this.idle = new ArrayBlockingQueue<Deflater>(maxIdle);
+    }
+
+    /**
+     * @return a Deflater ready for new input
+     */
+    public Deflater acquire()
+    {
+        Deflater deflater = idle.poll();
+        if (deflater != null)
+        {
+            hits.increment();
+            return deflater;
+        }
+        misses.increment();
+        return new Deflater(level, nowrap);
+    }
+
+    /**
+     * Resets the Deflater, also one left mid-stream by a failed write, and returns it to the pool.
+     */
+    public void release(Deflater deflater)
+    {
+        if (deflater == null)
+        {
+            return;
+        }
+        deflater.reset();
+        if (!idle.offer(deflater))
+        {
+            deflater.end();
+        }
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @return number of Deflaters waiting in the pool
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * @return number of acquisitions served from the pool
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of acquisitions that had to create a Deflater
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeflaterPool[level=" + level + ", nowrap=" + nowrap + ", idle=" + getIdleCount() + ", hits="
+                + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
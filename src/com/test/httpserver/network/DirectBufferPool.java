@@ -0,0 +1,103 @@
+package com.test.httpserver.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of equally sized direct buffers, the off-heap counterpart of {@link BufferPool} for
+ * buffers handed to channels: the JDK copies heap buffers into a direct one of its own for every
+ * socket read and write, direct ones are used as they are. Allocating a direct buffer is
+ * expensive and its memory is only freed with a full GC, which makes pooling them worth more
+ * than pooling arrays.
+ */
+public final class DirectBufferPool
+{
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> idle;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public DirectBufferPool(int bufferSize, int maxIdle)
+    {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<ByteBuffer>(maxIdle);
+    }
+
+    /**
+     * @return a cleared direct buffer with a capacity of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buf = idle.poll();
+        if (buf != null)
+        {
+            hits.increment();
+            return buf;
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. Heap buffers, buffers of another size and null are ignored,
+     * so callers can release whatever they ended up holding.
+     */
+    public void release(ByteBuffer buf)
+    {
+        if (buf == null || !buf.isDirect() || buf.capacity() != bufferSize)
+        {
+            return;
+        }
+        buf.clear();
+        if (!idle.offer(buf))
+        {
+            dropped.increment();
+        }
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers waiting in the pool
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * @return number of acquisitions served from the pool
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of acquisitions that had to allocate
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of released buffers discarded because the pool was full
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DirectBufferPool[size=" + bufferSize + ", idle=" + getIdleCount() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", dropped=" + getDropped() + "]";
+    }
+}
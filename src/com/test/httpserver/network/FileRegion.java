@@ -0,0 +1,156 @@
+package com.test.httpserver.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+
+/**
+ * Part of a response body: optional prefix bytes followed by a slice of a file. The file slice is
+ * sent with {@link FileChannel#transferTo} so its bytes never pass through the heap. The region
+ * owns its channel and closes it once sent.
+ * <p>
+ * Instead of a file the slice may be a buffer holding the file content, e.g. a view of a direct
+ * or mapped buffer shared by all requests for the file; it is written to the target as it is.
+ */
+public class FileRegion implements Closeable
+{
+    private final ByteBuffer prefix;
+    private final FileChannel channel;
+    private final ByteBuffer content;
+    private long position;
+    private final long end;
+
+    /**
+     * @param prefix
+     *            bytes sent before the file slice, e.g. a multipart header; may be null
+     * @param channel
+     *            the file, may be null for a region made of the prefix only
+     */
+    public FileRegion(byte[] prefix, FileChannel channel, long position, long count)
+    {
+        this.prefix = ByteBuffer.wrap(prefix != null ? prefix : new byte[0]);
+        this.channel = channel;
+        this.content = null;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    /**
+     * @param content
+     *            sent from its position to its limit; a view of its own, e.g. from
+     *            {@link ByteBuffer#duplicate()}, since sending moves its position
+     */
+    public FileRegion(byte[] prefix, ByteBuffer content)
+    {
+        this.prefix = ByteBuffer.wrap(prefix != null ? prefix : new byte[0]);
+        this.channel = null;
+        this.content = content;
+        this.position = 0;
+        this.end = 0;
+    }
+
+    /**
+     * A region without file content.
+     */
+    public FileRegion(byte[] bytes)
+    {
+        this(bytes, null, 0, 0);
+    }
+
+    /**
+     * A region made of part of an array, e.g. a pooled buffer a response was encoded into.
+     */
+    public FileRegion(byte[] bytes, int offset, int length)
+    {
+        this.prefix = ByteBuffer.wrap(bytes, offset, length);
+        this.channel = null;
+        this.content = null;
+        this.position = 0;
+        this.end = 0;
+    }
+
+    /**
+     * @return number of bytes this region still has to send
+     */
+    public long remaining()
+    {
+        return prefix.remaining() + (end - position) + (content != null ? content.remaining() : 0);
+    }
+
+    /**
+     * Sends as much as the target accepts. On a blocking channel this returns only when done, on
+     * a non-blocking one it returns once the socket buffer is full.
+     *
+     * @return true once the whole region has been sent
+     */
+    public boolean transferTo(WritableByteChannel target) throws IOException
+    {
+        while (prefix.hasRemaining())
+        {
+            if (target.write(prefix) == 0)
+            {
+                return false;
+            }
+        }
+        while (content != null && content.hasRemaining())
+        {
+            if (target.write(content) == 0)
+            {
+                return false;
+            }
+        }
+        while (position < end)
+        {
+            long sent = channel.transferTo(position, end - position, target);
+            if (sent <= 0)
+            {
+                if (position >= channel.size())
+                {
+                    throw new IOException("File shrank while being sent");
+                }
+                return false;
+            }
+            position += sent;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the region through the given buffer, for targets without a channel.
+     */
+    public void writeTo(OutputStream outputStream, byte[] buff) throws IOException
+    {
+        outputStream.write(prefix.array(), prefix.position(), prefix.remaining());
+        prefix.position(prefix.limit());
+        while (content != null && content.hasRemaining())
+        {
+            int n = Math.min(buff.length, content.remaining());
+            content.get(buff, 0, n);
+            outputStream.write(buff, 0, n);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(buff);
+        while (position < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buff.length, end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+            {
+                throw new IOException("File shrank while being sent");
+            }
+            outputStream.write(buff, 0, read);
+            position += read;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        HTTPServerUtils.safeClose(channel);
+    }
+}
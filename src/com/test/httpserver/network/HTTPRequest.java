@@ -2,22 +2,18 @@ package com.test.httpserver.network;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.RandomAccessFile;
 import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -25,22 +21,47 @@ import java.util.StringTokenizer;
 import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
 import com.test.httpserver.server.MyHTTPServer.ResponseException;
 import com.test.httpserver.server.MyHTTPServer.TempFileManager;
-import com.test.httpserver.server.MyHTTPServer.TempFileManager.TempFile;
 import com.test.httpserver.util.HTTPStatus;
 import com.test.httpserver.util.Method;
 
 public class HTTPRequest
 {
+    /**
+     * Bodies up to this many bytes are kept in memory, larger ones go to a temp file.
+     */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
     Method method;
     Map<String, String> parms;
     Map<String, String> headers;
     String uri;
+    String protocolVersion;
     String mimeType;
-    byte[] payload;
     private int splitbyte;
     private int rlen;
     private InputStream inputStream;
     private TempFileManager tmpFileManager;
+    private BodyBuffer body;
+    private InputStream bodyStream;
+    private long contentLength;
+    private long maxBodySize = Long.MAX_VALUE;
+    private RequestParser parser;
+    private byte[] headerBuffer;
+    private final Map<String, String> files = new HashMap<String, String>();
+    private int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    private MultipartParser.PartSink partSink;
+    private String[] pathParamNames;
+    private String route;
+    private long receivedNanos;
+    private int[] pathParamOffsets = new int[8];
+    /**
+     * Request target of a head set with {@link #setHead}, null for heads read by the parser
+     */
+    private String target;
+    /**
+     * Body length given with {@link #setHead}
+     */
+    private long headContentLength;
 
     public HTTPRequest(InputStream inputStream, TempFileManager tmpFileManager)
     {
@@ -48,8 +69,44 @@ public class HTTPRequest
         this.tmpFileManager = tmpFileManager;
     }
 
+    /**
+     * Supplies a head decoded elsewhere, e.g. from the header block of an HTTP/2 stream; the
+     * stream given to the constructor then carries only the body, and {@link #execute()} reads
+     * nothing but that.
+     *
+     * @param method
+     *            null if the method is not supported, answered with BAD_REQUEST
+     * @param headers
+     *            keyed by lower case name
+     * @param contentLength
+     *            length of the body, 0 without one and -1 if it is only known once the stream
+     *            ends
+     */
+    public void setHead(Method method, String target, Map<String, String> headers, long contentLength)
+    {
+        this.method = method;
+        this.target = target;
+        this.headers = headers;
+        this.headContentLength = contentLength;
+        this.protocolVersion = "HTTP/2.0";
+        this.receivedNanos = System.nanoTime();
+    }
+
     public HTTPRequest execute() throws IOException, ResponseException
     {
+        if (target != null)
+        {
+            if (method == null)
+            {
+                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+            }
+            if (!RequestParser.isPercentEncoded(target))
+            {
+                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Malformed percent encoding in URI.");
+            }
+            parseBody(files);
+            return this;
+        }
         final int BUFSIZE = 8192;
         try
         {
@@ -57,7 +114,18 @@ public class HTTPRequest
             // The full header should fit in here.
             // Apache's default header limit is 8KB.
             // Do NOT assume that a single read will get the entire header at once!
-            byte[] buf = new byte[BUFSIZE];
+            // The header buffer stays with this request until release(): header values are
+            // read from it lazily.
+            if (headerBuffer == null)
+            {
+                headerBuffer = BufferPool.HEADER_BUFFERS.acquire();
+            }
+            byte[] buf = headerBuffer;
+            if (parser == null)
+            {
+                parser = new RequestParser();
+            }
+            parser.reset();
             splitbyte = 0;
             rlen = 0;
             {
@@ -77,48 +145,42 @@ public class HTTPRequest
                     HTTPServerUtils.safeClose(inputStream);
                     throw new SocketException("MyHttpServer Shutdown");
                 }
+                // waiting for the request to arrive does not count as parsing it
+                receivedNanos = System.nanoTime();
+                // the parser picks up where the previous read stopped
                 while (read > 0)
                 {
                     rlen += read;
-                    splitbyte = findHeaderEnd(buf, rlen);
+                    splitbyte = parser.parse(buf, rlen);
                     if (splitbyte > 0)
                         break;
                     read = inputStream.read(buf, rlen, BUFSIZE - rlen);
                 }
+                if (!parser.isComplete())
+                {
+                    throw new ResponseException(HTTPStatus.BAD_REQUEST, rlen == BUFSIZE ? "BAD REQUEST: Header too large."
+                            : "BAD REQUEST: Incomplete header.");
+                }
             }
 
-            if (splitbyte < rlen)
+            if (splitbyte < rlen && inputStream instanceof ConnectionInputStream)
+            {
+                // whatever follows the header belongs to the body or the next pipelined request
+                ((ConnectionInputStream) inputStream).unread(buf, splitbyte, rlen - splitbyte);
+            }
+            else if (splitbyte < rlen)
             {
                 ByteArrayInputStream splitInputStream = new ByteArrayInputStream(buf, splitbyte,rlen - splitbyte);
                 SequenceInputStream sequenceInputStream = new SequenceInputStream(splitInputStream,inputStream);
                 inputStream = sequenceInputStream;
             }
 
-            this.parms = new HashMap<String, String>();
-            if (null == this.headers)
-            {
-                this.headers = new HashMap<String, String>();
-            }
-
-            // Create a BufferedReader for parsing the header.
-            BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
+            // Header values, the URI and its parameters are only turned into Strings when
+            // asked for
+            this.headers = parser.getHeaders();
+            this.method = parser.getMethod();
+            this.protocolVersion = parser.getVersion();
 
-            // Decode the header into parms and header java properties
-            Map<String, String> pre = new HashMap<String, String>();
-            decodeHeader(hin, pre, this.parms, this.headers);
-
-            this.method = Method.lookup(pre.get("method"));
-            if (this.method == null)
-            {
-                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Syntax error.");
-            }
-
-            this.uri = pre.get("uri");
-            
-            System.out.println("Processing " + method + " request for uri " + uri);
-            
-            Map<String, String> files = new HashMap<String, String>();
-            
             parseBody(files);
 
         }
@@ -145,159 +207,342 @@ public class HTTPRequest
 
     private void parseBody(Map<String, String> files) throws IOException, ResponseException
     {
-        RandomAccessFile randomAccessFile = null;
-        BufferedReader in = null;
-        try
+        // Without Content-Length or Transfer-Encoding a request has no body; anything after
+        // the header belongs to the next request on the connection.
+        String transferEncoding = headers.get("transfer-encoding");
+        long size = 0;
+        boolean chunked = false;
+        if (target != null)
+        {
+            // framed by the stream; a Content-Length is checked against it there
+            size = headContentLength;
+            if (size > maxBodySize)
+            {
+                throw new ResponseException(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request body exceeds "
+                        + maxBodySize + " bytes.");
+            }
+        }
+        else if (transferEncoding != null)
         {
-            randomAccessFile = getTmpBucket();
-
-            long size;
             if (headers.containsKey("content-length"))
             {
-                size = Integer.parseInt(headers.get("content-length"));
+                // the two disagreeing is how requests get smuggled past proxies
+                throw new ResponseException(HTTPStatus.BAD_REQUEST,
+                        "BAD REQUEST: Both Transfer-Encoding and Content-Length present.");
             }
-            else if (splitbyte < rlen)
+            if (!"chunked".equalsIgnoreCase(transferEncoding.trim()))
             {
-                size = rlen - splitbyte;
+                throw new ResponseException(HTTPStatus.NOT_IMPLEMENTED, "NOT IMPLEMENTED: Transfer-Encoding "
+                        + transferEncoding + " is not supported.");
             }
-            else
+            chunked = true;
+            size = -1;
+        }
+        else if (headers.containsKey("content-length"))
+        {
+            // digits only, as the parser already checked along with repeated headers; never
+            // framed as anything else, the way a proxy in front would frame it
+            size = RequestParser.parseContentLength(headers.get("content-length"));
+            if (size < 0)
             {
-                size = 0;
+                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
             }
-
-            // Now read all the body and write it to f
-            byte[] buf = new byte[512];
-            while (rlen >= 0 && size > 0)
+            if (size > maxBodySize)
             {
-                rlen = inputStream.read(buf, 0, 512);
-                size -= rlen;
-                if (rlen > 0)
-                {
-                    randomAccessFile.write(buf, 0, rlen);
-                }
+                throw new ResponseException(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request body exceeds "
+                        + maxBodySize + " bytes.");
             }
+        }
 
-            // Get the raw body as a byte []
-            ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,randomAccessFile.length());
-            randomAccessFile.seek(0);
-            
-            // Create a BufferedReader for easily reading it as string.
-            InputStream bin = new FileInputStream(randomAccessFile.getFD());
-            in = new BufferedReader(new InputStreamReader(bin));
-
-            
-            // If the method is POST, there may be parameters
-            // in data section, too, read it:
-            if (Method.POST.equals(method))
-            {
-                String contentType = "";
-                String contentTypeHeader = headers.get("content-type");
+        if (size == 0)
+        {
+            // nothing to read, store or decode
+            return;
+        }
+        contentLength = size;
+        InputStream stream;
+        if (chunked)
+        {
+            stream = new ChunkedInputStream(inputStream, maxBodySize);
+            size = Long.MAX_VALUE;
+        }
+        else if (size < 0)
+        {
+            // only a head set with setHead: the stream ends with the body and enforces the size
+            // limit
+            stream = inputStream;
+            size = Long.MAX_VALUE;
+        }
+        else
+        {
+            stream = new BoundedInputStream(inputStream, size);
+        }
 
-                StringTokenizer st = null;
-                if (contentTypeHeader != null)
-                {
-                    st = new StringTokenizer(contentTypeHeader, ",; ");
-                    if (st.hasMoreTokens())
-                    {
-                        contentType = st.nextToken();
-                    }
-                }
-                
-                String postLine = "";
-                char pbuf[] = new char[512];
-                int read = in.read(pbuf);
-                while (read >= 0 && !postLine.endsWith("\r\n"))
-                {
-                    postLine += String.valueOf(pbuf, 0, read);
-                    read = in.read(pbuf);
-                }
-                postLine = postLine.trim();
-                payload = postLine.getBytes();
-                // TODO parsing a body is not required in assignment; to be removed
-                /*
-                if ("multipart/form-data".equalsIgnoreCase(contentType))
-                {
-                    // Handle multipart/form-data
-                    if (!st.hasMoreTokens())
-                    {
-                        throw new ResponseException(
-                                HTTPStatus.BAD_REQUEST,
-                                "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                    }
-
-                    String boundaryStartString = "boundary=";
-                    int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString)
-                            + boundaryStartString.length();
-                    String boundary = contentTypeHeader.substring(boundaryContentStart,
-                            contentTypeHeader.length());
-                    if (boundary.startsWith("\"") && boundary.endsWith("\""))
-                    {
-                        boundary = boundary.substring(1, boundary.length() - 1);
-                    }
-
-                    decodeMultipartData(boundary, fbuf, in, parms, files);
-                }
-                else
-                {
-                    // Handle application/x-www-form-urlencoded
-                    String postLine = "";
-                    char pbuf[] = new char[512];
-                    int read = in.read(pbuf);
-                    while (read >= 0 && !postLine.endsWith("\r\n"))
-                    {
-                        postLine += String.valueOf(pbuf, 0, read);
-                        read = in.read(pbuf);
-                    }
-                    postLine = postLine.trim();
-                    payload = postLine.getBytes();
-                    decodeParms(postLine, parms);
-                } */
+        // multipart bodies are decoded straight from the connection, an upload is never
+        // held in memory or written to disk twice
+        String boundary = Method.POST.equals(method) ? getMultipartBoundary() : null;
+        if (boundary != null)
+        {
+            new MultipartParser(boundary, stream, size).parse(this, partSink, tmpFileManager,
+                    memoryThreshold, getParms(), files);
+            return;
+        }
+
+        // everything else is left to the handler, which reads as much of it as it needs
+        bodyStream = stream;
+    }
+
+    /**
+     * @return the boundary if the body is multipart/form-data, otherwise null
+     */
+    private String getMultipartBoundary() throws ResponseException
+    {
+        String contentType = headers.get("content-type");
+        if (contentType == null)
+        {
+            return null;
+        }
+        int semi = contentType.indexOf(';');
+        String type = (semi >= 0 ? contentType.substring(0, semi) : contentType).trim();
+        if (!"multipart/form-data".equalsIgnoreCase(type))
+        {
+            return null;
+        }
+        String boundary = MultipartParser.parseParameters(contentType).get("boundary");
+        if (boundary == null)
+        {
+            throw new ResponseException(HTTPStatus.BAD_REQUEST,
+                    "BAD REQUEST: Content type is multipart/form-data but boundary missing.");
+        }
+        return boundary;
+    }
+
+    /**
+     * Clears this request so the next one on the same connection can be read into it. The header
+     * buffer and parser are kept. Nothing obtained from the previous request, such as the header
+     * map, may be used afterwards.
+     */
+    public void reset()
+    {
+        method = null;
+        parms = null;
+        headers = null;
+        uri = null;
+        protocolVersion = null;
+        mimeType = null;
+        splitbyte = 0;
+        rlen = 0;
+        body = null;
+        bodyStream = null;
+        contentLength = 0;
+        pathParamNames = null;
+        route = null;
+        target = null;
+        files.clear();
+        if (parser != null)
+        {
+            parser.reset();
+        }
+    }
+
+    /**
+     * Returns the header buffer to the pool once the connection is done with this request.
+     */
+    public void release()
+    {
+        reset();
+        BufferPool.HEADER_BUFFERS.release(headerBuffer);
+        headerBuffer = null;
+    }
+
+    /**
+     * The request body as a stream limited to its Content-Length. Reading it directly keeps
+     * memory use constant whatever the body size; it can be read once, and not at all after
+     * {@link #getBody()} or {@link #getPayload()} buffered it.
+     *
+     * @return the body, an empty stream if the request had none or it was multipart/form-data
+     */
+    public InputStream getBodyStream()
+    {
+        if (body != null)
+        {
+            try
+            {
+                return body.openStream();
             }
-            else if (Method.PUT.equals(method))
+            catch (IOException e)
             {
-                files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
+                throw new UncheckedIOException(e);
             }
         }
-        finally
+        return bodyStream != null ? bodyStream : new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * @return {@link #getBodyStream()} as a channel
+     */
+    public ReadableByteChannel getBodyChannel()
+    {
+        return Channels.newChannel(getBodyStream());
+    }
+
+    /**
+     * @return number of body bytes announced by Content-Length, 0 without a body and -1 for a
+     *         chunked body whose length is only known once it has been read
+     */
+    public long getContentLength()
+    {
+        if (body != null)
         {
-            HTTPServerUtils.safeClose(randomAccessFile);
-            HTTPServerUtils.safeClose(in);
+            return body.size();
         }
+        return contentLength;
     }
 
-    private RandomAccessFile getTmpBucket()
+    /**
+     * @return trailer fields of a chunked body keyed by lower case name; empty until the body has
+     *         been read to its end
+     */
+    public Map<String, String> getTrailers()
+    {
+        if (bodyStream instanceof ChunkedInputStream)
+        {
+            return ((ChunkedInputStream) bodyStream).getTrailers();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * The whole body as a byte array, read on first use. Use {@link #getBodyStream()} for bodies
+     * that may be large.
+     *
+     * @return the body, an empty array if the request had none
+     * @throws UncheckedIOException
+     *             if the body cannot be read from the connection
+     */
+    public byte[] getPayload()
     {
         try
         {
-            TempFile tempFile = tmpFileManager.createTempFile();
-            return new RandomAccessFile(tempFile.getName(), "rw");
+            BodyBuffer buffer = getBody();
+            return buffer != null ? buffer.toByteArray() : new byte[0];
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            System.err.println("Error: " + e.getMessage());
+            throw new UncheckedIOException(e);
         }
-        return null;
     }
 
     /**
-     * It returns the offset separating multipart file headers from the file's data.
+     * Reads the rest of the body into a {@link BodyBuffer} on first use: in memory up to the
+     * memory threshold, otherwise in a temp file, which is also listed in {@link #getFiles()}
+     * as "content".
+     *
+     * @return the request body, or null if the request had none
      */
-    private int stripMultipartHeaders(ByteBuffer b, int offset)
+    public BodyBuffer getBody() throws IOException
     {
-        int i;
-        for (i = offset; i < b.limit(); i++)
+        if (body == null && bodyStream != null)
         {
-            if (b.get(i) == '\r' && b.get(++i) == '\n' && b.get(++i) == '\r' && b.get(++i) == '\n')
+            BodyBuffer buffer = new BodyBuffer(tmpFileManager, memoryThreshold, contentLength);
+            byte[] buf = BufferPool.IO_BUFFERS.acquire();
+            try
             {
-                break;
+                int read;
+                while ((read = bodyStream.read(buf, 0, buf.length)) > 0)
+                {
+                    buffer.write(buf, 0, read);
+                }
+            }
+            finally
+            {
+                BufferPool.IO_BUFFERS.release(buf);
+            }
+            body = buffer;
+            if (!body.isInMemory())
+            {
+                files.put("content", body.getFileName());
             }
         }
-        return i + 1;
+        return body;
     }
-    
-    public byte[] getPayload()
+
+    /**
+     * Skips whatever the handler left unread of the body, so that the next request on the
+     * connection can be read.
+     *
+     * @return false if more than <code>maxBytes</code> were left or the body is malformed; the
+     *         connection must be closed instead
+     */
+    public boolean discardBody(long maxBytes)
+    {
+        if (bodyStream == null)
+        {
+            return true;
+        }
+        if (bodyStream instanceof BoundedInputStream && ((BoundedInputStream) bodyStream).getRemaining() > maxBytes)
+        {
+            return false;
+        }
+        byte[] buf = BufferPool.IO_BUFFERS.acquire();
+        try
+        {
+            long discarded = 0;
+            int read;
+            while ((read = bodyStream.read(buf, 0, buf.length)) > 0)
+            {
+                discarded += read;
+                if (discarded > maxBytes)
+                {
+                    return false;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(buf);
+        }
+        return true;
+    }
+
+    /**
+     * @return temp files holding uploaded content, keyed by form field name ("content" for a
+     *         buffered body that did not fit in memory); deleted once the response is sent
+     */
+    public Map<String, String> getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * Receives the file parts of multipart/form-data uploads instead of temp files. Must be set
+     * before {@link #execute()}.
+     */
+    public void setPartSink(MultipartParser.PartSink partSink)
+    {
+        this.partSink = partSink;
+    }
+
+    /**
+     * Bodies larger than this many bytes are rejected with PAYLOAD_TOO_LARGE; for chunked bodies
+     * once that many bytes have arrived. Must be set before {@link #execute()}.
+     */
+    public void setMaxBodySize(long maxBodySize)
+    {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Bodies larger than this many bytes are written to a temp file instead of memory. Must be
+     * set before {@link #execute()}.
+     */
+    public void setMemoryThreshold(int memoryThreshold)
     {
-        return payload;
+        this.memoryThreshold = memoryThreshold;
     }
 
     public Method getMethod()
@@ -307,19 +552,152 @@ public class HTTPRequest
 
     public Map<String, String> getParms()
     {
+        if (parms == null && getTarget() != null)
+        {
+            decodeTarget();
+        }
         return parms;
     }
 
+    /**
+     * @return the value of a path parameter of the route that matched, "*" for the wildcard;
+     *         null if the route has no such parameter
+     */
+    public String getPathParam(String name)
+    {
+        if (pathParamNames == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < pathParamNames.length; i++)
+        {
+            if (pathParamNames[i].equals(name))
+            {
+                return getUri().substring(pathParamOffsets[2 * i], pathParamOffsets[2 * i + 1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Used by the router while matching: an array, reused across requests, to receive the start
+     * and end offsets in {@link #getUri()} of up to <code>count</code> parameters.
+     */
+    public int[] getPathParamOffsets(int count)
+    {
+        if (pathParamOffsets.length < 2 * count)
+        {
+            pathParamOffsets = new int[2 * count];
+        }
+        return pathParamOffsets;
+    }
+
+    /**
+     * Names the parameters whose offsets the router stored, in order.
+     */
+    public void setPathParamNames(String[] names)
+    {
+        this.pathParamNames = names;
+    }
+
+    /**
+     * @return the pattern of the route that matched the request, null without a router or match
+     */
+    public String getRoute()
+    {
+        return route;
+    }
+
+    public void setRoute(String route)
+    {
+        this.route = route;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the first bytes of the request had been read
+     */
+    public long getReceivedNanos()
+    {
+        return receivedNanos;
+    }
+
+    /**
+     * @return length of the request line and headers in bytes, 0 if none were read
+     */
+    public int getHeaderLength()
+    {
+        return splitbyte;
+    }
+
     public Map<String, String> getHeaders()
     {
         return headers;
     }
 
+    /**
+     * @return the request target as sent, path and query still encoded
+     */
+    public String getTarget()
+    {
+        if (target != null)
+        {
+            return target;
+        }
+        return parser != null ? parser.getTarget() : null;
+    }
+
     public String getUri()
     {
+        if (uri == null && getTarget() != null)
+        {
+            decodeTarget();
+        }
         return uri;
     }
 
+    /**
+     * Splits the request target into the percent decoded URI and its query parameters.
+     */
+    private void decodeTarget()
+    {
+        String target = getTarget();
+        Map<String, String> decoded = new HashMap<String, String>();
+        int qmi = target.indexOf('?');
+        if (qmi >= 0)
+        {
+            decodeParms(target.substring(qmi + 1), decoded);
+            uri = decodePercent(target.substring(0, qmi));
+        }
+        else
+        {
+            uri = decodePercent(target);
+        }
+        parms = decoded;
+    }
+
+    /**
+     * @return the protocol version from the request line, e.g. "HTTP/1.1"; null for HTTP/0.9
+     *         style requests without one, "HTTP/2.0" for a head set with {@link #setHead}
+     */
+    public String getProtocolVersion()
+    {
+        return protocolVersion;
+    }
+
+    /**
+     * Whether the client wants the connection kept open after this request: HTTP/1.1 unless it
+     * sent "Connection: close", HTTP/1.0 only if it sent "Connection: keep-alive".
+     */
+    public boolean isKeepAlive()
+    {
+        String connection = headers != null ? headers.get("connection") : null;
+        if ("HTTP/1.1".equals(protocolVersion))
+        {
+            return connection == null || !"close".equalsIgnoreCase(connection.trim());
+        }
+        return connection != null && "keep-alive".equalsIgnoreCase(connection.trim());
+    }
+
     public String getMimeType()
     {
         return mimeType;
@@ -375,6 +753,7 @@ public class HTTPRequest
             // case insensitive and vary by client.
             if (st.hasMoreTokens())
             {
+                pre.put("protocol", st.nextToken());
                 String line = in.readLine();
                 while (line != null && line.trim().length() > 0)
                 {
@@ -392,6 +771,11 @@ public class HTTPRequest
         {
             throw new ResponseException(HTTPStatus.INTERNAL_ERROR,"SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
         }
+        catch (IllegalArgumentException iae)
+        {
+            // thrown by URLDecoder for a '%' not followed by two hex digits
+            throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Malformed percent encoding in URI.");
+        }
     }
 
     /**
@@ -438,110 +822,6 @@ public class HTTPRequest
         }
     }
 
-    /**
-     * Decodes the Multipart Body data and put it into Key/Value pairs.
-     */
-    private void decodeMultipartData(String boundary, ByteBuffer fbuf, BufferedReader in,
-            Map<String, String> parms, Map<String, String> files) throws ResponseException
-    {
-        try
-        {
-            int[] bpositions = getBoundaryPositions(fbuf, boundary.getBytes());
-            int boundarycount = 1;
-            String mpline = in.readLine();
-            while (mpline != null)
-            {
-                if (!mpline.contains(boundary))
-                {
-                    throw new ResponseException(
-                            HTTPStatus.BAD_REQUEST,
-                            "BAD REQUEST: Content type is multipart/form-data but next chunk does not start with boundary. Usage: GET /example/file.html");
-                }
-                boundarycount++;
-                Map<String, String> item = new HashMap<String, String>();
-                mpline = in.readLine();
-                while (mpline != null && mpline.trim().length() > 0)
-                {
-                    int p = mpline.indexOf(':');
-                    if (p != -1)
-                    {
-                        item.put(mpline.substring(0, p).trim().toLowerCase(Locale.US), mpline
-                                .substring(p + 1).trim());
-                    }
-                    mpline = in.readLine();
-                }
-                if (mpline != null)
-                {
-                    String contentDisposition = item.get("content-disposition");
-                    if (contentDisposition == null)
-                    {
-                        throw new ResponseException(
-                                HTTPStatus.BAD_REQUEST,
-                                "BAD REQUEST: Content type is multipart/form-data but no content-disposition info found. Usage: GET /example/file.html");
-                    }
-                    StringTokenizer st = new StringTokenizer(contentDisposition, "; ");
-                    Map<String, String> disposition = new HashMap<String, String>();
-                    while (st.hasMoreTokens())
-                    {
-                        String token = st.nextToken();
-                        int p = token.indexOf('=');
-                        if (p != -1)
-                        {
-                            disposition.put(token.substring(0, p).trim().toLowerCase(Locale.US),
-                                    token.substring(p + 1).trim());
-                        }
-                    }
-                    String pname = disposition.get("name");
-                    pname = pname.substring(1, pname.length() - 1);
-
-                    String value = "";
-                    if (item.get("content-type") == null)
-                    {
-                        while (mpline != null && !mpline.contains(boundary))
-                        {
-                            mpline = in.readLine();
-                            if (mpline != null)
-                            {
-                                int d = mpline.indexOf(boundary);
-                                if (d == -1)
-                                {
-                                    value += mpline;
-                                }
-                                else
-                                {
-                                    value += mpline.substring(0, d - 2);
-                                }
-                            }
-                        }
-                    }
-                    else
-                    {
-                        if (boundarycount > bpositions.length)
-                        {
-                            throw new ResponseException(HTTPStatus.INTERNAL_ERROR, "Error processing request");
-                        }
-                        int offset = stripMultipartHeaders(fbuf, bpositions[boundarycount - 2]);
-                        String path = saveTmpFile(fbuf, offset, bpositions[boundarycount - 1] - offset - 4);
-                        files.put(pname, path);
-                        value = disposition.get("filename");
-                        value = value.substring(1, value.length() - 1);
-                        do
-                        {
-                            mpline = in.readLine();
-                        }
-                        while (mpline != null && !mpline.contains(boundary));
-                    }
-                    parms.put(pname, value);
-                }
-            }
-        }
-        catch (IOException ioe)
-        {
-            throw new ResponseException(HTTPStatus.INTERNAL_ERROR,
-                    "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
-        }
-    }
-
     /**
      * Find byte index separating header from body. It must be the last byte of the first two
      * sequential new lines.
@@ -561,75 +841,4 @@ public class HTTPRequest
         return 0;
     }
 
-    /**
-     * Find the byte positions where multipart boundaries start.
-     */
-    private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary)
-    {
-        int matchcount = 0;
-        int matchbyte = -1;
-        List<Integer> matchbytes = new ArrayList<Integer>();
-        for (int i = 0; i < b.limit(); i++)
-        {
-            if (b.get(i) == boundary[matchcount])
-            {
-                if (matchcount == 0)
-                    matchbyte = i;
-                matchcount++;
-                if (matchcount == boundary.length)
-                {
-                    matchbytes.add(matchbyte);
-                    matchcount = 0;
-                    matchbyte = -1;
-                }
-            }
-            else
-            {
-                i -= matchcount;
-                matchcount = 0;
-                matchbyte = -1;
-            }
-        }
-        int[] ret = new int[matchbytes.size()];
-        for (int i = 0; i < ret.length; i++)
-        {
-            ret[i] = matchbytes.get(i);
-        }
-        return ret;
-    }
-
-    /**
-     * Retrieves the content of a sent file and saves it to a temporary file. The full path to the
-     * saved file is returned.
-     */
-    private String saveTmpFile(ByteBuffer b, int offset, int len)
-    {
-        String path = "";
-        if (len > 0)
-        {
-            FileOutputStream fileOutputStream = null;
-            try
-            {
-                TempFile tempFile = tmpFileManager.createTempFile();
-                ByteBuffer src = b.duplicate();
-                fileOutputStream = new FileOutputStream(tempFile.getName());
-                FileChannel dest = fileOutputStream.getChannel();
-                src.position(offset).limit(offset + len);
-                dest.write(src.slice());
-                // file upload any
-                payload = src.array();
-                path = tempFile.getName();
-            }
-            catch (Exception e)
-            { // Catch exception if any
-                System.err.println("Error: " + e.getMessage());
-            }
-            finally
-            {
-                HTTPServerUtils.safeClose(fileOutputStream);
-            }
-        }
-        return path;
-    }
-
 }
@@ -4,13 +4,14 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 
 import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
 import com.test.httpserver.util.HTTPStatus;
@@ -28,6 +29,9 @@ public class HTTPResponse
      */
     public static final String MIME_HTML = "text/html";
 
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
     /**
      * HTTP status code after processing, e.g. "200 OK", HTTP_OK
      */
@@ -40,6 +44,14 @@ public class HTTPResponse
      * Data of the response, may be null.
      */
     private InputStream data;
+    /**
+     * Number of bytes of data to send, -1 to send what data.available() reports.
+     */
+    private long contentLength = -1;
+    /**
+     * File body of the response, sent instead of data when set.
+     */
+    private List<FileRegion> fileRegions;
     /**
      * Headers for the HTTP response. Use addHeader() to add lines.
      */
@@ -52,6 +64,23 @@ public class HTTPResponse
      * Use chunkedTransfer
      */
     private boolean chunkedTransfer;
+    /**
+     * Keep the connection open for further requests after this response
+     */
+    private boolean keepAlive;
+    /**
+     * Content coding negotiated for data, e.g. "gzip"; null to send it as is
+     */
+    private String contentEncoding;
+    private ResponseCompressor compressor;
+    /**
+     * Serialized response from a {@link ResponseCache}, sent instead of all of the above
+     */
+    private ResponseCache.Entry cached;
+    /**
+     * Bytes written by the last send, head included
+     */
+    private long bytesSent;
 
     /**
      * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -71,6 +100,36 @@ public class HTTPResponse
         this.data = data;
     }
 
+    /**
+     * Stream constructor for bodies whose length is known up front, e.g. a request body being
+     * echoed; exactly <code>contentLength</code> bytes are copied from <code>data</code>.
+     */
+    public HTTPResponse(HTTPStatus status, String mimeType, InputStream data, long contentLength)
+    {
+        this(status, mimeType, data);
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * File body constructor: the regions are sent in order, without copying the file contents
+     * through the heap where the socket allows it.
+     */
+    public HTTPResponse(HTTPStatus status, String mimeType, List<FileRegion> fileRegions)
+    {
+        this.status = status;
+        this.mimeType = mimeType;
+        this.fileRegions = fileRegions;
+    }
+
+    /**
+     * Replays a response kept by a {@link ResponseCache}.
+     */
+    HTTPResponse(ResponseCache.Entry cached)
+    {
+        this.status = cached.status;
+        this.cached = cached;
+    }
+
     /**
      * Convenience method that makes an InputStream out of given text.
      */
@@ -96,107 +155,582 @@ public class HTTPResponse
         header.put(name, value);
     }
 
+    /**
+     * @return the value of a header added with {@link #addHeader(String, String)}, null if none
+     */
+    public String getHeader(String name)
+    {
+        return header.get(name);
+    }
+
     /**
      * Sends given response to the socket.
      */
     public void send(OutputStream outputStream)
     {
-        String mime = mimeType;
-        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        send(outputStream, true);
+    }
+
+    /**
+     * Sends given response to the socket. The head is written together with the body; with
+     * <code>flush</code> false the bytes may stay in a buffered stream so that responses to
+     * pipelined requests go out in as few writes as possible.
+     */
+    public void send(OutputStream outputStream, boolean flush)
+    {
+        send(outputStream, null, flush);
+    }
 
+    /**
+     * Sends given response to the socket. File bodies are transferred straight from the file to
+     * <code>channel</code> when the socket has one, otherwise they are copied through
+     * <code>outputStream</code>.
+     */
+    public void send(OutputStream outputStream, WritableByteChannel channel, boolean flush)
+    {
+        // the head is encoded into the same buffer that carries the body
+        byte[] buff = BufferPool.IO_BUFFERS.acquire();
+        try
+        {
+            if (cached != null)
+            {
+                sendCached(outputStream, buff);
+                if (flush)
+                {
+                    outputStream.flush();
+                }
+                return;
+            }
+            HeadEncoder head = encodeHead(buff);
+
+            if (!hasBody())
+            {
+                head.end();
+                outputStream.write(head.array(), 0, head.size());
+                bytesSent = head.size();
+            }
+            else if (fileRegions != null)
+            {
+                sendFileRegions(outputStream, channel, head);
+            }
+            else if (requestMethod != Method.HEAD && contentEncoding != null)
+            {
+                sendCompressed(outputStream, head);
+            }
+            else if (requestMethod != Method.HEAD && chunkedTransfer)
+            {
+                sendAsChunked(outputStream, head);
+            }
+            else
+            {
+                sendAsFixedLength(outputStream, head);
+            }
+            if (flush)
+            {
+                outputStream.flush();
+            }
+        }
+        catch (IOException ioe)
+        {
+            // Couldn't write? No can do.
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(buff);
+            //close the stream
+            HTTPServerUtils.safeClose(data);
+            closeFileRegions();
+        }
+    }
+
+    /**
+     * Writes the head of a response with a file body and leaves the body to the caller, for
+     * writers that send the regions themselves, e.g. from a non-blocking event loop.
+     * 
+     * @return the regions the caller must send and close; empty for HEAD requests
+     */
+    public List<FileRegion> sendHead(OutputStream outputStream) throws IOException
+    {
+        byte[] buff = BufferPool.IO_BUFFERS.acquire();
+        try
+        {
+            HeadEncoder head = encodeHead(buff);
+            long length = getFileRegionsLength();
+            head.header("Content-Length", length).end();
+            outputStream.write(head.array(), 0, head.size());
+            bytesSent = head.size() + (requestMethod == Method.HEAD ? 0 : length);
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(buff);
+        }
+        if (requestMethod == Method.HEAD)
+        {
+            closeFileRegions();
+            return new ArrayList<FileRegion>();
+        }
+        return fileRegions;
+    }
+
+    /**
+     * Sends this response on an HTTP/2 stream. The header fields are added to
+     * <code>fields</code> as name, value pairs, ":status" first and names in lower case, before
+     * the first body byte is written to <code>outputStream</code>, which frames the body. So
+     * Content-Length is only sent where the length is known up front, and connection specific
+     * headers such as Connection are left out.
+     */
+    public void send(List<String> fields, OutputStream outputStream)
+    {
+        byte[] buff = BufferPool.IO_BUFFERS.acquire();
         try
         {
             if (status == null)
             {
                 throw new Error("sendResponse(): Status can't be null.");
             }
-            PrintWriter pw = new PrintWriter(outputStream);
-            pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
+            fields.add(":status");
+            fields.add(Integer.toString(status.getRequestStatus()));
+            if (cached != null)
+            {
+                sendCached(fields, outputStream);
+                return;
+            }
+            if (mimeType != null && hasBody())
+            {
+                addField(fields, "content-type", mimeType);
+            }
+            if (header.get("Date") == null)
+            {
+                addField(fields, "date", HeadEncoder.currentDateValue());
+            }
+            for (Map.Entry<String, String> entry : header.entrySet())
+            {
+                addField(fields, entry.getKey(), entry.getValue());
+            }
 
-            if (mime != null)
+            bytesSent = 0;
+            if (!hasBody())
+            {
+                // the headers end the stream, without a length
+            }
+            else if (fileRegions != null)
             {
-                pw.print("Content-Type: " + mime + "\r\n");
+                long length = getFileRegionsLength();
+                addField(fields, "content-length", Long.toString(length));
+                if (requestMethod != Method.HEAD)
+                {
+                    for (FileRegion region : fileRegions)
+                    {
+                        region.writeTo(outputStream, buff);
+                    }
+                    bytesSent = length;
+                }
             }
+            else if (requestMethod != Method.HEAD && contentEncoding != null)
+            {
+                addField(fields, "content-encoding", contentEncoding);
+                long length = getBodyLength();
+                if (compressor.isCached(length))
+                {
+                    byte[] body = new byte[(int) length];
+                    int offset = 0;
+                    int read;
+                    while (offset < body.length && (read = data.read(body, offset, body.length - offset)) > 0)
+                    {
+                        offset += read;
+                    }
+                    byte[] compressed = compressor.compress(body, offset, contentEncoding);
+                    addField(fields, "content-length", Integer.toString(compressed.length));
+                    outputStream.write(compressed);
+                    bytesSent = compressed.length;
+                }
+                else
+                {
+                    CountingOutputStream counting = new CountingOutputStream(outputStream);
+                    compressor.compress(data, contentEncoding, counting);
+                    bytesSent = counting.count;
+                }
+            }
+            else if (requestMethod != Method.HEAD && chunkedTransfer)
+            {
+                int read;
+                while ((read = data.read(buff)) > 0)
+                {
+                    outputStream.write(buff, 0, read);
+                    bytesSent += read;
+                }
+            }
+            else
+            {
+                long pending = contentLength >= 0 ? contentLength : data != null ? data.available() : 0;
+                addField(fields, "content-length", Long.toString(pending));
+                if (requestMethod != Method.HEAD && data != null)
+                {
+                    int read;
+                    while (pending > 0 && (read = data.read(buff, 0, (int) Math.min(pending, buff.length))) > 0)
+                    {
+                        outputStream.write(buff, 0, read);
+                        pending -= read;
+                        bytesSent += read;
+                    }
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            // the stream was reset or the connection lost
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(buff);
+            HTTPServerUtils.safeClose(data);
+            closeFileRegions();
+        }
+    }
 
-            if (header == null || header.get("Date") == null)
+    /**
+     * Sends a cached response on an HTTP/2 stream, its head lines turned back into fields.
+     */
+    private void sendCached(List<String> fields, OutputStream outputStream) throws IOException
+    {
+        String head = new String(cached.head, StandardCharsets.ISO_8859_1);
+        // the status line is followed by one header per line
+        int start = head.indexOf('\n') + 1;
+        while (start > 0 && start < head.length())
+        {
+            int end = head.indexOf('\r', start);
+            if (end < 0)
             {
-                pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+                end = head.length();
             }
+            int colon = head.indexOf(':', start);
+            if (colon > start && colon < end)
+            {
+                addField(fields, head.substring(start, colon), head.substring(colon + 1, end).trim());
+            }
+            start = end + 2;
+        }
+        addField(fields, "date", HeadEncoder.currentDateValue());
+        addField(fields, "age", Long.toString(Math.max(0, (System.currentTimeMillis() - cached.created) / 1000)));
+        int bodyLength = requestMethod == Method.HEAD ? 0 : cached.body.length;
+        outputStream.write(cached.body, 0, bodyLength);
+        bytesSent = bodyLength;
+    }
+
+    /**
+     * Adds a header field with its name in lower case, unless it only concerns an HTTP/1.x
+     * connection.
+     */
+    private static void addField(List<String> fields, String name, String value)
+    {
+        String lowerCaseName = name.toLowerCase(Locale.ROOT);
+        if ("connection".equals(lowerCaseName) || "keep-alive".equals(lowerCaseName)
+                || "transfer-encoding".equals(lowerCaseName) || "upgrade".equals(lowerCaseName)
+                || "proxy-connection".equals(lowerCaseName))
+        {
+            return;
+        }
+        fields.add(lowerCaseName);
+        fields.add(value);
+    }
+
+    /**
+     * A 204 never has a body. A 304 stands for the response a cache already has, and a cache
+     * refreshes its stored headers from it, so Content-Length and Content-Type are left out
+     * rather than describing an empty body; the connection stays framed as the response ends
+     * with its head.
+     *
+     * @return false if the response ends with its head and carries no body headers
+     */
+    private boolean hasBody()
+    {
+        return status != HTTPStatus.NOT_MODIFIED && status != HTTPStatus.NO_CONTENT;
+    }
+
+    /**
+     * Encodes the status line and the headers common to all bodies; the caller adds the framing
+     * header and ends the head.
+     */
+    private HeadEncoder encodeHead(byte[] buff)
+    {
+        if (status == null)
+        {
+            throw new Error("sendResponse(): Status can't be null.");
+        }
+        HeadEncoder head = new HeadEncoder(buff);
+        head.status(status);
 
-            if (header != null)
+        if (mimeType != null && hasBody())
+        {
+            head.header("Content-Type", mimeType);
+        }
+
+        if (header == null || header.get("Date") == null)
+        {
+            head.date();
+        }
+
+        if (header != null)
+        {
+            for (Map.Entry<String, String> entry : header.entrySet())
+            {
+                head.header(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (header == null || header.get("Connection") == null)
+        {
+            head.header("Connection", keepAlive ? "keep-alive" : "close");
+        }
+        return head;
+    }
+
+    /**
+     * Adds the headers that change per response to the cached ones and sends head and body in
+     * one write if they fit the buffer.
+     */
+    private void sendCached(OutputStream outputStream, byte[] buff) throws IOException
+    {
+        HeadEncoder head = new HeadEncoder(buff).append(cached.head).date();
+        head.header("Age", Math.max(0, (System.currentTimeMillis() - cached.created) / 1000));
+        head.header("Connection", keepAlive ? "keep-alive" : "close").end();
+        int bodyLength = requestMethod == Method.HEAD ? 0 : cached.body.length;
+        if (head.size() + bodyLength <= head.array().length)
+        {
+            System.arraycopy(cached.body, 0, head.array(), head.size(), bodyLength);
+            outputStream.write(head.array(), 0, head.size() + bodyLength);
+        }
+        else
+        {
+            outputStream.write(head.array(), 0, head.size());
+            outputStream.write(cached.body, 0, bodyLength);
+        }
+        bytesSent = head.size() + bodyLength;
+    }
+
+    /**
+     * Reads the whole body, compressed if a coding was negotiated, and encodes the head without
+     * Date and Connection, so that the response can be sent again to other clients. This
+     * response is then sent from the entry as well.
+     *
+     * @return the entry, null if the body is longer than <code>maxBodySize</code> or of unknown
+     *         length
+     */
+    ResponseCache.Entry toCacheEntry(int maxBodySize, long expires) throws IOException
+    {
+        long length = getBodyLength();
+        if (length < 0 || length > maxBodySize)
+        {
+            return null;
+        }
+        byte[] body = new byte[(int) length];
+        if (data != null)
+        {
+            int offset = 0;
+            int read;
+            while (offset < body.length && (read = data.read(body, offset, body.length - offset)) > 0)
+            {
+                offset += read;
+            }
+            if (offset < body.length)
             {
-                for (String key : header.keySet())
+                body = Arrays.copyOf(body, offset);
+            }
+            HTTPServerUtils.safeClose(data);
+            data = null;
+        }
+        if (contentEncoding != null)
+        {
+            body = compressor.compress(body, body.length, contentEncoding);
+        }
+
+        byte[] buff = BufferPool.IO_BUFFERS.acquire();
+        try
+        {
+            HeadEncoder head = new HeadEncoder(buff);
+            head.status(status);
+            if (mimeType != null)
+            {
+                head.header("Content-Type", mimeType);
+            }
+            for (Map.Entry<String, String> entry : header.entrySet())
+            {
+                if (!"Date".equals(entry.getKey()) && !"Connection".equals(entry.getKey()))
                 {
-                    String value = header.get(key);
-                    pw.print(key + ": " + value + "\r\n");
+                    head.header(entry.getKey(), entry.getValue());
                 }
             }
+            if (contentEncoding != null)
+            {
+                head.header("Content-Encoding", contentEncoding);
+            }
+            head.header("Content-Length", body.length);
+            cached = new ResponseCache.Entry(status, Arrays.copyOf(head.array(), head.size()), body,
+                    System.currentTimeMillis(), expires);
+            return cached;
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(buff);
+        }
+    }
 
-            // Not required as per the assignment
-            // pw.print("Connection: keep-alive\r\n");
+    /**
+     * @return whether this response is sent from a serialized cache entry
+     */
+    public boolean isCached()
+    {
+        return cached != null;
+    }
 
-            if (requestMethod != Method.HEAD && chunkedTransfer)
+    private void sendFileRegions(OutputStream outputStream, WritableByteChannel channel, HeadEncoder head) throws IOException
+    {
+        long length = getFileRegionsLength();
+        head.header("Content-Length", length).end();
+        outputStream.write(head.array(), 0, head.size());
+        bytesSent = head.size();
+        if (requestMethod == Method.HEAD)
+        {
+            return;
+        }
+        bytesSent += length;
+        if (channel != null)
+        {
+            // the head has to be on the wire before the file bytes bypass the stream
+            outputStream.flush();
+            for (FileRegion region : fileRegions)
             {
-                sendAsChunked(outputStream, pw);
+                region.transferTo(channel);
             }
-            else
+        }
+        else
+        {
+            // the head is written, its buffer can carry the file bytes
+            byte[] buff = head.array();
+            for (FileRegion region : fileRegions)
             {
-                sendAsFixedLength(outputStream, pw);
+                region.writeTo(outputStream, buff);
             }
-            outputStream.flush();
-            //close the stream
-            HTTPServerUtils.safeClose(data);
         }
-        catch (IOException ioe)
+    }
+
+    private long getFileRegionsLength()
+    {
+        long length = 0;
+        for (FileRegion region : fileRegions)
         {
-            // Couldn't write? No can do.
+            length += region.remaining();
+        }
+        return length;
+    }
+
+    private void closeFileRegions()
+    {
+        if (fileRegions != null)
+        {
+            for (FileRegion region : fileRegions)
+            {
+                region.close();
+            }
         }
     }
 
-    private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException
+    private void sendAsChunked(OutputStream outputStream, HeadEncoder head) throws IOException
     {
-        pw.print("Transfer-Encoding: chunked\r\n");
-        pw.print("\r\n");
-        pw.flush();
-        int BUFFER_SIZE = 16 * 1024;
-        byte[] CRLF = "\r\n".getBytes();
-        byte[] buff = new byte[BUFFER_SIZE];
+        head.header("Transfer-Encoding", "chunked").end();
+        outputStream.write(head.array(), 0, head.size());
+        ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream);
+        byte[] buff = head.array();
         int read;
         while ((read = data.read(buff)) > 0)
         {
-            outputStream.write(String.format("%x\r\n", read).getBytes());
-            outputStream.write(buff, 0, read);
-            outputStream.write(CRLF);
+            chunked.write(buff, 0, read);
         }
-        outputStream.write(String.format("0\r\n\r\n").getBytes());
+        chunked.finish();
+        bytesSent = head.size() + chunked.count;
     }
 
-    private void sendAsFixedLength(OutputStream outputStream, PrintWriter pw) throws IOException
+    /**
+     * Bodies the compressor caches are compressed in whole and sent with their length, all
+     * others are deflated while they are sent as chunks.
+     */
+    private void sendCompressed(OutputStream outputStream, HeadEncoder head) throws IOException
     {
-        int pending = data != null ? data.available() : 0; // This is to support partial sends, see
-                                                           // serveFile()
-        pw.print("Content-Length: " + pending + "\r\n");
+        head.header("Content-Encoding", contentEncoding);
+        long length = getBodyLength();
+        if (compressor.isCached(length))
+        {
+            byte[] body = new byte[(int) length];
+            int offset = 0;
+            int read;
+            while (offset < body.length && (read = data.read(body, offset, body.length - offset)) > 0)
+            {
+                offset += read;
+            }
+            byte[] compressed = compressor.compress(body, offset, contentEncoding);
+            head.header("Content-Length", compressed.length).end();
+            outputStream.write(head.array(), 0, head.size());
+            outputStream.write(compressed);
+            bytesSent = head.size() + compressed.length;
+            return;
+        }
+        head.header("Transfer-Encoding", "chunked").end();
+        outputStream.write(head.array(), 0, head.size());
+        ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream);
+        compressor.compress(data, contentEncoding, chunked);
+        chunked.finish();
+        bytesSent = head.size() + chunked.count;
+    }
 
-        pw.print("\r\n");
-        pw.flush();
+    private void sendAsFixedLength(OutputStream outputStream, HeadEncoder head) throws IOException
+    {
+        // without an explicit length, what the stream has ready is sent. This is to support
+        // partial sends, see serveFile()
+        long pending = contentLength >= 0 ? contentLength : data != null ? data.available() : 0;
+        head.header("Content-Length", pending).end();
 
+        // the body is read in right behind the head, so a small response is handed to the
+        // stream in a single write
+        byte[] buff = head.array();
+        int offset = head.size();
+        bytesSent = 0;
         if (requestMethod != Method.HEAD && data != null)
         {
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] buff = new byte[BUFFER_SIZE];
             while (pending > 0)
             {
-                int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
+                if (offset == buff.length)
+                {
+                    outputStream.write(buff, 0, offset);
+                    bytesSent += offset;
+                    offset = 0;
+                }
+                int read = data.read(buff, offset, (int) Math.min(pending, buff.length - offset));
                 if (read <= 0)
                 {
                     break;
                 }
-                outputStream.write(buff, 0, read);
-
+                offset += read;
                 pending -= read;
             }
         }
+        outputStream.write(buff, 0, offset);
+        bytesSent += offset;
+    }
+
+    /**
+     * @return number of bytes data will send, -1 if it is sent in chunks until it ends
+     */
+    long getBodyLength() throws IOException
+    {
+        if (contentLength >= 0)
+        {
+            return contentLength;
+        }
+        if (chunkedTransfer)
+        {
+            return -1;
+        }
+        return data != null ? data.available() : 0;
     }
 
     public HTTPStatus getStatus()
@@ -229,6 +763,11 @@ public class HTTPResponse
         this.data = data;
     }
 
+    public List<FileRegion> getFileRegions()
+    {
+        return fileRegions;
+    }
+
     public Method getRequestMethod()
     {
         return requestMethod;
@@ -244,4 +783,106 @@ public class HTTPResponse
         this.chunkedTransfer = chunkedTransfer;
     }
 
+    public boolean isKeepAlive()
+    {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @return number of bytes the last send wrote, head included
+     */
+    public long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    /**
+     * Sends data compressed with the given coding; set by {@link ResponseCompressor#apply}.
+     */
+    void setContentEncoding(String contentEncoding, ResponseCompressor compressor)
+    {
+        this.contentEncoding = contentEncoding;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Counts the bytes of a body whose length is only known once it has been written.
+     */
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Frames every write as one chunk; {@link #finish()} writes the last chunk. Closing it leaves
+     * the underlying stream open.
+     */
+    private static final class ChunkedOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final byte[] sizeLine = new byte[10];
+        long count;
+
+        ChunkedOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                // an empty chunk would end the body
+                return;
+            }
+            int sizeLength = HeadEncoder.encodeChunkSize(len, sizeLine);
+            out.write(sizeLine, 0, sizeLength);
+            out.write(b, off, len);
+            out.write(CRLF);
+            count += sizeLength + len + CRLF.length;
+        }
+
+        void finish() throws IOException
+        {
+            out.write(LAST_CHUNK);
+            count += LAST_CHUNK.length;
+        }
+    }
 }
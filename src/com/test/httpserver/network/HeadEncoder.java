@@ -0,0 +1,215 @@
+package com.test.httpserver.network;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import com.test.httpserver.util.HTTPStatus;
+
+/**
+ * Writes a response head as bytes straight into a byte array, usually a pooled buffer that the
+ * body is then copied behind. Status lines are encoded once per {@link HTTPStatus} and the Date
+ * header once per second, so a typical head costs a few array copies and no charset encoding.
+ */
+public final class HeadEncoder
+{
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern(
+            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final byte[][] STATUS_LINES = new byte[HTTPStatus.values().length][];
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] SEPARATOR = { ':', ' ' };
+
+    static
+    {
+        for (HTTPStatus status : HTTPStatus.values())
+        {
+            STATUS_LINES[status.ordinal()] = ("HTTP/1.1 " + status.getDescription() + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static volatile CachedDate cachedDate = new CachedDate(System.currentTimeMillis() / 1000);
+
+    private byte[] buf;
+    private int count;
+
+    /**
+     * @param buf
+     *            array to encode into; replaced by a larger copy if the head does not fit
+     */
+    public HeadEncoder(byte[] buf)
+    {
+        this.buf = buf;
+    }
+
+    public HeadEncoder status(HTTPStatus status)
+    {
+        return write(STATUS_LINES[status.ordinal()]);
+    }
+
+    /**
+     * Adds the Date header for the current second.
+     */
+    public HeadEncoder date()
+    {
+        return write(currentDate().line);
+    }
+
+    public HeadEncoder header(String name, String value)
+    {
+        writeString(name);
+        write(SEPARATOR);
+        writeString(value);
+        return write(CRLF);
+    }
+
+    public HeadEncoder header(String name, long value)
+    {
+        writeString(name);
+        write(SEPARATOR);
+        writeDecimal(value);
+        return write(CRLF);
+    }
+
+    /**
+     * Appends header lines encoded earlier, e.g. by a cache.
+     */
+    public HeadEncoder append(byte[] lines)
+    {
+        return write(lines);
+    }
+
+    /**
+     * Writes the empty line that ends the head.
+     */
+    public HeadEncoder end()
+    {
+        return write(CRLF);
+    }
+
+    /**
+     * @return the array holding the encoded head from offset 0
+     */
+    public byte[] array()
+    {
+        return buf;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return the current time as an HTTP date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"; the same
+     *         String is returned for a whole second
+     */
+    public static String currentDateValue()
+    {
+        return currentDate().value;
+    }
+
+    /**
+     * Encodes a chunk size line, the hex length followed by CRLF.
+     *
+     * @return number of bytes written to <code>dst</code>, which needs room for 10
+     */
+    public static int encodeChunkSize(int size, byte[] dst)
+    {
+        int digits = Math.max(1, (32 - Integer.numberOfLeadingZeros(size) + 3) / 4);
+        for (int i = digits - 1; i >= 0; i--)
+        {
+            int nibble = size & 0xf;
+            dst[i] = (byte) (nibble < 10 ? '0' + nibble : 'a' + nibble - 10);
+            size >>>= 4;
+        }
+        dst[digits] = '\r';
+        dst[digits + 1] = '\n';
+        return digits + 2;
+    }
+
+    private static CachedDate currentDate()
+    {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date.second != second)
+        {
+            // racing threads may both format the new second; either result is the same
+            date = new CachedDate(second);
+            cachedDate = date;
+        }
+        return date;
+    }
+
+    private HeadEncoder write(byte[] bytes)
+    {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+        return this;
+    }
+
+    private void writeString(String s)
+    {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++)
+        {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+            {
+                // rare in heads; fall back to encoding the rest of the value
+                write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buf[count++] = (byte) c;
+        }
+    }
+
+    private void writeDecimal(long value)
+    {
+        if (value < 0)
+        {
+            writeString(Long.toString(value));
+            return;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+        {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = count + digits - 1; i >= count; i--)
+        {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if (count + extra > buf.length)
+        {
+            byte[] larger = new byte[Math.max(buf.length * 2, count + extra)];
+            System.arraycopy(buf, 0, larger, 0, count);
+            buf = larger;
+        }
+    }
+
+    private static final class CachedDate
+    {
+        final long second;
+        final String value;
+        final byte[] line;
+
+        CachedDate(long second)
+        {
+            this.second = second;
+            this.value = HTTP_DATE.format(Instant.ofEpochMilli(second * 1000));
+            this.line = ("Date: " + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
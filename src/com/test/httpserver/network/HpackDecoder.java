@@ -0,0 +1,161 @@
+package com.test.httpserver.network;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) received on one HTTP/2 connection. Blocks must be
+ * decoded in the order they arrive, since each may change the dynamic table the next ones refer
+ * to. Names and values are Latin-1 strings, like header values read by {@link RequestParser}.
+ * Not thread safe.
+ */
+public final class HpackDecoder
+{
+    /**
+     * Default dynamic table size, which this side never raises
+     */
+    public static final int TABLE_SIZE = 4096;
+
+    private final HpackTable table = new HpackTable(TABLE_SIZE);
+    private final int maxHeaderListSize;
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    /**
+     * @param maxHeaderListSize
+     *            limit of the decoded fields, counted as in SETTINGS_MAX_HEADER_LIST_SIZE: name
+     *            and value length plus 32 per field
+     */
+    public HpackDecoder(int maxHeaderListSize)
+    {
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * Decodes a complete header block. A block over the header list limit is still decoded to
+     * the end, to keep the dynamic table in step, but its fields are dropped.
+     *
+     * @param fields
+     *            receives the fields as name, value, name, value, ...
+     * @return false if the fields exceeded the header list limit
+     * @throws IOException
+     *             if the block is malformed, a connection error of type COMPRESSION_ERROR
+     */
+    public boolean decode(byte[] block, int off, int len, List<String> fields) throws IOException
+    {
+        buf = block;
+        pos = off;
+        end = off + len;
+        int first = fields.size();
+        long listSize = 0;
+        boolean fieldSeen = false;
+        while (pos < end)
+        {
+            int b = buf[pos] & 0xff;
+            String name;
+            String value;
+            if ((b & 0x80) != 0)
+            {
+                // indexed field
+                int index = readInt(7);
+                if (index == 0)
+                {
+                    throw new IOException("HPACK: index 0");
+                }
+                name = table.name(index);
+                value = table.value(index);
+            }
+            else if ((b & 0x40) != 0)
+            {
+                // literal with incremental indexing
+                int index = readInt(6);
+                name = index == 0 ? readString() : table.name(index);
+                value = readString();
+                table.add(name, value);
+            }
+            else if ((b & 0x20) != 0)
+            {
+                // dynamic table size update, only allowed before the first field
+                if (fieldSeen)
+                {
+                    throw new IOException("HPACK: table size update after a field");
+                }
+                int maxSize = readInt(5);
+                if (maxSize > TABLE_SIZE)
+                {
+                    throw new IOException("HPACK: table size " + maxSize + " above " + TABLE_SIZE);
+                }
+                table.setMaxSize(maxSize);
+                continue;
+            }
+            else
+            {
+                // literal without indexing or never indexed
+                int index = readInt(4);
+                name = index == 0 ? readString() : table.name(index);
+                value = readString();
+            }
+            fieldSeen = true;
+            listSize += name.length() + value.length() + HpackTable.ENTRY_OVERHEAD;
+            if (listSize <= maxHeaderListSize)
+            {
+                fields.add(name);
+                fields.add(value);
+            }
+        }
+        buf = null;
+        if (listSize > maxHeaderListSize)
+        {
+            fields.subList(first, fields.size()).clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads an integer with an N-bit prefix (RFC 7541, section 5.1).
+     */
+    private int readInt(int prefixBits) throws IOException
+    {
+        int max = (1 << prefixBits) - 1;
+        int value = buf[pos++] & max;
+        if (value < max)
+        {
+            return value;
+        }
+        for (int shift = 0; shift <= 21; shift += 7)
+        {
+            if (pos == end)
+            {
+                throw new IOException("HPACK: integer truncated");
+            }
+            int b = buf[pos++];
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("HPACK: integer too large");
+    }
+
+    private String readString() throws IOException
+    {
+        if (pos == end)
+        {
+            throw new IOException("HPACK: string truncated");
+        }
+        boolean huffman = (buf[pos] & 0x80) != 0;
+        int length = readInt(7);
+        if (length > end - pos)
+        {
+            throw new IOException("HPACK: string truncated");
+        }
+        String s = huffman ? Huffman.decode(buf, pos, length) : new String(buf, pos, length,
+                StandardCharsets.ISO_8859_1);
+        pos += length;
+        return s;
+    }
+}
@@ -0,0 +1,156 @@
+package com.test.httpserver.network;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541) sent on one HTTP/2 connection. Fields found in the
+ * table are sent as an index; others are added to the dynamic table so that repeated headers,
+ * such as the Content-Type and Server of every response, shrink to a byte or two from then on.
+ * Values that change with every response are sent without indexing, cookies never indexed.
+ * Strings are Huffman coded where that makes them shorter.
+ * <p>
+ * Blocks must be sent in the order they were encoded, the caller serializes both. Not thread
+ * safe.
+ */
+public final class HpackEncoder
+{
+    private final HpackTable table = new HpackTable(HpackDecoder.TABLE_SIZE);
+    /**
+     * Smallest table size since the last block, -1 if unchanged; announced at the start of the
+     * next block
+     */
+    private int pendingSizeUpdate = -1;
+
+    /**
+     * Applies the peer's SETTINGS_HEADER_TABLE_SIZE. The table never grows beyond the default
+     * size, a smaller one is announced in the next block.
+     */
+    public void setMaxTableSize(int maxSize)
+    {
+        int newSize = Math.min(maxSize, HpackDecoder.TABLE_SIZE);
+        if (newSize == table.getMaxSize())
+        {
+            return;
+        }
+        pendingSizeUpdate = pendingSizeUpdate < 0 ? newSize : Math.min(pendingSizeUpdate, newSize);
+        table.setMaxSize(newSize);
+    }
+
+    /**
+     * Encodes one header block.
+     *
+     * @param fields
+     *            name, value, name, value, ...; names in lower case
+     */
+    public void encode(List<String> fields, ByteArrayOutputStream out)
+    {
+        if (pendingSizeUpdate >= 0)
+        {
+            if (pendingSizeUpdate < table.getMaxSize())
+            {
+                // shrunk and grown again: both steps must be announced
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+            }
+            writeInt(out, 0x20, 5, table.getMaxSize());
+            pendingSizeUpdate = -1;
+        }
+        for (int i = 0; i < fields.size(); i += 2)
+        {
+            String name = fields.get(i);
+            String value = toLatin1(fields.get(i + 1));
+            int index = table.find(name, value);
+            if (index > 0)
+            {
+                writeInt(out, 0x80, 7, index);
+                continue;
+            }
+            int nameIndex = table.findName(name);
+            if (isSensitive(name))
+            {
+                writeInt(out, 0x10, 4, nameIndex);
+            }
+            else if (isVolatile(name))
+            {
+                writeInt(out, 0x00, 4, nameIndex);
+            }
+            else
+            {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0)
+            {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    private static boolean isSensitive(String name)
+    {
+        return "set-cookie".equals(name);
+    }
+
+    /**
+     * @return whether the values of the header hardly ever repeat, indexing them would only
+     *         evict useful entries
+     */
+    private static boolean isVolatile(String name)
+    {
+        return "content-length".equals(name) || "date".equals(name) || "age".equals(name) || "etag".equals(name)
+                || "last-modified".equals(name) || "expires".equals(name) || "location".equals(name)
+                || "content-range".equals(name);
+    }
+
+    /**
+     * @return the string as one char per byte: unchanged if it is ASCII, otherwise its UTF-8
+     *         bytes, like {@link HeadEncoder} writes them
+     */
+    private static String toLatin1(String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (s.charAt(i) >= 0x80)
+            {
+                return new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+            }
+        }
+        return s;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value)
+    {
+        int max = (1 << prefixBits) - 1;
+        if (value < max)
+        {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | max);
+        value -= max;
+        while (value >= 0x80)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s)
+    {
+        int huffmanLength = Huffman.encodedLength(s);
+        if (huffmanLength < s.length())
+        {
+            writeInt(out, 0x80, 7, huffmanLength);
+            Huffman.encode(s, out);
+            return;
+        }
+        writeInt(out, 0x00, 7, s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            out.write(s.charAt(i));
+        }
+    }
+}
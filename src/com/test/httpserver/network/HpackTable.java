@@ -0,0 +1,201 @@
+package com.test.httpserver.network;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Header table of HPACK (RFC 7541): the 61 entries of the static table followed by the dynamic
+ * table, newest entry first. Encoder and decoder each keep one per connection, and the dynamic
+ * parts stay in step because both apply the same additions and evictions. An entry counts its
+ * name and value length plus 32 against the table size, and the oldest entries are evicted to
+ * make room.
+ */
+final class HpackTable
+{
+    static final int STATIC_LENGTH = 61;
+    /**
+     * The static table from RFC 7541, Appendix A; names at even, values at odd positions
+     */
+    private static final String[] STATIC = { ":authority", "", ":method", "GET", ":method", "POST", ":path", "/",
+            ":path", "/index.html", ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204",
+            ":status", "206", ":status", "304", ":status", "400", ":status", "404", ":status", "500",
+            "accept-charset", "", "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "",
+            "accept", "", "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "",
+            "cache-control", "", "content-disposition", "", "content-encoding", "", "content-language", "",
+            "content-length", "", "content-location", "", "content-range", "", "content-type", "", "cookie", "",
+            "date", "", "etag", "", "expect", "", "expires", "", "from", "", "host", "", "if-match", "",
+            "if-modified-since", "", "if-none-match", "", "if-range", "", "if-unmodified-since", "",
+            "last-modified", "", "link", "", "location", "", "max-forwards", "", "proxy-authenticate", "",
+            "proxy-authorization", "", "range", "", "referer", "", "refresh", "", "retry-after", "", "server", "",
+            "set-cookie", "", "strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "",
+            "via", "", "www-authenticate", "" };
+    /**
+     * Index of the first static entry with a name
+     */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+    /**
+     * Index of the static entry with a name and value, keyed by name + '\n' + value
+     */
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+    static final int ENTRY_OVERHEAD = 32;
+
+    static
+    {
+        for (int index = STATIC_LENGTH; index >= 1; index--)
+        {
+            STATIC_NAMES.put(STATIC[2 * index - 2], index);
+            STATIC_FIELDS.put(STATIC[2 * index - 2] + '\n' + STATIC[2 * index - 1], index);
+        }
+    }
+
+    /**
+     * Dynamic entries in a ring, the newest at <code>head - 1</code>
+     */
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    HpackTable(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return number of entries, static and dynamic
+     */
+    int length()
+    {
+        return STATIC_LENGTH + count;
+    }
+
+    /**
+     * @throws IOException
+     *             if there is no entry at the 1-based <code>index</code>
+     */
+    String name(int index) throws IOException
+    {
+        if (index >= 1 && index <= STATIC_LENGTH)
+        {
+            return STATIC[2 * index - 2];
+        }
+        return names[slot(index)];
+    }
+
+    String value(int index) throws IOException
+    {
+        if (index >= 1 && index <= STATIC_LENGTH)
+        {
+            return STATIC[2 * index - 1];
+        }
+        return values[slot(index)];
+    }
+
+    private int slot(int index) throws IOException
+    {
+        if (index <= STATIC_LENGTH || index > STATIC_LENGTH + count)
+        {
+            throw new IOException("HPACK: no table entry " + index);
+        }
+        return (head - (index - STATIC_LENGTH)) & (names.length - 1);
+    }
+
+    /**
+     * Adds an entry as the newest one; one larger than the whole table just empties it.
+     */
+    void add(String name, String value)
+    {
+        int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize)
+        {
+            return;
+        }
+        if (count == names.length)
+        {
+            String[] largerNames = new String[2 * names.length];
+            String[] largerValues = new String[2 * values.length];
+            for (int i = 0; i < count; i++)
+            {
+                int from = (head - count + i) & (names.length - 1);
+                largerNames[i] = names[from];
+                largerValues[i] = values[from];
+            }
+            names = largerNames;
+            values = largerValues;
+            head = count;
+        }
+        names[head] = name;
+        values[head] = value;
+        head = (head + 1) & (names.length - 1);
+        count++;
+        size += entrySize;
+    }
+
+    void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    private void evict(int targetSize)
+    {
+        while (count > 0 && size > targetSize)
+        {
+            int oldest = (head - count) & (names.length - 1);
+            size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    /**
+     * @return index of an entry with this name and value, 0 if there is none
+     */
+    int find(String name, String value)
+    {
+        Integer index = STATIC_FIELDS.get(name + '\n' + value);
+        if (index != null)
+        {
+            return index;
+        }
+        for (int i = 1; i <= count; i++)
+        {
+            int slot = (head - i) & (names.length - 1);
+            if (names[slot].equals(name) && values[slot].equals(value))
+            {
+                return STATIC_LENGTH + i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return index of an entry with this name, 0 if there is none
+     */
+    int findName(String name)
+    {
+        Integer index = STATIC_NAMES.get(name);
+        if (index != null)
+        {
+            return index;
+        }
+        for (int i = 1; i <= count; i++)
+        {
+            if (names[(head - i) & (names.length - 1)].equals(name))
+            {
+                return STATIC_LENGTH + i;
+            }
+        }
+        return 0;
+    }
+}
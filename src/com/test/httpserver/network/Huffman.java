@@ -0,0 +1,171 @@
+package com.test.httpserver.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The static Huffman code of HPACK (RFC 7541, Appendix B). The code is canonical: codes of one
+ * length are consecutive in symbol order and each length continues where the shorter ones
+ * stopped, so the table below only lists the code length of every symbol and the codes are
+ * rebuilt from it. Strings are Latin-1, one byte per char.
+ */
+final class Huffman
+{
+    /**
+     * Code lengths of the symbols 0 to 255 and EOS (256)
+     */
+    private static final byte[] LENGTHS = { 13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28,
+            28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11,
+            8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6,
+            6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23,
+            23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22,
+            23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22,
+            23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21,
+            21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26,
+            26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30 };
+    private static final int EOS = 256;
+    private static final int[] CODES = new int[LENGTHS.length];
+    /**
+     * Decoding tree: the children of node n are at 2n (bit 0) and 2n + 1 (bit 1); a child is
+     * another node if positive, a symbol s stored as -(s + 1) if negative, 0 if unused
+     */
+    private static final int[] TREE;
+
+    static
+    {
+        Integer[] order = new Integer[LENGTHS.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return LENGTHS[a] != LENGTHS[b] ? LENGTHS[a] - LENGTHS[b] : a - b;
+            }
+        });
+        int code = 0;
+        int length = LENGTHS[order[0]];
+        for (int i = 0; i < order.length; i++)
+        {
+            int symbol = order[i];
+            if (i > 0)
+            {
+                code = (code + 1) << (LENGTHS[symbol] - length);
+                length = LENGTHS[symbol];
+            }
+            CODES[symbol] = code;
+        }
+
+        // a full binary tree with 257 leaves has 256 inner nodes; node 0 is unused
+        int[] tree = new int[2 * 257];
+        int nodes = 1;
+        for (int symbol = 0; symbol < CODES.length; symbol++)
+        {
+            int node = 1;
+            for (int bit = LENGTHS[symbol] - 1; bit > 0; bit--)
+            {
+                int child = 2 * node + ((CODES[symbol] >>> bit) & 1);
+                if (tree[child] == 0)
+                {
+                    tree[child] = ++nodes;
+                }
+                node = tree[child];
+            }
+            tree[2 * node + (CODES[symbol] & 1)] = -(symbol + 1);
+        }
+        TREE = tree;
+    }
+
+    private Huffman()
+    {
+    }
+
+    /**
+     * @return number of bytes <code>s</code> takes encoded
+     */
+    static int encodedLength(String s)
+    {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        }
+        return (int) ((bits + 7) / 8);
+    }
+
+    /**
+     * Writes <code>s</code> encoded, the last byte padded with the most significant bits of EOS.
+     */
+    static void encode(String s, ByteArrayOutputStream out)
+    {
+        long current = 0;
+        int bits = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            int symbol = s.charAt(i) & 0xff;
+            current = (current << LENGTHS[symbol]) | CODES[symbol];
+            bits += LENGTHS[symbol];
+            while (bits >= 8)
+            {
+                bits -= 8;
+                out.write((int) (current >>> bits));
+            }
+        }
+        if (bits > 0)
+        {
+            out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             if the string contains EOS or is padded with more than 7 bits or anything but
+     *             ones
+     */
+    static String decode(byte[] buf, int off, int len) throws IOException
+    {
+        StringBuilder decoded = new StringBuilder(len + len / 2);
+        int node = 1;
+        // bits read since the last complete symbol, and whether all of them were ones
+        int pending = 0;
+        boolean ones = true;
+        for (int i = off; i < off + len; i++)
+        {
+            int b = buf[i];
+            for (int bit = 7; bit >= 0; bit--)
+            {
+                int one = (b >>> bit) & 1;
+                int child = TREE[2 * node + one];
+                pending++;
+                ones &= one == 1;
+                if (child < 0)
+                {
+                    int symbol = -child - 1;
+                    if (symbol == EOS)
+                    {
+                        throw new IOException("HPACK: EOS in Huffman string");
+                    }
+                    decoded.append((char) symbol);
+                    node = 1;
+                    pending = 0;
+                    ones = true;
+                }
+                else
+                {
+                    node = child;
+                }
+            }
+        }
+        if (pending > 7 || !ones)
+        {
+            throw new IOException("HPACK: invalid Huffman padding");
+        }
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,544 @@
+package com.test.httpserver.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.server.MyHTTPServer.TempFileManager;
+import com.test.httpserver.server.MyHTTPServer.TempFileManager.TempFile;
+import com.test.httpserver.util.HTTPStatus;
+
+/**
+ * Streaming decoder for multipart/form-data bodies. The body is read once through a single pooled
+ * buffer and delimiters are found with a Boyer-Moore-Horspool search, so decoding is linear in the
+ * body size and memory use does not depend on it. Fields without a file name are collected as
+ * Strings; file parts are streamed to a {@link PartSink} or, if it declines, to a temp file.
+ */
+public final class MultipartParser
+{
+    /**
+     * Longest boundary allowed by RFC 2046.
+     */
+    public static final int MAX_BOUNDARY_LENGTH = 70;
+    /**
+     * Limit for the headers of a single part.
+     */
+    public static final int MAX_PART_HEADER_SIZE = 8192;
+    /**
+     * Bodies with more parts than this are rejected.
+     */
+    public static final int MAX_PARTS = 1000;
+
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+    private final InputStream in;
+    private long remaining;
+    private byte[] buf;
+    private int start;
+    private int end;
+
+    /**
+     * @param boundary
+     *            the boundary parameter of the Content-Type
+     * @param in
+     *            stream positioned at the start of the body
+     * @param length
+     *            the body length; nothing past it is read
+     * @throws ResponseException
+     *             with BAD_REQUEST if the boundary is empty or too long
+     */
+    public MultipartParser(String boundary, InputStream in, long length) throws ResponseException
+    {
+        if (boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH)
+        {
+            throw badRequest("BAD REQUEST: Invalid multipart boundary.");
+        }
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.in = in;
+        this.remaining = length;
+        // Horspool shift: distance from the last occurrence of a byte to the end of the delimiter
+        for (int i = 0; i < skip.length; i++)
+        {
+            skip[i] = delimiter.length;
+        }
+        for (int i = 0; i < delimiter.length - 1; i++)
+        {
+            skip[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+        }
+    }
+
+    /**
+     * Decodes the whole body, including the epilogue, so that the stream is left at the next
+     * request.
+     *
+     * @param request
+     *            passed on to the sink
+     * @param sink
+     *            receives file parts, may be null
+     * @param tmpFileManager
+     *            creates the temp files for file parts the sink declines
+     * @param maxFieldSize
+     *            fields larger than this are rejected with PAYLOAD_TOO_LARGE
+     * @param parms
+     *            receives the field values, and the file name of file parts
+     * @param files
+     *            receives the temp file path of file parts not taken by the sink
+     */
+    public void parse(HTTPRequest request, PartSink sink, TempFileManager tmpFileManager, int maxFieldSize,
+            Map<String, String> parms, Map<String, String> files) throws IOException, ResponseException
+    {
+        buf = BufferPool.IO_BUFFERS.acquire();
+        try
+        {
+            // the first delimiter has no CRLF in front of it; pretend the body starts with one
+            buf[0] = '\r';
+            buf[1] = '\n';
+            start = 0;
+            end = 2;
+            if (!copyToDelimiter(null, -1))
+            {
+                throw badRequest("BAD REQUEST: Multipart body has no boundary.");
+            }
+            int parts = 0;
+            while (true)
+            {
+                if (!ensure(2))
+                {
+                    throw unexpectedEnd();
+                }
+                if (buf[start] == '-' && buf[start + 1] == '-')
+                {
+                    // close delimiter, the rest is epilogue
+                    drain();
+                    return;
+                }
+                skipTransportPadding();
+                if (++parts > MAX_PARTS)
+                {
+                    throw badRequest("BAD REQUEST: Too many multipart parts.");
+                }
+                Part part = readPartHeaders();
+                if (part.getFileName() == null)
+                {
+                    ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    if (!copyToDelimiter(value, maxFieldSize))
+                    {
+                        throw unexpectedEnd();
+                    }
+                    parms.put(part.getName(), new String(value.toByteArray(), StandardCharsets.UTF_8));
+                    continue;
+                }
+                OutputStream out = sink != null ? sink.open(request, part) : null;
+                String path = null;
+                if (out == null)
+                {
+                    TempFile tempFile = createTempFile(tmpFileManager);
+                    path = tempFile.getName();
+                    out = openTempFile(tempFile);
+                }
+                try
+                {
+                    if (!copyToDelimiter(out, -1))
+                    {
+                        throw unexpectedEnd();
+                    }
+                }
+                finally
+                {
+                    HTTPServerUtils.safeClose(out);
+                }
+                parms.put(part.getName(), part.getFileName());
+                if (path != null)
+                {
+                    files.put(part.getName(), path);
+                }
+            }
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Passes the bytes up to the next delimiter to <code>out</code> (or drops them if null) and
+     * consumes the delimiter.
+     *
+     * @param limit
+     *            most bytes <code>out</code> may receive, -1 for no limit
+     * @return false if the body ended first
+     */
+    private boolean copyToDelimiter(OutputStream out, long limit) throws IOException, ResponseException
+    {
+        long copied = 0;
+        while (true)
+        {
+            int found = indexOfDelimiter();
+            // without a match, only bytes that cannot start a delimiter are safe to pass on
+            int safe = found >= 0 ? found : end - (delimiter.length - 1);
+            if (safe > start)
+            {
+                copied += safe - start;
+                if (limit >= 0 && copied > limit)
+                {
+                    throw new ResponseException(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Form field exceeds "
+                            + limit + " bytes.");
+                }
+                if (out != null)
+                {
+                    out.write(buf, start, safe - start);
+                }
+                start = safe;
+            }
+            if (found >= 0)
+            {
+                start += delimiter.length;
+                return true;
+            }
+            if (!fill())
+            {
+                return false;
+            }
+        }
+    }
+
+    private int indexOfDelimiter()
+    {
+        int n = delimiter.length;
+        int last = n - 1;
+        int i = start;
+        while (i + n <= end)
+        {
+            int j = last;
+            while (j >= 0 && buf[i + j] == delimiter[j])
+            {
+                j--;
+            }
+            if (j < 0)
+            {
+                return i;
+            }
+            i += skip[buf[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Skips the optional whitespace after a delimiter and the CRLF ending its line.
+     */
+    private void skipTransportPadding() throws IOException, ResponseException
+    {
+        while (true)
+        {
+            if (!ensure(2))
+            {
+                throw unexpectedEnd();
+            }
+            if (buf[start] == ' ' || buf[start] == '\t')
+            {
+                start++;
+            }
+            else if (buf[start] == '\r' && buf[start + 1] == '\n')
+            {
+                start += 2;
+                return;
+            }
+            else
+            {
+                throw badRequest("BAD REQUEST: Malformed multipart boundary line.");
+            }
+        }
+    }
+
+    private Part readPartHeaders() throws IOException, ResponseException
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        int headerSize = 0;
+        while (true)
+        {
+            int lf = start;
+            while (true)
+            {
+                while (lf < end && buf[lf] != '\n')
+                {
+                    lf++;
+                }
+                if (lf < end)
+                {
+                    break;
+                }
+                if (headerSize + (end - start) >= MAX_PART_HEADER_SIZE)
+                {
+                    throw badRequest("BAD REQUEST: Multipart headers too large.");
+                }
+                int scanned = lf - start;
+                if (!fill())
+                {
+                    throw unexpectedEnd();
+                }
+                lf = start + scanned;
+            }
+            if (lf == start || buf[lf - 1] != '\r')
+            {
+                throw badRequest("BAD REQUEST: Multipart header line not terminated by CRLF.");
+            }
+            int lineEnd = lf - 1;
+            headerSize += lf + 1 - start;
+            if (lineEnd == start)
+            {
+                start = lf + 1;
+                break;
+            }
+            String line = new String(buf, start, lineEnd - start, StandardCharsets.UTF_8);
+            start = lf + 1;
+            int p = line.indexOf(':');
+            if (p <= 0)
+            {
+                throw badRequest("BAD REQUEST: Malformed multipart header line.");
+            }
+            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+        }
+
+        String contentDisposition = headers.get("content-disposition");
+        if (contentDisposition == null)
+        {
+            throw badRequest("BAD REQUEST: Content type is multipart/form-data but no content-disposition info found.");
+        }
+        Map<String, String> disposition = parseParameters(contentDisposition);
+        String name = disposition.get("name");
+        if (name == null)
+        {
+            throw badRequest("BAD REQUEST: Multipart part without a name.");
+        }
+        return new Part(name, disposition.get("filename"), headers.get("content-type"), headers);
+    }
+
+    /**
+     * Parses the <code>key=value</code> parameters following the first token of a header value;
+     * values may be quoted strings. Keys are lower cased.
+     */
+    static Map<String, String> parseParameters(String value)
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        int i = value.indexOf(';');
+        int length = value.length();
+        while (i >= 0 && i < length)
+        {
+            i++;
+            while (i < length && (value.charAt(i) == ' ' || value.charAt(i) == '\t'))
+            {
+                i++;
+            }
+            int eq = i;
+            while (eq < length && value.charAt(eq) != '=' && value.charAt(eq) != ';')
+            {
+                eq++;
+            }
+            if (eq == length || value.charAt(eq) == ';')
+            {
+                i = eq;
+                continue;
+            }
+            String key = value.substring(i, eq).trim().toLowerCase(Locale.US);
+            i = eq + 1;
+            StringBuilder v = new StringBuilder();
+            if (i < length && value.charAt(i) == '"')
+            {
+                i++;
+                while (i < length && value.charAt(i) != '"')
+                {
+                    char c = value.charAt(i++);
+                    if (c == '\\' && i < length)
+                    {
+                        c = value.charAt(i++);
+                    }
+                    v.append(c);
+                }
+                // past the closing quote
+                i++;
+                while (i < length && value.charAt(i) != ';')
+                {
+                    i++;
+                }
+            }
+            else
+            {
+                int semi = value.indexOf(';', i);
+                int stop = semi >= 0 ? semi : length;
+                v.append(value, i, stop);
+                i = stop;
+                v.setLength(v.toString().trim().length());
+            }
+            parameters.put(key, v.toString());
+        }
+        return parameters;
+    }
+
+    /**
+     * Makes at least <code>n</code> bytes available from <code>start</code>.
+     */
+    private boolean ensure(int n) throws IOException
+    {
+        while (end - start < n)
+        {
+            if (!fill())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the unconsumed bytes to the front of the buffer and reads more behind them.
+     *
+     * @return false at the end of the body
+     */
+    private boolean fill() throws IOException
+    {
+        if (start > 0)
+        {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (remaining == 0)
+        {
+            return false;
+        }
+        int read = in.read(buf, end, (int) Math.min(buf.length - end, remaining));
+        if (read < 0)
+        {
+            remaining = 0;
+            return false;
+        }
+        remaining -= read;
+        end += read;
+        return true;
+    }
+
+    private void drain() throws IOException
+    {
+        start = end;
+        while (fill())
+        {
+            start = end;
+        }
+    }
+
+    private static TempFile createTempFile(TempFileManager tmpFileManager) throws IOException
+    {
+        try
+        {
+            return tmpFileManager.createTempFile();
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to create temp file for multipart upload", e);
+        }
+    }
+
+    private static OutputStream openTempFile(TempFile tempFile) throws IOException
+    {
+        try
+        {
+            return tempFile.open();
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to open temp file for multipart upload", e);
+        }
+    }
+
+    private static ResponseException unexpectedEnd()
+    {
+        return badRequest("BAD REQUEST: Multipart body ends before its close delimiter.");
+    }
+
+    private static ResponseException badRequest(String message)
+    {
+        return new ResponseException(HTTPStatus.BAD_REQUEST, message);
+    }
+
+    /**
+     * Destination for uploaded files, e.g. to stream them to storage without a temp file.
+     */
+    public interface PartSink
+    {
+        /**
+         * Called for every part that has a file name, before its content is read. The parser
+         * closes the returned stream once the part ends.
+         *
+         * @return the stream receiving the file content, or null to store it in a temp file
+         */
+        OutputStream open(HTTPRequest request, Part part) throws IOException;
+    }
+
+    /**
+     * Headers of a multipart part.
+     */
+    public static final class Part
+    {
+        private final String name;
+        private final String fileName;
+        private final String contentType;
+        private final Map<String, String> headers;
+
+        Part(String name, String fileName, String contentType, Map<String, String> headers)
+        {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+
+        /**
+         * @return the form field name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the file name sent by the client, null for plain fields
+         */
+        public String getFileName()
+        {
+            return fileName;
+        }
+
+        /**
+         * @return the part's Content-Type, null if absent
+         */
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        /**
+         * @return the part headers keyed by lower case name
+         */
+        public Map<String, String> getHeaders()
+        {
+            return headers;
+        }
+    }
+}
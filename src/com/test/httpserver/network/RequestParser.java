@@ -0,0 +1,558 @@
+package com.test.httpserver.network;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * Parses the request line and headers straight from the receive buffer. Scanning resumes where
+ * the previous call stopped, so a header arriving in many reads is scanned once. Only offsets are
+ * recorded; Strings are created when a value is asked for. Malformed input is rejected with
+ * {@link HTTPStatus#BAD_REQUEST}. So are heads a proxy in front could frame differently: a
+ * Content-Length that is not a plain number, several disagreeing ones, and an HTTP/1.1 request
+ * without exactly one Host.
+ * <p>
+ * The buffer must not be modified while its values are still being read.
+ */
+public final class RequestParser
+{
+    /**
+     * More header fields than this are rejected.
+     */
+    public static final int MAX_HEADERS = 100;
+
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf;
+    private int pos;
+    private int lineStart;
+    private boolean requestLineDone;
+    private int headerEnd = -1;
+
+    private Method method;
+    private int uriStart;
+    private int uriEnd;
+    private int versionStart;
+    private int versionEnd;
+
+    private int headerCount;
+    private int[] nameStart = new int[16];
+    private int[] nameEnd = new int[16];
+    private int[] valueStart = new int[16];
+    private int[] valueEnd = new int[16];
+
+    /**
+     * Prepares the parser for the next request.
+     */
+    public void reset()
+    {
+        buf = null;
+        pos = 0;
+        lineStart = 0;
+        requestLineDone = false;
+        headerEnd = -1;
+        method = null;
+        headerCount = 0;
+    }
+
+    /**
+     * Continues scanning <code>buf</code> up to <code>rlen</code>. The buffer must hold the same
+     * bytes as in previous calls, with new bytes appended.
+     *
+     * @return offset of the first byte after the header once it is complete, -1 while more bytes
+     *         are needed
+     * @throws ResponseException
+     *             with BAD_REQUEST if the request line or a header is malformed
+     */
+    public int parse(byte[] buf, int rlen) throws ResponseException
+    {
+        this.buf = buf;
+        while (headerEnd < 0)
+        {
+            int lf = pos;
+            while (lf < rlen && buf[lf] != '\n')
+            {
+                lf++;
+            }
+            if (lf == rlen)
+            {
+                pos = rlen;
+                return -1;
+            }
+            if (lf == lineStart || buf[lf - 1] != '\r')
+            {
+                throw badRequest("BAD REQUEST: Line not terminated by CRLF.");
+            }
+            int lineEnd = lf - 1;
+            if (!requestLineDone)
+            {
+                // a few clients send an empty line between pipelined requests
+                if (lineEnd > lineStart)
+                {
+                    parseRequestLine(lineStart, lineEnd);
+                    requestLineDone = true;
+                }
+            }
+            else if (lineEnd == lineStart)
+            {
+                checkHeaders();
+                headerEnd = lf + 1;
+            }
+            else
+            {
+                parseHeaderLine(lineStart, lineEnd);
+            }
+            pos = lf + 1;
+            lineStart = pos;
+        }
+        return headerEnd;
+    }
+
+    /**
+     * @return whether the whole header has been parsed
+     */
+    public boolean isComplete()
+    {
+        return headerEnd >= 0;
+    }
+
+    public Method getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * @return the request target as sent, before percent decoding
+     */
+    public String getTarget()
+    {
+        return new String(buf, uriStart, uriEnd - uriStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the protocol version, e.g. "HTTP/1.1"
+     */
+    public String getVersion()
+    {
+        if (regionEquals(versionStart, versionEnd, HTTP_1_1))
+        {
+            return "HTTP/1.1";
+        }
+        if (regionEquals(versionStart, versionEnd, HTTP_1_0))
+        {
+            return "HTTP/1.0";
+        }
+        return new String(buf, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+    }
+
+    public int getHeaderCount()
+    {
+        return headerCount;
+    }
+
+    /**
+     * Looks up a header without creating Strings for the others. When a header appears more than
+     * once the last value wins.
+     *
+     * @param lowerCaseName
+     *            the header name in lower case
+     * @return the trimmed value, or null if the header is absent
+     */
+    public String getHeader(String lowerCaseName)
+    {
+        int i = indexOf(lowerCaseName);
+        return i >= 0 ? value(i) : null;
+    }
+
+    /**
+     * @return a read-mostly map view of the headers keyed by lower case name; values are decoded
+     *         on demand
+     */
+    public Map<String, String> getHeaders()
+    {
+        return new HeaderMap();
+    }
+
+    private int indexOf(String lowerCaseName)
+    {
+        for (int i = headerCount - 1; i >= 0; i--)
+        {
+            if (nameEquals(i, lowerCaseName))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int i, String lowerCaseName)
+    {
+        int length = lowerCaseName.length();
+        if (nameEnd[i] - nameStart[i] != length)
+        {
+            return false;
+        }
+        int start = nameStart[i];
+        int j = 0;
+        while (j < length && toLowerCase(buf[start + j]) == lowerCaseName.charAt(j))
+        {
+            j++;
+        }
+        return j == length;
+    }
+
+    private String name(int i)
+    {
+        char[] chars = new char[nameEnd[i] - nameStart[i]];
+        for (int j = 0; j < chars.length; j++)
+        {
+            chars[j] = (char) toLowerCase(buf[nameStart[i] + j]);
+        }
+        return new String(chars);
+    }
+
+    private String value(int i)
+    {
+        return new String(buf, valueStart[i], valueEnd[i] - valueStart[i], StandardCharsets.ISO_8859_1);
+    }
+
+    private void parseRequestLine(int start, int end) throws ResponseException
+    {
+        int sp1 = start;
+        while (sp1 < end && isTokenChar(buf[sp1]))
+        {
+            sp1++;
+        }
+        if (sp1 == start || sp1 == end || buf[sp1] != ' ')
+        {
+            throw badRequest("BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+        }
+        method = lookupMethod(start, sp1);
+        if (method == null)
+        {
+            throw badRequest("BAD REQUEST: Syntax error.");
+        }
+        uriStart = sp1 + 1;
+        uriEnd = uriStart;
+        while (uriEnd < end && buf[uriEnd] > ' ' && buf[uriEnd] != 0x7f)
+        {
+            // checked here, decoding happens lazily where nothing can be answered with 400
+            if (buf[uriEnd] == '%'
+                    && (uriEnd + 2 >= end || !isHexDigit(buf[uriEnd + 1]) || !isHexDigit(buf[uriEnd + 2])))
+            {
+                throw badRequest("BAD REQUEST: Malformed percent encoding in URI.");
+            }
+            uriEnd++;
+        }
+        if (uriEnd == uriStart)
+        {
+            throw badRequest("BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+        }
+        if (uriEnd == end || buf[uriEnd] != ' ')
+        {
+            throw badRequest("BAD REQUEST: Missing protocol version.");
+        }
+        versionStart = uriEnd + 1;
+        versionEnd = end;
+        if (versionEnd - versionStart != 8 || buf[versionStart] != 'H' || buf[versionStart + 1] != 'T'
+                || buf[versionStart + 2] != 'T' || buf[versionStart + 3] != 'P' || buf[versionStart + 4] != '/'
+                || !isDigit(buf[versionStart + 5]) || buf[versionStart + 6] != '.' || !isDigit(buf[versionStart + 7]))
+        {
+            throw badRequest("BAD REQUEST: Invalid protocol version.");
+        }
+    }
+
+    /**
+     * Rejects the heads that are framed or routed by one header among several.
+     */
+    private void checkHeaders() throws ResponseException
+    {
+        int contentLength = -1;
+        int hosts = 0;
+        for (int i = 0; i < headerCount; i++)
+        {
+            if (nameEquals(i, "content-length"))
+            {
+                if (parseContentLength(value(i)) < 0)
+                {
+                    throw badRequest("BAD REQUEST: Invalid Content-Length.");
+                }
+                if (contentLength >= 0 && !regionEquals(valueStart[i], valueEnd[i], valueStart[contentLength],
+                        valueEnd[contentLength]))
+                {
+                    throw badRequest("BAD REQUEST: Conflicting Content-Length headers.");
+                }
+                contentLength = i;
+            }
+            else if (nameEquals(i, "host"))
+            {
+                hosts++;
+            }
+        }
+        if (hosts > 1 || hosts == 0 && regionEquals(versionStart, versionEnd, HTTP_1_1))
+        {
+            throw badRequest("BAD REQUEST: An HTTP/1.1 request needs exactly one Host header.");
+        }
+    }
+
+    /**
+     * Content-Length is 1*DIGIT and nothing else: no sign, no list and no whitespace inside.
+     *
+     * @return the length, -1 if the value is malformed or too large
+     */
+    public static long parseContentLength(String value)
+    {
+        int length = value.length();
+        if (length == 0 || length > 18)
+        {
+            return -1;
+        }
+        long result = 0;
+        for (int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private void parseHeaderLine(int start, int end) throws ResponseException
+    {
+        if (buf[start] == ' ' || buf[start] == '\t')
+        {
+            throw badRequest("BAD REQUEST: Folded header lines are not supported.");
+        }
+        int colon = start;
+        while (colon < end && isTokenChar(buf[colon]))
+        {
+            colon++;
+        }
+        if (colon == start || colon == end || buf[colon] != ':')
+        {
+            throw badRequest("BAD REQUEST: Malformed header line.");
+        }
+        int vStart = colon + 1;
+        int vEnd = end;
+        while (vStart < vEnd && (buf[vStart] == ' ' || buf[vStart] == '\t'))
+        {
+            vStart++;
+        }
+        while (vEnd > vStart && (buf[vEnd - 1] == ' ' || buf[vEnd - 1] == '\t'))
+        {
+            vEnd--;
+        }
+        for (int i = vStart; i < vEnd; i++)
+        {
+            byte b = buf[i];
+            if ((b >= 0 && b < ' ' && b != '\t') || b == 0x7f)
+            {
+                throw badRequest("BAD REQUEST: Control character in header value.");
+            }
+        }
+        if (headerCount == MAX_HEADERS)
+        {
+            throw badRequest("BAD REQUEST: Too many headers.");
+        }
+        if (headerCount == nameStart.length)
+        {
+            nameStart = grow(nameStart);
+            nameEnd = grow(nameEnd);
+            valueStart = grow(valueStart);
+            valueEnd = grow(valueEnd);
+        }
+        nameStart[headerCount] = start;
+        nameEnd[headerCount] = colon;
+        valueStart[headerCount] = vStart;
+        valueEnd[headerCount] = vEnd;
+        headerCount++;
+    }
+
+    private Method lookupMethod(int start, int end)
+    {
+        for (Method m : Method.values())
+        {
+            String name = m.name();
+            if (name.length() != end - start)
+            {
+                continue;
+            }
+            int j = 0;
+            while (j < name.length() && buf[start + j] == name.charAt(j))
+            {
+                j++;
+            }
+            if (j == name.length())
+            {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private boolean regionEquals(int start, int end, int otherStart, int otherEnd)
+    {
+        if (end - start != otherEnd - otherStart)
+        {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++)
+        {
+            if (buf[start + i] != buf[otherStart + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int start, int end, byte[] expected)
+    {
+        if (end - start != expected.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++)
+        {
+            if (buf[start + i] != expected[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] grow(int[] array)
+    {
+        int[] larger = new int[array.length * 2];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private static int toLowerCase(byte b)
+    {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isHexDigit(int b)
+    {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+
+    /**
+     * Checks a request target that did not come through the parser, e.g. the :path of an HTTP/2
+     * stream, the way the parser checks its own.
+     *
+     * @return whether every '%' starts an escape of two hex digits
+     */
+    static boolean isPercentEncoded(String target)
+    {
+        for (int i = target.indexOf('%'); i >= 0; i = target.indexOf('%', i + 1))
+        {
+            if (i + 2 >= target.length() || !isHexDigit(target.charAt(i + 1)) || !isHexDigit(target.charAt(i + 2)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * tchar from RFC 7230.
+     */
+    private static boolean isTokenChar(byte b)
+    {
+        if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9'))
+        {
+            return true;
+        }
+        switch (b)
+        {
+        case '!': case '#': case '$': case '%': case '&': case '\'': case '*': case '+':
+        case '-': case '.': case '^': case '_': case '`': case '|': case '~':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static ResponseException badRequest(String message)
+    {
+        return new ResponseException(HTTPStatus.BAD_REQUEST, message);
+    }
+
+    /**
+     * Header map backed by the parser offsets. Lookups decode only the requested value; iterating
+     * or modifying the map copies all headers into a regular map first.
+     */
+    private final class HeaderMap extends AbstractMap<String, String>
+    {
+        private Map<String, String> copy;
+
+        @Override
+        public String get(Object key)
+        {
+            if (copy != null)
+            {
+                return copy.get(key);
+            }
+            return key instanceof String ? getHeader((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            if (copy != null)
+            {
+                return copy.containsKey(key);
+            }
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public String put(String key, String value)
+        {
+            return copy().put(key, value);
+        }
+
+        @Override
+        public String remove(Object key)
+        {
+            return copy().remove(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet()
+        {
+            return copy().entrySet();
+        }
+
+        private Map<String, String> copy()
+        {
+            if (copy == null)
+            {
+                copy = new HashMap<String, String>();
+                for (int i = 0; i < headerCount; i++)
+                {
+                    copy.put(name(i), value(i));
+                }
+            }
+            return copy;
+        }
+    }
+}
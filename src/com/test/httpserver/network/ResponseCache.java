@@ -0,0 +1,771 @@
+package com.test.httpserver.network;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * Keeps serialized GET responses in memory so that repeated requests are answered without
+ * calling a handler. Responses are stored only when they allow it with
+ * <code>Cache-Control: max-age</code> (or <code>s-maxage</code>), for that long, keyed by the
+ * request target and the request headers named in their Vary header. HEAD requests are
+ * answered from GET entries.
+ * <p>
+ * The cache holds at most its capacity in bytes. Eviction follows W-TinyLFU: new entries wait in
+ * a small LRU window, and leave it for the main space only if they were requested more often
+ * than the entry they would displace. Request frequencies are kept approximately in a count-min
+ * sketch that halves periodically, so a scan of one-off URIs cannot flush the popular entries.
+ * <p>
+ * Lookups take no lock. Each one is recorded in a ring buffer of its thread's stripe instead,
+ * and the buffers are replayed into the sketch and the LRU order under the lock, by whoever
+ * finds a buffer full or stores a response. A read that finds its buffer full or contended is
+ * dropped; the eviction policy only needs a sample.
+ */
+public class ResponseCache
+{
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    /**
+     * Bytes per entry the frequency sketch is sized for
+     */
+    private static final int SKETCH_BYTES_PER_ENTRY = 1024;
+    /**
+     * Read buffer stripes, a power of two
+     */
+    private static final int READ_BUFFERS = Integer.highestOneBit(
+            Math.min(64, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+    /**
+     * Changed under the lock, read without it
+     */
+    private final Map<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+    private final Map<String, VaryInfo> varyByTarget = new ConcurrentHashMap<String, VaryInfo>();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    /**
+     * Guards the queues, the sketch and the changes of the maps
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue[] queues = { new Queue(WINDOW), new Queue(PROBATION), new Queue(PROTECTED) };
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // written under the lock
+    private volatile long stores;
+    private volatile long evictions;
+    private volatile long rejections;
+    private volatile long expirations;
+    private volatile long size;
+
+    /**
+     * @param capacity
+     *            bytes of serialized responses to keep
+     */
+    public ResponseCache(long capacity)
+    {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(64, capacity / SKETCH_BYTES_PER_ENTRY)));
+        for (int i = 0; i < readBuffers.length; i++)
+        {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    /**
+     * @return the cached response for the request, null if the request has to be handled
+     */
+    public HTTPResponse get(HTTPRequest request)
+    {
+        if (!isCacheableRequest(request) || hasDirective(request.getHeaders().get("cache-control"), "no-cache")
+                || hasDirective(request.getHeaders().get("pragma"), "no-cache"))
+        {
+            return null;
+        }
+        String target = request.getTarget();
+        VaryInfo vary = varyByTarget.get(target);
+        String key = key(target, vary != null ? vary.names : null, request);
+        Node node = nodes.get(key);
+        if (node != null && node.entry.expires <= System.currentTimeMillis())
+        {
+            expire(node);
+            node = null;
+        }
+        // a miss counts for the frequency of the key, a hit for the LRU order as well
+        recordRead(node != null ? node : key);
+        if (node == null)
+        {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new HTTPResponse(node.entry);
+    }
+
+    private void expire(Node node)
+    {
+        lock.lock();
+        try
+        {
+            if (nodes.get(node.key) == node)
+            {
+                remove(node);
+                expirations++;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a read to the buffer of the thread's stripe, and replays the buffers if it is full
+     * and nobody else holds the lock.
+     *
+     * @param read
+     *            the node found, or the key of a miss
+     */
+    private void recordRead(Object read)
+    {
+        int h = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        ReadBuffer buffer = readBuffers[(h ^ (h >>> 16)) & (READ_BUFFERS - 1)];
+        if (buffer.offer(read) && lock.tryLock())
+        {
+            try
+            {
+                drainReads();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the recorded reads; the caller holds the lock.
+     */
+    private void drainReads()
+    {
+        for (ReadBuffer buffer : readBuffers)
+        {
+            Object read;
+            while ((read = buffer.poll()) != null)
+            {
+                if (read instanceof Node)
+                {
+                    Node node = (Node) read;
+                    sketch.increment(node.key.hashCode());
+                    // unless removed since
+                    if (nodes.get(node.key) == node)
+                    {
+                        onHit(node);
+                    }
+                }
+                else
+                {
+                    sketch.increment(read.hashCode());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the response if the request and the response allow it. A stored response is
+     * turned into its serialized form, which is then sent to this client too.
+     */
+    public void put(HTTPRequest request, HTTPResponse response) throws IOException
+    {
+        if (request.getMethod() != Method.GET || !isCacheableRequest(request)
+                || hasDirective(request.getHeaders().get("cache-control"), "no-store"))
+        {
+            return;
+        }
+        HTTPStatus status = response.getStatus();
+        if (response.getFileRegions() != null || response.isCached()
+                || (status != HTTPStatus.OK && status != HTTPStatus.REDIRECT && status != HTTPStatus.NOT_FOUND))
+        {
+            return;
+        }
+        long maxAge = getMaxAge(response.getHeader("Cache-Control"));
+        String vary = response.getHeader("Vary");
+        if (maxAge <= 0 || response.getHeader("Set-Cookie") != null || (vary != null && vary.contains("*")))
+        {
+            return;
+        }
+        Entry entry = response.toCacheEntry(maxEntrySize, System.currentTimeMillis() + maxAge * 1000);
+        if (entry == null || entry.size() > capacity)
+        {
+            return;
+        }
+        String target = request.getTarget();
+        String[] varyNames = parseVary(vary);
+        lock.lock();
+        try
+        {
+            // the frequencies decide what is admitted
+            drainReads();
+            String key = key(target, varyNames, request);
+            Node old = nodes.get(key);
+            if (old != null)
+            {
+                remove(old);
+            }
+            VaryInfo info = varyByTarget.get(target);
+            if (info != null && !sameNames(info.names, varyNames))
+            {
+                // the resource changed what it varies on, older variants can no longer be found
+                removeTarget(target);
+                info = null;
+            }
+            if (info == null)
+            {
+                info = new VaryInfo(varyNames);
+                varyByTarget.put(target, info);
+            }
+            Node node = new Node(key, target, entry);
+            nodes.put(key, node);
+            info.entries++;
+            queues[WINDOW].addLast(node);
+            stores++;
+            while (queues[WINDOW].bytes > windowCapacity && queues[WINDOW].head != null)
+            {
+                Node candidate = queues[WINDOW].head;
+                queues[WINDOW].remove(candidate);
+                queues[PROBATION].addLast(candidate);
+                evict(candidate);
+            }
+            evict(null);
+            size = size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all entries, e.g. after the content behind them changed.
+     */
+    public void clear()
+    {
+        lock.lock();
+        try
+        {
+            nodes.clear();
+            varyByTarget.clear();
+            for (Queue queue : queues)
+            {
+                queue.head = null;
+                queue.tail = null;
+                queue.bytes = 0;
+            }
+            size = 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isCacheableRequest(HTTPRequest request)
+    {
+        Method method = request.getMethod();
+        return (method == Method.GET || method == Method.HEAD) && request.getHeaders().get("authorization") == null;
+    }
+
+    private void onHit(Node node)
+    {
+        switch (node.queue)
+        {
+        case WINDOW:
+            queues[WINDOW].moveToEnd(node);
+            break;
+        case PROBATION:
+            queues[PROBATION].remove(node);
+            queues[PROTECTED].addLast(node);
+            while (queues[PROTECTED].bytes > protectedCapacity)
+            {
+                Node demoted = queues[PROTECTED].head;
+                queues[PROTECTED].remove(demoted);
+                queues[PROBATION].addLast(demoted);
+            }
+            break;
+        default:
+            queues[PROTECTED].moveToEnd(node);
+        }
+    }
+
+    /**
+     * Evicts until the cache is within its capacity. A candidate that just left the window is
+     * kept only if it is requested more often than the probation entry it would replace.
+     */
+    private void evict(Node candidate)
+    {
+        while (size() > capacity)
+        {
+            Node victim = queues[PROBATION].head;
+            if (victim == null)
+            {
+                victim = queues[PROTECTED].head != null ? queues[PROTECTED].head : queues[WINDOW].head;
+            }
+            if (candidate != null && victim != candidate && candidate.queue == PROBATION
+                    && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode()))
+            {
+                remove(candidate);
+                rejections++;
+                return;
+            }
+            remove(victim);
+            evictions++;
+        }
+    }
+
+    private void remove(Node node)
+    {
+        queues[node.queue].remove(node);
+        nodes.remove(node.key);
+        VaryInfo info = varyByTarget.get(node.target);
+        if (info != null && --info.entries == 0)
+        {
+            varyByTarget.remove(node.target);
+        }
+        size = size();
+    }
+
+    private void removeTarget(String target)
+    {
+        for (Queue queue : queues)
+        {
+            Node node = queue.head;
+            while (node != null)
+            {
+                Node next = node.next;
+                if (node.target.equals(target))
+                {
+                    remove(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private long size()
+    {
+        return queues[WINDOW].bytes + queues[PROBATION].bytes + queues[PROTECTED].bytes;
+    }
+
+    private static String key(String target, String[] varyNames, HTTPRequest request)
+    {
+        if (varyNames == null || varyNames.length == 0)
+        {
+            return target;
+        }
+        StringBuilder key = new StringBuilder(target);
+        for (String name : varyNames)
+        {
+            String value = request.getHeaders().get(name);
+            key.append('\0').append(value != null ? value : "");
+        }
+        return key.toString();
+    }
+
+    private static String[] parseVary(String vary)
+    {
+        if (vary == null)
+        {
+            return null;
+        }
+        String[] names = vary.split(",");
+        for (int i = 0; i < names.length; i++)
+        {
+            names[i] = names[i].trim().toLowerCase(Locale.US);
+        }
+        return names;
+    }
+
+    private static boolean sameNames(String[] a, String[] b)
+    {
+        return Arrays.equals(a, b) || ((a == null || a.length == 0) && (b == null || b.length == 0));
+    }
+
+    /**
+     * @return seconds the response may be cached, 0 if it must not be
+     */
+    static long getMaxAge(String cacheControl)
+    {
+        if (cacheControl == null)
+        {
+            return 0;
+        }
+        long maxAge = 0;
+        for (String directive : cacheControl.split(","))
+        {
+            directive = directive.trim().toLowerCase(Locale.US);
+            if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private"))
+            {
+                return 0;
+            }
+            boolean shared = directive.startsWith("s-maxage=");
+            if (shared || (directive.startsWith("max-age=") && maxAge == 0))
+            {
+                try
+                {
+                    maxAge = Long.parseLong(directive.substring(directive.indexOf('=') + 1).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    return 0;
+                }
+                if (shared)
+                {
+                    // s-maxage overrides max-age for shared caches
+                    break;
+                }
+            }
+        }
+        return Math.max(0, maxAge);
+    }
+
+    private static boolean hasDirective(String value, String directive)
+    {
+        return value != null && value.toLowerCase(Locale.US).contains(directive);
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getMaxEntrySize()
+    {
+        return maxEntrySize;
+    }
+
+    /**
+     * Responses with longer bodies are not cached. Defaults to 1 MB.
+     */
+    public void setMaxEntrySize(int maxEntrySize)
+    {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of responses stored
+     */
+    public long getStores()
+    {
+        return stores;
+    }
+
+    /**
+     * @return number of entries evicted to make room
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return number of new entries dropped because they were requested less often than the
+     *         entry they would have replaced
+     */
+    public long getRejections()
+    {
+        return rejections;
+    }
+
+    public long getExpirations()
+    {
+        return expirations;
+    }
+
+    public int getEntryCount()
+    {
+        return nodes.size();
+    }
+
+    /**
+     * @return bytes held by the cached responses
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResponseCache[entries=" + getEntryCount() + ", size=" + getSize() + "/" + capacity + ", hits="
+                + getHits() + ", misses=" + getMisses() + ", stores=" + getStores() + ", evictions="
+                + getEvictions() + ", rejections=" + getRejections() + ", expirations=" + getExpirations() + "]";
+    }
+
+    /**
+     * A serialized response: the status line and headers except Date and Connection, which are
+     * added per response, and the body.
+     */
+    static final class Entry
+    {
+        final HTTPStatus status;
+        final byte[] head;
+        final byte[] body;
+        final long created;
+        final long expires;
+
+        Entry(HTTPStatus status, byte[] head, byte[] body, long created, long expires)
+        {
+            this.status = status;
+            this.head = head;
+            this.body = body;
+            this.created = created;
+            this.expires = expires;
+        }
+
+        int size()
+        {
+            return head.length + body.length;
+        }
+    }
+
+    private static final class VaryInfo
+    {
+        final String[] names;
+        /**
+         * Guarded by the lock
+         */
+        int entries;
+
+        VaryInfo(String[] names)
+        {
+            this.names = names;
+        }
+    }
+
+    private static final class Node
+    {
+        final String key;
+        final String target;
+        final Entry entry;
+        final int weight;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(String key, String target, Entry entry)
+        {
+            this.key = key;
+            this.target = target;
+            this.entry = entry;
+            // the key is held too
+            this.weight = entry.size() + 2 * key.length();
+        }
+    }
+
+    /**
+     * Doubly linked LRU list, least recently used first, that tracks its size in bytes.
+     */
+    private static final class Queue
+    {
+        final int id;
+        Node head;
+        Node tail;
+        long bytes;
+
+        Queue(int id)
+        {
+            this.id = id;
+        }
+
+        void addLast(Node node)
+        {
+            node.queue = id;
+            node.prev = tail;
+            node.next = null;
+            if (tail != null)
+            {
+                tail.next = node;
+            }
+            else
+            {
+                head = node;
+            }
+            tail = node;
+            bytes += node.weight;
+        }
+
+        void remove(Node node)
+        {
+            if (node.prev != null)
+            {
+                node.prev.next = node.next;
+            }
+            else
+            {
+                head = node.next;
+            }
+            if (node.next != null)
+            {
+                node.next.prev = node.prev;
+            }
+            else
+            {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            bytes -= node.weight;
+        }
+
+        void moveToEnd(Node node)
+        {
+            if (node != tail)
+            {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Lossy ring buffer of reads with many writers and one reader, the holder of the lock.
+     */
+    private static final class ReadBuffer
+    {
+        static final int SIZE = 16;
+
+        final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<Object>(SIZE);
+        final AtomicLong writes = new AtomicLong();
+        volatile long reads;
+
+        /**
+         * Adds a read unless the buffer is full or another thread adds at the same time.
+         *
+         * @return true if the buffer is full and should be drained
+         */
+        boolean offer(Object read)
+        {
+            long head = reads;
+            long tail = writes.get();
+            if (tail - head >= SIZE)
+            {
+                return true;
+            }
+            if (writes.compareAndSet(tail, tail + 1))
+            {
+                slots.lazySet((int) tail & (SIZE - 1), read);
+                return tail + 1 - head >= SIZE;
+            }
+            return false;
+        }
+
+        /**
+         * @return the oldest read, null if there is none or it is still being written
+         */
+        Object poll()
+        {
+            long head = reads;
+            if (head == writes.get())
+            {
+                return null;
+            }
+            int index = (int) head & (SIZE - 1);
+            Object read = slots.get(index);
+            if (read != null)
+            {
+                slots.lazySet(index, null);
+                reads = head + 1;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters, four per key, packed sixteen to a long. When the
+     * number of increments reaches ten times the table size all counters are halved, so the
+     * frequencies follow recent popularity.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int[] SEEDS = { 0x97cb3127, 0xc3a5c85c, 0x9ae16a3b, 0x7ed558cd };
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries)
+        {
+            int length = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            table = new long[length];
+            mask = length - 1;
+            sampleSize = 10 * length;
+        }
+
+        int frequency(int hash)
+        {
+            int min = 15;
+            for (int i = 0; i < SEEDS.length; i++)
+            {
+                int h = rehash(hash, i);
+                min = Math.min(min, (int) (table[(h >>> 4) & mask] >>> ((h & 15) << 2)) & 15);
+            }
+            return min;
+        }
+
+        void increment(int hash)
+        {
+            for (int i = 0; i < SEEDS.length; i++)
+            {
+                int h = rehash(hash, i);
+                int slot = (h >>> 4) & mask;
+                int shift = (h & 15) << 2;
+                if (((table[slot] >>> shift) & 15) < 15)
+                {
+                    table[slot] += 1L << shift;
+                }
+            }
+            if (++additions >= sampleSize)
+            {
+                for (int i = 0; i < table.length; i++)
+                {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        private static int rehash(int hash, int i)
+        {
+            int h = hash * SEEDS[i];
+            return h ^ (h >>> 17);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.test.httpserver.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * Compresses response bodies with the gzip or deflate content coding the client accepts. Bodies
+ * are deflated while they are sent, as chunks, with {@link Deflater}s taken from a pool. Small
+ * bodies, bodies of already compressed types and file bodies, which are sent without copying,
+ * are left alone.
+ * <p>
+ * With a cache capacity, bodies up to {@link #getMaxCachedBodySize()} are compressed once: they
+ * are read in whole, looked up by the SHA-256 of their content and, when found, sent as the
+ * compressed bytes of an earlier response with a Content-Length.
+ */
+public class ResponseCompressor
+{
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    /**
+     * Bodies shorter than this are not worth the compression overhead.
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    public static final int DEFAULT_MAX_CACHED_BODY_SIZE = 256 * 1024;
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+    private static final String[] DEFAULT_SKIPPED_TYPES = { "image/*", "video/*", "audio/*", "font/woff",
+            "font/woff2", "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed", "application/pdf",
+            "application/octet-stream" };
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try
+            {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final DeflaterPool gzipDeflaters;
+    private final DeflaterPool zlibDeflaters;
+    private final Set<String> skippedTypes = new HashSet<String>(Arrays.asList(DEFAULT_SKIPPED_TYPES));
+    private int minSize = DEFAULT_MIN_SIZE;
+    private int maxCachedBodySize = DEFAULT_MAX_CACHED_BODY_SIZE;
+    private final long cacheCapacity;
+    private final Map<CacheKey, byte[]> cache = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true);
+    private long cachedBytes;
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * Compresses at the default level, without a cache.
+     */
+    public ResponseCompressor()
+    {
+        this(Deflater.DEFAULT_COMPRESSION, 0);
+    }
+
+    /**
+     * @param level
+     *            Deflater level, 1 (fastest) to 9 (smallest)
+     * @param cacheCapacity
+     *            bytes of compressed bodies to keep, least recently used first out; 0 for no
+     *            cache
+     */
+    public ResponseCompressor(int level, long cacheCapacity)
+    {
+        this.gzipDeflaters = new DeflaterPool(level, true, 256);
+        this.zlibDeflaters = new DeflaterPool(level, false, 64);
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    /**
+     * Chooses a coding for the response, if it is worth compressing and the request accepts one,
+     * and marks compressible responses with "Vary: Accept-Encoding" for caches in between.
+     * Responses to HTTP/1.0 requests are not compressed, they could not be sent as chunks; an
+     * HTTP/2 stream frames a body of unknown length itself.
+     */
+    public void apply(HTTPRequest request, HTTPResponse response) throws IOException
+    {
+        if (!isCompressible(response))
+        {
+            return;
+        }
+        String vary = response.getHeader("Vary");
+        response.addHeader("Vary", vary == null ? "Accept-Encoding" : vary + ", Accept-Encoding");
+        String version = request.getProtocolVersion();
+        if (!"HTTP/1.1".equals(version) && !"HTTP/2.0".equals(version))
+        {
+            return;
+        }
+        String coding = negotiate(request.getHeaders().get("accept-encoding"));
+        if (coding != null)
+        {
+            response.setContentEncoding(coding, this);
+        }
+    }
+
+    /**
+     * Picks gzip or deflate from an Accept-Encoding value by quality, gzip on a tie.
+     *
+     * @return the coding, null if the client accepts neither
+     */
+    public static String negotiate(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String element : acceptEncoding.split(","))
+        {
+            String coding = element;
+            float q = 1;
+            int semicolon = element.indexOf(';');
+            if (semicolon >= 0)
+            {
+                coding = element.substring(0, semicolon);
+                q = parseQuality(element.substring(semicolon + 1));
+            }
+            coding = coding.trim().toLowerCase(Locale.US);
+            if (GZIP.equals(coding) || "x-gzip".equals(coding))
+            {
+                gzip = q;
+            }
+            else if (DEFLATE.equals(coding))
+            {
+                deflate = q;
+            }
+            else if ("*".equals(coding))
+            {
+                any = q;
+            }
+        }
+        if (gzip < 0)
+        {
+            gzip = any;
+        }
+        if (deflate < 0)
+        {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate)
+        {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static float parseQuality(String parameters)
+    {
+        for (String parameter : parameters.split(";"))
+        {
+            parameter = parameter.trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q="))
+            {
+                try
+                {
+                    return Float.parseFloat(parameter.substring(2).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private boolean isCompressible(HTTPResponse response) throws IOException
+    {
+        if (response.getFileRegions() != null || response.getData() == null
+                || response.getRequestMethod() == Method.HEAD)
+        {
+            return false;
+        }
+        HTTPStatus status = response.getStatus();
+        if (status == HTTPStatus.NO_CONTENT || status == HTTPStatus.PARTIAL_CONTENT
+                || status == HTTPStatus.NOT_MODIFIED)
+        {
+            return false;
+        }
+        if (response.getHeader("Content-Encoding") != null || response.getHeader("Content-Range") != null)
+        {
+            return false;
+        }
+        if (isSkippedType(response.getMimeType()))
+        {
+            return false;
+        }
+        long length = response.getBodyLength();
+        return length < 0 || length >= minSize;
+    }
+
+    /**
+     * Structured syntaxes such as image/svg+xml are text and compressed even if their top level
+     * type is skipped.
+     */
+    private boolean isSkippedType(String mimeType)
+    {
+        if (mimeType == null)
+        {
+            return true;
+        }
+        int semicolon = mimeType.indexOf(';');
+        String type = (semicolon >= 0 ? mimeType.substring(0, semicolon) : mimeType).trim().toLowerCase(Locale.US);
+        if (type.endsWith("+xml") || type.endsWith("+json"))
+        {
+            return false;
+        }
+        int slash = type.indexOf('/');
+        return skippedTypes.contains(type) || (slash > 0 && skippedTypes.contains(type.substring(0, slash) + "/*"));
+    }
+
+    /**
+     * Streams <code>in</code> to <code>out</code> compressed with the given coding.
+     */
+    public void compress(InputStream in, String coding, OutputStream out) throws IOException
+    {
+        boolean gzip = GZIP.equals(coding);
+        DeflaterPool pool = gzip ? gzipDeflaters : zlibDeflaters;
+        Deflater deflater = pool.acquire();
+        CRC32 crc = gzip ? new CRC32() : null;
+        byte[] input = BufferPool.IO_BUFFERS.acquire();
+        byte[] output = BufferPool.IO_BUFFERS.acquire();
+        try
+        {
+            if (gzip)
+            {
+                out.write(GZIP_HEADER);
+            }
+            int read;
+            while ((read = in.read(input)) > 0)
+            {
+                if (crc != null)
+                {
+                    crc.update(input, 0, read);
+                }
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput())
+                {
+                    int n = deflater.deflate(output);
+                    if (n > 0)
+                    {
+                        out.write(output, 0, n);
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                int n = deflater.deflate(output);
+                if (n > 0)
+                {
+                    out.write(output, 0, n);
+                }
+            }
+            long written = deflater.getBytesWritten() + (gzip ? GZIP_HEADER.length + 8 : 0);
+            if (gzip)
+            {
+                writeIntLE(output, 0, (int) crc.getValue());
+                writeIntLE(output, 4, (int) deflater.getBytesRead());
+                out.write(output, 0, 8);
+            }
+            compressed.increment();
+            bytesIn.add(deflater.getBytesRead());
+            bytesOut.add(written);
+        }
+        finally
+        {
+            BufferPool.IO_BUFFERS.release(input);
+            BufferPool.IO_BUFFERS.release(output);
+            pool.release(deflater);
+        }
+    }
+
+    /**
+     * Compresses a whole body, or returns the compressed bytes of an equal body from the cache.
+     * The returned array must not be modified.
+     */
+    public byte[] compress(byte[] body, int length, String coding) throws IOException
+    {
+        CacheKey key = null;
+        if (cacheCapacity > 0)
+        {
+            MessageDigest digest = DIGESTS.get();
+            digest.update(body, 0, length);
+            key = new CacheKey(coding, digest.digest());
+            byte[] cached;
+            synchronized (cache)
+            {
+                cached = cache.get(key);
+            }
+            if (cached != null)
+            {
+                cacheHits.increment();
+                return cached;
+            }
+            cacheMisses.increment();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 32);
+        compress(new ByteArrayInputStream(body, 0, length), coding, out);
+        byte[] result = out.toByteArray();
+        if (key != null && result.length <= cacheCapacity)
+        {
+            synchronized (cache)
+            {
+                byte[] previous = cache.put(key, result);
+                cachedBytes += result.length - (previous != null ? previous.length : 0);
+                Iterator<byte[]> eldest = cache.values().iterator();
+                while (cachedBytes > cacheCapacity)
+                {
+                    cachedBytes -= eldest.next().length;
+                    eldest.remove();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return whether a body of the given length is compressed through the cache
+     */
+    boolean isCached(long length)
+    {
+        return cacheCapacity > 0 && length >= 0 && length <= maxCachedBodySize;
+    }
+
+    private static void writeIntLE(byte[] dst, int offset, int value)
+    {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >>> 8);
+        dst[offset + 2] = (byte) (value >>> 16);
+        dst[offset + 3] = (byte) (value >>> 24);
+    }
+
+    public int getMinSize()
+    {
+        return minSize;
+    }
+
+    /**
+     * Bodies known to be shorter are sent uncompressed. Defaults to 1 KB.
+     */
+    public void setMinSize(int minSize)
+    {
+        this.minSize = minSize;
+    }
+
+    public int getMaxCachedBodySize()
+    {
+        return maxCachedBodySize;
+    }
+
+    /**
+     * Longest body compressed through the cache; longer ones are streamed. Defaults to 256 KB.
+     */
+    public void setMaxCachedBodySize(int maxCachedBodySize)
+    {
+        this.maxCachedBodySize = maxCachedBodySize;
+    }
+
+    /**
+     * Sends bodies of the given type uncompressed, e.g. "application/x-protobuf" or "image/*"
+     * for a whole top level type.
+     */
+    public void addSkippedType(String mimeType)
+    {
+        skippedTypes.add(mimeType.toLowerCase(Locale.US));
+    }
+
+    public void removeSkippedType(String mimeType)
+    {
+        skippedTypes.remove(mimeType.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return number of bodies compressed, cache hits not included
+     */
+    public long getCompressedCount()
+    {
+        return compressed.sum();
+    }
+
+    /**
+     * @return uncompressed bytes of all compressed bodies
+     */
+    public long getBytesIn()
+    {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return compressed bytes of all compressed bodies
+     */
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    public long getCacheHits()
+    {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses()
+    {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return bytes of compressed bodies held by the cache
+     */
+    public long getCachedBytes()
+    {
+        synchronized (cache)
+        {
+            return cachedBytes;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResponseCompressor[compressed=" + getCompressedCount() + ", in=" + getBytesIn() + ", out="
+                + getBytesOut() + ", cacheHits=" + getCacheHits() + ", cacheMisses=" + getCacheMisses()
+                + ", cached=" + getCachedBytes() + ", " + gzipDeflaters + "]";
+    }
+
+    private static final class CacheKey
+    {
+        private final String coding;
+        private final byte[] digest;
+        private final int hash;
+
+        CacheKey(String coding, byte[] digest)
+        {
+            this.coding = coding;
+            this.digest = digest;
+            // the digest is already uniformly distributed
+            this.hash = ((digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8
+                    | (digest[3] & 0xff)) ^ coding.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof CacheKey))
+            {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return coding.equals(other.coding) && Arrays.equals(digest, other.digest);
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.test.httpserver.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The decrypted side of a TLS connection, opened by {@link TlsContext#open}. Reads unwrap what
+ * arrives from the socket, writes wrap into records sent to it; the handshake is driven by the
+ * first reads. Built on {@link SSLEngine}, so it works over the socket's streams in the blocking
+ * mode as well as over a non-blocking socket channel: there, read and write return 0 whenever
+ * the socket is not ready, {@link #hasPendingOutput()} tells that it must become writable and
+ * {@link #hasBufferedInput()} that bytes taken off the socket already wait to be read.
+ * <p>
+ * Encrypted and decrypted bytes are held in direct buffers from the context's pool, taken when
+ * needed and given back as soon as they are empty, so an idle keep-alive connection holds none.
+ * <p>
+ * One thread may write while another reads, as HTTP/2 does; reads must not overlap with each
+ * other or with {@link #close()}. Closing sends close_notify but leaves the socket to its owner.
+ */
+public final class TlsChannel implements ByteChannel
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int RECORD_HEADER_LENGTH = 5;
+
+    private final TlsContext context;
+    private final SSLEngine engine;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    /**
+     * Encrypted bytes read and not unwrapped yet; like the other buffers filled from position 0
+     */
+    private ByteBuffer netIn;
+    /**
+     * Decrypted bytes not read yet
+     */
+    private ByteBuffer appIn;
+    /**
+     * Encrypted bytes not written yet, guarded by writeLock
+     */
+    private ByteBuffer netOut;
+    private final Object writeLock = new Object();
+    private boolean handshakeBegun;
+    private volatile boolean handshaken;
+    private long handshakeStartNanos;
+    private long handshakeStartMillis;
+    private boolean inputDone;
+    private volatile boolean closed;
+
+    TlsChannel(TlsContext context, SSLEngine engine, ReadableByteChannel in, WritableByteChannel out)
+    {
+        this.context = context;
+        this.engine = engine;
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (closed)
+        {
+            throw new ClosedChannelException();
+        }
+        if (!handshaken && !handshake())
+        {
+            return inputDone ? -1 : 0;
+        }
+        while (true)
+        {
+            if (appIn != null && appIn.position() > 0)
+            {
+                return drainTo(dst);
+            }
+            if (inputDone)
+            {
+                return -1;
+            }
+            int unwrapped = unwrap();
+            if (unwrapped <= 0)
+            {
+                return unwrapped;
+            }
+            // a record of the handshake protocol after the handshake, e.g. a key update
+            if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING && !handshake()
+                    && (appIn == null || appIn.position() == 0))
+            {
+                return inputDone ? -1 : 0;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (!handshaken && !handshake())
+        {
+            if (inputDone)
+            {
+                throw new ClosedChannelException();
+            }
+            return 0;
+        }
+        synchronized (writeLock)
+        {
+            if (closed)
+            {
+                throw new ClosedChannelException();
+            }
+            if (!flushOut())
+            {
+                return 0;
+            }
+            int consumed = 0;
+            while (src.hasRemaining())
+            {
+                if (netOut == null)
+                {
+                    netOut = context.getBuffers().acquire();
+                }
+                SSLEngineResult result = engine.wrap(src, netOut);
+                consumed += result.bytesConsumed();
+                switch (result.getStatus())
+                {
+                case CLOSED:
+                    throw new SSLException("TLS connection closed");
+                case BUFFER_OVERFLOW:
+                    if (netOut.position() == 0)
+                    {
+                        netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    }
+                    break;
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                    {
+                        // only a handshake driven by the reading side gets the engine going again
+                        throw new SSLException("Renegotiation is not supported");
+                    }
+                    break;
+                }
+                if (!flushOut())
+                {
+                    break;
+                }
+            }
+            return consumed;
+        }
+    }
+
+    /**
+     * Writes what earlier writes left behind and continues a handshake that waited for it.
+     *
+     * @return whether nothing is left to write
+     */
+    public boolean flush() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            if (!flushOut())
+            {
+                return false;
+            }
+        }
+        if (!handshaken && handshakeStartNanos != 0)
+        {
+            handshake();
+        }
+        return !hasPendingOutput();
+    }
+
+    /**
+     * @return whether encrypted bytes wait for the socket to become writable
+     */
+    public boolean hasPendingOutput()
+    {
+        synchronized (writeLock)
+        {
+            return netOut != null && netOut.position() > 0;
+        }
+    }
+
+    /**
+     * @return whether a read would make progress without the socket becoming readable: bytes
+     *         are decrypted already, a whole record waits to be, or the client's close_notify
+     *         has arrived
+     */
+    public boolean hasBufferedInput()
+    {
+        if (inputDone || appIn != null && appIn.position() > 0)
+        {
+            return true;
+        }
+        if (netIn == null || netIn.position() < RECORD_HEADER_LENGTH)
+        {
+            return false;
+        }
+        int length = (netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff;
+        return netIn.position() >= RECORD_HEADER_LENGTH + length;
+    }
+
+    /**
+     * @return the protocol chosen with ALPN, "" if none was and null before the handshake or
+     *         without ALPN support
+     */
+    public String getApplicationProtocol()
+    {
+        return TlsContext.getApplicationProtocol(engine);
+    }
+
+    public SSLSession getSession()
+    {
+        return engine.getSession();
+    }
+
+    public boolean isHandshakeComplete()
+    {
+        return handshaken;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * Sends close_notify as far as the socket takes it without blocking and returns the buffers
+     * to the pool.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                if (handshaken && (netOut == null || netOut.position() == 0))
+                {
+                    engine.closeOutbound();
+                    netOut = context.getBuffers().acquire();
+                    engine.wrap(EMPTY, netOut);
+                    flushOut();
+                }
+            }
+            finally
+            {
+                context.getBuffers().release(netOut);
+                context.getBuffers().release(netIn);
+                context.getBuffers().release(appIn);
+                netOut = null;
+                netIn = null;
+                appIn = null;
+            }
+        }
+    }
+
+    /**
+     * Drives the handshake as far as the socket allows.
+     *
+     * @return whether it is complete; false while it waits for the client or for the socket to
+     *         take more bytes, or if the client went away
+     */
+    private boolean handshake() throws IOException
+    {
+        try
+        {
+            if (!handshakeBegun)
+            {
+                // a server engine does not count as handshaking before
+                engine.beginHandshake();
+                handshakeBegun = true;
+            }
+            while (true)
+            {
+                switch (engine.getHandshakeStatus())
+                {
+                case NOT_HANDSHAKING:
+                    if (!handshaken)
+                    {
+                        handshaken = true;
+                        // a resumed session keeps the creation time of the one it resumes
+                        boolean resumed = engine.getSession().getCreationTime() < handshakeStartMillis;
+                        context.getMetrics().recordHandshake(resumed, System.nanoTime() - handshakeStartNanos);
+                    }
+                    return true;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                    {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (!wrapHandshake())
+                    {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (unwrap() <= 0)
+                    {
+                        return false;
+                    }
+                    break;
+                }
+            }
+        }
+        catch (SSLException e)
+        {
+            if (!handshaken)
+            {
+                context.getMetrics().recordFailure();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the handshake message is on its way; false if the socket did not take all
+     *         of it
+     */
+    private boolean wrapHandshake() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            if (closed)
+            {
+                throw new ClosedChannelException();
+            }
+            if (netOut == null)
+            {
+                netOut = context.getBuffers().acquire();
+            }
+            SSLEngineResult result = engine.wrap(EMPTY, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+            {
+                if (netOut.position() == 0)
+                {
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                }
+                else if (!flushOut())
+                {
+                    return false;
+                }
+                return true;
+            }
+            return flushOut();
+        }
+    }
+
+    /**
+     * Unwraps one record, reading from the socket first unless a whole one is buffered.
+     *
+     * @return 1 after a record was unwrapped, 0 if the socket had nothing to read and -1 at the
+     *         end of the stream or after close_notify
+     */
+    private int unwrap() throws IOException
+    {
+        while (true)
+        {
+            if (netIn != null && netIn.position() > 0)
+            {
+                if (appIn == null)
+                {
+                    appIn = context.getBuffers().acquire();
+                }
+                netIn.flip();
+                SSLEngineResult result;
+                try
+                {
+                    result = engine.unwrap(netIn, appIn);
+                }
+                finally
+                {
+                    netIn.compact();
+                }
+                switch (result.getStatus())
+                {
+                case CLOSED:
+                    inputDone = true;
+                    releaseIfEmpty();
+                    return -1;
+                case BUFFER_OVERFLOW:
+                    if (appIn.position() > 0)
+                    {
+                        // read what is decrypted first
+                        return 1;
+                    }
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining())
+                    {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    break;
+                default:
+                    releaseIfEmpty();
+                    return 1;
+                }
+            }
+            if (netIn == null)
+            {
+                netIn = context.getBuffers().acquire();
+            }
+            int read = in.read(netIn);
+            if (read <= 0)
+            {
+                releaseIfEmpty();
+                if (read < 0)
+                {
+                    // without close_notify, as many HTTP clients do
+                    inputDone = true;
+                }
+                return read;
+            }
+            if (handshakeStartNanos == 0)
+            {
+                handshakeStartNanos = System.nanoTime();
+                handshakeStartMillis = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private int drainTo(ByteBuffer dst)
+    {
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        appIn.position(appIn.position() + n);
+        appIn.compact();
+        releaseIfEmpty();
+        return n;
+    }
+
+    /**
+     * Writes out the encrypted bytes, as far as the socket takes them.
+     *
+     * @return whether all of them were written
+     */
+    private boolean flushOut() throws IOException
+    {
+        if (netOut == null)
+        {
+            return true;
+        }
+        netOut.flip();
+        try
+        {
+            while (netOut.hasRemaining())
+            {
+                if (out.write(netOut) == 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            netOut.compact();
+            if (netOut.position() == 0)
+            {
+                context.getBuffers().release(netOut);
+                netOut = null;
+            }
+        }
+    }
+
+    /**
+     * Gives the read side's buffers back to the pool while they hold nothing.
+     */
+    private void releaseIfEmpty()
+    {
+        if (netIn != null && netIn.position() == 0)
+        {
+            context.getBuffers().release(netIn);
+            netIn = null;
+        }
+        if (appIn != null && appIn.position() == 0)
+        {
+            context.getBuffers().release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     * Replaces a pooled buffer that is too small for a record, keeping its content; only
+     * happens with records beyond the usual size limit.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int capacity)
+    {
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(capacity, 2 * buffer.capacity()));
+        buffer.flip();
+        larger.put(buffer);
+        context.getBuffers().release(buffer);
+        return larger;
+    }
+}
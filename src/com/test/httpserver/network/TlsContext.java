@@ -0,0 +1,271 @@
+package com.test.httpserver.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import com.test.httpserver.metrics.TlsMetrics;
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+
+/**
+ * Server side TLS settings shared by all connections of a server: the certificate and key, the
+ * protocols and cipher suites offered, the session cache and the direct buffers
+ * {@link TlsChannel}s encrypt and decrypt in.
+ * <p>
+ * A client that comes back with a session of an earlier connection resumes it and skips the
+ * key exchange and the certificate, which makes up most of a handshake's cost. The JDK resumes
+ * sessions from the server's session cache, sized here, and, from Java 13 on, from stateless
+ * session tickets the client keeps instead: the server hands out tickets unless
+ * <code>-Djdk.tls.server.enableSessionTicketExtension=false</code> is set, a JVM wide setting read
+ * when TLS is first used. With tickets the cache only serves clients without ticket support.
+ * <p>
+ * ALPN tells the client which protocol the connection speaks. It exists from Java 9 and
+ * 8u252 on and is looked up reflectively, so the server still builds and runs on older
+ * releases, without it.
+ */
+public class TlsContext
+{
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+    public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+    private static final String[] DEFAULT_PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+    private static final Method SET_APPLICATION_PROTOCOLS = lookup(SSLParameters.class, "setApplicationProtocols",
+            String[].class);
+    private static final Method GET_APPLICATION_PROTOCOL = lookup(SSLEngine.class, "getApplicationProtocol");
+
+    private final SSLContext sslContext;
+    private String[] protocols;
+    private String[] cipherSuites;
+    private final DirectBufferPool buffers;
+    private final TlsMetrics metrics = new TlsMetrics();
+
+    /**
+     * @param sslContext
+     *            initialized with the server's key managers
+     */
+    public TlsContext(SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+        SSLEngine probe = sslContext.createSSLEngine();
+        List<String> supported = Arrays.asList(probe.getSupportedProtocols());
+        List<String> offered = new ArrayList<String>();
+        for (String protocol : DEFAULT_PROTOCOLS)
+        {
+            if (supported.contains(protocol))
+            {
+                offered.add(protocol);
+            }
+        }
+        this.protocols = offered.toArray(new String[offered.size()]);
+        // records are at most this large, encrypted or not, so one buffer holds any of them
+        SSLSession session = probe.getSession();
+        this.buffers = new DirectBufferPool(Math.max(session.getPacketBufferSize(),
+                session.getApplicationBufferSize()), 256);
+        setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Serves the first key entry of a key store, PKCS12 unless the file name ends with
+     * <code>.jks</code>, whose key has the store's password.
+     */
+    public TlsContext(File keyStore, char[] password) throws IOException, GeneralSecurityException
+    {
+        this(createSSLContext(keyStore, password));
+    }
+
+    private static SSLContext createSSLContext(File keyStore, char[] password) throws IOException,
+            GeneralSecurityException
+    {
+        KeyStore store = KeyStore.getInstance(keyStore.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+        InputStream in = new FileInputStream(keyStore);
+        try
+        {
+            store.load(in, password);
+        }
+        finally
+        {
+            HTTPServerUtils.safeClose(in);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    public SSLContext getSSLContext()
+    {
+        return sslContext;
+    }
+
+    public String[] getProtocols()
+    {
+        return protocols.clone();
+    }
+
+    /**
+     * Protocols offered to clients; TLSv1.3 and TLSv1.2 by default, as far as the JVM supports
+     * them.
+     */
+    public void setProtocols(String... protocols)
+    {
+        this.protocols = protocols.clone();
+    }
+
+    public String[] getCipherSuites()
+    {
+        return cipherSuites != null ? cipherSuites.clone() : null;
+    }
+
+    /**
+     * Cipher suites offered to clients, in the server's order of preference; null, the default,
+     * for the JVM's defaults.
+     */
+    public void setCipherSuites(String... cipherSuites)
+    {
+        this.cipherSuites = cipherSuites != null ? cipherSuites.clone() : null;
+    }
+
+    public int getSessionCacheSize()
+    {
+        return sslContext.getServerSessionContext().getSessionCacheSize();
+    }
+
+    /**
+     * Sessions kept for resumption, the least recently used ones are dropped beyond this; defaults
+     * to 10000. A cached session takes roughly a kilobyte.
+     */
+    public void setSessionCacheSize(int sessionCacheSize)
+    {
+        sslContext.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+    }
+
+    public int getSessionTimeout()
+    {
+        return sslContext.getServerSessionContext().getSessionTimeout();
+    }
+
+    /**
+     * Seconds a session can be resumed for after it was created, whether cached or in a ticket;
+     * defaults to an hour.
+     */
+    public void setSessionTimeout(int seconds)
+    {
+        sslContext.getServerSessionContext().setSessionTimeout(seconds);
+    }
+
+    /**
+     * @return the server's session cache
+     */
+    public SSLSessionContext getSessionContext()
+    {
+        return sslContext.getServerSessionContext();
+    }
+
+    public TlsMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return the pool the connections' encrypted and decrypted bytes are held in
+     */
+    public DirectBufferPool getBuffers()
+    {
+        return buffers;
+    }
+
+    /**
+     * @return whether protocols can be negotiated with ALPN on this JVM
+     */
+    public static boolean isAlpnSupported()
+    {
+        return SET_APPLICATION_PROTOCOLS != null;
+    }
+
+    /**
+     * Starts the server side of a connection; the handshake happens on its first reads.
+     *
+     * @param in
+     *            the socket's encrypted bytes
+     * @param out
+     *            where encrypted bytes go, usually the same socket
+     * @param applicationProtocols
+     *            protocols offered with ALPN in order of preference, e.g. "h2" and "http/1.1";
+     *            ignored where ALPN is not supported
+     */
+    public TlsChannel open(ReadableByteChannel in, WritableByteChannel out, String... applicationProtocols)
+    {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        if (cipherSuites != null)
+        {
+            parameters.setCipherSuites(cipherSuites);
+        }
+        parameters.setUseCipherSuitesOrder(true);
+        if (applicationProtocols.length > 0 && SET_APPLICATION_PROTOCOLS != null)
+        {
+            invoke(SET_APPLICATION_PROTOCOLS, parameters, (Object) applicationProtocols);
+        }
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(this, engine, in, out);
+    }
+
+    /**
+     * @return the protocol chosen with ALPN, "" if none was and null before the handshake or
+     *         without ALPN support
+     */
+    static String getApplicationProtocol(SSLEngine engine)
+    {
+        return GET_APPLICATION_PROTOCOL != null ? (String) invoke(GET_APPLICATION_PROTOCOL, engine) : null;
+    }
+
+    private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes)
+    {
+        try
+        {
+            return type.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args)
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Could not call " + method.getName(), e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TlsContext[protocols=" + Arrays.toString(protocols) + ", sessionCacheSize=" + getSessionCacheSize()
+                + ", " + metrics + "]";
+    }
+}
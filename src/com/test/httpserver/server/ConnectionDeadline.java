@@ -0,0 +1,187 @@
+package com.test.httpserver.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Deadline of a connection in the blocking mode, enforced by a {@link TimerWheel}. The worker
+ * thread arms it before it blocks on the client, for reading the next request head or for a
+ * write, and disarms it afterwards; both are single volatile writes. The timer checks the
+ * connection now and then, closes the socket if the deadline has passed, which makes the blocked
+ * read or write fail, and otherwise schedules the next check for the deadline.
+ * <p>
+ * Unlike the socket's read timeout this bounds a request head trickling in byte by byte and a
+ * client that stopped reading its response.
+ * <p>
+ * It also tracks whether the connection waits for its next request, so that draining can close
+ * it right away, and otherwise leaves the flag the worker checks before each response.
+ */
+final class ConnectionDeadline implements TimerWheel.Task, ConnectionRegistry.Drainable
+{
+    private final TimerWheel timer;
+    private final ConnectionRegistry connections;
+    private final Socket socket;
+    /**
+     * Time between checks while disarmed; no armed deadline may be closer than this
+     */
+    private final long checkInterval;
+    private volatile long deadline;
+    private volatile boolean closed;
+    private volatile TimerWheel.Timeout timeout;
+    private volatile boolean awaitingRequest;
+    private volatile boolean draining;
+
+    ConnectionDeadline(TimerWheel timer, ConnectionRegistry connections, Socket socket, long checkInterval)
+    {
+        this.timer = timer;
+        this.connections = connections;
+        this.socket = socket;
+        this.checkInterval = checkInterval;
+        this.timeout = timer.schedule(this, checkInterval);
+    }
+
+    /**
+     * Closes the connection unless {@link #disarm()} is called within <code>millis</code>.
+     */
+    void arm(long millis)
+    {
+        deadline = TimerWheel.now() + millis;
+    }
+
+    void disarm()
+    {
+        deadline = 0;
+    }
+
+    /**
+     * Arms the deadline for the head of a further request on a keep-alive connection.
+     *
+     * @return false if the server is draining; the connection must be closed instead
+     */
+    boolean awaitRequest(long millis)
+    {
+        arm(millis);
+        awaitingRequest = true;
+        // drain() sets its flag before it looks at ours, one of the two sees the other
+        if (draining)
+        {
+            awaitingRequest = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Disarms the deadline once the request head has been read, the handler may take its time.
+     */
+    void requestRead()
+    {
+        awaitingRequest = false;
+        disarm();
+    }
+
+    /**
+     * @return whether the response being prepared must close the connection
+     */
+    boolean isDraining()
+    {
+        return draining;
+    }
+
+    @Override
+    public void drain()
+    {
+        draining = true;
+        if (awaitingRequest)
+        {
+            connections.close(socket);
+        }
+    }
+
+    /**
+     * @return the registry the connection is kept in
+     */
+    ConnectionRegistry getConnections()
+    {
+        return connections;
+    }
+
+    /**
+     * Stops checking once the connection is closed.
+     */
+    void cancel()
+    {
+        closed = true;
+        timeout.cancel();
+    }
+
+    @Override
+    public void expired(long now)
+    {
+        if (closed)
+        {
+            return;
+        }
+        long current = deadline;
+        if (current != 0 && current <= now)
+        {
+            closed = true;
+            connections.close(socket);
+            return;
+        }
+        timeout = timer.schedule(this, current != 0 ? current - now : checkInterval);
+    }
+
+    /**
+     * Wraps the socket's output stream so that every write is bounded by <code>millis</code>.
+     */
+    OutputStream guard(OutputStream out, final long millis)
+    {
+        return new FilterOutputStream(out)
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                arm(millis);
+                try
+                {
+                    out.write(b);
+                }
+                finally
+                {
+                    disarm();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                arm(millis);
+                try
+                {
+                    out.write(b, off, len);
+                }
+                finally
+                {
+                    disarm();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                arm(millis);
+                try
+                {
+                    out.flush();
+                }
+                finally
+                {
+                    disarm();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+package com.test.httpserver.server;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+
+/**
+ * Open connections of one acceptor thread or event loop: sockets of the blocking mode, channels
+ * of the non-blocking one. Registering and closing take no lock shared with other connections. A connection is only removed
+ * by {@link #close(Closeable)}, which closes it at the same time, so nothing closed stays behind.
+ */
+public class ConnectionRegistry
+{
+    /**
+     * Lets a connection wind down when the server stops.
+     */
+    public interface Drainable
+    {
+        /**
+         * Stops reading further requests: the request being read or handled is answered with
+         * "Connection: close", a connection waiting for its next request is closed right away.
+         * Called from any thread.
+         */
+        void drain();
+    }
+
+    private final Map<Closeable, Drainable> connections = new ConcurrentHashMap<Closeable, Drainable>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Registers a newly accepted connection.
+     */
+    public void register(Closeable connection, Drainable drainable)
+    {
+        if (connections.put(connection, drainable) == null)
+        {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Closes the connection and removes it.
+     *
+     * @return false if it had been closed before
+     */
+    public boolean close(Closeable connection)
+    {
+        HTTPServerUtils.safeClose(connection);
+        if (connections.remove(connection) != null)
+        {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of open connections
+     */
+    public int size()
+    {
+        return count.get();
+    }
+
+    /**
+     * Asks every open connection to finish its request in progress and close.
+     */
+    public void drainAll()
+    {
+        for (Drainable drainable : connections.values())
+        {
+            drainable.drain();
+        }
+    }
+
+    /**
+     * Forcibly closes all connections that are open.
+     *
+     * @return the number of connections closed
+     */
+    public int closeAll()
+    {
+        System.out.println("Closing all the connections!");
+        int closed = 0;
+        for (Closeable connection : connections.keySet())
+        {
+            if (close(connection))
+            {
+                closed++;
+            }
+        }
+        return closed;
+    }
+}
@@ -0,0 +1,1459 @@
+package com.test.httpserver.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import com.test.httpserver.network.ConnectionInputStream;
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.network.HpackDecoder;
+import com.test.httpserver.network.HpackEncoder;
+import com.test.httpserver.network.RequestParser;
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.server.MyHTTPServer.TempFileManager;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * HTTP/2 (RFC 7540) on a connection of the blocking mode, entered with the prior knowledge
+ * preface or by upgrading an HTTP/1.1 request; with TLS the client sends the preface once ALPN
+ * chose h2. The worker thread that owns the
+ * connection reads the frames; every request stream is handed to the executor as a task of its
+ * own, which writes the response itself, so a slow handler holds up neither the other streams
+ * nor the connection. Frame writes are serialized by a lock, and header blocks are encoded under
+ * the same lock so that they reach the client in the order of the HPACK state.
+ * <p>
+ * Flow control works both ways. Response DATA waits for window from the client, at most the write
+ * timeout. Window for request bodies is only given back as the handler reads, so a handler that
+ * reads slowly slows the client down instead of filling memory.
+ * <p>
+ * The connection counts as idle while it has no open streams: the idle timeout applies then and
+ * draining closes it right away. While streams are open, draining refuses new ones and sends a
+ * GOAWAY telling the client which streams will still be answered.
+ */
+final class Http2Connection
+{
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\n" + "Upgrade: h2c\r\n" + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * Initial flow control window of the connection and of every stream, both ways
+     */
+    static final int DEFAULT_WINDOW = 65535;
+    /**
+     * Largest frame either side sends; this side never announces a larger one
+     */
+    private static final int MAX_FRAME_SIZE = 16384;
+    /**
+     * Limit of a request's header fields, about what fits into the head buffer of an HTTP/1.x
+     * request
+     */
+    private static final int MAX_HEADER_LIST_SIZE = 16384;
+    /**
+     * Streams this side reset that are remembered, frames for an older one are a protocol error
+     */
+    private static final int MAX_RESET_IDS = 64;
+    /**
+     * PING and SETTINGS frames a client may send per {@link #CONTROL_FRAME_WINDOW_MILLIS}. Each
+     * one is answered, so a flood of them costs the server writes the client need not even read.
+     */
+    private static final int MAX_CONTROL_FRAMES = 100;
+    private static final long CONTROL_FRAME_WINDOW_MILLIS = 1000;
+
+    private final MyHTTPServer server;
+    private final Socket socket;
+    private final ConnectionDeadline deadline;
+    /**
+     * Bounds the frame writes, which happen on the handler threads as well
+     */
+    private final ConnectionDeadline writeDeadline;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<Integer, Http2Stream>();
+
+    // read state, only used by the reader thread
+    private final HpackDecoder decoder = new HpackDecoder(MAX_HEADER_LIST_SIZE);
+    private final byte[] frameHead = new byte[9];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private int length;
+    private int type;
+    private int flags;
+    private int streamId;
+    private long controlWindowStart;
+    private int controlFrames;
+    /**
+     * Highest stream the client opened
+     */
+    private int lastStreamId;
+    /**
+     * Highest stream handed to a handler, reported by GOAWAY
+     */
+    private volatile int lastProcessedId;
+
+    // write state, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(1024);
+    private final byte[] writeHead = new byte[9];
+    private boolean goAwaySent;
+    /**
+     * Streams lately reset by this side, a ring of {@link #MAX_RESET_IDS} starting at resetNext;
+     * 0 is never a stream a client opened
+     */
+    private final int[] resetIds = new int[MAX_RESET_IDS];
+    private int resetNext;
+
+    // flow control, guarded by this
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private int recvWindow = DEFAULT_WINDOW;
+    private int unacked;
+
+    private volatile boolean closed;
+
+    /**
+     * @param outputStream
+     *            the socket's output stream, or its TLS counterpart
+     */
+    Http2Connection(MyHTTPServer server, Socket socket, ConnectionInputStream inputStream, OutputStream outputStream,
+            ConnectionDeadline deadline) throws IOException
+    {
+        this.server = server;
+        this.socket = socket;
+        this.deadline = deadline;
+        // idle connections and stalled writes are left to the deadlines
+        socket.setSoTimeout(0);
+        this.in = new BufferedInputStream(inputStream, MAX_FRAME_SIZE);
+        this.writeDeadline = new ConnectionDeadline(server.getTimer(), deadline.getConnections(), socket,
+                server.getWriteTimeout());
+        this.out = new BufferedOutputStream(writeDeadline.guard(outputStream, server.getWriteTimeout()),
+                MAX_FRAME_SIZE + 9);
+    }
+
+    /**
+     * Reads the client connection preface that starts an HTTP/2 connection with prior knowledge.
+     * Reading stops at the first byte that does not match; everything read is pushed back then,
+     * so HTTP/1.x requests are parsed as usual.
+     *
+     * @throws SocketException
+     *             if reading failed or timed out, like reading a request head
+     */
+    static boolean readPreface(ConnectionInputStream inputStream) throws SocketException
+    {
+        byte[] read = new byte[PREFACE.length];
+        int n = 0;
+        try
+        {
+            while (n < PREFACE.length)
+            {
+                int b = inputStream.read();
+                if (b < 0)
+                {
+                    break;
+                }
+                read[n++] = (byte) b;
+                if (b != (PREFACE[n - 1] & 0xff))
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SocketException(e.getMessage());
+        }
+        if (n == PREFACE.length && read[n - 1] == PREFACE[n - 1])
+        {
+            return true;
+        }
+        inputStream.unread(read, 0, n);
+        return false;
+    }
+
+    /**
+     * @return whether the request asks to upgrade to h2c in a way this side accepts: with one
+     *         valid HTTP2-Settings header and a body that fits into memory, since it is read
+     *         before the connection switches
+     */
+    static boolean isUpgrade(HTTPRequest httpRequest, int bodyMemoryThreshold)
+    {
+        Map<String, String> headers = httpRequest.getHeaders();
+        String upgrade = headers.get("upgrade");
+        String connection = headers.get("connection");
+        String settings = headers.get("http2-settings");
+        return "HTTP/1.1".equals(httpRequest.getProtocolVersion()) && upgrade != null && connection != null
+                && settings != null && hasToken(upgrade, "h2c") && hasToken(connection, "upgrade")
+                && hasToken(connection, "http2-settings") && decodeSettings(settings) != null
+                && httpRequest.getContentLength() >= 0 && httpRequest.getContentLength() <= bodyMemoryThreshold;
+    }
+
+    private static boolean hasToken(String value, String token)
+    {
+        for (String part : value.split(","))
+        {
+            if (part.trim().equalsIgnoreCase(token))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the SETTINGS payload of an HTTP2-Settings header, null if it is not one
+     */
+    private static byte[] decodeSettings(String value)
+    {
+        try
+        {
+            byte[] settings = Base64.getUrlDecoder().decode(value.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Serves the connection after the client sent the prior knowledge preface, until either side
+     * closes it.
+     */
+    void serve()
+    {
+        try
+        {
+            writeSettings();
+            run();
+        }
+        catch (IOException e)
+        {
+            close();
+        }
+    }
+
+    /**
+     * Answers a request that asked to upgrade with 101 Switching Protocols and serves the
+     * connection as HTTP/2 from then on; the request becomes stream 1, answered like any other.
+     */
+    void upgrade(HTTPRequest httpRequest)
+    {
+        try
+        {
+            Http2Stream stream = newStream(1);
+            stream.method = httpRequest.getMethod();
+            stream.target = httpRequest.getTarget();
+            stream.headers = new HashMap<String, String>(httpRequest.getHeaders());
+            for (String name : new String[] { "connection", "upgrade", "http2-settings", "keep-alive",
+                    "proxy-connection", "te", "transfer-encoding" })
+            {
+                stream.headers.remove(name);
+            }
+            byte[] body = httpRequest.getPayload();
+            stream.contentLength = body.length;
+            stream.receive(body, 0, body.length, 0, true);
+            synchronized (writeLock)
+            {
+                out.write(SWITCHING_PROTOCOLS);
+            }
+            writeSettings();
+            byte[] settings = decodeSettings(httpRequest.getHeaders().get("http2-settings"));
+            applySettings(settings, 0, settings.length);
+            byte[] preface = new byte[PREFACE.length];
+            readFully(preface, preface.length);
+            for (int i = 0; i < PREFACE.length; i++)
+            {
+                if (preface[i] != PREFACE[i])
+                {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+                }
+            }
+            lastStreamId = 1;
+            open(stream);
+            run();
+        }
+        catch (ConnectionError e)
+        {
+            goAway(e.code);
+            close();
+        }
+        catch (IOException e)
+        {
+            close();
+        }
+        catch (RuntimeException e)
+        {
+            // the body could not be read
+            close();
+        }
+    }
+
+    /**
+     * Reads frames until the connection is closed.
+     */
+    private void run()
+    {
+        try
+        {
+            if (!awaitStream())
+            {
+                return;
+            }
+            readFrame();
+            if (type != SETTINGS || (flags & FLAG_ACK) != 0)
+            {
+                throw new ConnectionError(PROTOCOL_ERROR, "Connection must start with SETTINGS");
+            }
+            while (true)
+            {
+                handleFrame();
+                readFrame();
+            }
+        }
+        catch (ConnectionError e)
+        {
+            goAway(e.code);
+        }
+        catch (IOException e)
+        {
+            // the client closed the connection, or it was closed for being idle or draining
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    /**
+     * Arms the idle timeout while no stream is open.
+     *
+     * @return false if the server is draining and the connection was closed
+     */
+    private boolean awaitStream()
+    {
+        synchronized (this)
+        {
+            if (!streams.isEmpty() || deadline.awaitRequest(server.getIdleTimeout()))
+            {
+                return true;
+            }
+        }
+        goAway(NO_ERROR);
+        close();
+        return false;
+    }
+
+    private void readFrame() throws IOException
+    {
+        readFully(frameHead, frameHead.length);
+        length = ((frameHead[0] & 0xff) << 16) | ((frameHead[1] & 0xff) << 8) | (frameHead[2] & 0xff);
+        type = frameHead[3] & 0xff;
+        flags = frameHead[4] & 0xff;
+        streamId = readInt(frameHead, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE)
+        {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readFully(payload, length);
+    }
+
+    private void readFully(byte[] b, int len) throws IOException
+    {
+        int off = 0;
+        while (off < len)
+        {
+            int n = in.read(b, off, len - off);
+            if (n < 0)
+            {
+                throw new EOFException("Connection closed by the client");
+            }
+            off += n;
+        }
+    }
+
+    private static int readInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private void handleFrame() throws IOException
+    {
+        switch (type)
+        {
+            case DATA:
+                onData();
+                break;
+            case HEADERS:
+                onHeaders();
+                break;
+            case PRIORITY:
+                // streams are served as they come, priorities are ignored
+                if (streamId == 0)
+                {
+                    throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5)
+                {
+                    writeReset(streamId, FRAME_SIZE_ERROR);
+                }
+                break;
+            case RST_STREAM:
+                onReset();
+                break;
+            case SETTINGS:
+                onSettings();
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from the client");
+            case PING:
+                onPing();
+                break;
+            case GOAWAY:
+                // the client opens no further streams; those open are still answered
+                if (streamId != 0)
+                {
+                    throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+                }
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate();
+                break;
+            case CONTINUATION:
+                throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+            default:
+                // unknown frame types are ignored
+        }
+    }
+
+    private void onHeaders() throws IOException
+    {
+        int id = streamId;
+        if (id == 0 || (id & 1) == 0)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + id);
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        int off = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0)
+        {
+            off = 1;
+            end -= length > 0 ? payload[0] & 0xff : 0;
+        }
+        if ((flags & FLAG_PRIORITY) != 0)
+        {
+            off += 5;
+        }
+        if (off > end)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding of HEADERS exceeds the frame");
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end - off);
+        block.write(payload, off, end - off);
+        while ((flags & FLAG_END_HEADERS) == 0)
+        {
+            readFrame();
+            if (type != CONTINUATION || streamId != id)
+            {
+                throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+            }
+            // a block this large decodes to more than the limit anyway
+            if (block.size() + length > MAX_HEADER_LIST_SIZE)
+            {
+                throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+            }
+            block.write(payload, 0, length);
+        }
+        List<String> fields = new ArrayList<String>();
+        boolean fits;
+        try
+        {
+            fits = decoder.decode(block.toByteArray(), 0, block.size(), fields);
+        }
+        catch (IOException e)
+        {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Http2Stream stream = streams.get(id);
+        if (stream != null)
+        {
+            // trailers end the body, their fields are not passed on
+            if (stream.isRemoteClosed())
+            {
+                resetStream(stream, STREAM_CLOSED);
+                return;
+            }
+            if (!endStream)
+            {
+                resetStream(stream, PROTOCOL_ERROR);
+                return;
+            }
+            int error = stream.receive(payload, 0, 0, 0, true);
+            if (error != 0)
+            {
+                resetStream(stream, error);
+            }
+            return;
+        }
+        if (id <= lastStreamId)
+        {
+            if (!wasReset(id))
+            {
+                // closed by both sides, not a stream the client may still be sending on
+                throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + id);
+            }
+            // sent before the client saw the reset, the block only mattered for the HPACK state
+            return;
+        }
+        lastStreamId = id;
+
+        stream = newStream(id);
+        if (!parseHead(stream, fields))
+        {
+            writeReset(id, PROTOCOL_ERROR);
+            return;
+        }
+        if (!fits)
+        {
+            stream.error = new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Header too large.");
+        }
+        if (endStream)
+        {
+            if (stream.contentLength > 0)
+            {
+                writeReset(id, PROTOCOL_ERROR);
+                return;
+            }
+            stream.contentLength = 0;
+            stream.endOfBody();
+        }
+        open(stream);
+    }
+
+    private Http2Stream newStream(int id)
+    {
+        return new Http2Stream(this, id, server.getMaxBodySize(), server.getIdleTimeout());
+    }
+
+    /**
+     * Fills in the request head from the decoded fields: pseudo-header fields first, names in lower
+     * case, no connection specific headers (RFC 7540, section 8.1.2). Cookie fields are joined
+     * again, otherwise the last value of a name wins like in an HTTP/1.x head.
+     *
+     * @return false if the request is malformed, a stream error
+     */
+    private static boolean parseHead(Http2Stream stream, List<String> fields)
+    {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        Map<String, String> headers = new HashMap<String, String>();
+        boolean regularSeen = false;
+        for (int i = 0; i < fields.size(); i += 2)
+        {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (name.startsWith(":"))
+            {
+                if (regularSeen)
+                {
+                    return false;
+                }
+                if (":method".equals(name) && method == null)
+                {
+                    method = value;
+                }
+                else if (":scheme".equals(name) && scheme == null)
+                {
+                    scheme = value;
+                }
+                else if (":path".equals(name) && path == null)
+                {
+                    path = value;
+                }
+                else if (":authority".equals(name) && authority == null)
+                {
+                    authority = value;
+                }
+                else
+                {
+                    return false;
+                }
+                continue;
+            }
+            regularSeen = true;
+            for (int j = 0; j < name.length(); j++)
+            {
+                char c = name.charAt(j);
+                if (c >= 'A' && c <= 'Z')
+                {
+                    return false;
+                }
+            }
+            if ("connection".equals(name) || "keep-alive".equals(name) || "proxy-connection".equals(name)
+                    || "transfer-encoding".equals(name) || "upgrade".equals(name)
+                    || "te".equals(name) && !"trailers".equals(value))
+            {
+                return false;
+            }
+            String previous = headers.get(name);
+            headers.put(name, previous != null && "cookie".equals(name) ? previous + "; " + value : value);
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty())
+        {
+            return false;
+        }
+        if (authority != null && !headers.containsKey("host"))
+        {
+            headers.put("host", authority);
+        }
+        stream.contentLength = -1;
+        String contentLength = headers.get("content-length");
+        if (contentLength != null)
+        {
+            stream.contentLength = RequestParser.parseContentLength(contentLength);
+            if (stream.contentLength < 0)
+            {
+                return false;
+            }
+        }
+        stream.method = Method.lookup(method);
+        stream.target = path;
+        stream.headers = headers;
+        return true;
+    }
+
+    /**
+     * Registers the stream and hands it to the executor, or refuses it while draining or when
+     * too many streams are open.
+     */
+    private void open(final Http2Stream stream) throws IOException
+    {
+        if (deadline.isDraining())
+        {
+            goAway(NO_ERROR);
+            writeReset(stream.id, REFUSED_STREAM);
+            return;
+        }
+        synchronized (this)
+        {
+            if (streams.size() >= server.getMaxConcurrentStreams())
+            {
+                stream.reset();
+            }
+            else
+            {
+                stream.sendWindow = initialWindow;
+                streams.put(stream.id, stream);
+                deadline.requestRead();
+            }
+        }
+        if (stream.isReset())
+        {
+            writeReset(stream.id, REFUSED_STREAM);
+            return;
+        }
+        lastProcessedId = stream.id;
+        boolean admitted = server.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                respond(stream);
+            }
+        });
+        if (!admitted)
+        {
+            stream.reset();
+            writeReset(stream.id, REFUSED_STREAM);
+            finish(stream);
+        }
+    }
+
+    /**
+     * Produces and sends the response of a stream, on an executor thread. While an async handler
+     * works on the response the thread returns; resetting the stream cancels the response.
+     */
+    private void respond(final Http2Stream stream)
+    {
+        final TempFileManager tempFileManager = server.new TempFileManager();
+        final HTTPRequest httpRequest = server.createRequest(stream.getBody(), tempFileManager);
+        httpRequest.setHead(stream.method, stream.target, stream.headers, stream.contentLength);
+        final CompletableFuture<HTTPResponse> response;
+        if (stream.error != null)
+        {
+            HTTPResponse httpResponse = new HTTPResponse(stream.error.getStatus(), MyHTTPServer.MIME_PLAINTEXT,
+                    stream.error.getMessage());
+            httpResponse.setRequestMethod(stream.method);
+            response = CompletableFuture.completedFuture(httpResponse);
+        }
+        else
+        {
+            try
+            {
+                response = server.serve(httpRequest, server.getTimer());
+            }
+            catch (SocketException e)
+            {
+                send(stream, httpRequest, tempFileManager, null);
+                return;
+            }
+        }
+        if (response.isDone())
+        {
+            send(stream, httpRequest, tempFileManager, response);
+            return;
+        }
+        stream.awaitResponse(response);
+        response.whenComplete(new BiConsumer<HTTPResponse, Throwable>()
+        {
+            @Override
+            public void accept(HTTPResponse httpResponse, Throwable failure)
+            {
+                // the thread completing it may not block on a slow client
+                server.resume(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        send(stream, httpRequest, tempFileManager, response);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the response of a stream and retires it.
+     *
+     * @param response
+     *            complete; cancelled or null if there is nothing to send
+     */
+    private void send(Http2Stream stream, HTTPRequest httpRequest, TempFileManager tempFileManager,
+            CompletableFuture<HTTPResponse> response)
+    {
+        Http2Stream.ResponseStream responseStream = stream.getResponseStream();
+        try
+        {
+            if (response == null || response.isCancelled())
+            {
+                throw new IOException("Stream " + stream.id + " has no response");
+            }
+            HTTPResponse httpResponse = response.join();
+            long writeStart = System.nanoTime();
+            httpResponse.send(responseStream.getFields(), responseStream);
+            responseStream.close();
+            server.recordSent(httpRequest, httpResponse, writeStart);
+        }
+        catch (IOException e)
+        {
+            // the stream was reset or the connection is lost
+            if (!responseStream.isComplete() && !stream.isReset() && !closed)
+            {
+                resetStream(stream, CANCEL);
+            }
+        }
+        finally
+        {
+            tempFileManager.clear();
+            httpRequest.release();
+            finish(stream);
+        }
+    }
+
+    /**
+     * Retires a stream once its response is complete: the client is told to stop sending a body
+     * nobody reads, and its unread bytes are given back to the connection window.
+     */
+    private void finish(Http2Stream stream)
+    {
+        if (!stream.isRemoteClosed() && !stream.isReset() && !closed)
+        {
+            stream.reset();
+            try
+            {
+                writeReset(stream.id, NO_ERROR);
+            }
+            catch (IOException e)
+            {
+                // the reader notices the lost connection
+            }
+        }
+        consumed(null, stream.discard());
+        boolean idle;
+        synchronized (this)
+        {
+            streams.remove(stream.id);
+            idle = streams.isEmpty() && !closed;
+        }
+        if (idle && !closed)
+        {
+            awaitStream();
+        }
+    }
+
+    private void onData() throws IOException
+    {
+        if (streamId == 0)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int off = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0)
+        {
+            off = 1;
+            end -= length > 0 ? payload[0] & 0xff : 0;
+            if (off > end)
+            {
+                throw new ConnectionError(PROTOCOL_ERROR, "Padding of DATA exceeds the frame");
+            }
+        }
+        synchronized (this)
+        {
+            if (length > recvWindow)
+            {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+            }
+            recvWindow -= length;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || stream.isRemoteClosed() || stream.isReset())
+        {
+            if (streamId > lastStreamId)
+            {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // nobody reads it, the window is given back right away
+            consumed(null, length);
+            if (stream != null && !stream.isReset())
+            {
+                resetStream(stream, STREAM_CLOSED);
+            }
+            return;
+        }
+        int error = stream.receive(payload, off, end - off, length, (flags & FLAG_END_STREAM) != 0);
+        if (error != 0)
+        {
+            consumed(null, length);
+            resetStream(stream, error);
+        }
+        else if (end - off < length)
+        {
+            // padding is consumed as it arrives
+            consumed(stream, length - (end - off));
+        }
+    }
+
+    private void onReset() throws IOException
+    {
+        if (streamId == 0)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (length != 4)
+        {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        if (streamId > lastStreamId)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null)
+        {
+            stream.reset();
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+    }
+
+    private void onSettings() throws IOException
+    {
+        if (streamId != 0)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0)
+        {
+            if (length != 0)
+            {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0)
+        {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        countControlFrame();
+        applySettings(payload, 0, length);
+        synchronized (writeLock)
+        {
+            writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            out.flush();
+        }
+    }
+
+    private void applySettings(byte[] settings, int off, int len) throws ConnectionError
+    {
+        for (int i = off; i < off + len; i += 6)
+        {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            int value = readInt(settings, i + 2);
+            switch (id)
+            {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock)
+                    {
+                        // values above 2^31 - 1 read as negative
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1)
+                    {
+                        throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH " + value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0)
+                    {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE above 2^31 - 1");
+                    }
+                    synchronized (this)
+                    {
+                        int delta = value - initialWindow;
+                        initialWindow = value;
+                        for (Http2Stream stream : streams.values())
+                        {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Integer.MAX_VALUE)
+                            {
+                                throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window above 2^31 - 1");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff)
+                    {
+                        throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE " + value);
+                    }
+                    break;
+                default:
+                    // the client's limits for streams this side would open, and unknown settings
+            }
+        }
+    }
+
+    private void onPing() throws IOException
+    {
+        if (streamId != 0)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (length != 8)
+        {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+        }
+        if ((flags & FLAG_ACK) == 0)
+        {
+            countControlFrame();
+            synchronized (writeLock)
+            {
+                writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Counts a PING or SETTINGS frame that needs an answer.
+     *
+     * @throws ConnectionError
+     *             if the client sent more than {@link #MAX_CONTROL_FRAMES} within the window
+     */
+    private void countControlFrame() throws ConnectionError
+    {
+        long now = TimerWheel.now();
+        if (now - controlWindowStart >= CONTROL_FRAME_WINDOW_MILLIS)
+        {
+            controlWindowStart = now;
+            controlFrames = 0;
+        }
+        if (++controlFrames > MAX_CONTROL_FRAMES)
+        {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "PING or SETTINGS flood");
+        }
+    }
+
+    private void onWindowUpdate() throws IOException
+    {
+        if (length != 4)
+        {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (streamId == 0)
+        {
+            if (increment == 0)
+            {
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            synchronized (this)
+            {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE)
+                {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window above 2^31 - 1");
+                }
+                notifyAll();
+            }
+            return;
+        }
+        if (streamId > lastStreamId)
+        {
+            throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null)
+        {
+            return;
+        }
+        if (increment == 0)
+        {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflow;
+        synchronized (this)
+        {
+            stream.sendWindow += increment;
+            overflow = stream.sendWindow > Integer.MAX_VALUE;
+            notifyAll();
+        }
+        if (overflow)
+        {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Counts request body bytes as consumed and gives window back to the client once half of it
+     * is used up.
+     *
+     * @param stream
+     *            null if only the connection window is concerned
+     */
+    void consumed(Http2Stream stream, int n)
+    {
+        if (n <= 0)
+        {
+            return;
+        }
+        int streamIncrement = stream != null ? stream.acknowledge(n) : 0;
+        int connectionIncrement = 0;
+        synchronized (this)
+        {
+            unacked += n;
+            if (unacked >= DEFAULT_WINDOW / 2)
+            {
+                connectionIncrement = unacked;
+                recvWindow += unacked;
+                unacked = 0;
+            }
+        }
+        if (streamIncrement == 0 && connectionIncrement == 0)
+        {
+            return;
+        }
+        try
+        {
+            synchronized (writeLock)
+            {
+                if (streamIncrement > 0)
+                {
+                    writeWindowUpdate(stream.id, streamIncrement);
+                }
+                if (connectionIncrement > 0)
+                {
+                    writeWindowUpdate(0, connectionIncrement);
+                }
+                out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            // the reader notices the lost connection
+        }
+    }
+
+    /**
+     * Sends what the response streams wrote so far.
+     */
+    void flush() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            out.flush();
+        }
+    }
+
+    private void writeWindowUpdate(int id, int increment) throws IOException
+    {
+        byte[] b = new byte[4];
+        writeInt(b, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, id, b, 0, 4);
+    }
+
+    /**
+     * Sends the response header block of a stream.
+     */
+    void sendHeaders(Http2Stream stream, List<String> fields, boolean endStream) throws IOException
+    {
+        synchronized (writeLock)
+        {
+            checkStream(stream);
+            headerBlock.reset();
+            encoder.encode(fields, headerBlock);
+            byte[] block = headerBlock.toByteArray();
+            int off = 0;
+            do
+            {
+                int n = Math.min(MAX_FRAME_SIZE, block.length - off);
+                int frameFlags = off + n == block.length ? FLAG_END_HEADERS : 0;
+                if (off == 0 && endStream)
+                {
+                    frameFlags |= FLAG_END_STREAM;
+                }
+                writeFrame(off == 0 ? HEADERS : CONTINUATION, frameFlags, stream.id, block, off, n);
+                off += n;
+            }
+            while (off < block.length);
+            if (endStream)
+            {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Sends response body bytes of a stream as DATA frames, each once the flow control windows
+     * allow it.
+     */
+    void sendData(Http2Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException
+    {
+        do
+        {
+            int n = len > 0 ? acquireWindow(stream, len) : 0;
+            boolean last = endStream && n == len;
+            synchronized (writeLock)
+            {
+                checkStream(stream);
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, b, off, n);
+                if (last)
+                {
+                    out.flush();
+                }
+            }
+            off += n;
+            len -= n;
+        }
+        while (len > 0);
+    }
+
+    private void checkStream(Http2Stream stream) throws IOException
+    {
+        if (stream.isReset())
+        {
+            throw new IOException("Stream " + stream.id + " was reset");
+        }
+    }
+
+    /**
+     * Takes up to <code>wanted</code> bytes of both send windows, waiting for window updates up
+     * to the write timeout.
+     */
+    private int acquireWindow(Http2Stream stream, int wanted) throws IOException
+    {
+        long waitUntil = 0;
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    throw new SocketException("Connection closed");
+                }
+                checkStream(stream);
+                int available = (int) Math.min(Math.min(sendWindow, stream.sendWindow), Math.min(wanted, MAX_FRAME_SIZE));
+                if (available > 0)
+                {
+                    sendWindow -= available;
+                    stream.sendWindow -= available;
+                    return available;
+                }
+                if (waitUntil != 0)
+                {
+                    long now = TimerWheel.now();
+                    if (now >= waitUntil)
+                    {
+                        throw new SocketTimeoutException("No flow control window for " + server.getWriteTimeout()
+                                + " ms");
+                    }
+                    try
+                    {
+                        wait(waitUntil - now);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException();
+                    }
+                    continue;
+                }
+            }
+            // the client can only grant window for what it received
+            synchronized (writeLock)
+            {
+                out.flush();
+            }
+            waitUntil = TimerWheel.now() + server.getWriteTimeout();
+        }
+    }
+
+    /**
+     * Resets a stream with an error: the handler's reads and writes fail from then on.
+     */
+    private void resetStream(Http2Stream stream, int errorCode)
+    {
+        stream.reset();
+        synchronized (this)
+        {
+            notifyAll();
+        }
+        try
+        {
+            writeReset(stream.id, errorCode);
+        }
+        catch (IOException e)
+        {
+            // the reader notices the lost connection
+        }
+    }
+
+    private void writeReset(int id, int errorCode) throws IOException
+    {
+        byte[] b = new byte[4];
+        writeInt(b, 0, errorCode);
+        synchronized (writeLock)
+        {
+            resetIds[resetNext] = id;
+            resetNext = (resetNext + 1) % MAX_RESET_IDS;
+            writeFrame(RST_STREAM, 0, id, b, 0, 4);
+            out.flush();
+        }
+    }
+
+    /**
+     * @return true if this side reset the stream lately, so the client may not know yet it is
+     *         closed (RFC 7540, section 5.4.2)
+     */
+    private boolean wasReset(int id)
+    {
+        synchronized (writeLock)
+        {
+            for (int resetId : resetIds)
+            {
+                if (resetId == id)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void writeSettings() throws IOException
+    {
+        byte[] settings = new byte[18];
+        writeSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, server.getMaxConcurrentStreams());
+        writeSetting(settings, 6, SETTINGS_ENABLE_PUSH, 0);
+        writeSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        synchronized (writeLock)
+        {
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            out.flush();
+        }
+    }
+
+    private static void writeSetting(byte[] b, int off, int id, int value)
+    {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        writeInt(b, off + 2, value);
+    }
+
+    /**
+     * Sends GOAWAY once, naming the last stream that is answered.
+     */
+    private void goAway(int errorCode)
+    {
+        byte[] b = new byte[8];
+        writeInt(b, 0, lastProcessedId);
+        writeInt(b, 4, errorCode);
+        synchronized (writeLock)
+        {
+            if (goAwaySent)
+            {
+                return;
+            }
+            goAwaySent = true;
+            try
+            {
+                writeFrame(GOAWAY, 0, 0, b, 0, b.length);
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                // closed anyway
+            }
+        }
+    }
+
+    /**
+     * Writes one frame; the caller holds the write lock.
+     */
+    private void writeFrame(int frameType, int frameFlags, int id, byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+        {
+            throw new SocketException("Connection closed");
+        }
+        writeHead[0] = (byte) (len >>> 16);
+        writeHead[1] = (byte) (len >>> 8);
+        writeHead[2] = (byte) len;
+        writeHead[3] = (byte) frameType;
+        writeHead[4] = (byte) frameFlags;
+        writeInt(writeHead, 5, id);
+        out.write(writeHead);
+        out.write(b, off, len);
+    }
+
+    private static void writeInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    /**
+     * Closes the connection; handlers still running fail on their next read or write. After a
+     * GOAWAY the socket lingers: frames the client sent meanwhile would otherwise turn the close
+     * into a reset, and the client would lose the GOAWAY and its error code.
+     */
+    private void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        for (Http2Stream stream : streams.values())
+        {
+            stream.reset();
+        }
+        synchronized (this)
+        {
+            notifyAll();
+        }
+        writeDeadline.cancel();
+        boolean linger;
+        synchronized (writeLock)
+        {
+            linger = goAwaySent;
+        }
+        if (linger)
+        {
+            new LingeringClose(server.getTimer(), deadline.getConnections(), socket).start();
+        }
+        else
+        {
+            deadline.getConnections().close(socket);
+        }
+    }
+
+    /**
+     * An error that ends the connection with GOAWAY.
+     */
+    private static final class ConnectionError extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        ConnectionError(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+    }
+}
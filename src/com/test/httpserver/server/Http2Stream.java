@@ -0,0 +1,456 @@
+package com.test.httpserver.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.test.httpserver.network.BufferPool;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
+
+/**
+ * One request stream of an {@link Http2Connection}. The connection's reader thread appends the
+ * DATA frames of the request body, which the handler reads from {@link #getBody()}; window is
+ * given back to the client as the handler consumes it. The handler's thread writes the response
+ * to {@link #getResponseStream()}, which sends the header block before the first body bytes and
+ * the body as DATA frames.
+ */
+final class Http2Stream
+{
+    final int id;
+    private final Http2Connection connection;
+    private final long maxBodySize;
+    private final long readTimeout;
+
+    Method method;
+    String target;
+    Map<String, String> headers;
+    /**
+     * Body length announced by content-length, 0 without a body, -1 if unknown
+     */
+    long contentLength;
+    /**
+     * Answered instead of handing the request to the handler, e.g. for a header block that was
+     * too large
+     */
+    ResponseException error;
+
+    // the request body, guarded by this
+    private final Deque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private int chunkPos;
+    private long received;
+    private boolean remoteClosed;
+    private int recvWindow = Http2Connection.DEFAULT_WINDOW;
+    private int unacked;
+    /**
+     * Queued bytes that did not count against the window: the body of an upgraded request
+     */
+    private int uncounted;
+    private volatile boolean reset;
+    /**
+     * Response of an async handler, cancelled by a reset; guarded by this
+     */
+    private CompletableFuture<HTTPResponse> pending;
+
+    /**
+     * Bytes the peer lets this side send, guarded by the connection
+     */
+    long sendWindow;
+
+    private final InputStream body = new Body();
+    private final ResponseStream response = new ResponseStream();
+
+    Http2Stream(Http2Connection connection, int id, long maxBodySize, long readTimeout)
+    {
+        this.connection = connection;
+        this.id = id;
+        this.maxBodySize = maxBodySize;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Appends DATA of the request body.
+     *
+     * @param window
+     *            bytes the frame counts against the flow control window, padding included
+     * @return 0, or the error code to reset the stream with
+     */
+    synchronized int receive(byte[] buf, int off, int len, int window, boolean endStream)
+    {
+        if (window > recvWindow)
+        {
+            return Http2Connection.FLOW_CONTROL_ERROR;
+        }
+        recvWindow -= window;
+        received += len;
+        if (contentLength >= 0 && (received > contentLength || endStream && received != contentLength))
+        {
+            return Http2Connection.PROTOCOL_ERROR;
+        }
+        if (len > 0)
+        {
+            chunks.add(Arrays.copyOfRange(buf, off, off + len));
+            if (window == 0)
+            {
+                uncounted += len;
+            }
+        }
+        if (endStream)
+        {
+            remoteClosed = true;
+        }
+        notifyAll();
+        return 0;
+    }
+
+    /**
+     * Marks the request body complete, for a request without one.
+     */
+    synchronized void endOfBody()
+    {
+        remoteClosed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isRemoteClosed()
+    {
+        return remoteClosed;
+    }
+
+    /**
+     * Counts consumed body bytes towards the next WINDOW_UPDATE of the stream.
+     *
+     * @return the increment to send, 0 if it is not due yet or the client sends nothing more
+     */
+    synchronized int acknowledge(int n)
+    {
+        if (remoteClosed || reset)
+        {
+            return 0;
+        }
+        unacked += n;
+        if (unacked < Http2Connection.DEFAULT_WINDOW / 2)
+        {
+            return 0;
+        }
+        int increment = unacked;
+        recvWindow += increment;
+        unacked = 0;
+        return increment;
+    }
+
+    /**
+     * Drops the body bytes nobody read, once the response is complete.
+     *
+     * @return their number, to be given back to the connection window
+     */
+    synchronized int discard()
+    {
+        int unread = 0;
+        for (byte[] chunk : chunks)
+        {
+            unread += chunk.length;
+        }
+        unread -= chunkPos + uncounted;
+        chunks.clear();
+        chunkPos = 0;
+        uncounted = 0;
+        return unread;
+    }
+
+    /**
+     * Aborts the stream, either side reset it or the connection is lost; blocked reads fail and a
+     * pending async response is cancelled. The connection wakes up blocked writes.
+     */
+    void reset()
+    {
+        CompletableFuture<HTTPResponse> response;
+        synchronized (this)
+        {
+            reset = true;
+            notifyAll();
+            response = pending;
+            pending = null;
+        }
+        if (response != null)
+        {
+            // outside the lock, cancelling runs the continuations
+            response.cancel(true);
+        }
+    }
+
+    /**
+     * Lets a reset cancel the response an async handler works on, right away if the stream is
+     * reset already.
+     */
+    void awaitResponse(CompletableFuture<HTTPResponse> response)
+    {
+        synchronized (this)
+        {
+            if (!reset)
+            {
+                pending = response;
+                return;
+            }
+        }
+        response.cancel(true);
+    }
+
+    boolean isReset()
+    {
+        return reset;
+    }
+
+    InputStream getBody()
+    {
+        return body;
+    }
+
+    ResponseStream getResponseStream()
+    {
+        return response;
+    }
+
+    /**
+     * The request body as the handler reads it. A read waits up to the idle timeout for the next
+     * DATA frame.
+     */
+    private final class Body extends InputStream
+    {
+        private long read;
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            int n;
+            int counted;
+            synchronized (Http2Stream.this)
+            {
+                long waitUntil = 0;
+                while (chunks.isEmpty() && !remoteClosed && !reset)
+                {
+                    long now = TimerWheel.now();
+                    if (waitUntil == 0)
+                    {
+                        waitUntil = now + readTimeout;
+                    }
+                    else if (now >= waitUntil)
+                    {
+                        throw new SocketTimeoutException("No request body for " + readTimeout + " ms");
+                    }
+                    try
+                    {
+                        Http2Stream.this.wait(waitUntil - now);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (reset)
+                {
+                    throw new IOException("Stream " + id + " was reset");
+                }
+                if (chunks.isEmpty())
+                {
+                    return -1;
+                }
+                byte[] chunk = chunks.peek();
+                n = Math.min(len, chunk.length - chunkPos);
+                System.arraycopy(chunk, chunkPos, b, off, n);
+                chunkPos += n;
+                if (chunkPos == chunk.length)
+                {
+                    chunks.poll();
+                    chunkPos = 0;
+                }
+                counted = n - Math.min(n, uncounted);
+                uncounted -= n - counted;
+            }
+            read += n;
+            if (read > maxBodySize)
+            {
+                throw new IOException("Request body too large", new ResponseException(HTTPStatus.PAYLOAD_TOO_LARGE,
+                        "PAYLOAD TOO LARGE: Request body exceeds " + maxBodySize + " bytes."));
+            }
+            connection.consumed(Http2Stream.this, counted);
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (Http2Stream.this)
+            {
+                return chunks.isEmpty() ? 0 : chunks.peek().length - chunkPos;
+            }
+        }
+    }
+
+    /**
+     * The response as the handler writes it. The header fields are collected in
+     * {@link #getFields()} until the first body byte or {@link #close()}, which ends the stream.
+     * A failed write leaves the stream failed; close then resets it.
+     */
+    final class ResponseStream extends OutputStream
+    {
+        private final List<String> fields = new ArrayList<String>();
+        private byte[] buffer;
+        private int count;
+        private boolean headersSent;
+        private boolean closed;
+        private IOException failure;
+
+        List<String> getFields()
+        {
+            return fields;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            checkWritable();
+            try
+            {
+                if (!headersSent)
+                {
+                    connection.sendHeaders(Http2Stream.this, fields, false);
+                    headersSent = true;
+                }
+                if (buffer == null)
+                {
+                    buffer = BufferPool.IO_BUFFERS.acquire();
+                }
+                while (len > 0)
+                {
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    if (count == buffer.length)
+                    {
+                        connection.sendData(Http2Stream.this, buffer, 0, count, false);
+                        count = 0;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+        }
+
+        /**
+         * Sends the buffered body bytes right away, for responses streamed bit by bit.
+         */
+        @Override
+        public void flush() throws IOException
+        {
+            checkWritable();
+            if (count == 0)
+            {
+                return;
+            }
+            try
+            {
+                connection.sendData(Http2Stream.this, buffer, 0, count, false);
+                count = 0;
+                connection.flush();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+        }
+
+        private void checkWritable() throws IOException
+        {
+            if (failure != null)
+            {
+                throw failure;
+            }
+            if (closed)
+            {
+                throw new IOException("Stream " + id + " is closed");
+            }
+        }
+
+        /**
+         * Sends what is buffered with END_STREAM, or only the header block if there was no body.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                if (failure != null)
+                {
+                    throw failure;
+                }
+                if (!headersSent)
+                {
+                    connection.sendHeaders(Http2Stream.this, fields, true);
+                    headersSent = true;
+                }
+                else
+                {
+                    connection.sendData(Http2Stream.this, buffer, 0, count, true);
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+            finally
+            {
+                BufferPool.IO_BUFFERS.release(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * @return whether the response was sent completely
+         */
+        boolean isComplete()
+        {
+            return closed && failure == null;
+        }
+    }
+}
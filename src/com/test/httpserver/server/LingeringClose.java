@@ -0,0 +1,118 @@
+package com.test.httpserver.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Closes a blocking mode connection whose input was not read to the end, after a response or an
+ * HTTP/2 GOAWAY telling the client to go away. Closing a socket with unread bytes in its receive buffer sends a reset
+ * instead of a FIN, and a reset arriving before the client read the response throws it away. So
+ * the output is shut down right after the response, which the client sees as the end of it, and
+ * the request is read and discarded until the client closes its side too, at most
+ * {@link #LINGER_BYTES} bytes for at most {@link #LINGER_MILLIS}.
+ * <p>
+ * The reads are non-blocking and done by the {@link TimerWheel}'s thread every tick, the thread
+ * that shed the connection goes on right away.
+ */
+final class LingeringClose implements TimerWheel.Task
+{
+    static final long LINGER_MILLIS = 2000;
+    static final int LINGER_BYTES = 64 * 1024;
+
+    private final TimerWheel timer;
+    private final ConnectionRegistry connections;
+    private final Socket socket;
+    private final long deadline;
+    private ByteBuffer discard;
+    private long discarded;
+
+    LingeringClose(TimerWheel timer, ConnectionRegistry connections, Socket socket)
+    {
+        this.timer = timer;
+        this.connections = connections;
+        this.socket = socket;
+        this.deadline = TimerWheel.now() + LINGER_MILLIS;
+    }
+
+    /**
+     * Shuts the output down, everything written before is sent, and starts discarding the input.
+     */
+    void start()
+    {
+        try
+        {
+            socket.shutdownOutput();
+            SocketChannel channel = socket.getChannel();
+            if (channel != null)
+            {
+                channel.configureBlocking(false);
+            }
+        }
+        catch (IOException e)
+        {
+            connections.close(socket);
+            return;
+        }
+        timer.schedule(this, timer.getTickMillis());
+    }
+
+    @Override
+    public void expired(long now)
+    {
+        boolean done;
+        try
+        {
+            done = discard() || now >= deadline;
+        }
+        catch (IOException e)
+        {
+            done = true;
+        }
+        if (done)
+        {
+            connections.close(socket);
+            return;
+        }
+        timer.schedule(this, timer.getTickMillis());
+    }
+
+    /**
+     * Reads what has arrived without blocking.
+     *
+     * @return true once the client closed its side or sent more than {@link #LINGER_BYTES}
+     */
+    private boolean discard() throws IOException
+    {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null)
+        {
+            // a plain socket cannot tell the end of the input without blocking, only skip
+            InputStream in = socket.getInputStream();
+            int available = in.available();
+            discarded += in.skip(available);
+            return discarded > LINGER_BYTES;
+        }
+        if (discard == null)
+        {
+            discard = ByteBuffer.allocate(4096);
+        }
+        while (discarded <= LINGER_BYTES)
+        {
+            discard.clear();
+            int read = channel.read(discard);
+            if (read < 0)
+            {
+                return true;
+            }
+            if (read == 0)
+            {
+                return false;
+            }
+            discarded += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+package com.test.httpserver.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Opens the listening channels of a server. With SO_REUSEPORT several channels bind the same
+ * address and the kernel spreads new connections across them, so that each acceptor has a
+ * listener and an accept queue of its own. The option exists on Linux and the BSDs from Java 9
+ * on; it is looked up reflectively so the server still builds and runs on older releases.
+ */
+final class Listeners
+{
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+    private Listeners()
+    {
+    }
+
+    /**
+     * @param backlog
+     *            length of the queue of connections not accepted yet; the kernel caps it, on
+     *            Linux at <code>net.core.somaxconn</code>
+     * @param reusePort
+     *            whether further channels may bind the same address
+     */
+    static ServerSocketChannel open(InetSocketAddress address, int backlog, boolean reusePort) throws IOException
+    {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try
+        {
+            if (reusePort)
+            {
+                if (!isReusePortSupported(channel))
+                {
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on "
+                            + System.getProperty("os.name") + " with Java " + System.getProperty("java.version"));
+                }
+                channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+            }
+            channel.bind(address, backlog);
+            return channel;
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether listeners can share an address with SO_REUSEPORT on this JVM and platform
+     */
+    static boolean isReusePortSupported()
+    {
+        if (SO_REUSEPORT == null)
+        {
+            return false;
+        }
+        try
+        {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try
+            {
+                return isReusePortSupported(channel);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private static boolean isReusePortSupported(ServerSocketChannel channel)
+    {
+        return SO_REUSEPORT != null && channel.supportedOptions().contains(SO_REUSEPORT);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupReusePort()
+    {
+        try
+        {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
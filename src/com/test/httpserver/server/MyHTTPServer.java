@@ -1,39 +1,185 @@
 package com.test.httpserver.server;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
+import com.test.httpserver.handler.Router;
+import com.test.httpserver.metrics.ServerMetrics;
+import com.test.httpserver.network.ConnectionInputStream;
 import com.test.httpserver.network.HTTPRequest;
 import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.network.MultipartParser;
+import com.test.httpserver.network.ResponseCache;
+import com.test.httpserver.network.ResponseCompressor;
+import com.test.httpserver.network.TlsChannel;
+import com.test.httpserver.network.TlsContext;
 import com.test.httpserver.util.HTTPResponseHandler;
 import com.test.httpserver.util.HTTPStatus;
+import com.test.httpserver.util.Method;
 
 public abstract class MyHTTPServer implements HTTPResponseHandler
 {
     public static final int SOCKET_READ_TIMEOUT = 5000;
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Body bytes left unread by a handler are skipped up to this amount to keep the connection;
+     * beyond it the connection is closed.
+     */
+    private static final long MAX_DISCARDED_BODY = 64 * 1024;
+    /**
+     * Resolution of connection deadlines; one turn of the timer wheel is 51.2 seconds.
+     */
+    static final long TIMER_TICK_MILLIS = 100;
+    static final int TIMER_SLOTS = 512;
+    private static final String[] HTTP1_PROTOCOLS = { "http/1.1" };
+    private static final String[] HTTP2_PROTOCOLS = { "h2", "http/1.1" };
 
     private String hostname ="127.0.0.1";
     private final int myPort;
-    private ServerSocket httpServerSocket;
-    private Thread httpServer;
+    /**
+     * Bound by {@link #start()}: one per acceptor or event loop with SO_REUSEPORT, otherwise one
+     * shared by all of them
+     */
+    private final List<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+    private final List<Acceptor> acceptors = new ArrayList<Acceptor>();
+    private int acceptorCount = 1;
+    private boolean reusePort;
+    private int backlog = 1024;
     
     public static final String MIME_PLAINTEXT = "text/plain";
     public static final String MIME_HTML = "text/html";  
     
-    ExecutorService executor = Executors.newFixedThreadPool(10);
+    /**
+     * Runs the connections (blocking mode) or requests (non-blocking mode); see
+     * {@link #setExecutor(ExecutorService)}.
+     */
+    ExecutorService executor;
+    /**
+     * The executor was created by {@link #start()} and is shut down by {@link #stop()}.
+     */
+    private boolean ownsExecutor;
+    
+    /**
+     * Serve connections from selector based event loops instead of the blocking accept thread.
+     */
+    private boolean nonBlocking;
+    private int eventLoopCount = 1;
+    /**
+     * Accept cleartext HTTP/2, see {@link #setHttp2(boolean)}.
+     */
+    private boolean http2;
+    private int maxConcurrentStreams = 100;
+    private TlsContext tlsContext;
+    /**
+     * Largest request (header and body) buffered by the event loops before the handler is called.
+     */
+    private int maxRequestSize = 1024 * 1024;
+    /**
+     * Requests served on one persistent connection before it is closed.
+     */
+    private int maxRequestsPerConnection = 100;
+    /**
+     * Time a connection may take to send the next request head, see {@link #setIdleTimeout(int)}.
+     */
+    private int idleTimeout = SOCKET_READ_TIMEOUT;
+    private int writeTimeout = SOCKET_READ_TIMEOUT;
+    /**
+     * Open connections, one registry per acceptor or event loop
+     */
+    private final List<ConnectionRegistry> connections = new CopyOnWriteArrayList<ConnectionRegistry>();
+    /**
+     * Enforces the deadlines of blocking mode connections; event loops have a wheel each.
+     */
+    private TimerWheel timer;
+    /**
+     * Time {@link #stop()} gives requests in progress before their connections are closed.
+     */
+    private int drainTimeout = 10000;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final AtomicLong completedCount = new AtomicLong();
+    private long drainedCount;
+    private long abortedCount;
+    private Thread shutdownHook;
+    /**
+     * Tasks accepted by the executor but not started yet; beyond this new work is shed with 503.
+     */
+    private int maxQueuedTasks = 1000;
+    /**
+     * Time an async handler has to complete its response, see {@link #setAsyncTimeout(int)}.
+     */
+    private int asyncTimeout = 30000;
+    /**
+     * Request bodies up to this size are kept in memory instead of a temp file.
+     */
+    private int bodyMemoryThreshold = HTTPRequest.DEFAULT_MEMORY_THRESHOLD;
+    private MultipartParser.PartSink partSink;
+    private long maxBodySize = Long.MAX_VALUE;
+    private ResponseCompressor compressor;
+    private Router router;
+    private ResponseCache responseCache;
+    private String metricsPath;
+    private ServerMetrics metrics;
+    private byte[] serviceUnavailableResponse = encodeServiceUnavailable(1);
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final List<NioEventLoop> eventLoops = new ArrayList<NioEventLoop>();
+    /**
+     * Server state shown next to the request metrics
+     */
+    private final ServerMetrics.Gauges gauges = new ServerMetrics.Gauges()
+    {
+        @Override
+        public int getQueuedCount()
+        {
+            return queued.get();
+        }
+
+        @Override
+        public int getActiveCount()
+        {
+            return active.get();
+        }
+
+        @Override
+        public int getOpenConnections()
+        {
+            return getOpenConnectionCount();
+        }
+
+        @Override
+        public long getShedCount()
+        {
+            return shedCount.get();
+        }
+    };
     
     public MyHTTPServer(int port)
     {
@@ -56,244 +202,1325 @@ public abstract class MyHTTPServer implements HTTPResponseHandler
     {
         System.out.println("============================================================");
         System.out.println("MyHTTPServer is starting up");
-        httpServerSocket = new ServerSocket();
-        httpServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        if (executor == null || (ownsExecutor && executor.isShutdown()))
+        {
+            executor = ServerExecutors.platformPool(10);
+            ownsExecutor = true;
+        }
+        stopping.set(false);
+        if (nonBlocking)
+        {
+            startEventLoops();
+            return;
+        }
+        // channel backed, so that file bodies can be sent with transferTo
+        List<ServerSocketChannel> channels = openListeners(acceptorCount);
+        timer = new TimerWheel(TIMER_TICK_MILLIS, TIMER_SLOTS);
+        timer.start("Echo HTTP Server Timer");
+        for (int i = 0; i < acceptorCount; i++)
+        {
+            acceptors.add(new Acceptor(channels.get(i % channels.size()).socket()));
+        }
+        addShutdownHook();
+        for (int i = 0; i < acceptors.size(); i++)
+        {
+            acceptors.get(i).start(acceptorCount == 1 ? "Echo HTTP Server" : "Echo HTTP Server Acceptor-" + i);
+        }
+        System.out.println("MyHTTPServer is ready and listening on " + getListeningPort()
+                + (acceptorCount == 1 ? "" : " with " + acceptorCount + " acceptor(s)"));
+        System.out.println("============================================================");
+    }
 
-        httpServer = new Thread(new Runnable()
+    /**
+     * Start the selector based event loops; each one accepts from its listener, shared unless
+     * SO_REUSEPORT is on, and serves its own connections.
+     */
+    private void startEventLoops() throws IOException
+    {
+        List<ServerSocketChannel> channels = openListeners(eventLoopCount);
+        for (ServerSocketChannel channel : channels)
         {
-            @Override
-            public void run()
-            {
-                Runtime runtime = Runtime.getRuntime();
-                runtime.addShutdownHook(new Thread() {
-                    public void run(){
-                        System.out.println("============================================================");
-                        System.out.println("MyHTTPServer is shutting down");
-                        HTTPServerUtils.closeAllConnections();
-                        System.out.println("MyHTTPServer shut down completed");
-                        System.out.println("============================================================");
-                      }
-                });
-                while(true)
-                {
-                    try
-                    {
-                        final Socket finalAccept = httpServerSocket.accept();
-                        HTTPServerUtils.registerConnection(finalAccept);
-                        finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
-                        final InputStream inputStream = finalAccept.getInputStream();
-                        if (inputStream == null)
-                        {
-                            HTTPServerUtils.safeClose(finalAccept);
-                            HTTPServerUtils.unRegisterConnection(finalAccept);
-                        }
-                        else
-                        {
-                            processRequest(finalAccept);
-                        }
-                    }
-                    catch (IOException e)
-                    {
-                        e.printStackTrace();
-                    }                    
-                }
-            }
-        });
-        // TODO commented for testing; to be removed 
-        //httpServer.setDaemon(true);
-        httpServer.setName("Echo HTTP Server");
-        httpServer.start();
-        System.out.println("MyHTTPServer is ready and listening on "+ myPort);
+            channel.configureBlocking(false);
+        }
+        for (int i = 0; i < eventLoopCount; i++)
+        {
+            NioEventLoop eventLoop = new NioEventLoop(this, channels.get(i % channels.size()));
+            eventLoops.add(eventLoop);
+            connections.add(eventLoop.getConnections());
+        }
+        addShutdownHook();
+        for (int i = 0; i < eventLoops.size(); i++)
+        {
+            eventLoops.get(i).start("Echo HTTP Server EventLoop-" + i);
+        }
+        System.out.println("MyHTTPServer is ready and listening on "+ getListeningPort() + " with " + eventLoopCount + " event loop(s)");
         System.out.println("============================================================");
     }
-    
-    private void processRequest(final Socket finalAccept)
+
+    /**
+     * Binds the listening channels: one per acceptor with SO_REUSEPORT, a single shared one
+     * otherwise. The others bind the address of the first, so that they share the port the
+     * first one got for port 0.
+     */
+    private List<ServerSocketChannel> openListeners(int acceptors) throws IOException
     {
-        executor.submit(new Runnable()
+        InetSocketAddress address = (hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort);
+        try
         {
-            @Override
-            public void run()
+            listeners.add(Listeners.open(address, backlog, reusePort));
+            InetSocketAddress bound = (InetSocketAddress) listeners.get(0).getLocalAddress();
+            for (int i = 1; i < (reusePort ? acceptors : 1); i++)
             {
-                OutputStream outputStream = null;
-                HTTPResponse httpResponse = null;
-                try
-                {
-                    outputStream = finalAccept.getOutputStream();
-                    HTTPRequest httpRequest = new HTTPRequest(finalAccept.getInputStream(), new TempFileManager());
-                    httpRequest.execute();
-                    httpResponse = getResponse(httpRequest);
-                    httpResponse.send(outputStream);
-                }
-                catch (ResponseException re)
-                {
-                    httpResponse= new HTTPResponse(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
-                    httpResponse.send(outputStream);
-                }        
-                catch (Exception ioe)
-                {
-                    httpResponse = new HTTPResponse(HTTPStatus.INTERNAL_ERROR, MIME_PLAINTEXT,"SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-                    httpResponse.send(outputStream);
-                    ioe.printStackTrace();
-                }
-                finally
-                {
-                    HTTPServerUtils.safeClose(outputStream);
-                }
+                listeners.add(Listeners.open(bound, backlog, reusePort));
             }
-        });
+        }
+        catch (IOException e)
+        {
+            closeListeners();
+            throw e;
+        }
+        return listeners;
     }
 
-    private HTTPResponse getResponse(HTTPRequest httpRequest)
-    {
-        HTTPResponse httpResponse = null;
-        switch (httpRequest.getMethod())
-        {
-        case GET:
-            httpResponse = doGet(httpRequest);
-            break;
-        case POST:
-            httpResponse = doPost(httpRequest);
-            break;
-        case PUT:
-            httpResponse = doPut(httpRequest);
-            break;
-        case DELETE:
-            httpResponse = doDelete(httpRequest);
-            break;  
-        case HEAD:
-            httpResponse = doPut(httpRequest);
-            break;
-        case OPTIONS:
-            httpResponse = doOptions(httpRequest);
-            break;                
-        }
-        return httpResponse;
-    }    
-    
-    
     /**
-     * Stop the server.
+     * @return the port the server listens on, the one chosen by the system if it was created with
+     *         port 0; -1 if it is not started
      */
-    public void stop()
+    public int getListeningPort()
     {
-        try
+        if (listeners.isEmpty())
         {
-            HTTPServerUtils.safeClose(httpServerSocket);
-            HTTPServerUtils.closeAllConnections();
-            httpServer.join();
+            return -1;
         }
-        catch (Exception e)
+        return listeners.get(0).socket().getLocalPort();
+    }
+
+    private void closeListeners()
+    {
+        for (ServerSocketChannel channel : listeners)
         {
-            e.printStackTrace();
+            HTTPServerUtils.safeClose(channel);
         }
-    }   
-    
-    
-    // utility methods
-    
-    public static final class ResponseException extends Exception
-    {
+        listeners.clear();
+    }
 
-        private final HTTPStatus status;
+    /**
+     * Accepts connections from one listener and hands them to the executor. Acceptors either
+     * share the listener or each have one with SO_REUSEPORT; every acceptor keeps the books of
+     * its own connections, so accepting threads share no state.
+     */
+    private final class Acceptor implements Runnable
+    {
+        private final ServerSocket serverSocket;
+        private final ConnectionRegistry registry = new ConnectionRegistry();
+        private Thread thread;
 
-        public ResponseException(HTTPStatus status, String message)
+        Acceptor(ServerSocket serverSocket)
         {
-            super(message);
-            this.status = status;
+            this.serverSocket = serverSocket;
+            connections.add(registry);
         }
 
-        public ResponseException(HTTPStatus status, String message, Exception e)
+        void start(String name)
         {
-            super(message, e);
-            this.status = status;
+            thread = new Thread(this);
+            // TODO commented for testing; to be removed
+            //thread.setDaemon(true);
+            thread.setName(name);
+            thread.start();
         }
 
-        public HTTPStatus getStatus()
+        void join() throws InterruptedException
         {
-            return status;
+            thread.join();
         }
-    }    
-    
-    public static class HTTPServerUtils
-    {
-        private static Set<Socket> openConnections = new HashSet<Socket>();   
-        
-        public static final void safeClose(ServerSocket serverSocket)
+
+        @Override
+        public void run()
         {
-            if (serverSocket != null)
+            while (!serverSocket.isClosed())
             {
                 try
                 {
-                    serverSocket.close();
+                    final Socket finalAccept = serverSocket.accept();
+                    ConnectionDeadline deadline = new ConnectionDeadline(timer, registry, finalAccept,
+                            Math.min(idleTimeout, writeTimeout));
+                    registry.register(finalAccept, deadline);
+                    finalAccept.setSoTimeout(idleTimeout);
+                    final InputStream inputStream = finalAccept.getInputStream();
+                    if (inputStream == null)
+                    {
+                        deadline.cancel();
+                        registry.close(finalAccept);
+                    }
+                    else
+                    {
+                        processRequest(finalAccept, deadline);
+                    }
                 }
                 catch (IOException e)
                 {
+                    if (!serverSocket.isClosed())
+                    {
+                        e.printStackTrace();
+                    }
                 }
             }
         }
-
-        public static final void safeClose(Socket socket)
+    }
+    
+    private void addShutdownHook()
+    {
+        shutdownHook = new Thread()
         {
-            if (socket != null)
+            public void run()
             {
-                try
-                {
-                    socket.close();
-                }
-                catch (IOException e)
+                MyHTTPServer.this.stop();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    
+    private void processRequest(final Socket finalAccept, final ConnectionDeadline deadline)
+    {
+        boolean admitted = submit(new ConnectionWorker(finalAccept, deadline));
+        if (!admitted)
+        {
+            // answered straight from the accept thread, the request is never read; with TLS that
+            // would take a handshake, the connection is just closed
+            deadline.cancel();
+            try
+            {
+                if (tlsContext == null)
                 {
+                    OutputStream outputStream = finalAccept.getOutputStream();
+                    outputStream.write(serviceUnavailableResponse);
+                    outputStream.flush();
                 }
             }
+            catch (IOException e)
+            {
+                deadline.getConnections().close(finalAccept);
+                return;
+            }
+            // the unread request would turn the close into a reset the 503 is lost to
+            new LingeringClose(timer, deadline.getConnections(), finalAccept).start();
         }
+    }
 
-        public static final void safeClose(Closeable closeable)
+    /**
+     * Serves the requests of one blocking mode connection in turn. While an async handler works
+     * on a response the worker gives its thread back, and runs again on the executor once the
+     * response is complete.
+     */
+    private final class ConnectionWorker implements Runnable
+    {
+        private final Socket socket;
+        private final ConnectionDeadline deadline;
+        private ConnectionInputStream inputStream;
+        /**
+         * The socket's streams and channel, or their TLS counterparts
+         */
+        private OutputStream socketOutputStream;
+        private WritableByteChannel channel;
+        private OutputStream outputStream;
+        private TempFileManager tempFileManager;
+        private HTTPRequest httpRequest;
+        private int served;
+        /**
+         * Response of an async handler that the worker was suspended for
+         */
+        private CompletableFuture<HTTPResponse> pending;
+
+        ConnectionWorker(Socket socket, ConnectionDeadline deadline)
         {
-            if (closeable != null)
+            this.socket = socket;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run()
+        {
+            boolean suspended = false;
+            try
             {
-                try
+                if (httpRequest == null)
                 {
-                    closeable.close();
+                    InputStream socketInputStream = socket.getInputStream();
+                    socketOutputStream = socket.getOutputStream();
+                    channel = socket.getChannel();
+                    if (tlsContext != null)
+                    {
+                        // over the streams, which have the socket's read timeout; the handshake
+                        // happens on the first read
+                        TlsChannel tls = tlsContext.open(Channels.newChannel(socketInputStream),
+                                Channels.newChannel(socketOutputStream), http2 ? HTTP2_PROTOCOLS : HTTP1_PROTOCOLS);
+                        socketInputStream = Channels.newInputStream(tls);
+                        socketOutputStream = Channels.newOutputStream(tls);
+                        channel = tls;
+                    }
+                    inputStream = new ConnectionInputStream(socketInputStream);
+                    // file bodies sent with transferTo bypass the stream and only have the
+                    // socket's own timeout
+                    outputStream = new BufferedOutputStream(deadline.guard(socketOutputStream, writeTimeout),
+                            SEND_BUFFER_SIZE);
+                    // one request object and temp file manager serve every request on the connection
+                    tempFileManager = new TempFileManager();
+                    httpRequest = createRequest(inputStream, tempFileManager);
                 }
-                catch (IOException e)
+                boolean keepAlive = true;
+                while (keepAlive)
+                {
+                    try
+                    {
+                        HTTPResponse httpResponse;
+                        if (pending != null)
+                        {
+                            httpResponse = pending.join();
+                            pending = null;
+                        }
+                        else
+                        {
+                            // the first request is always read, the client sent it before the
+                            // server began to drain
+                            if (served == 0)
+                            {
+                                deadline.arm(idleTimeout);
+                                if (http2 && Http2Connection.readPreface(inputStream))
+                                {
+                                    new Http2Connection(MyHTTPServer.this, socket, inputStream, socketOutputStream, deadline).serve();
+                                    break;
+                                }
+                            }
+                            else if (!deadline.awaitRequest(idleTimeout))
+                            {
+                                break;
+                            }
+                            CompletableFuture<HTTPResponse> response = serve(httpRequest, deadline, timer);
+                            if (response == null)
+                            {
+                                // the request asked for h2c and becomes its first stream
+                                outputStream.flush();
+                                new Http2Connection(MyHTTPServer.this, socket, inputStream, socketOutputStream, deadline)
+                                        .upgrade(httpRequest);
+                                break;
+                            }
+                            if (!response.isDone())
+                            {
+                                // the continuation may run as soon as it is registered, the
+                                // worker's state is left alone from here on
+                                pending = response;
+                                suspended = true;
+                                response.whenComplete(new BiConsumer<HTTPResponse, Throwable>()
+                                {
+                                    @Override
+                                    public void accept(HTTPResponse httpResponse, Throwable failure)
+                                    {
+                                        resume(ConnectionWorker.this);
+                                    }
+                                });
+                                return;
+                            }
+                            httpResponse = response.join();
+                        }
+                        keepAlive = send(httpResponse);
+                    }
+                    finally
+                    {
+                        if (!suspended)
+                        {
+                            tempFileManager.clear();
+                            httpRequest.reset();
+                        }
+                    }
+                }
+            }
+            catch (SocketException se)
+            {
+                // client closed the connection or it timed out between requests
+            }
+            catch (ClosedChannelException cce)
+            {
+                // stop() closed the connection
+            }
+            catch (IOException ioe)
+            {
+                ioe.printStackTrace();
+            }
+            finally
+            {
+                if (!suspended)
                 {
+                    if (httpRequest != null)
+                    {
+                        httpRequest.release();
+                    }
+                    deadline.cancel();
+                    HTTPServerUtils.safeClose(outputStream);
+                    deadline.getConnections().close(socket);
                 }
             }
         }
 
         /**
-         * Registers that a new connection has been set up.
-         * 
-         * @param socket
-         *            the {@link Socket} for the connection.
+         * Writes the response to the current request.
+         *
+         * @return whether the connection stays open for a further request
          */
-        public static synchronized void registerConnection(Socket socket)
+        private boolean send(HTTPResponse httpResponse) throws IOException
         {
-            openConnections.add(socket);
+            if (++served >= maxRequestsPerConnection || deadline.isDraining())
+            {
+                httpResponse.setKeepAlive(false);
+            }
+            boolean keepAlive = httpResponse.isKeepAlive();
+            // hold the bytes back while pipelined requests are waiting, they
+            // will go out together with the next response
+            long writeStart = System.nanoTime();
+            httpResponse.send(outputStream, channel, false);
+            recordSent(httpRequest, httpResponse, writeStart);
+            if (keepAlive && !httpRequest.discardBody(MAX_DISCARDED_BODY))
+            {
+                // cheaper to open a new connection than to read a large body
+                // nobody wants
+                keepAlive = false;
+            }
+            if (!keepAlive || inputStream.available() == 0)
+            {
+                outputStream.flush();
+            }
+            return keepAlive;
         }
+    }
 
-        /**
-         * Registers that a connection has been closed
-         * 
-         * @param socket
-         *            the {@link Socket} for the connection.
-         */
-        public static synchronized void unRegisterConnection(Socket socket)
+    /**
+     * Hands a task to the executor unless the admission queue already holds
+     * <code>maxQueuedTasks</code> tasks that have not started yet.
+     * 
+     * @return false if the task was shed and the caller must answer 503
+     */
+    boolean submit(final Runnable task)
+    {
+        if (queued.incrementAndGet() > maxQueuedTasks)
         {
-            openConnections.remove(socket);
+            queued.decrementAndGet();
+            shedCount.incrementAndGet();
+            return false;
         }
+        try
+        {
+            executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        active.decrementAndGet();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            queued.decrementAndGet();
+            shedCount.incrementAndGet();
+            return false;
+        }
+        admittedCount.incrementAndGet();
+        return true;
+    }
 
-        /**
-         * Forcibly closes all connections that are open.
-         */
-        public static synchronized void closeAllConnections()
+    /**
+     * Runs the rest of a request once its async handler completed the response. It was admitted
+     * before, so it is never shed; if the executor takes no more tasks because the server
+     * stopped, it runs on the calling thread.
+     */
+    void resume(final Runnable task)
+    {
+        Runnable counted = new Runnable()
         {
-            System.out.println("Closing all the connections!");
-            for (Socket socket : openConnections)
+            @Override
+            public void run()
             {
-                safeClose(socket);
+                active.incrementAndGet();
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    active.decrementAndGet();
+                }
+            }
+        };
+        try
+        {
+            executor.execute(counted);
+        }
+        catch (RejectedExecutionException e)
+        {
+            counted.run();
+        }
+    }
+
+    /**
+     * @return the pre-encoded 503 response written to shed connections
+     */
+    byte[] getServiceUnavailableResponse()
+    {
+        return serviceUnavailableResponse;
+    }
+
+    private static byte[] encodeServiceUnavailable(int retryAfterSeconds)
+    {
+        String body = "SERVICE UNAVAILABLE: Server is overloaded, retry later.";
+        String response = "HTTP/1.1 " + HTTPStatus.SERVICE_UNAVAILABLE.getDescription() + "\r\n"
+                + "Content-Type: " + MIME_PLAINTEXT + "\r\n"
+                + "Retry-After: " + retryAfterSeconds + "\r\n"
+                + "Connection: close\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "\r\n"
+                + body;
+        try
+        {
+            return response.getBytes("US-ASCII");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a request reading from the given stream, configured with the server settings.
+     */
+    HTTPRequest createRequest(InputStream inputStream, TempFileManager tempFileManager)
+    {
+        HTTPRequest httpRequest = new HTTPRequest(inputStream, tempFileManager);
+        httpRequest.setMemoryThreshold(bodyMemoryThreshold);
+        httpRequest.setPartSink(partSink);
+        httpRequest.setMaxBodySize(maxBodySize);
+        return httpRequest;
+    }
+
+    /**
+     * Reads the request and produces its response, turning failures into error responses. Only
+     * responses to requests that were read successfully keep the connection alive.
+     * 
+     * @param timer
+     *            enforces the async timeout
+     * @return the response, complete unless an async handler is still working on it; it always
+     *         completes normally, and cancelling it cancels the handler's future
+     * @throws SocketException
+     *             if the connection was closed before a request arrived
+     */
+    CompletableFuture<HTTPResponse> serve(HTTPRequest httpRequest, TimerWheel timer) throws SocketException
+    {
+        return serve(httpRequest, null, timer);
+    }
+
+    /**
+     * @param deadline
+     *            disarmed once the request head has been read, the handler may take its time
+     * @return null if the connection is to be upgraded to HTTP/2 for the request
+     */
+    private CompletableFuture<HTTPResponse> serve(final HTTPRequest httpRequest, ConnectionDeadline deadline,
+            TimerWheel timer) throws SocketException
+    {
+        final long handleStart;
+        final boolean cached;
+        final CompletableFuture<HTTPResponse> handled;
+        try
+        {
+            httpRequest.execute();
+            if (deadline != null)
+            {
+                deadline.requestRead();
+                if (http2 && Http2Connection.isUpgrade(httpRequest, bodyMemoryThreshold))
+                {
+                    return null;
+                }
+            }
+            handleStart = System.nanoTime();
+            HTTPResponse httpResponse = responseCache != null ? responseCache.get(httpRequest) : null;
+            cached = httpResponse != null;
+            handled = cached ? CompletableFuture.completedFuture(httpResponse) : getResponse(httpRequest);
+        }
+        catch (SocketException se)
+        {
+            throw se;
+        }
+        catch (Exception e)
+        {
+            return CompletableFuture.completedFuture(getErrorResponse(e));
+        }
+        if (handled.isDone())
+        {
+            return CompletableFuture.completedFuture(complete(httpRequest, handled, cached, handleStart));
+        }
+
+        final CompletableFuture<HTTPResponse> response = new CompletableFuture<HTTPResponse>();
+        final TimerWheel.Timeout timeout = asyncTimeout <= 0 ? null : timer.schedule(new TimerWheel.Task()
+        {
+            @Override
+            public void expired(long now)
+            {
+                HTTPResponse timedOut = new HTTPResponse(HTTPStatus.GATEWAY_TIMEOUT, MIME_PLAINTEXT,
+                        "GATEWAY TIMEOUT: No response within " + asyncTimeout + " ms.");
+                timedOut.setRequestMethod(httpRequest.getMethod());
+                // the handler may still hold the request, its body is not read past
+                timedOut.setKeepAlive(false);
+                if (response.complete(timedOut))
+                {
+                    handled.cancel(true);
+                }
+            }
+        }, asyncTimeout);
+        handled.whenComplete(new BiConsumer<HTTPResponse, Throwable>()
+        {
+            @Override
+            public void accept(HTTPResponse httpResponse, Throwable failure)
+            {
+                if (timeout != null)
+                {
+                    timeout.cancel();
+                }
+                if (!response.isDone())
+                {
+                    response.complete(complete(httpRequest, handled, cached, handleStart));
+                }
+            }
+        });
+        response.whenComplete(new BiConsumer<HTTPResponse, Throwable>()
+        {
+            @Override
+            public void accept(HTTPResponse httpResponse, Throwable failure)
+            {
+                if (response.isCancelled())
+                {
+                    handled.cancel(true);
+                }
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Finishes the response produced by the handler: compression, caching and metrics.
+     */
+    private HTTPResponse complete(HTTPRequest httpRequest, CompletableFuture<HTTPResponse> handled, boolean cached,
+            long handleStart)
+    {
+        try
+        {
+            HTTPResponse httpResponse = handled.join();
+            httpResponse.setRequestMethod(httpRequest.getMethod());
+            httpResponse.setKeepAlive(httpRequest.isKeepAlive());
+            if (!cached && compressor != null)
+            {
+                compressor.apply(httpRequest, httpResponse);
+            }
+            if (!cached && responseCache != null)
+            {
+                responseCache.put(httpRequest, httpResponse);
+            }
+            if (metrics != null)
+            {
+                metrics.recordHandled(httpRequest.getMethod(), httpRequest.getRoute(),
+                        handleStart - httpRequest.getReceivedNanos(), System.nanoTime() - handleStart);
+            }
+            return httpResponse;
+        }
+        catch (CompletionException e)
+        {
+            // the handler's future failed, answered like the exception of a synchronous handler
+            return getErrorResponse(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+        catch (Exception e)
+        {
+            return getErrorResponse(e);
+        }
+    }
+
+    /**
+     * @return the answer to a failed request: the status of a {@link ResponseException} found
+     *         among the causes, e.g. of a malformed body only noticed when the handler reads it,
+     *         500 otherwise
+     */
+    private static HTTPResponse getErrorResponse(Exception e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof ResponseException)
+            {
+                ResponseException re = (ResponseException) cause;
+                return new HTTPResponse(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+            }
+        }
+        e.printStackTrace();
+        return new HTTPResponse(HTTPStatus.INTERNAL_ERROR, MIME_PLAINTEXT,"SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+    }
+
+    /**
+     * Records a response once <code>send</code> returned; in non-blocking mode that is when it
+     * has been serialized for the event loop.
+     */
+    void recordSent(HTTPRequest httpRequest, HTTPResponse httpResponse, long writeStart)
+    {
+        completedCount.incrementAndGet();
+        if (metrics != null)
+        {
+            metrics.recordSent(httpRequest.getMethod(), httpRequest.getRoute(), httpResponse.getStatus(),
+                    System.nanoTime() - writeStart,
+                    httpRequest.getHeaderLength() + Math.max(0, httpRequest.getContentLength()),
+                    httpResponse.getBytesSent());
+        }
+    }
+
+    private CompletableFuture<HTTPResponse> getResponse(HTTPRequest httpRequest)
+    {
+        if (metricsPath != null && metricsPath.equals(httpRequest.getUri())
+                && (httpRequest.getMethod() == Method.GET || httpRequest.getMethod() == Method.HEAD))
+        {
+            StringBuilder text = new StringBuilder(4096);
+            metrics.writePrometheus(text, gauges);
+            if (tlsContext != null)
+            {
+                tlsContext.getMetrics().writePrometheus(text);
+            }
+            return CompletableFuture.completedFuture(new HTTPResponse(HTTPStatus.OK,
+                    "text/plain; version=0.0.4; charset=utf-8", text.toString()));
+        }
+        if (router != null)
+        {
+            return router.routeAsync(httpRequest);
+        }
+        return CompletableFuture.completedFuture(Router.dispatch(this, httpRequest.getMethod(), httpRequest));
+    }
+
+    /**
+     * Stops the server gracefully, giving requests in progress up to the drain timeout; see
+     * {@link #stop(long)}.
+     */
+    public void stop()
+    {
+        stop(drainTimeout);
+    }
+
+    /**
+     * Stops the server in four steps: stop accepting connections, stop reading further requests
+     * on keep-alive connections (idle ones are closed right away), let the requests being read or
+     * handled finish and answer them with "Connection: close", and once <code>drainMillis</code>
+     * have passed close whatever is left. The executor is shut down if the server created it.
+     * Calling it again while the server stops does nothing.
+     */
+    public void stop(long drainMillis)
+    {
+        if (!stopping.compareAndSet(false, true))
+        {
+            return;
+        }
+        System.out.println("============================================================");
+        System.out.println("MyHTTPServer is shutting down");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        long completedBefore = completedCount.get();
+        try
+        {
+            if (shutdownHook != null && Thread.currentThread() != shutdownHook)
+            {
+                try
+                {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                }
+                catch (IllegalStateException e)
+                {
+                    // the JVM is shutting down already
+                }
+            }
+            closeListeners();
+            for (ConnectionRegistry registry : connections)
+            {
+                registry.drainAll();
+            }
+            while (getOpenConnectionCount() > 0 && System.nanoTime() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            drainedCount = completedCount.get() - completedBefore;
+            abortedCount = 0;
+            for (ConnectionRegistry registry : connections)
+            {
+                abortedCount += registry.closeAll();
+            }
+            connections.clear();
+            if (nonBlocking)
+            {
+                for (NioEventLoop eventLoop : eventLoops)
+                {
+                    eventLoop.shutdown();
+                }
+                eventLoops.clear();
+            }
+            else
+            {
+                for (Acceptor acceptor : acceptors)
+                {
+                    acceptor.join();
+                }
+                acceptors.clear();
+                timer.stop();
+            }
+            if (ownsExecutor)
+            {
+                executor.shutdown();
+                if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                {
+                    executor.shutdownNow();
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        System.out.println("MyHTTPServer drained " + drainedCount + " request(s), aborted " + abortedCount
+                + " connection(s)");
+        System.out.println("MyHTTPServer shut down completed");
+        System.out.println("============================================================");
+    }
+
+    public ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Plugs in the executor that runs the blocking handler code: a platform thread pool, one
+     * virtual thread per connection or any custom executor; see {@link ServerExecutors}. Defaults
+     * to a pool of 10 platform threads, which {@link #stop()} shuts down. Must be set before
+     * {@link #start()}; the server does not shut down an executor set here.
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+
+    public boolean isNonBlocking()
+    {
+        return nonBlocking;
+    }
+
+    /**
+     * Serve connections from selector based event loops instead of one thread per connection.
+     * Handlers are still called on the executor, but only once the whole request has arrived.
+     * Must be set before {@link #start()}.
+     */
+    public void setNonBlocking(boolean nonBlocking)
+    {
+        this.nonBlocking = nonBlocking;
+    }
+
+    public int getEventLoopCount()
+    {
+        return eventLoopCount;
+    }
+
+    /**
+     * Number of event loop threads used in non-blocking mode.
+     */
+    public void setEventLoopCount(int eventLoopCount)
+    {
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    public int getAcceptorCount()
+    {
+        return acceptorCount;
+    }
+
+    /**
+     * Number of threads accepting connections in blocking mode. More than one keeps up with
+     * bursts of new connections, e.g. clients reconnecting all at once; see
+     * {@link #setReusePort(boolean)}. Must be set before {@link #start()}.
+     */
+    public void setAcceptorCount(int acceptorCount)
+    {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public boolean isReusePort()
+    {
+        return reusePort;
+    }
+
+    /**
+     * Gives every acceptor thread or event loop a listener of its own, bound with SO_REUSEPORT,
+     * instead of one shared listener; the kernel then spreads new connections across them. Off
+     * by default, since it also lets other processes of the same user bind the port. Must be set
+     * before {@link #start()}.
+     *
+     * @throws UnsupportedOperationException
+     *             if the platform or JVM lacks SO_REUSEPORT, see {@link #isReusePortSupported()}
+     */
+    public void setReusePort(boolean reusePort)
+    {
+        if (reusePort && !isReusePortSupported())
+        {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported on " + System.getProperty("os.name")
+                    + " with Java " + System.getProperty("java.version"));
+        }
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * @return whether {@link #setReusePort(boolean)} is available here: Linux or BSD with Java 9
+     *         or later
+     */
+    public static boolean isReusePortSupported()
+    {
+        return Listeners.isReusePortSupported();
+    }
+
+    public int getBacklog()
+    {
+        return backlog;
+    }
+
+    /**
+     * Length of the queue of connections the kernel completed but the server did not accept
+     * yet, per listener; beyond it new connections are refused or their SYN dropped. Defaults
+     * to 1024, capped by the kernel (<code>net.core.somaxconn</code> on Linux). Must be set
+     * before {@link #start()}.
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    public int getMaxRequestSize()
+    {
+        return maxRequestSize;
+    }
+
+    /**
+     * Largest request, header and body, the event loops buffer before answering 413.
+     */
+    public void setMaxRequestSize(int maxRequestSize)
+    {
+        this.maxRequestSize = maxRequestSize;
+    }
+    
+    public int getMaxRequestsPerConnection()
+    {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * Number of requests served on one keep-alive connection before the server answers with
+     * "Connection: close". 1 disables persistent connections.
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection)
+    {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+    
+    public int getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Milliseconds a connection may take to send the complete head of its next request, counted
+     * from when it was accepted or its last response was written; also the longest a single read
+     * of a request body may block. Idle keep-alive connections are closed after it. Must be set
+     * before {@link #start()}.
+     */
+    public void setIdleTimeout(int idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getWriteTimeout()
+    {
+        return writeTimeout;
+    }
+
+    /**
+     * Milliseconds a write to a client that does not read its response may block before the
+     * connection is closed. Must be set before {@link #start()}.
+     */
+    public void setWriteTimeout(int writeTimeout)
+    {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public boolean isHttp2()
+    {
+        return http2;
+    }
+
+    /**
+     * Accepts cleartext HTTP/2 (h2c) on blocking mode connections, both with prior knowledge and
+     * as an upgrade from HTTP/1.1, and with TLS HTTP/2 negotiated with ALPN; off by default. The streams of a connection are handled in
+     * parallel on the executor while the connection's own worker reads its frames, so the
+     * executor needs threads beyond one per connection. The non-blocking mode speaks HTTP/1.x
+     * only.
+     */
+    public void setHttp2(boolean http2)
+    {
+        this.http2 = http2;
+    }
+
+    public int getMaxConcurrentStreams()
+    {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Streams an HTTP/2 client may have open on one connection; further ones are refused and
+     * the client retries them. Defaults to 100.
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams)
+    {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    public TlsContext getTlsContext()
+    {
+        return tlsContext;
+    }
+
+    /**
+     * Serves HTTPS instead of plain HTTP, in both modes; off by default. ALPN offers h2 where
+     * HTTP/2 is on, http/1.1 otherwise. Connections shed under overload are closed without the
+     * 503, which would take a handshake on the accept thread. Must be set before
+     * {@link #start()}.
+     */
+    public void setTlsContext(TlsContext tlsContext)
+    {
+        this.tlsContext = tlsContext;
+    }
+
+    /**
+     * @return the timer enforcing the deadlines of blocking mode connections
+     */
+    TimerWheel getTimer()
+    {
+        return timer;
+    }
+
+    /**
+     * @return number of open client connections
+     */
+    public int getOpenConnectionCount()
+    {
+        int count = 0;
+        for (ConnectionRegistry registry : connections)
+        {
+            count += registry.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return whether {@link #stop()} has begun; responses written from then on close their
+     *         connection
+     */
+    boolean isStopping()
+    {
+        return stopping.get();
+    }
+
+    public int getDrainTimeout()
+    {
+        return drainTimeout;
+    }
+
+    /**
+     * Milliseconds {@link #stop()} waits for requests in progress before closing their
+     * connections.
+     */
+    public void setDrainTimeout(int drainTimeout)
+    {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * @return requests answered while the last {@link #stop()} drained the server
+     */
+    public long getDrainedCount()
+    {
+        return drainedCount;
+    }
+
+    /**
+     * @return connections the last {@link #stop()} closed at the drain deadline, while a request
+     *         was still being read or handled
+     */
+    public long getAbortedCount()
+    {
+        return abortedCount;
+    }
+
+    public int getBodyMemoryThreshold()
+    {
+        return bodyMemoryThreshold;
+    }
+
+    /**
+     * Request bodies up to this many bytes are buffered in memory; larger ones spill to a temp
+     * file. Defaults to 64 KB.
+     */
+    public void setBodyMemoryThreshold(int bodyMemoryThreshold)
+    {
+        this.bodyMemoryThreshold = bodyMemoryThreshold;
+    }
+
+    public long getMaxBodySize()
+    {
+        return maxBodySize;
+    }
+
+    /**
+     * Largest request body accepted, whether sent with Content-Length or chunked; larger ones are
+     * answered with 413. Unlimited by default. Requests on the non-blocking path are also bounded
+     * by {@link #setMaxRequestSize(int)}.
+     */
+    public void setMaxBodySize(long maxBodySize)
+    {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public MultipartParser.PartSink getPartSink()
+    {
+        return partSink;
+    }
+
+    /**
+     * Streams the files of multipart/form-data uploads to the given sink; by default, or when the
+     * sink returns null, they go to temp files listed in {@link HTTPRequest#getFiles()}.
+     */
+    public void setPartSink(MultipartParser.PartSink partSink)
+    {
+        this.partSink = partSink;
+    }
+
+    public Router getRouter()
+    {
+        return router;
+    }
+
+    /**
+     * Dispatches requests through the router's routes instead of this server's do-methods.
+     */
+    public void setRouter(Router router)
+    {
+        this.router = router;
+    }
+
+    public String getMetricsPath()
+    {
+        return metricsPath;
+    }
+
+    /**
+     * Records request metrics and serves them in the Prometheus text format on the given path,
+     * e.g. "/metrics"; null, the default, turns metrics off.
+     */
+    public void setMetricsPath(String metricsPath)
+    {
+        this.metricsPath = metricsPath;
+        if (metricsPath == null)
+        {
+            metrics = null;
+        }
+        else if (metrics == null)
+        {
+            metrics = new ServerMetrics();
+        }
+    }
+
+    /**
+     * @return the recorded metrics, null unless a metrics path is set
+     */
+    public ServerMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public ResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    /**
+     * Answers repeated GET and HEAD requests from the cache while the responses allow it with
+     * Cache-Control max-age. Off by default.
+     */
+    public void setResponseCache(ResponseCache responseCache)
+    {
+        this.responseCache = responseCache;
+    }
+
+    public ResponseCompressor getCompressor()
+    {
+        return compressor;
+    }
+
+    /**
+     * Compresses response bodies with gzip or deflate for clients that accept it. Off by default.
+     */
+    public void setCompressor(ResponseCompressor compressor)
+    {
+        this.compressor = compressor;
+    }
+
+    public int getMaxQueuedTasks()
+    {
+        return maxQueuedTasks;
+    }
+
+    /**
+     * Depth of the admission queue: connections (blocking mode) or requests (non-blocking mode)
+     * waiting for the executor. When it is full new work is answered right away with a
+     * pre-encoded 503 instead of being queued.
+     */
+    public void setMaxQueuedTasks(int maxQueuedTasks)
+    {
+        this.maxQueuedTasks = maxQueuedTasks;
+    }
+
+    /**
+     * Sets the Retry-After value, in seconds, sent with 503 responses to shed work.
+     */
+    public void setRetryAfter(int retryAfterSeconds)
+    {
+        this.serviceUnavailableResponse = encodeServiceUnavailable(retryAfterSeconds);
+    }
+
+    public int getAsyncTimeout()
+    {
+        return asyncTimeout;
+    }
+
+    /**
+     * Milliseconds an async handler (see {@link Router#addAsync}) has to complete its response.
+     * Afterwards its future is cancelled and the client gets 504 on a connection that closes, as
+     * the handler may still be using the request. Defaults to 30 seconds, 0 waits forever.
+     */
+    public void setAsyncTimeout(int asyncTimeout)
+    {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * @return number of tasks waiting in the admission queue
+     */
+    public int getQueuedCount()
+    {
+        return queued.get();
+    }
+
+    /**
+     * @return number of connections or requests handed to the executor
+     */
+    public long getAdmittedCount()
+    {
+        return admittedCount.get();
+    }
+
+    /**
+     * @return number of connections or requests answered with 503 because the queue was full
+     */
+    public long getShedCount()
+    {
+        return shedCount.get();
+    }
+
+    /**
+     * @return number of executor tasks running, i.e. busy worker threads
+     */
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+    
+    // utility methods
+    
+    public static final class ResponseException extends Exception
+    {
+
+        private final HTTPStatus status;
+
+        public ResponseException(HTTPStatus status, String message)
+        {
+            super(message);
+            this.status = status;
+        }
+
+        public ResponseException(HTTPStatus status, String message, Exception e)
+        {
+            super(message, e);
+            this.status = status;
+        }
+
+        public HTTPStatus getStatus()
+        {
+            return status;
+        }
+    }    
+    
+    public static class HTTPServerUtils
+    {
+        public static final void safeClose(ServerSocket serverSocket)
+        {
+            if (serverSocket != null)
+            {
+                try
+                {
+                    serverSocket.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        public static final void safeClose(Socket socket)
+        {
+            if (socket != null)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        public static final void safeClose(Closeable closeable)
+        {
+            if (closeable != null)
+            {
+                try
+                {
+                    closeable.close();
+                }
+                catch (IOException e)
+                {
+                }
             }
         }
-        
     }
     public class TempFileManager
     {
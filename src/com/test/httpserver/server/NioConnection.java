@@ -0,0 +1,815 @@
+package com.test.httpserver.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.test.httpserver.network.BufferPool;
+import com.test.httpserver.network.ChunkedInputStream;
+import com.test.httpserver.network.ConnectionInputStream;
+import com.test.httpserver.network.FileRegion;
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.network.RequestParser;
+import com.test.httpserver.network.TlsChannel;
+import com.test.httpserver.network.TlsContext;
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+import com.test.httpserver.server.MyHTTPServer.ResponseException;
+import com.test.httpserver.server.MyHTTPServer.TempFileManager;
+import com.test.httpserver.util.HTTPStatus;
+
+/**
+ * State of one connection owned by a {@link NioEventLoop}. Only ever touched from the loop
+ * thread, except for the request object, which the worker serving the request in flight reuses
+ * for every request of the connection.
+ * <p>
+ * Its deadline follows from the state and is checked when the loop's timer wheel expires the
+ * connection's timeout: the head of the next request must arrive within the idle timeout, a body
+ * must make progress within it, and so must a pending response within the write timeout. Nothing
+ * is rescheduled on reads and writes; the check schedules the next one for the deadline, at most
+ * the smaller timeout ahead, so no deadline set in between is missed.
+ * <p>
+ * While an async handler works on the response the connection keeps reading, so that a client
+ * closing the connection is noticed and the response cancelled. Bytes of pipelined requests are
+ * only buffered meanwhile.
+ * <p>
+ * Draining is handed to the loop thread like everything else: a connection waiting for its next
+ * request is closed, any other one closes after the response to its current request.
+ * <p>
+ * With TLS requests are read from and responses written to a {@link TlsChannel} on top of the
+ * socket. Its handshake runs on the loop thread as part of reading; bytes it decrypted ahead are
+ * read without waiting for the selector, which only sees the socket.
+ * <p>
+ * A connection closed by the server after a response lingers: its output is shut down and what
+ * the client still sends is discarded for a while, so that the close does not reset the
+ * connection under the response.
+ */
+final class NioConnection implements TimerWheel.Task, ConnectionRegistry.Drainable
+{
+    /**
+     * Same header limit as the blocking path in HTTPRequest.
+     */
+    private static final int HEADER_LIMIT = 8192;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    /**
+     * The TLS side of the connection, null without TLS
+     */
+    private final TlsChannel tls;
+    /**
+     * What requests are read from and responses written to, the socket or its TLS side
+     */
+    private final ByteChannel io;
+    private final Runnable readBuffered = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!closed && (key.interestOps() & SelectionKey.OP_READ) != 0)
+            {
+                onReadable();
+            }
+        }
+    };
+    private SelectionKey key;
+    /**
+     * Taken from the pool when bytes arrive and given back as soon as it is empty again, so idle
+     * connections hold no buffer.
+     */
+    private ByteBuffer readBuffer;
+    private final Deque<FileRegion> pendingWrites = new ArrayDeque<FileRegion>();
+    private final RequestParser parser = new RequestParser();
+    private int headerEnd = -1;
+    private long contentLength;
+    private boolean chunked;
+    private int chunkPos;
+    private boolean lastChunkSeen;
+    private int requests;
+    private boolean inFlight;
+    /**
+     * Response of an async handler to the request in flight
+     */
+    private CompletableFuture<HTTPResponse> pending;
+    private boolean inputShutdown;
+    private boolean closeAfterWrite;
+    private boolean closed;
+    private boolean draining;
+    /**
+     * Until when input is discarded after the last response, 0 before
+     */
+    private long lingerUntil;
+    private long lingerDiscarded;
+    private long lastActivity = TimerWheel.now();
+    /**
+     * When the connection last had nothing to read, write or handle
+     */
+    private long idleSince = lastActivity;
+    private TimerWheel.Timeout timeout;
+    /**
+     * Created for the first request and reused for the others, by one worker at a time: a
+     * request is dispatched only once the previous response has been handed back to the loop
+     */
+    private RequestInputStream requestInput;
+    private HTTPRequest httpRequest;
+    private TempFileManager tempFileManager;
+
+    NioConnection(NioEventLoop loop, SocketChannel channel)
+    {
+        this.loop = loop;
+        this.channel = channel;
+        TlsContext tlsContext = loop.getServer().getTlsContext();
+        this.tls = tlsContext != null ? tlsContext.open(channel, channel, "http/1.1") : null;
+        this.io = tls != null ? tls : channel;
+        this.timeout = loop.getTimer().schedule(this, checkInterval());
+    }
+
+    void setKey(SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    void onReadable()
+    {
+        if (lingerUntil != 0)
+        {
+            discardInput();
+            return;
+        }
+        if (readBuffer == null)
+        {
+            readBuffer = ByteBuffer.wrap(BufferPool.HEADER_BUFFERS.acquire());
+        }
+        int read;
+        try
+        {
+            read = io.read(readBuffer);
+        }
+        catch (IOException e)
+        {
+            close();
+            return;
+        }
+        if (read == -1)
+        {
+            // client is done sending; requests already received still get their answers
+            inputShutdown = true;
+            if (pending != null)
+            {
+                // nobody to answer: like a proxy, a client that stops sending while the handler
+                // is busy is taken to have given up
+                close();
+                return;
+            }
+            frameRequest();
+            releaseReadBuffer();
+            closeIfDone();
+            return;
+        }
+        lastActivity = TimerWheel.now();
+        frameRequest();
+        releaseReadBuffer();
+        if ((pending != null || tls != null) && !closed)
+        {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Points the connection's request object at the bytes of the next request; called by the
+     * worker that serves it.
+     *
+     * @param request
+     *            holds the head and the whole body of the request in its first
+     *            <code>length</code> bytes
+     */
+    HTTPRequest prepareRequest(byte[] request, int length)
+    {
+        if (httpRequest == null)
+        {
+            requestInput = new RequestInputStream();
+            tempFileManager = loop.getServer().new TempFileManager();
+            httpRequest = loop.getServer().createRequest(requestInput, tempFileManager);
+        }
+        requestInput.set(request, length);
+        return httpRequest;
+    }
+
+    HTTPRequest getRequest()
+    {
+        return httpRequest;
+    }
+
+    TempFileManager getTempFileManager()
+    {
+        return tempFileManager;
+    }
+
+    void onWritable()
+    {
+        if (lingerUntil != 0)
+        {
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * Watches the connection while an async handler works on the response to the request in
+     * flight; closing the connection cancels <code>response</code>.
+     */
+    void awaitResponse(CompletableFuture<HTTPResponse> response)
+    {
+        if (closed)
+        {
+            response.cancel(true);
+            return;
+        }
+        pending = response;
+        updateInterest();
+    }
+
+    /**
+     * Queues a serialized response; called on the loop thread once the handler has finished. The
+     * next pipelined request is dispatched right away, without waiting for the write to complete.
+     */
+    void write(List<FileRegion> response, boolean keepAlive)
+    {
+        if (closed)
+        {
+            for (FileRegion region : response)
+            {
+                region.close();
+            }
+            return;
+        }
+        inFlight = false;
+        pending = null;
+        if (!keepAlive || draining)
+        {
+            closeAfterWrite = true;
+        }
+        pendingWrites.addAll(response);
+        frameRequest();
+        releaseReadBuffer();
+        flush();
+    }
+
+    /**
+     * Queues part of a response that is still being serialized; the request stays in flight.
+     */
+    void writePart(FileRegion region)
+    {
+        if (closed)
+        {
+            region.close();
+            return;
+        }
+        pendingWrites.add(region);
+        flush();
+    }
+
+    @Override
+    public void drain()
+    {
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drainOnLoop();
+            }
+        });
+    }
+
+    private void drainOnLoop()
+    {
+        if (closed)
+        {
+            return;
+        }
+        draining = true;
+        // nothing of a further request has arrived; like in the blocking mode the first request
+        // of a connection is still read
+        if (!inFlight && readBuffer == null && requests > 0)
+        {
+            closeAfterWrite = true;
+            if (!closeIfDone())
+            {
+                updateInterest();
+            }
+        }
+    }
+
+    @Override
+    public void expired(long now)
+    {
+        if (closed)
+        {
+            return;
+        }
+        if (lingerUntil != 0)
+        {
+            if (now >= lingerUntil)
+            {
+                close();
+            }
+            else
+            {
+                timeout = loop.getTimer().schedule(this, lingerUntil - now);
+            }
+            return;
+        }
+        MyHTTPServer server = loop.getServer();
+        long deadline;
+        if (hasPendingWrites())
+        {
+            deadline = lastActivity + server.getWriteTimeout();
+        }
+        else if (inFlight)
+        {
+            // the handler may take its time
+            deadline = 0;
+        }
+        else if (headerEnd >= 0)
+        {
+            deadline = lastActivity + server.getIdleTimeout();
+        }
+        else
+        {
+            deadline = idleSince + server.getIdleTimeout();
+        }
+        if (deadline != 0 && deadline <= now)
+        {
+            close();
+            return;
+        }
+        long check = checkInterval();
+        timeout = loop.getTimer().schedule(this, deadline != 0 ? Math.min(deadline - now, check) : check);
+    }
+
+    private long checkInterval()
+    {
+        return Math.min(loop.getServer().getIdleTimeout(), loop.getServer().getWriteTimeout());
+    }
+
+    void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        timeout.cancel();
+        if (pending != null)
+        {
+            pending.cancel(true);
+            pending = null;
+        }
+        if (key != null)
+        {
+            key.cancel();
+        }
+        if (tls != null)
+        {
+            HTTPServerUtils.safeClose(tls);
+        }
+        loop.getConnections().close(channel);
+        for (FileRegion region : pendingWrites)
+        {
+            region.close();
+        }
+        pendingWrites.clear();
+        if (readBuffer != null)
+        {
+            BufferPool.HEADER_BUFFERS.release(readBuffer.array());
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * Returns the read buffer to the pool when it holds no bytes of a request.
+     */
+    private void releaseReadBuffer()
+    {
+        if (readBuffer != null && readBuffer.position() == 0 && !closed)
+        {
+            BufferPool.HEADER_BUFFERS.release(readBuffer.array());
+            readBuffer = null;
+        }
+    }
+
+    private void flush()
+    {
+        try
+        {
+            // encrypted bytes of earlier writes go first
+            if (tls == null || tls.flush())
+            {
+                while (!pendingWrites.isEmpty())
+                {
+                    if (!pendingWrites.peek().transferTo(io))
+                    {
+                        break;
+                    }
+                    pendingWrites.poll().close();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            return;
+        }
+        lastActivity = TimerWheel.now();
+        if (!hasPendingWrites() && !inFlight)
+        {
+            idleSince = lastActivity;
+        }
+        if (!closeIfDone())
+        {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Closes the connection once everything owed to the client has been written.
+     */
+    private boolean closeIfDone()
+    {
+        if (lingerUntil != 0)
+        {
+            return true;
+        }
+        if (!hasPendingWrites() && !inFlight && (closeAfterWrite || inputShutdown))
+        {
+            if (inputShutdown)
+            {
+                close();
+            }
+            else
+            {
+                linger();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes the connection after its last response, e.g. a 503 or 400, while the client may
+     * still be sending: closing a socket with unread bytes sends a reset, which can reach the
+     * client before it read the response. So only the output is shut down, and the input is
+     * discarded until the client closes its side, like {@link LingeringClose} does in the
+     * blocking mode.
+     */
+    private void linger()
+    {
+        if (tls != null)
+        {
+            HTTPServerUtils.safeClose(tls);
+        }
+        try
+        {
+            channel.shutdownOutput();
+        }
+        catch (IOException e)
+        {
+            close();
+            return;
+        }
+        lingerUntil = TimerWheel.now() + LingeringClose.LINGER_MILLIS;
+        timeout.cancel();
+        timeout = loop.getTimer().schedule(this, LingeringClose.LINGER_MILLIS);
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads and drops what the client sent after the last response, straight from the socket.
+     */
+    private void discardInput()
+    {
+        if (readBuffer == null)
+        {
+            readBuffer = ByteBuffer.wrap(BufferPool.HEADER_BUFFERS.acquire());
+        }
+        try
+        {
+            while (true)
+            {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read < 0 || (lingerDiscarded += read) > LingeringClose.LINGER_BYTES)
+                {
+                    close();
+                    return;
+                }
+                if (read == 0)
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            return;
+        }
+        readBuffer.clear();
+        releaseReadBuffer();
+    }
+
+    /**
+     * @return whether bytes of a response, or of the TLS handshake, wait to be written
+     */
+    private boolean hasPendingWrites()
+    {
+        return !pendingWrites.isEmpty() || tls != null && tls.hasPendingOutput();
+    }
+
+    /**
+     * Reads only while no request is in flight, so pipelined requests wait in the socket buffer
+     * and responses go out in request order. A pending async response is the exception, as long
+     * as the read buffer has room: reading is the only way to notice the client leaving.
+     */
+    private void updateInterest()
+    {
+        int ops = 0;
+        if (hasPendingWrites())
+        {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if ((!inFlight || pending != null && (readBuffer == null || readBuffer.hasRemaining())) && !closeAfterWrite
+                && !inputShutdown)
+        {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+        if ((ops & SelectionKey.OP_READ) != 0 && tls != null && tls.hasBufferedInput())
+        {
+            // decrypted ahead, the socket will not become readable for these bytes
+            loop.execute(readBuffered);
+        }
+    }
+
+    /**
+     * Checks whether the read buffer holds a complete request (header plus Content-Length bytes of
+     * body) and dispatches it if so.
+     */
+    private void frameRequest()
+    {
+        if (inFlight || closeAfterWrite || closed || readBuffer == null)
+        {
+            return;
+        }
+        byte[] buf = readBuffer.array();
+        int rlen = readBuffer.position();
+        if (headerEnd < 0)
+        {
+            try
+            {
+                headerEnd = parser.parse(buf, rlen);
+            }
+            catch (ResponseException e)
+            {
+                fail(e.getStatus(), e.getMessage());
+                return;
+            }
+            if (headerEnd < 0)
+            {
+                if (rlen >= HEADER_LIMIT)
+                {
+                    fail(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Header too large.");
+                }
+                return;
+            }
+            String contentLengthHeader = parser.getHeader("content-length");
+            String transferEncoding = parser.getHeader("transfer-encoding");
+            // anything but a plain chunked body is rejected by the worker, which closes the
+            // connection afterwards
+            chunked = contentLengthHeader == null && transferEncoding != null
+                    && "chunked".equalsIgnoreCase(transferEncoding.trim());
+            chunkPos = headerEnd;
+            contentLength = parseContentLength(contentLengthHeader);
+            if (contentLength < 0)
+            {
+                fail(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
+                return;
+            }
+        }
+        int maxRequestSize = loop.getServer().getMaxRequestSize();
+        long total;
+        if (chunked)
+        {
+            try
+            {
+                total = scanChunkedBody(buf, rlen, maxRequestSize);
+            }
+            catch (ResponseException e)
+            {
+                fail(e.getStatus(), e.getMessage());
+                return;
+            }
+            if (total < 0)
+            {
+                if (!inputShutdown && rlen == readBuffer.capacity())
+                {
+                    if (rlen >= maxRequestSize)
+                    {
+                        fail(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request exceeds " + maxRequestSize + " bytes.");
+                        return;
+                    }
+                    growReadBuffer((int) Math.min(2L * rlen, maxRequestSize));
+                }
+                return;
+            }
+        }
+        else
+        {
+            total = headerEnd + contentLength;
+            if (total > maxRequestSize)
+            {
+                fail(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request exceeds " + maxRequestSize + " bytes.");
+                return;
+            }
+            if (rlen < total)
+            {
+                if (!inputShutdown && readBuffer.capacity() < total)
+                {
+                    growReadBuffer((int) total);
+                }
+                return;
+            }
+        }
+        // handed to the worker while the read buffer takes the next bytes; small requests are
+        // copied into a pooled buffer the worker gives back
+        byte[] request = total <= BufferPool.HEADER_BUFFERS.getBufferSize() ? BufferPool.HEADER_BUFFERS.acquire()
+                : new byte[(int) total];
+        System.arraycopy(buf, 0, request, 0, (int) total);
+        System.arraycopy(buf, (int) total, buf, 0, rlen - (int) total);
+        readBuffer.position(rlen - (int) total);
+        headerEnd = -1;
+        chunked = false;
+        lastChunkSeen = false;
+        parser.reset();
+        inFlight = true;
+        updateInterest();
+        loop.dispatch(this, request, (int) total,
+                ++requests >= loop.getServer().getMaxRequestsPerConnection() || draining);
+    }
+
+    /**
+     * Walks the chunks of a chunked body from where the previous call stopped; the body is only
+     * framed here, the worker decodes it.
+     *
+     * @return the offset after the trailer section, -1 while more bytes are needed
+     */
+    private int scanChunkedBody(byte[] buf, int rlen, int maxRequestSize) throws ResponseException
+    {
+        while (true)
+        {
+            int lf = chunkPos;
+            while (lf < rlen && buf[lf] != '\n')
+            {
+                lf++;
+            }
+            if (lf == rlen)
+            {
+                if (rlen - chunkPos > ChunkedInputStream.MAX_LINE_LENGTH)
+                {
+                    throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Chunk line too long.");
+                }
+                return -1;
+            }
+            if (lf == chunkPos || buf[lf - 1] != '\r')
+            {
+                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Chunk line not terminated by CRLF.");
+            }
+            if (lastChunkSeen)
+            {
+                // trailer fields up to the empty line
+                if (lf - 1 == chunkPos)
+                {
+                    return lf + 1;
+                }
+                chunkPos = lf + 1;
+                continue;
+            }
+            long size = ChunkedInputStream.parseChunkSize(buf, chunkPos, lf - 1);
+            if (size < 0)
+            {
+                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Invalid chunk size.");
+            }
+            if (size == 0)
+            {
+                lastChunkSeen = true;
+                chunkPos = lf + 1;
+                continue;
+            }
+            long dataEnd = lf + 1 + size + 2;
+            if (dataEnd > maxRequestSize)
+            {
+                throw new ResponseException(HTTPStatus.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Request exceeds "
+                        + maxRequestSize + " bytes.");
+            }
+            if (dataEnd > rlen)
+            {
+                if (readBuffer.capacity() < dataEnd)
+                {
+                    growReadBuffer((int) dataEnd);
+                }
+                return -1;
+            }
+            if (buf[(int) dataEnd - 2] != '\r' || buf[(int) dataEnd - 1] != '\n')
+            {
+                throw new ResponseException(HTTPStatus.BAD_REQUEST, "BAD REQUEST: Chunk data not followed by CRLF.");
+            }
+            chunkPos = (int) dataEnd;
+        }
+    }
+
+    private void growReadBuffer(int capacity)
+    {
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        BufferPool.HEADER_BUFFERS.release(readBuffer.array());
+        readBuffer = larger;
+    }
+
+    private void fail(HTTPStatus status, String message)
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new HTTPResponse(status, MyHTTPServer.MIME_PLAINTEXT, message).send(outputStream);
+        write(Collections.singletonList(new FileRegion(outputStream.toByteArray())), false);
+    }
+
+    /**
+     * @return the length, 0 if absent or -1 if malformed
+     */
+    private static long parseContentLength(String value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        // the same rule as the blocking path, repeated headers are checked by the parser
+        long length = RequestParser.parseContentLength(value);
+        return length <= Integer.MAX_VALUE ? length : -1;
+    }
+
+    /**
+     * The bytes of one request after another. What the request reads past its head is handed
+     * back with {@link #unread(byte[], int, int)}, which only has to step back in the array, and
+     * nothing is left over for the next request.
+     */
+    private static final class RequestInputStream extends ConnectionInputStream
+    {
+        RequestInputStream()
+        {
+            super(new Bytes());
+        }
+
+        void set(byte[] request, int length)
+        {
+            ((Bytes) in).set(request, length);
+        }
+
+        @Override
+        public void unread(byte[] b, int off, int len)
+        {
+            // always the last bytes read
+            ((Bytes) in).rewind(len);
+        }
+
+        private static final class Bytes extends ByteArrayInputStream
+        {
+            Bytes()
+            {
+                super(new byte[0]);
+            }
+
+            synchronized void set(byte[] request, int length)
+            {
+                buf = request;
+                pos = 0;
+                mark = 0;
+                count = length;
+            }
+
+            synchronized void rewind(int n)
+            {
+                pos -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.test.httpserver.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+import com.test.httpserver.network.BufferPool;
+import com.test.httpserver.network.FileRegion;
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+import com.test.httpserver.server.MyHTTPServer.HTTPServerUtils;
+
+/**
+ * Selector based event loop used by the non-blocking mode of {@link MyHTTPServer}. Accepting,
+ * reading requests and writing responses happen on the loop thread; only complete requests are
+ * handed to the server's executor for the handler call. The response of an async handler is
+ * serialized on the thread completing it, the worker thread does not wait for it. Connection
+ * deadlines are kept in a timer wheel advanced by the loop, so closing idle connections costs
+ * nothing for the busy ones. Each loop keeps its own connection registry.
+ */
+final class NioEventLoop implements Runnable
+{
+    private final MyHTTPServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final TimerWheel timer = new TimerWheel(MyHTTPServer.TIMER_TICK_MILLIS, MyHTTPServer.TIMER_SLOTS);
+    private final ConnectionRegistry connections = new ConnectionRegistry();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    NioEventLoop(MyHTTPServer server, ServerSocketChannel serverChannel) throws IOException
+    {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start(String name)
+    {
+        thread = new Thread(this);
+        thread.setName(name);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop and closes every connection it owns.
+     */
+    void shutdown() throws InterruptedException
+    {
+        running = false;
+        selector.wakeup();
+        if (thread != null)
+        {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select(timer.getTickMillis());
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+                timer.advance();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        for (SelectionKey key : selector.keys())
+        {
+            if (key.attachment() instanceof NioConnection)
+            {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        HTTPServerUtils.safeClose(selector);
+    }
+
+    /**
+     * Queues a task to be run on the loop thread.
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a complete request to the server's executor. The serialized response is written back
+     * on the loop thread.
+     * 
+     * @param request
+     *            the request in its first <code>length</code> bytes, returned to
+     *            {@link BufferPool#HEADER_BUFFERS} once served
+     * @param lastRequest
+     *            the connection has reached its request limit and closes after this response
+     */
+    void dispatch(final NioConnection connection, final byte[] request, final int length, final boolean lastRequest)
+    {
+        boolean admitted = server.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                serve(connection, request, length, lastRequest);
+            }
+        });
+        if (!admitted)
+        {
+            BufferPool.HEADER_BUFFERS.release(request);
+            connection.write(Collections.singletonList(new FileRegion(server.getServiceUnavailableResponse())), false);
+        }
+    }
+
+    /**
+     * @return whether the caller runs on the loop thread, e.g. completing an async response from
+     *         a timer task
+     */
+    boolean inLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    MyHTTPServer getServer()
+    {
+        return server;
+    }
+
+    TimerWheel getTimer()
+    {
+        return timer;
+    }
+
+    /**
+     * @return the connections this loop serves
+     */
+    ConnectionRegistry getConnections()
+    {
+        return connections;
+    }
+
+    /**
+     * Runs the handler for a request and passes the serialized response on to the connection.
+     * While an async handler works on the response the connection watches for the client going
+     * away, which cancels it.
+     */
+    private void serve(final NioConnection connection, final byte[] request, int length, final boolean lastRequest)
+    {
+        final HTTPRequest httpRequest = connection.prepareRequest(request, length);
+        final CompletableFuture<HTTPResponse> response;
+        try
+        {
+            response = server.serve(httpRequest, timer);
+        }
+        catch (IOException e)
+        {
+            finish(connection, request);
+            write(connection, Collections.<FileRegion> emptyList(), false);
+            return;
+        }
+        if (response.isDone())
+        {
+            send(connection, request, response.join(), lastRequest);
+            return;
+        }
+        // queued before any write of the response, the loop runs its tasks in order
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                connection.awaitResponse(response);
+            }
+        });
+        response.whenComplete(new BiConsumer<HTTPResponse, Throwable>()
+        {
+            @Override
+            public void accept(HTTPResponse httpResponse, Throwable failure)
+            {
+                if (failure != null)
+                {
+                    // cancelled, the connection is closed
+                    finish(connection, request);
+                    return;
+                }
+                send(connection, request, httpResponse, lastRequest);
+            }
+        });
+    }
+
+    /**
+     * Serializes the response into pooled buffers, the head and in-memory body first followed by
+     * the file regions of a file body. Buffers that fill up are written while the rest is
+     * serialized; the remainder is queued for writing on the loop thread.
+     */
+    private void send(NioConnection connection, byte[] request, HTTPResponse httpResponse, boolean lastRequest)
+    {
+        List<FileRegion> response = new ArrayList<FileRegion>(2);
+        boolean keepAlive;
+        NioResponseStream outputStream = new NioResponseStream(this, connection);
+        try
+        {
+            if (lastRequest || server.isStopping())
+            {
+                httpResponse.setKeepAlive(false);
+            }
+            long writeStart = System.nanoTime();
+            List<FileRegion> fileRegions = null;
+            if (httpResponse.getFileRegions() != null)
+            {
+                fileRegions = httpResponse.sendHead(outputStream);
+            }
+            else
+            {
+                httpResponse.send(outputStream);
+            }
+            server.recordSent(connection.getRequest(), httpResponse, writeStart);
+            FileRegion rest = outputStream.take();
+            if (rest != null)
+            {
+                response.add(rest);
+            }
+            if (fileRegions != null)
+            {
+                response.addAll(fileRegions);
+            }
+            keepAlive = httpResponse.isKeepAlive();
+        }
+        catch (IOException e)
+        {
+            // the partial response is never completed, the connection closes after what went out
+            HTTPServerUtils.safeClose(outputStream.take());
+            keepAlive = false;
+        }
+        finally
+        {
+            finish(connection, request);
+        }
+        write(connection, response, keepAlive);
+    }
+
+    /**
+     * Clears the connection's request object for the next request and returns the request bytes.
+     */
+    private void finish(NioConnection connection, byte[] request)
+    {
+        connection.getTempFileManager().clear();
+        connection.getRequest().release();
+        BufferPool.HEADER_BUFFERS.release(request);
+    }
+
+    private void write(final NioConnection connection, final List<FileRegion> response, final boolean keepAlive)
+    {
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                connection.write(response, keepAlive);
+            }
+        });
+    }
+
+    private void processKey(SelectionKey key)
+    {
+        try
+        {
+            if (!key.isValid())
+            {
+                return;
+            }
+            if (key.isAcceptable())
+            {
+                accept();
+                return;
+            }
+            NioConnection connection = (NioConnection) key.attachment();
+            if (key.isReadable())
+            {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable())
+            {
+                connection.onWritable();
+            }
+        }
+        catch (CancelledKeyException e)
+        {
+            // connection closed while processing
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+        {
+            // another event loop got it first
+            return;
+        }
+        channel.configureBlocking(false);
+        NioConnection connection = new NioConnection(this, channel);
+        connections.register(channel, connection);
+        connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
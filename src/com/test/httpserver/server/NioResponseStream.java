@@ -0,0 +1,164 @@
+package com.test.httpserver.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.test.httpserver.network.BufferPool;
+import com.test.httpserver.network.FileRegion;
+
+/**
+ * Stream a non-blocking mode response is serialized into on the worker thread. Bytes go into
+ * pooled buffers, and every buffer that fills up is handed to the connection right away, so a
+ * large streamed body is written while the handler still produces it instead of being held in
+ * memory as a whole. At most {@link #MAX_QUEUED_CHUNKS} buffers are on their way at a time;
+ * beyond that the worker waits for the socket, up to the write timeout. The loop thread itself,
+ * which completes some async responses, never waits for what only it can send.
+ * <p>
+ * A buffer goes back to the pool once the connection has sent it, or dropped it because it
+ * closed; writing to the stream fails from then on.
+ */
+final class NioResponseStream extends OutputStream
+{
+    static final int MAX_QUEUED_CHUNKS = 4;
+
+    private final NioEventLoop loop;
+    private final NioConnection connection;
+    private final Semaphore credits = new Semaphore(MAX_QUEUED_CHUNKS);
+    private volatile boolean aborted;
+    private byte[] chunk;
+    private int count;
+    private boolean chunkCredited;
+
+    NioResponseStream(NioEventLoop loop, NioConnection connection)
+    {
+        this.loop = loop;
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureChunk();
+        chunk[count++] = (byte) b;
+        if (count == chunk.length)
+        {
+            emit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            ensureChunk();
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunk.length)
+            {
+                emit();
+            }
+        }
+    }
+
+    /**
+     * @return what was written since the last full buffer went out, null if nothing was; the
+     *         caller queues it with the end of the response
+     */
+    FileRegion take()
+    {
+        if (chunk == null)
+        {
+            return null;
+        }
+        FileRegion region = new Chunk(chunk, count, chunkCredited);
+        chunk = null;
+        count = 0;
+        return region;
+    }
+
+    private void ensureChunk() throws IOException
+    {
+        if (aborted)
+        {
+            throw new IOException("Connection closed");
+        }
+        if (chunk != null)
+        {
+            return;
+        }
+        boolean credited = !loop.inLoop();
+        try
+        {
+            if (credited && !credits.tryAcquire(loop.getServer().getWriteTimeout(), TimeUnit.MILLISECONDS))
+            {
+                aborted = true;
+                throw new IOException("Write timed out");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        chunk = BufferPool.IO_BUFFERS.acquire();
+        count = 0;
+        chunkCredited = credited;
+    }
+
+    private void emit()
+    {
+        final FileRegion region = take();
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                connection.writePart(region);
+            }
+        });
+    }
+
+    /**
+     * A buffer of the response, returned to the pool when closed.
+     */
+    private final class Chunk extends FileRegion
+    {
+        private final byte[] buf;
+        private final boolean credited;
+        private boolean closed;
+
+        Chunk(byte[] buf, int length, boolean credited)
+        {
+            super(buf, 0, length);
+            this.buf = buf;
+            this.credited = credited;
+        }
+
+        @Override
+        public void close()
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            if (remaining() > 0)
+            {
+                // dropped by a closing connection
+                aborted = true;
+            }
+            BufferPool.IO_BUFFERS.release(buf);
+            if (credited)
+            {
+                credits.release();
+            }
+        }
+    }
+}
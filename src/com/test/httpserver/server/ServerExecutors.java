@@ -0,0 +1,72 @@
+package com.test.httpserver.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the executors that can be plugged into {@link MyHTTPServer#setExecutor}. The
+ * blocking server runs one task per connection on it, the non-blocking server one task per
+ * request.
+ */
+public final class ServerExecutors
+{
+    private ServerExecutors()
+    {
+    }
+
+    /**
+     * Fixed pool of platform threads; the server default with 10 threads.
+     */
+    public static ExecutorService platformPool(int threads)
+    {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "MyHTTPServer Worker-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Starts a new virtual thread for every task, so a connection blocked on the socket costs no
+     * platform thread. Requires a Java 21 runtime; looked up reflectively so the server still
+     * builds and runs on older releases.
+     *
+     * @throws UnsupportedOperationException
+     *             if the running JVM has no virtual threads
+     */
+    public static ExecutorService virtualThreadPerTask()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e)
+        {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * @return whether {@link #virtualThreadPerTask()} is available on this JVM
+     */
+    public static boolean isVirtualThreadsSupported()
+    {
+        try
+        {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.test.httpserver.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel for connection deadlines. Timeouts are hashed by their deadline into a ring
+ * of slots one tick apart; advancing the wheel only visits the slots whose time has come, so
+ * scheduling, cancelling and expiring are O(1) whatever the number of connections. A timeout more
+ * than one turn away waits in its slot for the remaining rounds. Deadlines fire up to one tick
+ * late, never early.
+ * <p>
+ * Timeouts may be scheduled and cancelled from any thread. {@link #advance()} and the tasks it
+ * runs are confined to one thread: the event loop owning the wheel, or the thread started by
+ * {@link #start(String)}.
+ */
+final class TimerWheel
+{
+    /**
+     * Work done when a timeout is due, e.g. checking whether a connection is still busy and
+     * either closing it or scheduling the next check.
+     */
+    interface Task
+    {
+        /**
+         * @param now
+         *            the time of the wheel, see {@link TimerWheel#now()}
+         */
+        void expired(long now);
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startMillis;
+    /**
+     * Timeouts scheduled since the last advance, moved into their slots by the owning thread
+     */
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    /**
+     * The next tick to expire
+     */
+    private long tick;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param slotCount
+     *            a power of two; one turn of the wheel is <code>tickMillis * slotCount</code>
+     */
+    TimerWheel(long tickMillis, int slotCount)
+    {
+        if (Integer.bitCount(slotCount) != 1)
+        {
+            throw new IllegalArgumentException("slotCount must be a power of two: " + slotCount);
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.startMillis = now();
+    }
+
+    /**
+     * @return milliseconds of a monotonic clock, the time base of all deadlines
+     */
+    static long now()
+    {
+        return System.nanoTime() / 1000000;
+    }
+
+    long getTickMillis()
+    {
+        return tickMillis;
+    }
+
+    /**
+     * Runs <code>task</code> once <code>delayMillis</code> have passed, unless cancelled first.
+     */
+    Timeout schedule(Task task, long delayMillis)
+    {
+        Timeout timeout = new Timeout(task, now() + Math.max(0, delayMillis));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the tasks of every timeout that has become due, on the calling thread.
+     */
+    void advance()
+    {
+        long now = now();
+        transferScheduled();
+        long due = (now - startMillis) / tickMillis;
+        for (; tick <= due; tick++)
+        {
+            int slot = (int) (tick & mask);
+            Timeout previous = null;
+            Timeout timeout = slots[slot];
+            while (timeout != null)
+            {
+                Timeout next = timeout.next;
+                if (timeout.cancelled || timeout.rounds == 0)
+                {
+                    // unlink before running, the task may schedule again
+                    if (previous == null)
+                    {
+                        slots[slot] = next;
+                    }
+                    else
+                    {
+                        previous.next = next;
+                    }
+                    timeout.next = null;
+                    if (!timeout.cancelled)
+                    {
+                        run(timeout, now);
+                    }
+                }
+                else
+                {
+                    timeout.rounds--;
+                    previous = timeout;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private void transferScheduled()
+    {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null)
+        {
+            if (timeout.cancelled)
+            {
+                continue;
+            }
+            long deadlineTick = Math.max(tick, (timeout.deadline - startMillis + tickMillis - 1) / tickMillis);
+            timeout.rounds = (deadlineTick - tick) / slots.length;
+            int slot = (int) (deadlineTick & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+    }
+
+    private static void run(Timeout timeout, long now)
+    {
+        try
+        {
+            timeout.task.expired(now);
+        }
+        catch (RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Advances the wheel every tick on a daemon thread of its own, for owners without an event
+     * loop.
+     */
+    void start(String name)
+    {
+        running = true;
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (running)
+                {
+                    try
+                    {
+                        Thread.sleep(tickMillis);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    advance();
+                }
+            }
+        });
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread started by {@link #start(String)}; pending timeouts never fire.
+     */
+    void stop()
+    {
+        running = false;
+        if (thread != null)
+        {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * A scheduled task; cancelled timeouts are dropped when the wheel reaches their slot.
+     */
+    static final class Timeout
+    {
+        private final Task task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private long rounds;
+        private Timeout next;
+
+        Timeout(Task task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.test.httpserver.util;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.test.httpserver.network.HTTPRequest;
+import com.test.httpserver.network.HTTPResponse;
+
+/**
+ * Counterpart of {@link HTTPResponseHandler} whose responses may complete later, e.g. once a call
+ * to another service returns. The worker thread is released while the future is pending and the
+ * response is written when it completes. A future completed exceptionally is answered like an
+ * exception thrown by a synchronous handler. The future is cancelled if the client goes away
+ * or the server's async timeout passes first; the request must not be used after that.
+ */
+public interface AsyncHTTPResponseHandler
+{
+    public CompletableFuture<HTTPResponse> doGet(HTTPRequest request);
+    public CompletableFuture<HTTPResponse> doPost(HTTPRequest request);
+    public CompletableFuture<HTTPResponse> doPut(HTTPRequest request);
+    public CompletableFuture<HTTPResponse> doDelete(HTTPRequest request);
+    public CompletableFuture<HTTPResponse> doHead(HTTPRequest request);
+    public CompletableFuture<HTTPResponse> doOptions(HTTPRequest request);
+}
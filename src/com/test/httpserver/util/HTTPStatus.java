@@ -9,8 +9,9 @@ public enum HTTPStatus
             206, "Partial Content"), REDIRECT(301, "Moved Permanently"), NOT_MODIFIED(304,
             "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401, "Unauthorized"), FORBIDDEN(
             403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405,
-            "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), INTERNAL_ERROR(
-            500, "Internal Server Error");
+            "Method Not Allowed"), PAYLOAD_TOO_LARGE(413, "Payload Too Large"), RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), INTERNAL_ERROR(
+            500, "Internal Server Error"), NOT_IMPLEMENTED(501, "Not Implemented"), SERVICE_UNAVAILABLE(503, "Service Unavailable"), GATEWAY_TIMEOUT(
+            504, "Gateway Timeout");
     private final int requestStatus;
     private final String description;
 